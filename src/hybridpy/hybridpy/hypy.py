@@ -7,6 +7,9 @@ import time
 import sys
 import argparse
 import shutil
+import socket
+import json
+import atexit
 
 import hybridpy.hybrid_tool as hybrid_tool
 from hybridpy.hybrid_tool import get_tool_path
@@ -24,6 +27,95 @@ TOOLS = {'flowstar':FlowstarTool(), 'spaceex':SpaceExTool(),
 
 EXIT_CODE_TERM = 143
 
+# (host, port) of a running Hyst server (java -jar Hyst.jar -server), or None to run a new Hyst
+# process for each conversion. It can also be set with the HYPY_HYST_SERVER environment variable,
+# as host:port.
+_HYST_SERVER = None
+_HYST_SERVER_PROC = None
+
+def _get_hyst_path():
+    'get the path to Hyst.jar, or raise a RuntimeError'
+
+    rv = get_tool_path('Hyst.jar')
+
+    if rv is None:
+        raise RuntimeError('Hyst not found. Did you add the directory with Hyst.jar to HYPYPATH?')
+
+    return rv
+
+def set_hyst_server(host, port):
+    '''use an already-running Hyst server for conversions (or None, None to stop using one)'''
+    global _HYST_SERVER
+
+    _HYST_SERVER = None if host is None else (host, int(port))
+
+def get_hyst_server():
+    '''get the (host, port) of the Hyst server used for conversions, or None'''
+    rv = _HYST_SERVER
+
+    if rv is None and os.environ.get('HYPY_HYST_SERVER'):
+        host, port = os.environ['HYPY_HYST_SERVER'].rsplit(':', 1)
+        rv = (host, int(port))
+
+    return rv
+
+def start_hyst_server(jobs=None):
+    '''start a Hyst server in the background and use it for the conversions in this process, so
+    that each conversion doesn't pay for starting a new JVM. The server is stopped at exit.
+
+    jobs is the maximum number of conversions the server runs at once (default: number of cores)
+    '''
+    global _HYST_SERVER_PROC
+
+    if _HYST_SERVER_PROC is not None:
+        return
+
+    params = ['java', '-jar', _get_hyst_path(), '-server', '-port', '0']
+
+    if jobs is not None:
+        params += ['-jobs', str(jobs)]
+
+    proc = subprocess.Popen(params, stdout=subprocess.PIPE)
+    line = proc.stdout.readline()
+
+    if 'listening on port' not in line:
+        proc.kill()
+        raise RuntimeError('Hyst server did not start: {}'.format(line.strip()))
+
+    _HYST_SERVER_PROC = proc
+    set_hyst_server('localhost', line.split()[-1])
+    atexit.register(stop_hyst_server)
+
+def stop_hyst_server():
+    '''stop the Hyst server started with start_hyst_server()'''
+    global _HYST_SERVER_PROC
+
+    if _HYST_SERVER_PROC is not None:
+        try:
+            _send_hyst_job(get_hyst_server(), {'command': 'shutdown'})
+        except (socket.error, ValueError):
+            _HYST_SERVER_PROC.kill()
+
+        _HYST_SERVER_PROC.wait()
+        _HYST_SERVER_PROC = None
+        set_hyst_server(None, None)
+
+def _send_hyst_job(server, job):
+    '''send a job to a Hyst server and return its result (a dict)'''
+
+    sock = socket.create_connection(server)
+
+    try:
+        f = sock.makefile('rw')
+        f.write(json.dumps(job) + '\n')
+        f.flush()
+        line = f.readline()
+        f.close()
+    finally:
+        sock.close()
+
+    return json.loads(line)
+
 def _get_all_toolnames():
     ''' get a comma-separated list of all tool names'''
     rv = ''
@@ -152,12 +244,7 @@ class Engine(object):
             "generated model" if self.input_[0] is None else 
             "model '" + self.input_[0] + "'", self.printer[0]))
 
-        hyst_path = get_tool_path('Hyst.jar')
-
-        if hyst_path is None:
-            raise RuntimeError('Hyst not found. Did you add the directory with Hyst.jar to HYPYPATH?')
-
-        params = ['java', '-jar', hyst_path]
+        params = []
 
         if self.debug:
             params.append('-debug')
@@ -189,20 +276,34 @@ class Engine(object):
 
         params += self.additional_hyst_params
 
+        server = get_hyst_server()
+
+        if server is None:
+            params = ['java', '-jar', _get_hyst_path()] + params
+
         quoted_params = ["'" + param + "'" if (' ' in param or len(param) == 0) else param for param in params]
         hypy_out.add_line("Hyst command: {}".format(" ".join(quoted_params)))
 
         try:
-            proc = subprocess.Popen(params, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
-            hyst_out.stdout_handler(proc.stdout)
-            code = proc.wait()
+            if server is None:
+                proc = subprocess.Popen(params, stdout=subprocess.PIPE, stderr=subprocess.STDOUT)
+                hyst_out.stdout_handler(proc.stdout)
+                code = proc.wait()
+            else:
+                hypy_out.add_line("Using Hyst server at {}:{}.".format(server[0], server[1]))
+                result = _send_hyst_job(server, {'args': params})
+
+                for line in result['log'].splitlines():
+                    hyst_out.add_line(line)
+
+                code = result['code']
 
             if code == 2: # Hyst exit code 2 = preconditions not met for printer
                 rv = Engine.ERROR_UNSUPPORTED
             elif code != 0:
                 rv = Engine.ERROR_CONVERSION
                 hypy_out.add_line('Error: Hyst returned nonzero exit code: {}.\n'.format(code))
-        except OSError as e:
+        except (OSError, socket.error, ValueError) as e:
             hypy_out.add_line('Error while running Hyst: {}\n'.format(e))
             rv = Engine.ERROR_CONVERSION
 
@@ -6,8 +6,6 @@ import com.verivital.hyst.util.StringOperations;
 
 public class HyperPoint implements Comparable<HyperPoint>
 {
-	public static boolean prettyPrint = false;
-
 	public double[] dims;
 
 	/**
@@ -5,6 +5,8 @@ import java.util.Collection;
 import java.util.LinkedHashSet;
 import java.util.List;
 
+import com.verivital.hyst.main.HystContext;
+
 /**
  * A Hyperrectangle is an n-dimensional rectangle representing a portion of the state space
  * 
@@ -13,21 +15,18 @@ import java.util.List;
 
 public class HyperRectangle implements Comparable<HyperRectangle>
 {
-	private static ArrayList<String> dimensionNames = new ArrayList<String>();
 	public Interval[] dims;
 	public static final double TOL = 0.00000001;
 
-	static
-	{
-		dimensionNames.add("X");
-		dimensionNames.add("Y");
-		dimensionNames.add("Z");
-	}
-
+	/**
+	 * Set the dimension names used by toString(), in the current HystContext
+	 * 
+	 * @param names
+	 *            the names
+	 */
 	public static void setDimensionNames(List<String> names)
 	{
-		dimensionNames.clear();
-		dimensionNames.addAll(names);
+		HystContext.get().setDimensionNames(names);
 	}
 
 	/**
@@ -563,6 +562,7 @@ public class HyperRectangle implements Comparable<HyperRectangle>
 	public String toString()
 	{
 		String s = "{HyperRectangle: ";
+		List<String> dimensionNames = HystContext.get().getDimensionNames();
 
 		for (int x = 0; x < dims.length; ++x)
 		{
@@ -1,19 +1,22 @@
 package com.verivital.hyst.geometry;
 
+import java.io.Serializable;
 import java.util.Map;
 
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.util.AutomatonUtil;
 
 /**
  * 
  * @author Stanley Bak
  *
  */
-public class Interval
+public class Interval implements Serializable
 {
 	public static double COMPARE_TOL = 1e-10;
 	public static final Interval NONDETERMINISTIC_ASSIGNMENT_INTERVAL = new Interval(
@@ -259,7 +262,9 @@ public class Interval
 	}
 
 	/**
-	 * Perform an interval evaluation of the passed-in expression
+	 * Perform an interval evaluation of the passed-in expression. This rounds to nearest, so the
+	 * result may not strictly contain the range. For repeated, guaranteed evaluation, use
+	 * CompiledIntervalExpression.
 	 * 
 	 * @param e
 	 *            the expression to evaluate
@@ -273,7 +278,8 @@ public class Interval
 
 		try
 		{
-			rv = intervalEvaluateRec(e, ranges);
+			// n-ary sums and products are evaluated in one frame, rather than one per term
+			rv = intervalEvaluateRec(AutomatonUtil.flattenAssociative(e), ranges);
 		}
 		catch (AutomatonExportException ex)
 		{
@@ -306,6 +312,20 @@ public class Interval
 
 			rv = new Interval(d);
 		}
+		else if (e instanceof Operation && e.asOperation().children.size() > 2
+				&& (e.asOperation().op == Operator.ADD || e.asOperation().op == Operator.MULTIPLY))
+		{
+			// n-ary sum or product, see AutomatonUtil.flattenAssociative()
+			Operation o = e.asOperation();
+			rv = intervalEvaluateRec(o.children.get(0), ranges);
+
+			for (int i = 1; i < o.children.size(); ++i)
+			{
+				Interval next = intervalEvaluateRec(o.children.get(i), ranges);
+
+				rv = o.op == Operator.ADD ? add(rv, next) : mult(rv, next);
+			}
+		}
 		else if (e instanceof Operation)
 		{
 			Operation o = e.asOperation();
@@ -387,7 +407,7 @@ public class Interval
 					throw new AutomatonExportException(
 							"Interval evaluate of sqrt with min < 0: " + i.min);
 
-				rv = new Interval(Math.sqrt(i.max), Math.sqrt(i.min));
+				rv = new Interval(Math.sqrt(i.min), Math.sqrt(i.max));
 				break;
 			}
 			case POW:
@@ -3,6 +3,8 @@
  */
 package com.verivital.hyst.grammar.formula;
 
+import java.io.Serializable;
+
 /**
  * A Real number in an expression.
  */
@@ -54,4 +56,33 @@ public class Constant extends Expression
 	{
 		return o instanceof Constant && ((Constant) o).val == val;
 	}
+
+	/**
+	 * TRUE and FALSE are compared by identity, so serialized copies of them (in a snapshot, see
+	 * SnapshotCache) need to be read back as the same objects
+	 */
+	private Object writeReplace()
+	{
+		Object rv = this;
+
+		if (this == TRUE || this == FALSE)
+			rv = new SharedConstant(this == TRUE);
+
+		return rv;
+	}
+
+	private static class SharedConstant implements Serializable
+	{
+		private final boolean isTrue;
+
+		SharedConstant(boolean isTrue)
+		{
+			this.isTrue = isTrue;
+		}
+
+		private Object readResolve()
+		{
+			return isTrue ? TRUE : FALSE;
+		}
+	}
 }
@@ -189,6 +189,28 @@ public class DefaultExpressionPrinter extends ExpressionPrinter
 			else
 				rv += print(rightExp);
 		}
+		else if (Operator.isAssociative(op))
+		{
+			// n-ary operation, see AutomatonUtil.flattenAssociative()
+			StringBuilder sb = new StringBuilder();
+			int myP = Operator.getPriority(op);
+
+			for (Expression child : children)
+			{
+				if (sb.length() > 0)
+					sb.append(" " + printOperator(op) + " ");
+
+				Operation childOp = child.asOperation();
+
+				if (childOp != null && childOp.children.size() > 1
+						&& Operator.getPriority(childOp.op) < myP)
+					sb.append("(" + print(child) + ")");
+				else
+					sb.append(print(child));
+			}
+
+			rv = sb.toString();
+		}
 		else
 		{
 			rv = super.printOperation(o);
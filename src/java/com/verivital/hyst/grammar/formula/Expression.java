@@ -1,19 +1,34 @@
 package com.verivital.hyst.grammar.formula;
 
+import java.io.Serializable;
+
+import com.verivital.hyst.util.AutomatonUtil;
+
 /**
  * General parent class for expressions.
  * 
  * Expressions can be Constants, Variables, or Operations (like +, -, &&, ==, or cos)
  * 
  * To print expressions differently, you should inherit from ExpressionPrinter, override any methods
- * you want to change, and then assign Expression.expressionPrinter
+ * you want to change, and then either call its print() method directly, or make it the printer used
+ * by toString() on the current thread with setThreadPrinter(). ToolPrinters do this with
+ * setExpressionPrinter(), which only lasts for the current print() call, so several conversions can
+ * run at the same time on different threads.
  */
-public abstract class Expression
+public abstract class Expression implements Serializable
 {
-	// this printer should be assigned as-needed by printers or passes. Use
-	// DefaultExpressionPrinter.instance for a reasonable default.
+	/**
+	 * The printer used by toString() on threads which haven't set their own printer. Use
+	 * DefaultExpressionPrinter.instance for a reasonable default.
+	 * 
+	 * @deprecated this is shared by all threads; use setThreadPrinter() or call
+	 *             ExpressionPrinter.print() directly
+	 */
+	@Deprecated
 	public static ExpressionPrinter expressionPrinter = null;
 
+	private static final ThreadLocal<ExpressionPrinter> threadPrinter = new ThreadLocal<ExpressionPrinter>();
+
 	// void setParent(Operation aThis) {
 	// throw new UnsupportedOperationException("Not supported yet."); //To
 	// change body of generated methods, choose Tools | Templates.
@@ -66,10 +81,46 @@ public abstract class Expression
 		return rv;
 	}
 
+	/**
+	 * Get the printer used by toString() on the current thread: the one set with
+	 * setThreadPrinter(), or the (deprecated) global expressionPrinter if there is none
+	 * 
+	 * @return the printer, may be null if neither is set
+	 */
+	public static ExpressionPrinter getExpressionPrinter()
+	{
+		ExpressionPrinter rv = threadPrinter.get();
+
+		if (rv == null)
+			rv = expressionPrinter;
+
+		return rv;
+	}
+
+	/**
+	 * Set the printer used by toString() on the current thread. Callers should restore the
+	 * returned printer when they are done.
+	 * 
+	 * @param printer
+	 *            the printer, or null to use the global expressionPrinter
+	 * @return the printer previously set for the current thread (may be null)
+	 */
+	public static ExpressionPrinter setThreadPrinter(ExpressionPrinter printer)
+	{
+		ExpressionPrinter rv = threadPrinter.get();
+
+		if (printer == null)
+			threadPrinter.remove();
+		else
+			threadPrinter.set(printer);
+
+		return rv;
+	}
+
 	@Override
 	public String toString()
 	{
-		return expressionPrinter.print(this);
+		return getExpressionPrinter().print(this);
 	}
 
 	/**
@@ -117,8 +168,15 @@ public abstract class Expression
 		return rv;
 	}
 
+	/**
+	 * Print the expression with DefaultExpressionPrinter. Chains of associative operations are
+	 * flattened first (see AutomatonUtil.flattenAssociative()), so long sums don't need a stack frame
+	 * per term; the output is the same.
+	 * 
+	 * @return the printed expression
+	 */
 	public String toDefaultString()
 	{
-		return DefaultExpressionPrinter.instance.print(this);
+		return DefaultExpressionPrinter.instance.print(AutomatonUtil.flattenAssociative(this));
 	}
 }
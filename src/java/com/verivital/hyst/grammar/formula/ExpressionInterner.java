@@ -0,0 +1,106 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.HashMap;
+import java.util.List;
+
+import com.verivital.hyst.grammar.formula.ImmutableExpression.Kind;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * The hash-consing table for ImmutableExpressions. Every expression created through an interner is
+ * unique within that interner, so identical subexpressions are shared. Expressions from different
+ * interners should not be mixed.
+ *
+ * The methods are synchronized, so an interner can be shared between threads.
+ */
+public class ExpressionInterner
+{
+	private static final ImmutableExpression[] NO_CHILDREN = new ImmutableExpression[0];
+
+	private final HashMap<ImmutableExpression, ImmutableExpression> table = new HashMap<ImmutableExpression, ImmutableExpression>();
+
+	public ImmutableExpression constant(double value)
+	{
+		return intern(new ImmutableExpression(Kind.CONSTANT, value, null, null, NO_CHILDREN, null));
+	}
+
+	public ImmutableExpression variable(String name)
+	{
+		if (name == null)
+			throw new AutomatonExportException("variable name cannot be null");
+
+		return intern(new ImmutableExpression(Kind.VARIABLE, 0, name, null, NO_CHILDREN, null));
+	}
+
+	public ImmutableExpression operation(Operator op, ImmutableExpression... children)
+	{
+		for (ImmutableExpression c : children)
+		{
+			if (c == null)
+				throw new AutomatonExportException("subexpressions cannot be null");
+		}
+
+		return intern(new ImmutableExpression(Kind.OPERATION, 0, null, op, children.clone(), null));
+	}
+
+	/**
+	 * Convert a (mutable) Expression to an interned ImmutableExpression. The passed-in expression
+	 * is not modified or retained, except that a copy of any opaque subexpressions (lookup tables,
+	 * matrices) is kept.
+	 *
+	 * @param e
+	 *            the expression to convert
+	 * @return the interned expression
+	 */
+	public ImmutableExpression fromExpression(Expression e)
+	{
+		ImmutableExpression rv;
+
+		if (e == null)
+			throw new AutomatonExportException("expression cannot be null");
+		else if (e == Constant.TRUE)
+			rv = intern(new ImmutableExpression(Kind.TRUE, 1, null, null, NO_CHILDREN, null));
+		else if (e == Constant.FALSE)
+			rv = intern(new ImmutableExpression(Kind.FALSE, 0, null, null, NO_CHILDREN, null));
+		else if (e instanceof Constant)
+			rv = constant(((Constant) e).getVal());
+		else if (e instanceof Variable)
+			rv = variable(((Variable) e).name);
+		else if (e instanceof Operation)
+		{
+			Operation o = (Operation) e;
+			List<Expression> list = o.children;
+			ImmutableExpression[] children = new ImmutableExpression[list.size()];
+
+			for (int i = 0; i < children.length; ++i)
+				children[i] = fromExpression(list.get(i));
+
+			rv = intern(new ImmutableExpression(Kind.OPERATION, 0, null, o.op, children, null));
+		}
+		else
+			rv = intern(new ImmutableExpression(Kind.OPAQUE, 0, null, null, NO_CHILDREN, e.copy()));
+
+		return rv;
+	}
+
+	/**
+	 * Get the number of distinct expressions in the table
+	 */
+	public synchronized int size()
+	{
+		return table.size();
+	}
+
+	private synchronized ImmutableExpression intern(ImmutableExpression e)
+	{
+		ImmutableExpression rv = table.get(e);
+
+		if (rv == null)
+		{
+			table.put(e, e);
+			rv = e;
+		}
+
+		return rv;
+	}
+}
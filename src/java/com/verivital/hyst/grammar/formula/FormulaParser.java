@@ -1,31 +1,205 @@
 package com.verivital.hyst.grammar.formula;
 
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.antlr.v4.runtime.ANTLRErrorStrategy;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
 import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTree;
 
 import com.verivital.hyst.grammar.antlr.HystExpressionLexer;
 import com.verivital.hyst.grammar.antlr.HystExpressionParser;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.HystContext;
+import com.verivital.hyst.util.TaskPool;
 
 public class FormulaParser
 {
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	// set by the first warmUp()
+	private static final AtomicBoolean warmedUp = new AtomicBoolean(false);
+
+	// least-recently-used cache of parsed expressions, keyed by part and text, see getExpression()
+	private static int cacheSize = DEFAULT_CACHE_SIZE;
+	private static final LinkedHashMap<String, Expression> cache = new LinkedHashMap<String, Expression>(
+			16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Expression> eldest)
+		{
+			return size() > cacheSize;
+		}
+	};
+
+	/**
+	 * Set the maximum number of parsed expressions to keep in the cache. Generated models often
+	 * repeat the same flow, guard and invariant text many times, and each cache hit skips creating
+	 * a lexer and parser. Use 0 to disable caching.
+	 * 
+	 * @param size
+	 *            the maximum number of entries
+	 */
+	public static void setCacheSize(int size)
+	{
+		if (size < 0)
+			throw new AutomatonExportException("cache size cannot be negative: " + size);
+
+		synchronized (cache)
+		{
+			cacheSize = size;
+
+			if (size == 0)
+				cache.clear();
+			else
+			{
+				while (cache.size() > size)
+				{
+					cache.remove(cache.keySet().iterator().next());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all cached expressions and reset the current context's hit / miss counters
+	 */
+	public static void clearCache()
+	{
+		HystContext context = HystContext.get();
+
+		synchronized (cache)
+		{
+			cache.clear();
+			context.parseCacheHits.set(0);
+			context.parseCacheMisses.set(0);
+		}
+	}
+
+	/**
+	 * Get the number of parses in the current context (HystContext) which were answered from the
+	 * cache
+	 */
+	public static long getCacheHits()
+	{
+		return HystContext.get().parseCacheHits.get();
+	}
+
+	/**
+	 * Get the number of parses in the current context (HystContext) which had to run the parser
+	 */
+	public static long getCacheMisses()
+	{
+		return HystContext.get().parseCacheMisses.get();
+	}
+
+	/**
+	 * Parse an expression, using the cache. Callers are free to modify the result, since the cache
+	 * keeps its own copy. Errors are not cached.
+	 */
 	private static Expression getExpression(String text, String part)
+	{
+		String key = part + "\n" + text;
+		Expression cached;
+
+		synchronized (cache)
+		{
+			cached = cache.get(key);
+		}
+
+		Expression rv;
+
+		if (cached != null)
+		{
+			HystContext.get().parseCacheHits.incrementAndGet();
+			rv = cached.copy();
+		}
+		else
+		{
+			HystContext.get().parseCacheMisses.incrementAndGet();
+			rv = parseExpression(text, part);
+
+			if (rv != null && cacheSize > 0)
+			{
+				synchronized (cache)
+				{
+					cache.put(key, rv.copy());
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * The lexer and parser are reused for every expression parsed on a thread, by resetting their
+	 * input. The prediction DFA cache is static in the generated parser, so it's shared between
+	 * threads. The token stream is cheap, and is created each time since
+	 * CommonTokenStream.setTokenSource() doesn't fully reset it in this version of ANTLR.
+	 */
+	private static class ParserState
+	{
+		final HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(""));
+		final HystExpressionParser par = new HystExpressionParser(new CommonTokenStream(lex));
+
+		void reset(String text, PredictionMode mode, ANTLRErrorStrategy errorHandler)
+		{
+			lex.setInputStream(new ANTLRInputStream(text));
+			par.setTokenStream(new CommonTokenStream(lex));
+			par.getInterpreter().setPredictionMode(mode);
+			par.setErrorHandler(errorHandler);
+			par.removeErrorListeners();
+
+			// only print syntax errors on the final, error-reporting parse
+			if (errorHandler instanceof DefaultErrorStrategy
+					&& !(errorHandler instanceof BailErrorStrategy))
+				par.addErrorListener(ConsoleErrorListener.INSTANCE);
+		}
+	}
+
+	private static final ThreadLocal<ParserState> parserState = new ThreadLocal<ParserState>()
+	{
+		@Override
+		protected ParserState initialValue()
+		{
+			return new ParserState();
+		}
+	};
+
+	private static Expression parseExpression(String text, String part)
 	{
 		Expression rv = null;
-		HystExpressionParser par = null;
+		ParserState ps = parserState.get();
+		ParseTree tree;
 
 		try
 		{
-			HystExpressionLexer lex = new HystExpressionLexer(new ANTLRInputStream(text)); //parsing starts here
-
-			par = new HystExpressionParser(new CommonTokenStream(lex));
-			par.setErrorHandler(new BailErrorStrategy());
+			// the fast path: SLL prediction is enough for nearly all input
+			ps.reset(text, PredictionMode.SLL, new BailErrorStrategy());
+			tree = getParseTree(ps.par, part);
+		}
+		catch (ParseCancellationException e)
+		{
+			tree = null;
+		}
 
-			ParseTree tree = getParseTree(par, part);
+		try
+		{
+			if (tree == null)
+			{
+				// either a syntax error or SLL wasn't sufficient, retry with full LL
+				ps.reset(text, PredictionMode.LL, new BailErrorStrategy());
+				tree = getParseTree(ps.par, part);
+			}
 
 			rv = new ExpVisitor().visit(tree);
 
@@ -40,40 +214,102 @@ public class FormulaParser
 		}
 		catch (ParseCancellationException e)
 		{
-			if (par != null)
+			// reparse with error reporting
+			ps.reset(text, PredictionMode.LL, new DefaultErrorStrategy());
+
+			try
 			{
-				// reparse with error reporting
-				par.setErrorHandler(new DefaultErrorStrategy());
+				getParseTree(ps.par, part);
+			}
+			catch (RuntimeException e2)
+			{
+			}
+
+			throw new AutomatonExportException("Could not parse " + part + ": '" + text + "'", e);
+		}
+
+		return rv;
+	}
 
+	/**
+	 * Parse a few representative expressions of each kind, so that the parser's shared prediction
+	 * cache is populated before the first large model is parsed. This bypasses the expression
+	 * cache. The prediction cache is shared by the whole JVM, so only the first call does anything.
+	 */
+	public static void warmUp()
+	{
+		if (warmedUp.getAndSet(true))
+			return;
+
+		String[][] samples = {
+				{ "number (addsub)", "2 * x - 5.5e-3 / (y + 1) ^ 2", "-sin(x) * cos(y) + sqrt(z)",
+						"exp(-t) + ln(2) * tan(x)" },
+				{ "invariant", "x >= 0 & x <= 1 | y >= x & y <= x + 1", "!(x < 2) & true" },
+				{ "guard", "x >= 0 & x <= 1 | y >= x & y <= x + 1", "x == 5 & y != 3" },
+				{ "reset", "x := x + y & y := 0", "x == 2 * x & y == y - 1" },
+				{ "flow", "x' == 2 * x + y & y' == -y", "t' == 1 & x' == sin(t) * x ^ 2" },
+				{ "initial/forbidden",
+						"loc(automaton) == start & x == 5 & y >= 0 & y <= x",
+						"loc(a.b) == on & x >= 1 | loc() == off" }, };
+
+		for (String[] group : samples)
+		{
+			for (int i = 1; i < group.length; ++i)
+			{
 				try
 				{
-					getParseTree(par, part);
+					parseExpression(group[i], group[0]);
 				}
-				catch (ParseCancellationException e2)
+				catch (AutomatonExportException e)
 				{
+					// warm-up inputs which don't fit the grammar still populate the cache
 				}
 			}
-
-			throw new AutomatonExportException("Could not parse " + part + ": '" + text + "'", e);
 		}
+	}
 
-		return rv;
+	/**
+	 * Run warmUp() on the task pool, unless it was already done, so that it overlaps with reading
+	 * the model files
+	 */
+	public static void warmUpInBackground()
+	{
+		if (!warmedUp.get())
+		{
+			TaskPool.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					warmUp();
+					return null;
+				}
+			});
+		}
 	}
 
 	private static void checkNoDottedVariables(Expression e)
 	{
+		// iterative, since sums of many terms can be very deep
+		ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+
 		if (e != null)
+			stack.push(e);
+
+		while (!stack.isEmpty())
 		{
-			Operation o = e.asOperation();
+			Expression cur = stack.pop();
+			Operation o = cur.asOperation();
 
 			if (o != null)
 			{
-				for (int i = 0; i < o.children.size(); ++i)
-					checkNoDottedVariables(o.children.get(i));
+				// push in reverse, so the leftmost dotted variable is reported
+				for (int i = o.children.size() - 1; i >= 0; --i)
+					stack.push(o.children.get(i));
 			}
-			else if (e instanceof Variable)
+			else if (cur instanceof Variable)
 			{
-				Variable v = (Variable) e;
+				Variable v = (Variable) cur;
 
 				if (v.name.contains("."))
 					throw new AutomatonExportException(
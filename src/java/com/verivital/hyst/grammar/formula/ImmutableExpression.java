@@ -0,0 +1,180 @@
+package com.verivital.hyst.grammar.formula;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable, hash-consed expression. Instances are only created by an ExpressionInterner, which
+ * returns the existing instance for any expression it has already seen. This means identical
+ * subexpressions (for example, the same flow in many modes of a flattened automaton) are stored
+ * once, and two expressions from the same interner are structurally equal if and only if they are
+ * the same object, so == is a constant-time equality check.
+ *
+ * Convert from the mutable Expression classes with ExpressionInterner.fromExpression(), and back
+ * with toExpression(). Expression types other than Constant, Variable and Operation (lookup tables,
+ * matrices, pde expressions) are stored as opaque leaves, which are never shared.
+ */
+public final class ImmutableExpression
+{
+	public enum Kind
+	{
+		CONSTANT, TRUE, FALSE, VARIABLE, OPERATION, OPAQUE,
+	}
+
+	private final Kind kind;
+	private final double value;
+	private final String name;
+	private final Operator op;
+	private final ImmutableExpression[] children;
+	private final Expression opaque;
+	private final int hash;
+
+	ImmutableExpression(Kind kind, double value, String name, Operator op,
+			ImmutableExpression[] children, Expression opaque)
+	{
+		this.kind = kind;
+		this.value = value;
+		this.name = name;
+		this.op = op;
+		this.children = children;
+		this.opaque = opaque;
+
+		int h = kind.hashCode();
+		long bits = Double.doubleToLongBits(value);
+		h = 31 * h + (int) (bits ^ (bits >>> 32));
+		h = 31 * h + (name == null ? 0 : name.hashCode());
+		h = 31 * h + (op == null ? 0 : op.hashCode());
+
+		// children are interned, so their identity hash codes are sufficient
+		for (ImmutableExpression c : children)
+			h = 31 * h + System.identityHashCode(c);
+
+		if (opaque != null)
+			h = 31 * h + System.identityHashCode(opaque);
+
+		hash = h;
+	}
+
+	public Kind getKind()
+	{
+		return kind;
+	}
+
+	/**
+	 * Get the value of a CONSTANT (TRUE is 1 and FALSE is 0)
+	 */
+	public double getValue()
+	{
+		return value;
+	}
+
+	/**
+	 * Get the name of a VARIABLE, or null
+	 */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Get the operator of an OPERATION, or null
+	 */
+	public Operator getOperator()
+	{
+		return op;
+	}
+
+	public int getNumChildren()
+	{
+		return children.length;
+	}
+
+	public ImmutableExpression getChild(int index)
+	{
+		return children[index];
+	}
+
+	/**
+	 * Create a new (mutable) Expression tree equal to this one. Shared subexpressions are copied
+	 * each time they occur.
+	 *
+	 * @return the new expression
+	 */
+	public Expression toExpression()
+	{
+		Expression rv = null;
+
+		switch (kind)
+		{
+		case CONSTANT:
+			rv = new Constant(value);
+			break;
+		case TRUE:
+			rv = Constant.TRUE;
+			break;
+		case FALSE:
+			rv = Constant.FALSE;
+			break;
+		case VARIABLE:
+			rv = new Variable(name);
+			break;
+		case OPERATION:
+			ArrayList<Expression> list = new ArrayList<Expression>(children.length);
+
+			for (ImmutableExpression c : children)
+				list.add(c.toExpression());
+
+			rv = new Operation(op, list);
+			break;
+		case OPAQUE:
+			rv = opaque.copy();
+			break;
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Shallow structural equality: the kind, value, name and operator match, and the children are
+	 * the same instances. For interned expressions, this is the same as full structural equality,
+	 * which is also the same as ==.
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+
+		if (!(o instanceof ImmutableExpression))
+			return false;
+
+		ImmutableExpression other = (ImmutableExpression) o;
+
+		if (hash != other.hash || kind != other.kind || op != other.op
+				|| Double.doubleToLongBits(value) != Double.doubleToLongBits(other.value)
+				|| opaque != other.opaque || children.length != other.children.length)
+			return false;
+
+		if (name == null ? other.name != null : !name.equals(other.name))
+			return false;
+
+		for (int i = 0; i < children.length; ++i)
+		{
+			if (children[i] != other.children[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return toExpression().toDefaultString();
+	}
+}
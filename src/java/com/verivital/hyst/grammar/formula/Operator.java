@@ -72,6 +72,17 @@ public enum Operator
 		return COMMUTATIVE_OPS.contains(o);
 	}
 
+	static final List<Operator> ASSOCIATIVE_OPS = Arrays.asList(ADD, MULTIPLY, AND, OR);
+
+	/**
+	 * Is the operator associative? Operations with these operators may have more than two
+	 * children, see AutomatonUtil.flattenAssociative().
+	 */
+	public static boolean isAssociative(Operator o)
+	{
+		return ASSOCIATIVE_OPS.contains(o);
+	}
+
 	static final List<Operator> BOOLEAN_OPS = Arrays.asList(AND, OR, LOGICAL_NOT, EQUAL, LESS,
 			GREATER, LESSEQUAL, GREATEREQUAL, NOTEQUAL);
 
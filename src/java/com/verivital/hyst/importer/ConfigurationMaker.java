@@ -20,6 +20,7 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.RangeExtractor;
@@ -88,9 +89,17 @@ public class ConfigurationMaker
 
 		// don't do const validation here, since full automaton is not yet
 		// constructed
-		Component.VALIDATE_CONSTS = false;
-		rv.validate();
-		Component.VALIDATE_CONSTS = true;
+		HystContext context = HystContext.get();
+		context.validateConsts = false;
+
+		try
+		{
+			rv.validate();
+		}
+		finally
+		{
+			context.validateConsts = true;
+		}
 
 		return rv;
 	}
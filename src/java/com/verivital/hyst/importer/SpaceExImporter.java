@@ -4,9 +4,13 @@
 package com.verivital.hyst.importer;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.util.TaskPool;
 
 import de.uni_freiburg.informatik.swt.spaxeexxmlreader.SpaceExXMLReader;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExComponent;
@@ -42,18 +46,31 @@ public class SpaceExImporter
 		if (xmlFilenames.length < 1)
 			throw new AutomatonExportException("must have at least one xml filename");
 
-		SpaceExDocument rv = new SpaceExXMLReader(xmlFilenames[0], cfgFilename).read();
+		// read the additional files concurrently with the first one
+		ArrayList<Future<SpaceExDocument>> others = new ArrayList<Future<SpaceExDocument>>();
 
 		for (int i = 1; i < xmlFilenames.length; ++i)
 		{
-			String xml = xmlFilenames[i];
+			final String xml = xmlFilenames[i];
 
-			SpaceExDocument doc = new SpaceExXMLReader(xml, null).read();
+			Callable<SpaceExDocument> read = new Callable<SpaceExDocument>()
+			{
+				@Override
+				public SpaceExDocument call()
+				{
+					return new SpaceExXMLReader(xml, null).read();
+				}
+			};
 
-			// merge into rv
-			addToDocument(rv, doc);
+			others.add(TaskPool.submit(read));
 		}
 
+		SpaceExDocument rv = new SpaceExXMLReader(xmlFilenames[0], cfgFilename).read();
+
+		// merge into rv, in the order the files were given
+		for (Future<SpaceExDocument> doc : others)
+			addToDocument(rv, TaskPool.getResult(doc));
+
 		return rv;
 	}
 
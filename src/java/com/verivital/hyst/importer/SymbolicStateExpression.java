@@ -11,6 +11,7 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.HystContext;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.Bind;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.Location;
@@ -38,6 +39,8 @@ public class SymbolicStateExpression
 	// example: x <= 5 && x >= 4
 	private Expression contStates;
 
+	private final Layout layout;
+
 	/**
 	 * Create a new symbolic state
 	 * 
@@ -46,10 +49,17 @@ public class SymbolicStateExpression
 	 */
 	public SymbolicStateExpression(boolean entireSpace)
 	{
-		if (doc == null)
+		this(HystContext.get().symbolicStateLayout, entireSpace);
+	}
+
+	private SymbolicStateExpression(Layout layout, boolean entireSpace)
+	{
+		if (layout == null)
 			throw new RuntimeException(
 					"static SymbolicState.setComponent() method must be called before constructor");
 
+		this.layout = layout;
+
 		if (entireSpace)
 		{
 			discStates = getAllDiscStates();
@@ -59,7 +69,7 @@ public class SymbolicStateExpression
 		{
 			discStates = new ArrayList<Collection<String>>();
 
-			for (int i = 0; i < instanceNames.size(); ++i)
+			for (int i = 0; i < layout.instanceNames.size(); ++i)
 				discStates.add(new ArrayList<String>());
 
 			contStates = Constant.FALSE;
@@ -71,7 +81,7 @@ public class SymbolicStateExpression
 	 */
 	public SymbolicStateExpression copy()
 	{
-		SymbolicStateExpression rv = new SymbolicStateExpression(false);
+		SymbolicStateExpression rv = new SymbolicStateExpression(layout, false);
 
 		rv.contStates = contStates.copy();
 
@@ -88,11 +98,12 @@ public class SymbolicStateExpression
 
 	private List<Collection<String>> getAllDiscStates()
 	{
-		List<Collection<String>> rv = new ArrayList<Collection<String>>(instanceTypes.size());
+		List<Collection<String>> rv = new ArrayList<Collection<String>>(
+				layout.instanceTypes.size());
 
-		for (String id : instanceTypes)
+		for (String id : layout.instanceTypes)
 		{
-			SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
+			SpaceExBaseComponent c = (SpaceExBaseComponent) layout.doc.getComponent(id);
 
 			ArrayList<String> modes = new ArrayList<String>(c.getLocationCount());
 
@@ -124,7 +135,7 @@ public class SymbolicStateExpression
 
 	public void addDiscreteConstraint(String instance, String state)
 	{
-		int index = instanceNames.indexOf(instance);
+		int index = layout.instanceNames.indexOf(instance);
 
 		if (index == -1)
 			throw new AutomatonExportException(
@@ -132,7 +143,7 @@ public class SymbolicStateExpression
 
 		Collection<String> states = discStates.get(index);
 
-		String id = instanceTypes.get(index);
+		String id = layout.instanceTypes.get(index);
 
 		if (!componentContainsDiscreteState(id, state))
 			throw new AutomatonExportException(
@@ -249,7 +260,7 @@ public class SymbolicStateExpression
 	{
 		ArrayList<String> rv = null;
 
-		if (componentIndex < instanceTypes.size())
+		if (componentIndex < layout.instanceTypes.size())
 		{
 			Collection<String> states = discStates.get(componentIndex);
 
@@ -284,16 +295,30 @@ public class SymbolicStateExpression
 	/// static below //
 	///////////////////
 
-	private static SpaceExDocument doc;
+	/**
+	 * The instances of the network being imported, shared by the symbolic states of one import.
+	 * This is stored in the HystContext, see setComponent().
+	 */
+	public static class Layout
+	{
+		private final SpaceExDocument doc;
+
+		// example: ["net.controller_i", "net.plant_i"]
+		private final List<String> instanceNames;
 
-	// example: ["net.controller_i", "net.plant_i"]
-	private static List<String> instanceNames;
+		// example: ["controller", "plant"]
+		private final List<String> instanceTypes;
 
-	// example: ["controller", "plant"]
-	private static List<String> instanceTypes;
+		private Layout(SpaceExComponent root, SpaceExDocument doc)
+		{
+			this.doc = doc;
+			instanceNames = getInstanceNames("", root, doc);
+			instanceTypes = getInstanceTypes(root, doc);
+		}
+	}
 
 	/**
-	 * Initializes the instanceNames and instanceTypes (statically stored)
+	 * Initializes the instanceNames and instanceTypes (stored in the current HystContext)
 	 * 
 	 * @param root
 	 *            the root component
@@ -305,17 +330,14 @@ public class SymbolicStateExpression
 		if (doc == null)
 			throw new RuntimeException("doc cannot be null");
 
-		SymbolicStateExpression.doc = doc;
-
-		instanceNames = getInstanceNames("", root);
-		instanceTypes = getInstanceTypes(root);
+		HystContext.get().symbolicStateLayout = new Layout(root, doc);
 	}
 
-	private static boolean componentContainsDiscreteState(String id, String state)
+	private boolean componentContainsDiscreteState(String id, String state)
 	{
 		boolean rv = false;
 
-		SpaceExBaseComponent c = (SpaceExBaseComponent) doc.getComponent(id);
+		SpaceExBaseComponent c = (SpaceExBaseComponent) layout.doc.getComponent(id);
 
 		for (int i = 0; i < c.getLocationCount(); ++i)
 		{
@@ -331,7 +353,7 @@ public class SymbolicStateExpression
 		return rv;
 	}
 
-	private static List<String> getInstanceTypes(SpaceExComponent c)
+	private static List<String> getInstanceTypes(SpaceExComponent c, SpaceExDocument doc)
 	{
 		List<String> rv = new ArrayList<String>();
 
@@ -348,14 +370,15 @@ public class SymbolicStateExpression
 				String compName = b.getComponent();
 				SpaceExComponent comp = doc.getComponent(compName);
 
-				rv.addAll(getInstanceTypes(comp));
+				rv.addAll(getInstanceTypes(comp, doc));
 			}
 		}
 
 		return rv;
 	}
 
-	private static List<String> getInstanceNames(String instanceName, SpaceExComponent c)
+	private static List<String> getInstanceNames(String instanceName, SpaceExComponent c,
+			SpaceExDocument doc)
 	{
 		List<String> rv = new ArrayList<String>();
 
@@ -375,7 +398,7 @@ public class SymbolicStateExpression
 				String newInstName = (instanceName.length() > 0 ? instanceName + "." : "")
 						+ b.getAs();
 
-				rv.addAll(getInstanceNames(newInstName, comp));
+				rv.addAll(getInstanceNames(newInstName, comp, doc));
 			}
 		}
 
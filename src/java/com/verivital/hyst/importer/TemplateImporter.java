@@ -42,7 +42,7 @@ public class TemplateImporter
 {
 	// prefix used for value maps (hardcoded mappings to constants) inside
 	// template automata
-	// this may exist in models when Component.VALIDATE_CONSTS is false
+	// this may exist in models when HystContext.validateConsts is false
 	public static final String TEMPLATE_VALUE_MAP_PREFIX = "~";
 
 	/**
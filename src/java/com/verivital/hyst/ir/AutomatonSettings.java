@@ -1,7 +1,10 @@
 package com.verivital.hyst.ir;
 
+import java.io.Serializable;
 import java.util.Collection;
 
+import com.verivital.hyst.main.HystContext;
+
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
 
 /**
@@ -13,7 +16,7 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExConfigValues;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class AutomatonSettings
+public class AutomatonSettings implements Serializable
 {
 	public Configuration config;
 
@@ -38,7 +41,7 @@ public class AutomatonSettings
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (config == null)
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -13,6 +14,7 @@ import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.HystContext;
 
 /**
  * A component is a base component (single hybrid automaton with labels and I/O), or a network
@@ -30,10 +32,8 @@ import com.verivital.hyst.ir.network.NetworkComponent;
  * (circular), if this is a template automaton
  *
  */
-public abstract class Component
+public abstract class Component implements Serializable
 {
-	public static boolean VALIDATE_CONSTS = true; // should constant
-													// names/values be checked
 	public NetworkComponent parent;
 	public String instanceName; // component instance name, null for root
 								// component
@@ -47,7 +47,7 @@ public abstract class Component
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (instanceName != null)
@@ -79,7 +79,7 @@ public abstract class Component
 		checkNameConflicts(allNames, labels, "label names of " + getPrintableInstanceName());
 
 		// we may skip this during automaton construction
-		if (VALIDATE_CONSTS)
+		if (HystContext.get().validateConsts)
 		{
 			checkNameConflicts(allNames, constants.keySet(),
 					"constant names of " + getPrintableInstanceName());
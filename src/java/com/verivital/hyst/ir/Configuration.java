@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -7,6 +8,7 @@ import java.util.Set;
 
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -19,10 +21,8 @@ import com.verivital.hyst.util.AutomatonUtil;
  * expression may be null (these can be rejected in ToolPrinter)
  *
  */
-public class Configuration
+public class Configuration implements Serializable
 {
-	public static boolean DO_VALIDATION = true;
-
 	public AutomatonSettings settings = new AutomatonSettings(this);
 
 	public LinkedHashMap<String, Expression> init = new LinkedHashMap<String, Expression>();
@@ -51,7 +51,7 @@ public class Configuration
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (root == null)
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -11,6 +12,7 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -27,7 +29,7 @@ import com.verivital.hyst.util.AutomatonUtil;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class AutomatonMode
+public class AutomatonMode implements Serializable
 {
 	public String name;
 	public final BaseComponent automaton;
@@ -65,7 +67,7 @@ public class AutomatonMode
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (name == null)
@@ -12,8 +12,8 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
-import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -141,7 +141,7 @@ public class BaseComponent extends Component
 	 */
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		super.validate();
@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.LinkedHashMap;
@@ -11,7 +12,7 @@ import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
-import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -28,7 +29,7 @@ import com.verivital.hyst.util.AutomatonUtil;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class DiscretePDAutomatonMode
+public class DiscretePDAutomatonMode implements Serializable
 {
 	public List<String> names;
 	public final DiscretePDBaseComponent automaton;
@@ -66,7 +67,7 @@ public class DiscretePDAutomatonMode
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (name == null)
@@ -1,5 +1,7 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
+
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
@@ -19,7 +21,7 @@ import com.verivital.hyst.ir.AutomatonExportException;
  * @author Stanley Bak
  *
  */
-public class ExpressionInterval
+public class ExpressionInterval implements Serializable
 {
 	private Expression e = null;
 	private Interval i = null;
@@ -133,7 +135,7 @@ public class ExpressionInterval
 	 */
 	public String toString()
 	{
-		return toString(Expression.expressionPrinter);
+		return toString(Expression.getExpressionPrinter());
 	}
 
 	/**
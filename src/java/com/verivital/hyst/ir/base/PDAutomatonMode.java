@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
@@ -10,7 +11,7 @@ import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
-import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -27,7 +28,7 @@ import com.verivital.hyst.util.AutomatonUtil;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class PDAutomatonMode
+public class PDAutomatonMode implements Serializable
 {
 	public String name;
 	public final PDBaseComponent automaton;
@@ -68,7 +69,7 @@ public class PDAutomatonMode
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (name == null)
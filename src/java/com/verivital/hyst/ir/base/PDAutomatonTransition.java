@@ -1,5 +1,6 @@
 package com.verivital.hyst.ir.base;
 
+import java.io.Serializable;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 
@@ -8,7 +9,7 @@ import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
-import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.AutomatonUtil;
 
 /**
@@ -20,7 +21,7 @@ import com.verivital.hyst.util.AutomatonUtil;
  * @author Stanley Bak (stanleybak@gmail.com)
  *
  */
-public class PDAutomatonTransition
+public class PDAutomatonTransition implements Serializable
 {
 	public static final Expression DEFAULT_GUARD = Constant.TRUE;
 
@@ -108,7 +109,7 @@ public class PDAutomatonTransition
 	 */
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		if (parent == null)
@@ -1,12 +1,13 @@
 package com.verivital.hyst.ir.network;
 
+import java.io.Serializable;
 import java.util.Collection;
 
 import com.verivital.hyst.importer.TemplateImporter;
 import com.verivital.hyst.ir.AutomatonValidationException;
-import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.main.HystContext;
 
-public class ComponentMapping
+public class ComponentMapping implements Serializable
 {
 	public String childParam; // the parameter in the child
 	public String parentParam; // the parameter in the parent (may be a
@@ -29,7 +30,7 @@ public class ComponentMapping
 			throw new AutomatonValidationException("parentParam is null in mapping of "
 					+ mappingType + " in component " + instanceName);
 
-		if (Component.VALIDATE_CONSTS
+		if (HystContext.get().validateConsts
 				|| !parentParam.startsWith(TemplateImporter.TEMPLATE_VALUE_MAP_PREFIX))
 		{
 			if (!parentList.contains(parentParam))
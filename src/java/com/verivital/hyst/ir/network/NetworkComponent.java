@@ -10,7 +10,7 @@ import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.AutomatonValidationException;
 import com.verivital.hyst.ir.Component;
-import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.main.HystContext;
 
 /**
  * A network component as part of a hybrid automaton. This can compose one or more subcomponents, as
@@ -33,7 +33,7 @@ public class NetworkComponent extends Component
 
 	public void validate()
 	{
-		if (!Configuration.DO_VALIDATION)
+		if (!HystContext.get().doValidation)
 			return;
 
 		super.validate();
@@ -33,7 +33,7 @@ public class ContinuizationPassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
@@ -47,6 +47,32 @@ public class ContinuizationPassTests
 		PythonBridge.setBlockPython(block);
 	}
 
+	/**
+	 * Test for the native-simulation range detection
+	 */
+	@Test
+	public void testRangeTestSim()
+	{
+		String[][] dynamics = { { "t", "1" }, { "y", "sin(t)" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
+
+		ArrayList<Interval> timeIntervals = new ArrayList<Interval>();
+		timeIntervals.add(new Interval(0, Math.PI / 4.0));
+		timeIntervals.add(new Interval(0, 2 * Math.PI));
+
+		SymbolicStatePoint start = new SymbolicStatePoint("on", new HyperPoint(0, 0));
+
+		List<Interval> result = ContinuizationPass.simulateDerivativeRange(c, "y", start,
+				timeIntervals);
+
+		Assert.assertEquals(2, result.size());
+
+		Interval.COMPARE_TOL = 1e-3;
+
+		Assert.assertEquals(new Interval(0, Math.sqrt(2) / 2.0), result.get(0));
+		Assert.assertEquals(new Interval(-1, 1), result.get(1));
+	}
+
 	/**
 	 * Test for the python-base range detection
 	 */
@@ -84,9 +110,6 @@ public class ContinuizationPassTests
 	@Test
 	public void testContinuizationPassSineWave()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		String[][] dynamics = { { "y", "cos(t)" }, { "t", "1" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
 
@@ -119,9 +142,6 @@ public class ContinuizationPassTests
 	@Test
 	public void testContinuizationPassDoubleIntegrator()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		String[][] dynamics = { { "x", "v", "0.05" }, { "v", "a", "0" },
 				{ "a", "-10 * v - 3 * a", "9.5" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
@@ -173,9 +193,6 @@ public class ContinuizationPassTests
 	@Test
 	public void testUrgentDoubleIntegrator()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		String[][] dynamics = { { "x", "v", "0" }, { "v", "a", "0" },
 				{ "a", "-10 * v - 3 * a", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
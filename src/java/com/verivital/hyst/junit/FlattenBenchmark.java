@@ -0,0 +1,268 @@
+package com.verivital.hyst.junit;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionInterner;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.importer.ConfigurationMaker;
+import com.verivital.hyst.importer.SpaceExImporter;
+import com.verivital.hyst.importer.TemplateImporter;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
+
+import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
+
+/**
+ * Benchmark for FlattenAutomatonPass on scaled-up versions of the comp_simple_crossprod_network
+ * and three_hier unit test models. The models are generated: a ring template with many modes and
+ * labeled transitions is instantiated several times, either directly in the root network (like
+ * comp_simple_crossprod_network) or inside a network which is itself instantiated (like
+ * three_hier).
+ *
+ * The last two columns compare the number of expression nodes in the flattened automaton with the
+ * number of distinct nodes after hash-consing (ExpressionInterner).
+ *
+ * This is not a unit test (it isn't run by the build). Run it with the main method, optionally
+ * passing the number of modes per ring, the number of timing repetitions, and the maximum number
+ * of ring instances.
+ */
+public class FlattenBenchmark
+{
+	private static final String TEMPLATE_ID = "ring";
+
+	public static void main(String[] args) throws FileNotFoundException
+	{
+		int numModes = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int reps = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int maxInstances = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		Expression.setThreadPrinter(DefaultExpressionPrinter.instance);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "hyst_flatten_benchmark");
+
+		if (!dir.exists() && !dir.mkdirs())
+			throw new AutomatonExportException("could not create directory: " + dir);
+
+		System.out.println("model, components, modes per component, flat modes, flat transitions, "
+				+ "full product ms, reachable product ms, expression nodes, hash-consed nodes");
+
+		for (int instances = 2; instances <= maxInstances; ++instances)
+		{
+			run(dir, "crossprod", false, instances, numModes, reps);
+			run(dir, "hier", true, instances, numModes, reps);
+		}
+	}
+
+	private static void run(File dir, String name, boolean hierarchical, int instances,
+			int numModes, int reps) throws FileNotFoundException
+	{
+		String base = name + "_" + instances + "_" + numModes;
+		File xml = new File(dir, base + ".xml");
+		File cfg = new File(dir, base + ".cfg");
+
+		writeModel(xml, cfg, hierarchical, instances, numModes);
+
+		long fullNs = Long.MAX_VALUE;
+		long reachableNs = Long.MAX_VALUE;
+		BaseComponent ha = null;
+
+		for (int r = 0; r < reps; ++r)
+		{
+			Configuration c = load(xml, cfg);
+			long start = System.nanoTime();
+			new FlattenAutomatonPass().runVanillaPass(c, "");
+			fullNs = Math.min(fullNs, System.nanoTime() - start);
+			ha = (BaseComponent) c.root;
+
+			c = load(xml, cfg);
+			start = System.nanoTime();
+			new FlattenAutomatonPass().runVanillaPass(c, "-reachable");
+			reachableNs = Math.min(reachableNs, System.nanoTime() - start);
+		}
+
+		ExpressionInterner interner = new ExpressionInterner();
+		int nodes = countNodes(ha, interner);
+
+		System.out.println(name + ", " + instances + ", " + numModes + ", " + ha.modes.size()
+				+ ", " + ha.transitions.size() + ", " + fullNs / 1000000 + ", "
+				+ reachableNs / 1000000 + ", " + nodes + ", " + interner.size());
+	}
+
+	/**
+	 * Count the expression nodes in the automaton, and add each expression to the interner
+	 */
+	private static int countNodes(BaseComponent ha, ExpressionInterner interner)
+	{
+		int rv = 0;
+
+		for (AutomatonMode am : ha.modes.values())
+		{
+			rv += countNodes(am.invariant, interner);
+
+			if (am.flowDynamics != null)
+			{
+				for (ExpressionInterval ei : am.flowDynamics.values())
+					rv += countNodes(ei.getExpression(), interner);
+			}
+		}
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			rv += countNodes(at.guard, interner);
+
+			for (ExpressionInterval ei : at.reset.values())
+				rv += countNodes(ei.getExpression(), interner);
+		}
+
+		return rv;
+	}
+
+	private static int countNodes(Expression e, ExpressionInterner interner)
+	{
+		interner.fromExpression(e);
+
+		return countNodes(e);
+	}
+
+	private static int countNodes(Expression e)
+	{
+		int rv = 1;
+
+		if (e instanceof Operation)
+		{
+			for (Expression c : ((Operation) e).children)
+				rv += countNodes(c);
+		}
+
+		return rv;
+	}
+
+	private static Configuration load(File xml, File cfg)
+	{
+		SpaceExDocument doc = SpaceExImporter.importModels(cfg.getPath(), xml.getPath());
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(doc);
+
+		return ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+	}
+
+	/**
+	 * Write a model where 'instances' copies of the ring template are composed. With
+	 * hierarchical, each copy is wrapped in its own network component.
+	 */
+	private static void writeModel(File xml, File cfg, boolean hierarchical, int instances,
+			int numModes) throws FileNotFoundException
+	{
+		int numLabels = numModes / 2;
+		PrintWriter out = new PrintWriter(xml);
+
+		out.println("<?xml version=\"1.0\" encoding=\"iso-8859-1\"?>");
+		out.println("<sspaceex xmlns=\"http://www-verimag.imag.fr/xml-namespaces/sspaceex\" "
+				+ "version=\"0.2\" math=\"SpaceEx\">");
+
+		// the ring: mode i goes to i + 1 with a shared label, and to i + 2 without a label
+		out.println("  <component id=\"" + TEMPLATE_ID + "\">");
+		out.println("    <param name=\"v\" type=\"real\" local=\"false\" d1=\"1\" d2=\"1\" "
+				+ "dynamics=\"any\" controlled=\"true\" />");
+		printLabelParams(out, numLabels);
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			out.println("    <location id=\"" + (m + 1) + "\" name=\"m" + m + "\">");
+			out.println("      <flow>v' == " + (m % 3 - 1) + "</flow>");
+			out.println("    </location>");
+		}
+
+		for (int m = 0; m < numModes; ++m)
+		{
+			out.println("    <transition source=\"" + (m + 1) + "\" target=\""
+					+ ((m + 1) % numModes + 1) + "\">");
+			out.println("      <label>sync" + (m % numLabels) + "</label>");
+			out.println("      <guard>v &gt;= " + m + "</guard>");
+			out.println("    </transition>");
+
+			out.println("    <transition source=\"" + (m + 1) + "\" target=\""
+					+ ((m + 2) % numModes + 1) + "\">");
+			out.println("      <guard>v &lt;= " + m + "</guard>");
+			out.println("      <assignment>v' == 0</assignment>");
+			out.println("    </transition>");
+		}
+
+		out.println("  </component>");
+
+		String child = TEMPLATE_ID;
+
+		if (hierarchical)
+		{
+			child = "wrapper";
+			out.println("  <component id=\"" + child + "\">");
+			out.println("    <param name=\"w\" type=\"real\" local=\"false\" d1=\"1\" d2=\"1\" "
+					+ "dynamics=\"any\" controlled=\"true\" />");
+			printLabelParams(out, numLabels);
+			out.println("    <bind component=\"" + TEMPLATE_ID + "\" as=\"inner\">");
+			out.println("      <map key=\"v\">w</map>");
+			printLabelMaps(out, numLabels);
+			out.println("    </bind>");
+			out.println("  </component>");
+		}
+
+		out.println("  <component id=\"system\">");
+
+		for (int i = 0; i < instances; ++i)
+			out.println("    <param name=\"x" + i + "\" type=\"real\" local=\"false\" d1=\"1\" "
+					+ "d2=\"1\" dynamics=\"any\" controlled=\"true\" />");
+
+		printLabelParams(out, numLabels);
+
+		for (int i = 0; i < instances; ++i)
+		{
+			out.println("    <bind component=\"" + child + "\" as=\"inst" + i + "\">");
+			out.println("      <map key=\"" + (hierarchical ? "w" : "v") + "\">x" + i + "</map>");
+			printLabelMaps(out, numLabels);
+			out.println("    </bind>");
+		}
+
+		out.println("  </component>");
+		out.println("</sspaceex>");
+		out.close();
+
+		StringBuilder init = new StringBuilder();
+
+		for (int i = 0; i < instances; ++i)
+		{
+			if (i > 0)
+				init.append(" & ");
+
+			init.append("x" + i + " == 0 & loc(inst" + i + (hierarchical ? ".inner" : "")
+					+ ") == m0");
+		}
+
+		out = new PrintWriter(cfg);
+		out.println("system = system");
+		out.println("initially = \"" + init + "\"");
+		out.println("sampling-time = 0.1");
+		out.println("time-horizon = 10");
+		out.close();
+	}
+
+	private static void printLabelMaps(PrintWriter out, int numLabels)
+	{
+		for (int l = 0; l < numLabels; ++l)
+			out.println("      <map key=\"sync" + l + "\">sync" + l + "</map>");
+	}
+
+	private static void printLabelParams(PrintWriter out, int numLabels)
+	{
+		for (int l = 0; l < numLabels; ++l)
+			out.println("    <param name=\"sync" + l + "\" type=\"label\" local=\"false\" />");
+	}
+}
@@ -42,7 +42,7 @@ public class GeneratorTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
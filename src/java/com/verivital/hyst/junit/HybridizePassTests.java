@@ -39,7 +39,9 @@ import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.TimeSplitt
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMixedTriggeredPass;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.python.PythonUtil;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.IntervalOptimizer;
 import com.verivital.hyst.util.RangeExtractor;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
@@ -52,7 +54,7 @@ public class HybridizePassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
@@ -173,7 +175,7 @@ public class HybridizePassTests
 		AutomatonMode m0 = ha.modes.get("_1_time_trig");
 		Assert.assertNotEquals("mode named '_1_time_trig' exists", null, m0);
 
-		Expression.expressionPrinter = rp;
+		Expression.setThreadPrinter(rp);
 
 		AutomatonMode m1 = ha.modes.get("_2_time_trig");
 		Assert.assertNotEquals("mode named '_2_time_trig' exists", null, m1);
@@ -308,7 +310,7 @@ public class HybridizePassTests
 		if (pts.length != expected.length)
 			throw new RuntimeException("pts.length should be equal to expected.length");
 
-		Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+		Expression.setThreadPrinter(DefaultExpressionPrinter.instance);
 
 		for (int i = 0; i < pts.length; ++i)
 		{
@@ -595,6 +597,41 @@ public class HybridizePassTests
 		Assert.assertEquals(new Interval(0, 0.0055), optimizationResult.get(1));
 	}
 
+	/**
+	 * Test the Java IntervalOptimizer on the first domain contraction of the python interval
+	 * optimization test above
+	 */
+	@Test
+	public void testJavaIntervalOptimize()
+	{
+		Expression e = FormulaParser.parseValue("x^2 - (0.536*x - 0.0718)");
+		HashMap<String, Interval> bounds = new HashMap<String, Interval>();
+		bounds.put("x", new Interval(0.2, 0.336));
+		double maxError = 1e-4;
+
+		// the actual range is [-0.000024, 0.0046], shrink it slightly for floating-point error
+		Interval actual = new Interval(-0.0000239, 0.0045999);
+		Interval single = IntervalOptimizer.optimize(e, bounds, 0);
+		Interval bounded = IntervalOptimizer.optimize(e, bounds, maxError);
+
+		Assert.assertTrue("single evaluation should contain the range", single.contains(actual));
+		Assert.assertTrue("bounded evaluation should contain the range", bounded.contains(actual));
+		Assert.assertTrue("bounded evaluation should be tighter than a single evaluation",
+				bounded.width() < single.width());
+
+		double tol = 1e-6;
+		Assert.assertTrue("lower bound error too large", bounded.min > actual.min - maxError - tol);
+		Assert.assertTrue("upper bound error too large", bounded.max < actual.max + maxError + tol);
+
+		// the list version should give the same result
+		List<Interval> list = IntervalOptimizer.optimize(Arrays.asList(e, e),
+				Arrays.asList(bounds, bounds), maxError);
+
+		Assert.assertEquals(2, list.size());
+		Assert.assertEquals(bounded.min, list.get(1).min, 1e-12);
+		Assert.assertEquals(bounded.max, list.get(1).max, 1e-12);
+	}
+
 	/**
 	 * Test the raw hybridization (time-triggered) pass. This uses the quadradic example from the
 	 * soundness argument ppt. x' == x^2, x(0) = [.24, .26] time-triggered split at 0.5 domain
@@ -773,9 +810,6 @@ public class HybridizePassTests
 	@Test
 	public void testSimAllPoints()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		Configuration c = AutomatonUtil
 				.makeDebugConfiguration(new String[][] { { "x", "1" }, { "y", "2*x" } });
 
@@ -800,9 +834,6 @@ public class HybridizePassTests
 	@Test
 	public void testMultiSimTrajectoryTime()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		Configuration c = AutomatonUtil
 				.makeDebugConfiguration(new String[][] { { "x", "1" }, { "y", "2*x" } });
 
@@ -828,6 +859,34 @@ public class HybridizePassTests
 		Assert.assertEquals(list.get(list.size() - 1).hp.dims[0], 3, 1e-4);
 	}
 
+	/**
+	 * Parallel simulation should give exactly the serial results, in the same order
+	 */
+	@Test
+	public void testParallelSimMatchesSerial()
+	{
+		Configuration c = AutomatonUtil.makeDebugConfiguration(
+				new String[][] { { "x", "y" }, { "y", "(1 - x * x) * y - x" } });
+
+		ArrayList<SymbolicStatePoint> startList = new ArrayList<SymbolicStatePoint>();
+
+		for (int i = 0; i < 37; ++i)
+			startList.add(new SymbolicStatePoint("on", new HyperPoint(0.1 * i - 1.8, 0.05 * i)));
+
+		ArrayList<SymbolicStatePoint> par = HybridizeMixedTriggeredPass.simAllPoints(c, startList,
+				1.5);
+		ArrayList<SymbolicStatePoint> serial = new HybridSimulator(c).simulateSetTime(startList,
+				1.5);
+
+		Assert.assertEquals(serial.size(), par.size());
+
+		for (int i = 0; i < serial.size(); ++i)
+		{
+			Assert.assertEquals(serial.get(i).modeName, par.get(i).modeName);
+			Assert.assertArrayEquals(serial.get(i).hp.dims, par.get(i).hp.dims, 0);
+		}
+	}
+
 	@Test
 	public void testNoErrorModesPrint()
 	{
@@ -26,6 +26,7 @@ import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.passes.complex.ConvertLutFlowsPass;
 import com.verivital.hyst.printers.PySimPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
@@ -39,8 +40,8 @@ public class LutMatrixTest
 	public void setUpClass()
 	{
 		ConvertLutFlowsPass.MAX_CONVERSIONS = 5;
-		Expression.expressionPrinter = null;
-		ConvertLutFlowsPass.simplifyMode = ConvertLutFlowsPass.SIMPLIFY_NONE;
+		Expression.setThreadPrinter(null);
+		HystContext.get().lutSimplifyMode = ConvertLutFlowsPass.SIMPLIFY_NONE;
 	}
 
 	@Parameters
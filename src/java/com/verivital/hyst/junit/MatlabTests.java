@@ -41,7 +41,7 @@ public class MatlabTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
@@ -6,6 +6,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeSet;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -28,10 +29,13 @@ import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.passes.basic.ConvertHavocFlows;
+import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
+import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
 import com.verivital.hyst.passes.complex.FlattenAutomatonPass;
 import com.verivital.hyst.printers.FlowstarPrinter;
@@ -91,7 +95,7 @@ UNIT_BASEDIR = "tests/unit/models/";
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	public static Configuration flatten(SpaceExDocument spaceExDoc)
@@ -230,6 +234,76 @@ UNIT_BASEDIR = "tests/unit/models/";
 		}
 	}
 
+	/**
+	 * Flattening a network with three children merges them left to right: the transitions of each
+	 * child come in child order, and each is repeated for the modes of the other children in product
+	 * order
+	 */
+	@Test
+	public void testFlattenThreeComponentOrder()
+	{
+		String path = UNIT_BASEDIR + "comp_three_crossprod_network/";
+		SpaceExDocument sd = SpaceExImporter.importModels(path + "sys.cfg", path + "sys.xml");
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(sd);
+		Configuration c = ConfigurationMaker.fromSpaceEx(sd, componentTemplates);
+
+		new FlattenAutomatonPass().runVanillaPass(c, "");
+		BaseComponent ha = (BaseComponent) c.root;
+
+		String[] modes = { "one", "two" };
+		String[][] jumps = { { "one", "two" }, { "two", "one" } };
+		ArrayList<String> expected = new ArrayList<String>();
+
+		for (int child = 0; child < 3; ++child)
+		{
+			for (String[] jump : jumps)
+			{
+				for (String first : modes)
+				{
+					for (String second : modes)
+					{
+						String[] from = { first, second };
+						String[] to = { first, second };
+						from = insert(from, child, jump[0]);
+						to = insert(to, child, jump[1]);
+
+						expected.add(join(from) + " -> " + join(to));
+					}
+				}
+			}
+		}
+
+		ArrayList<String> actual = new ArrayList<String>();
+
+		for (AutomatonTransition t : ha.transitions)
+			actual.add(t.from.name + " -> " + t.to.name);
+
+		Assert.assertEquals(expected, actual);
+	}
+
+	private static String[] insert(String[] names, int index, String name)
+	{
+		ArrayList<String> rv = new ArrayList<String>(Arrays.asList(names));
+		rv.add(index, name);
+
+		return rv.toArray(new String[rv.size()]);
+	}
+
+	private static String join(String[] names)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (String name : names)
+		{
+			if (rv.length() > 0)
+				rv.append(FlattenAutomatonPass.SEPARATOR);
+
+			rv.append(name);
+		}
+
+		return rv.toString();
+	}
+
 	@Test
 	public void testHeaterInstantiation()
 	{
@@ -468,7 +542,7 @@ UNIT_BASEDIR = "tests/unit/models/";
 			Configuration c = flatten(
 					SpaceExImporter.importModels(path + "all_init.cfg", path + "model.xml"));
 
-			Expression.expressionPrinter = DefaultExpressionPrinter.instance;
+			Expression.setThreadPrinter(DefaultExpressionPrinter.instance);
 			Assert.assertNotEquals(c.init, null);
 
 		}
@@ -1084,6 +1158,96 @@ UNIT_BASEDIR = "tests/unit/models/";
 		flatten(SpaceExImporter.importModels(cfgPath, xmlPath));
 	}
 
+	/**
+	 * Flattening with -reachable should give the same modes and transitions, in the same order, as
+	 * flattening the full product and then removing unreachable and unsat modes
+	 */
+	@Test
+	public void testFlattenReachable()
+	{
+		String cfgPath = UNIT_BASEDIR + "tte/tte5.cfg";
+		String xmlPath = UNIT_BASEDIR + "tte/tte5.xml";
+
+		SpaceExDocument doc = SpaceExImporter.importModels(cfgPath, xmlPath);
+		Map<String, Component> componentTemplates = TemplateImporter.createComponentTemplates(doc);
+
+		Configuration full = ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+		new FlattenAutomatonPass().runVanillaPass(full, "");
+		int productSize = ((BaseComponent) full.root).modes.size();
+		new RemoveDiscreteUnreachablePass().runVanillaPass(full, "");
+		new RemoveSimpleUnsatInvariantsPass().runVanillaPass(full, "");
+		new RemoveDiscreteUnreachablePass().runVanillaPass(full, "");
+
+		doc = SpaceExImporter.importModels(cfgPath, xmlPath);
+		componentTemplates = TemplateImporter.createComponentTemplates(doc);
+		Configuration reachable = ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+		new FlattenAutomatonPass().runVanillaPass(reachable, "-reachable");
+
+		BaseComponent fullHa = (BaseComponent) full.root;
+		BaseComponent reachableHa = (BaseComponent) reachable.root;
+
+		Assert.assertTrue("full product should have unreachable modes",
+				productSize > reachableHa.modes.size());
+		Assert.assertEquals(new TreeSet<String>(fullHa.modes.keySet()),
+				new TreeSet<String>(reachableHa.modes.keySet()));
+		Assert.assertEquals(getTransitionStrings(fullHa), getTransitionStrings(reachableHa));
+		Assert.assertEquals(full.init.keySet(), reachable.init.keySet());
+		Assert.assertEquals(fullHa.variables, reachableHa.variables);
+
+		Assert.assertEquals(full.toString(), reachable.toString());
+	}
+
+	/**
+	 * The modes and transitions of flattenAndOptimize(), which only constructs the reachable
+	 * product, should be in the order of the full product, for networks with nested networks,
+	 * several children and synchronized labels
+	 */
+	@Test
+	public void testFlattenReachableOrder()
+	{
+		String[] models = { "three_hier/three_hier", "comp_three_crossprod_network/sys",
+				"urgent_composition/urgent_composition", "controller_heater/controller_heater",
+				"pll/pll_orig" };
+
+		for (String model : models)
+		{
+			String cfgPath = UNIT_BASEDIR + model + ".cfg";
+			String xmlPath = UNIT_BASEDIR + model + ".xml";
+
+			SpaceExDocument doc = SpaceExImporter.importModels(cfgPath, xmlPath);
+			Map<String, Component> componentTemplates = TemplateImporter
+					.createComponentTemplates(doc);
+			Configuration full = ConfigurationMaker.fromSpaceEx(doc, componentTemplates);
+			new FlattenAutomatonPass().runVanillaPass(full, "");
+			new RemoveDiscreteUnreachablePass().runVanillaPass(full, "");
+			new RemoveSimpleUnsatInvariantsPass().runVanillaPass(full, "");
+			new RemoveDiscreteUnreachablePass().runVanillaPass(full, "");
+
+			Configuration reachable = flatten(SpaceExImporter.importModels(cfgPath, xmlPath));
+
+			Assert.assertEquals("flattened " + model + " differs", full.toString(),
+					reachable.toString());
+		}
+	}
+
+	private static TreeSet<String> getTransitionStrings(BaseComponent ha)
+	{
+		TreeSet<String> rv = new TreeSet<String>();
+
+		for (AutomatonTransition at : ha.transitions)
+		{
+			StringBuilder str = new StringBuilder(at.from.name + " -> " + at.to.name + " ("
+					+ at.label + "): " + at.guard.toDefaultString());
+
+			for (Entry<String, ExpressionInterval> e : at.reset.entrySet())
+				str.append("; " + e.getKey() + " := " + e.getValue().toDefaultString());
+
+			rv.add(str.toString());
+		}
+
+		return rv;
+	}
+
 	@Test
 	public void testSixTank()
 	{
@@ -1135,10 +1299,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1158,10 +1323,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1181,10 +1347,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1204,10 +1371,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1227,10 +1395,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		BaseComponent ha = (BaseComponent) c.root;
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1257,11 +1426,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		AutomatonMode mode = ha.modes.values().iterator().next();
 
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		cls.setLinearMatrix(mode);
 		double TOL = 1e-9;
-		Assert.assertEquals(-1, Classification.linearMatrix[0][0], TOL);
+		Assert.assertEquals(-1, cls.linearMatrix[0][0], TOL);
 	}
 
 	@Test
@@ -1281,10 +1450,11 @@ UNIT_BASEDIR = "tests/unit/models/";
 		// Configuration c = flatten(test1);
 		// BaseComponent ha = (BaseComponent)c.root;
 		Classification cls = new Classification();
-		Classification.ha = ha;
+		cls.ha = ha;
 		cls.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cls;
 		// sp.setVarID(ha);
 		AutomatonMode mode = ha.modes.get("running");
 		cls.setLinearMatrix(mode);
@@ -1,8 +1,10 @@
 package com.verivital.hyst.junit;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Assert;
@@ -16,9 +18,12 @@ import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.importer.ConfigurationMaker;
 import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.importer.TemplateImporter;
+import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.AutomatonMode;
@@ -30,11 +35,13 @@ import com.verivital.hyst.ir.network.ComponentMapping;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.passes.basic.CopyInstancePass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
+import com.verivital.hyst.passes.basic.SimplifyExpressionsPass.BatchSimplifier;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.Hylaa2Printer;
 import com.verivital.hyst.printers.ToolPrinter;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.util.AutomatonUtil;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
@@ -50,7 +57,7 @@ public class PassTests
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
@@ -127,6 +134,85 @@ public class PassTests
 		Assert.assertTrue("automaton was not flattened", c.root instanceof NetworkComponent);
 	}
 
+	/**
+	 * Test that batch simplification (as done with python) substitutes each result at the place its
+	 * expression was collected from, including for an expression instance shared by several places
+	 */
+	@Test
+	public void testSimplifyAllByPosition()
+	{
+		String[][] dynamics = { { "x", "x + 1" } };
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics, "x <= 5", "x >= 5",
+				dynamics);
+		BaseComponent ha = (BaseComponent) c.root;
+
+		for (AutomatonMode am : ha.modes.values())
+			am.invariant = Constant.TRUE;
+
+		ha.transitions.get(0).guard = Constant.TRUE;
+
+		// replace the i-th expression with i * expression
+		final List<String> originals = new ArrayList<String>();
+
+		SimplifyExpressionsPass.simplifyAll(c, new BatchSimplifier()
+		{
+			@Override
+			public List<Expression> simplify(List<Expression> exps)
+			{
+				List<Expression> rv = new ArrayList<Expression>();
+
+				for (int i = 0; i < exps.size(); ++i)
+				{
+					originals.add(exps.get(i).toDefaultString());
+					rv.add(new Operation(Operator.MULTIPLY, new Constant(i), exps.get(i).copy()));
+				}
+
+				return rv;
+			}
+		});
+
+		Assert.assertTrue("expected the shared expression at least 3 times",
+				originals.lastIndexOf("true") - originals.indexOf("true") >= 2);
+
+		// collecting again visits the same places in the same order
+		SimplifyExpressionsPass.simplifyAll(c, new BatchSimplifier()
+		{
+			@Override
+			public List<Expression> simplify(List<Expression> exps)
+			{
+				Assert.assertEquals(originals.size(), exps.size());
+
+				for (int i = 0; i < exps.size(); ++i)
+				{
+					Operation o = exps.get(i).asOperation();
+
+					Assert.assertEquals(i, ((Constant) o.children.get(0)).getVal(), 0);
+					Assert.assertEquals(originals.get(i), o.children.get(1).toDefaultString());
+				}
+
+				return exps;
+			}
+		});
+
+		try
+		{
+			SimplifyExpressionsPass.simplifyAll(c, new BatchSimplifier()
+			{
+				@Override
+				public List<Expression> simplify(List<Expression> exps)
+				{
+					return exps.subList(1, exps.size());
+				}
+			});
+
+			Assert.fail("a missing result was not detected");
+		}
+		catch (AutomatonExportException e)
+		{
+			// expected
+		}
+	}
+
 	/**
 	 * Substitute constants and then simplify expressions
 	 */
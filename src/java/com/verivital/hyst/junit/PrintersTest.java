@@ -58,7 +58,7 @@ public class PrintersTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
@@ -162,7 +162,7 @@ public class PrintersTest
 			// clear expression printer since no assumptions can be made about
 			// it. If null pointer exceptions are thrown, this means
 			// it should have been assigned on printAutomaton()
-			Expression.expressionPrinter = null;
+			Expression.setThreadPrinter(null);
 
 			SpaceExDocument sd = SpaceExImporter.importModels(path + cfgName, path + xmlName);
 			Configuration c = ModelParserTest.flatten(sd);
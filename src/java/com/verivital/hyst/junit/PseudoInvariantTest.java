@@ -34,7 +34,7 @@ public class PseudoInvariantTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Parameters
@@ -84,6 +84,30 @@ public class PseudoInvariantTest
 		Assert.assertEquals(expectedResult, DefaultExpressionPrinter.instance.print(inv));
 	}
 
+	/**
+	 * Tests for PseudoInvariantSimulatePass.simulate (native simulation across a guard)
+	 */
+	@Test
+	public void testSimulate()
+	{
+		String[][] dynamics1 = { { "x", "2" } }; // x' == 2, x(0) = 0
+		String[][] dynamics2 = { { "x", "1" } }; // x' == 1
+		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1, "x <= 2", "x >= 2",
+				dynamics2);
+
+		SymbolicStatePoint start = new SymbolicStatePoint("mode1", new HyperPoint(0.0));
+		List<Double> times = Arrays.asList(0.5, 2.0);
+
+		List<SymbolicStatePoint> result = PseudoInvariantSimulatePass.simulate(c, start, times);
+		double TOL = 1e-6;
+
+		Assert.assertEquals("mode1", result.get(0).modeName);
+		Assert.assertEquals(1.0, result.get(0).hp.dims[0], TOL);
+
+		Assert.assertEquals("mode2", result.get(1).modeName);
+		Assert.assertEquals(3.0, result.get(1).hp.dims[0], TOL);
+	}
+
 	/**
 	 * Tests for PseudoInvariantSimulatePass.pythonSimulate
 	 */
@@ -119,9 +143,6 @@ public class PseudoInvariantTest
 	@Test
 	public void testPseudoInvariantSimulatePass()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		// make a trivial automation with x' == 1
 		String[][] dynamics = { { "x", "1", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
@@ -166,9 +187,6 @@ public class PseudoInvariantTest
 	@Test
 	public void testPseudoInvariantSimulateOnePass()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		// make a trivial automation with x' == 1
 		String[][] dynamics = { { "x", "1", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
@@ -208,9 +226,6 @@ public class PseudoInvariantTest
 	@Test
 	public void testPIVanderpolFlowstar()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		// make a trivial automation with x' == 1
 		String[][] dynamics = { { "x", "y", "1" }, { "y", "(1-x*x)*y-x", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
@@ -255,9 +270,6 @@ public class PseudoInvariantTest
 	@Test
 	public void testInitPIVanderpol()
 	{
-		if (!PythonBridge.hasPython())
-			return;
-
 		String[][] dynamics = { { "barrier_clock", "1", "0" }, { "x", "-y", "0" },
 				{ "y", "-((1-x*x)*y-x)", "0" } };
 		Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics);
@@ -6,6 +6,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -16,11 +17,15 @@ import org.junit.runners.Parameterized.Parameters;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationModeParams;
 import com.verivital.hyst.passes.complex.hybridize.AffineOptimize.OptimizationParams;
+import com.verivital.hyst.python.FramedPythonBridge;
+import com.verivital.hyst.python.FramedPythonBridge.Response;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.python.PythonBridgePool;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.KodiakUtil;
@@ -311,4 +316,79 @@ public class PythonTests
 			Assert.assertEquals("Result for optimiziation " + i + " wasn't equal", kod, bb);
 		}
 	}
+
+	/**
+	 * Run more tasks than there are workers in the python pool, and check that each result comes
+	 * back at the position of its task
+	 */
+	@Test
+	public void testPythonBridgePool()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		PythonBridgePool pool = PythonBridgePool.getInstance();
+		List<PythonBridgePool.Task<String>> tasks = new ArrayList<PythonBridgePool.Task<String>>();
+
+		for (int i = 0; i < 2 * pool.getSize() + 1; ++i)
+		{
+			final int val = i;
+
+			tasks.add(new PythonBridgePool.Task<String>()
+			{
+				@Override
+				public String run(PythonBridge pb)
+				{
+					pb.send("x = " + val);
+
+					return pb.send("x * 2");
+				}
+			});
+		}
+
+		List<String> results = pool.runAll(tasks);
+
+		Assert.assertEquals(tasks.size(), results.size());
+
+		for (int i = 0; i < results.size(); ++i)
+			Assert.assertEquals("wrong result for task " + i, "" + (2 * i), results.get(i).trim());
+	}
+
+	/**
+	 * Send a large array through the framed python server and back, and check that a python
+	 * exception comes back as an error with its traceback
+	 */
+	@Test
+	public void testFramedPythonRoundTrip()
+	{
+		if (!PythonBridge.hasPython())
+			return;
+
+		FramedPythonBridge fpb = FramedPythonBridge.getInstance();
+		double[] values = new double[200000];
+
+		for (int i = 0; i < values.length; ++i)
+			values[i] = i / 3.0;
+
+		Map<String, double[]> arrays = new HashMap<String, double[]>();
+		arrays.put("_x", values);
+
+		Response r = fpb.call("result_text = str(len(_x))\nresult_doubles = _x", arrays);
+
+		Assert.assertEquals("" + values.length, r.text);
+		Assert.assertArrayEquals(values, r.doubles, 0);
+
+		try
+		{
+			fpb.call("raise ValueError('framed test error')");
+			Assert.fail("python exception was not raised");
+		}
+		catch (AutomatonExportException e)
+		{
+			Assert.assertTrue(e.getMessage().contains("ValueError: framed test error"));
+		}
+
+		// the server still works after an error
+		Assert.assertEquals("2", fpb.call("result_text = str(1 + 1)").text);
+	}
 }
@@ -1,27 +1,53 @@
 package com.verivital.hyst.junit;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.HyperRectangle;
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Constant;
 import com.verivital.hyst.grammar.formula.DefaultExpressionPrinter;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionInterner;
 import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.grammar.formula.ImmutableExpression;
+import com.verivital.hyst.grammar.formula.LutExpression;
 import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.Hyst.ExitCode;
+import com.verivital.hyst.main.HystContext;
+import com.verivital.hyst.main.HystServer;
+import com.verivital.hyst.main.SnapshotCache;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass;
 import com.verivital.hyst.passes.complex.ContinuizationPass.IntervalTerm;
@@ -29,12 +55,21 @@ import com.verivital.hyst.printers.DReachPrinter.DReachExpressionPrinter;
 import com.verivital.hyst.printers.FlowstarPrinter;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
 import com.verivital.hyst.printers.ToolPrinter;
+import com.verivital.hyst.python.AutomatonDefinitions;
+import com.verivital.hyst.python.FramedPythonBridge;
+import com.verivital.hyst.python.FramedPythonBridge.Response;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.Classification;
+import com.verivital.hyst.util.CompiledExpression;
+import com.verivital.hyst.util.CompiledIntervalExpression;
+import com.verivital.hyst.util.JsonUtil;
+import com.verivital.hyst.util.KodiakUtil.KodiakExpressionPrinter;
+import com.verivital.hyst.util.ProcessOutputReader;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
 import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
+import com.verivital.hyst.util.ValueSubstituter;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.Bind;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.ParamMap;
@@ -53,7 +88,7 @@ public class SmallTest
 	@Before
 	public void setUpClass()
 	{
-		Expression.expressionPrinter = null;
+		Expression.setThreadPrinter(null);
 	}
 
 	@Test
@@ -790,6 +825,104 @@ public class SmallTest
 		Assert.assertEquals(Hyst.runWithArguments(args), Hyst.ExitCode.SUCCESS.ordinal());
 	}
 
+	/**
+	 * Test printing one model for several tools at once, each to its own output file
+	 */
+	@Test
+	public void testMultiplePrinters() throws Exception
+	{
+		File a = File.createTempFile("hyst_multi", ".model");
+		File b = File.createTempFile("hyst_multi", ".xml");
+		a.deleteOnExit();
+		b.deleteOnExit();
+
+		String[] gen = { "-gen", "integrator_chain", "-N 1 -M 2 -U 1" };
+		String[] tools = { "-tool", "flowstar", "", "-output", a.getPath(), "-tool", "spaceex",
+				"", "-output", b.getPath() };
+
+		Hyst.IS_UNIT_TEST = true;
+		Assert.assertEquals(Hyst.ExitCode.SUCCESS.ordinal(),
+				Hyst.runWithArguments(concat(gen, tools)));
+		Assert.assertTrue(a.length() > 0);
+		Assert.assertTrue(b.length() > 0);
+
+		// several printers need one output file each
+		String[] oneOutput = { "-tool", "flowstar", "", "-tool", "spaceex", "", "-output",
+				a.getPath() };
+		Assert.assertEquals(Hyst.ExitCode.ARG_PARSE_ERROR.ordinal(),
+				Hyst.runWithArguments(concat(gen, oneOutput)));
+	}
+
+	private static String[] concat(String[] a, String[] b)
+	{
+		String[] rv = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, rv, a.length, b.length);
+
+		return rv;
+	}
+
+	/**
+	 * Test saving and loading configuration snapshots, and that snapshot keys depend on the passes
+	 */
+	@Test
+	public void testSnapshotCache() throws Exception
+	{
+		File dir = File.createTempFile("hyst_snapshots", "");
+		Assert.assertTrue(dir.delete());
+
+		try
+		{
+			String[][] dynamics1 = { { "x", "x + 1", "0.5" }, { "y", "3" } };
+			String[][] dynamics2 = { { "x", "-x" }, { "y", "0" } };
+			Configuration c = AutomatonUtil.makeDebugConfiguration(dynamics1, "x <= 5", "x >= 5",
+					dynamics2);
+			BaseComponent ha = (BaseComponent) c.root;
+			ha.transitions.get(0).guard = Constant.TRUE;
+
+			String key = SnapshotCache.generatorKey("debug", "", "validate=true");
+			Assert.assertNotEquals(key, SnapshotCache.generatorKey("debug", "", "validate=false"));
+			SnapshotCache cache = new SnapshotCache(dir);
+			Assert.assertNull(cache.load(key));
+			cache.save(key, c);
+
+			Configuration loaded = cache.load(key);
+			loaded.validate();
+			BaseComponent loadedHa = (BaseComponent) loaded.root;
+
+			Assert.assertEquals(c.toString(), loaded.toString());
+			Assert.assertSame(loadedHa, loadedHa.modes.get("mode1").automaton);
+			Assert.assertSame(loadedHa.modes.get("mode2"), loadedHa.transitions.get(0).to);
+			Assert.assertSame(Constant.TRUE, loadedHa.transitions.get(0).guard);
+
+			String settings = "validate=true python=none";
+			String passKey = SnapshotCache.passKey(key, "simplify", "", settings);
+			Assert.assertNotEquals(key, passKey);
+			Assert.assertEquals(passKey, SnapshotCache.passKey(key, "simplify", "", settings));
+			Assert.assertNotEquals(passKey, SnapshotCache.passKey(key, "flatten", "", settings));
+			Assert.assertNotEquals(passKey,
+					SnapshotCache.passKey(key, "simplify", "", "validate=false python=none"));
+			Assert.assertNull(cache.load(passKey));
+
+			// models too deep to serialize aren't saved
+			Expression deep = new Variable("x");
+
+			for (int i = 0; i < 10000; ++i)
+				deep = new Operation(Operator.ADD, deep, new Constant(1));
+
+			ha.modes.get("mode1").invariant = new Operation(Operator.LESSEQUAL, deep,
+					new Constant(5));
+			cache.save(passKey, c);
+			Assert.assertNull(cache.load(passKey));
+		}
+		finally
+		{
+			for (File f : dir.listFiles())
+				f.delete();
+
+			dir.delete();
+		}
+	}
+
 	@Test
 	public void testSubstituteExpression()
 	{
@@ -839,7 +972,7 @@ public class SmallTest
 	@Test
 	public void testFlowExpressionPrinter()
 	{
-		Expression.expressionPrinter = new FlowstarPrinter.FlowstarExpressionPrinter();
+		Expression.setThreadPrinter(new FlowstarPrinter.FlowstarExpressionPrinter());
 		Expression e1 = FormulaParser.parseInvariant("t <= 5");
 		Expression e2 = FormulaParser.parseInvariant("5 <= t");
 		Expression e3 = FormulaParser.parseInvariant("5 < t");
@@ -902,6 +1035,761 @@ public class SmallTest
 		Assert.assertEquals("Entry 1, 1 is correct", 5.5, rv[1][1], TOL);
 	}
 
+	/**
+	 * Test waiting for the python prompt sentinel with ProcessOutputReader, when the sentinel is
+	 * split across reads, and when it appears in the middle of the output
+	 */
+	@Test
+	public void testProcessOutputReaderSentinel() throws Exception
+	{
+		final String sentinel = "\001HYST_PROMPT\001";
+		final String prompt = ">>> ";
+		PipedOutputStream stdout = new PipedOutputStream();
+		PipedOutputStream stderr = new PipedOutputStream();
+		ProcessOutputReader reader = new ProcessOutputReader(new PipedInputStream(stdout),
+				new PipedInputStream(stderr), "test");
+
+		try
+		{
+			// the first half of the sentinel isn't the end of the output yet
+			stdout.write("result\001HYST_".getBytes("UTF-8"));
+			stdout.flush();
+			stderr.write(prompt.getBytes("UTF-8"));
+			stderr.flush();
+			assertWaitTimesOut(reader, sentinel, prompt);
+
+			stdout.write("PROMPT\001".getBytes("UTF-8"));
+			stdout.flush();
+			reader.waitForSuffixes(sentinel, prompt, 5000);
+			Assert.assertEquals("result" + sentinel, reader.takeOutput(ProcessOutputReader.STDOUT));
+			Assert.assertEquals(prompt, reader.takeOutput(ProcessOutputReader.STDERR));
+
+			// a sentinel in the middle of the output (printed by the python code) isn't the end
+			stdout.write(("a" + sentinel + "b").getBytes("UTF-8"));
+			stdout.flush();
+			stderr.write(prompt.getBytes("UTF-8"));
+			stderr.flush();
+			assertWaitTimesOut(reader, sentinel, prompt);
+
+			stdout.write(sentinel.getBytes("UTF-8"));
+			stdout.flush();
+			reader.waitForSuffixes(sentinel, prompt, 5000);
+			Assert.assertEquals("a" + sentinel + "b" + sentinel,
+					reader.takeOutput(ProcessOutputReader.STDOUT));
+			reader.takeOutput(ProcessOutputReader.STDERR);
+
+			// the stream ending before the sentinel is an error
+			stdout.write("partial".getBytes("UTF-8"));
+			stdout.close();
+
+			try
+			{
+				reader.waitForSuffixes(sentinel, null, 5000);
+				Assert.fail("end of stream before the sentinel was not detected");
+			}
+			catch (EOFException e)
+			{
+				// expected
+			}
+
+			Assert.assertEquals("partial", reader.takeOutput(ProcessOutputReader.STDOUT));
+		}
+		finally
+		{
+			reader.stop();
+			stderr.close();
+		}
+	}
+
+	private static void assertWaitTimesOut(ProcessOutputReader reader, String stdoutSuffix,
+			String stderrSuffix) throws Exception
+	{
+		try
+		{
+			reader.waitForSuffixes(stdoutSuffix, stderrSuffix, 200);
+			Assert.fail("waiting for the suffixes should have timed out");
+		}
+		catch (TimeoutException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Test the tracking of automata defined in a python process: repeated definitions, eviction of
+	 * the least-recently used automaton after 8, and defining an evicted automaton again
+	 */
+	@Test
+	public void testAutomatonDefinitions()
+	{
+		AutomatonDefinitions defs = new AutomatonDefinitions();
+		List<String> handles = new ArrayList<String>();
+
+		for (int i = 0; i < 8; ++i)
+		{
+			String handle = AutomatonDefinitions.getHandle("def define_ha():\n    return " + i);
+
+			Assert.assertFalse(defs.isDefined(handle));
+			Assert.assertTrue(defs.add(handle).isEmpty());
+			handles.add(handle);
+		}
+
+		// the handle depends only on the code
+		Assert.assertEquals(handles.get(0),
+				AutomatonDefinitions.getHandle("def define_ha():\n    return 0"));
+		Assert.assertEquals(8, new HashSet<String>(handles).size());
+
+		// a hit also makes handle 0 the most recently used, so handle 1 is evicted next
+		Assert.assertTrue(defs.isDefined(handles.get(0)));
+
+		String ninth = AutomatonDefinitions.getHandle("def define_ha():\n    return 8");
+		Assert.assertEquals(Arrays.asList(handles.get(1)), defs.add(ninth));
+		Assert.assertFalse(defs.isDefined(handles.get(1)));
+		Assert.assertTrue(defs.isDefined(handles.get(0)));
+		Assert.assertTrue(defs.isDefined(ninth));
+
+		// defining the evicted automaton again evicts the next least-recently used one
+		List<String> evicted = defs.add(handles.get(1));
+		Assert.assertEquals(Arrays.asList(handles.get(2)), evicted);
+		Assert.assertTrue(defs.isDefined(handles.get(1)));
+		Assert.assertEquals("del " + handles.get(2), AutomatonDefinitions.makeDeleteCode(evicted));
+
+		defs.clear();
+		Assert.assertFalse(defs.isDefined(handles.get(0)));
+	}
+
+	private static byte[] makeFramedResponse(int status, String text, double[] doubles)
+	{
+		byte[] textBytes = text.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer buf = ByteBuffer.allocate(1 + 4 + textBytes.length + 4 + 8 * doubles.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		buf.put((byte) status);
+		buf.putInt(textBytes.length);
+		buf.put(textBytes);
+		buf.putInt(doubles.length);
+
+		for (double d : doubles)
+			buf.putDouble(d);
+
+		return buf.array();
+	}
+
+	/**
+	 * Test the message encoding of the framed python bridge (see framed_server.py): the layout of
+	 * a request, decoding of ok and error responses, and a large array of doubles
+	 */
+	@Test
+	public void testFramedPythonMessages()
+	{
+		// request: length, code, number of arrays, then name and values of each array
+		Map<String, double[]> arrays = new LinkedHashMap<String, double[]>();
+		arrays.put("xy", new double[] { 1.5, -2 });
+
+		ByteBuffer req = ByteBuffer.wrap(FramedPythonBridge.encodeRequest("a=1", arrays))
+				.order(ByteOrder.LITTLE_ENDIAN);
+
+		Assert.assertEquals(req.capacity() - 4, req.getInt());
+		Assert.assertEquals(3, req.getInt());
+		Assert.assertEquals('a', req.get());
+		Assert.assertEquals('=', req.get());
+		Assert.assertEquals('1', req.get());
+		Assert.assertEquals(1, req.getInt());
+		Assert.assertEquals(2, req.getInt());
+		Assert.assertEquals('x', req.get());
+		Assert.assertEquals('y', req.get());
+		Assert.assertEquals(2, req.getInt());
+		Assert.assertEquals(1.5, req.getDouble(), 0);
+		Assert.assertEquals(-2, req.getDouble(), 0);
+		Assert.assertFalse(req.hasRemaining());
+
+		// ok response, with non-ascii text
+		Response r = FramedPythonBridge
+				.decodeResponse(makeFramedResponse(0, "on;off\u00e9", new double[] { 1, 2, 3, 4 }));
+
+		Assert.assertEquals("on;off\u00e9", r.text);
+		Assert.assertEquals(2, r.getStates(2).size());
+		Assert.assertEquals("off\u00e9", r.getStates(2).get(1).modeName);
+		Assert.assertEquals(4, r.getStates(2).get(1).hp.dims[1], 0);
+
+		// error response
+		String traceback = "Traceback (most recent call last):\nNameError: name 'q' is not defined";
+
+		try
+		{
+			FramedPythonBridge.decodeResponse(makeFramedResponse(1, traceback, new double[0]));
+			Assert.fail("error response was not raised");
+		}
+		catch (AutomatonExportException e)
+		{
+			Assert.assertTrue(e.getMessage().contains(traceback));
+		}
+
+		// large response
+		double[] large = new double[1000000];
+
+		for (int i = 0; i < large.length; ++i)
+			large[i] = i * 0.5;
+
+		r = FramedPythonBridge.decodeResponse(makeFramedResponse(0, "", large));
+
+		Assert.assertEquals("", r.text);
+		Assert.assertArrayEquals(large, r.doubles, 0);
+		Assert.assertEquals(large.length / 2, r.getIntervals().size());
+	}
+
+	/**
+	 * Tests that compiled evaluation matches substitution + simplification
+	 */
+	@Test
+	public void testCompiledExpression()
+	{
+		List<String> vars = Arrays.asList("x", "y");
+		double[][] points = { { 0, 0 }, { 1, 2 }, { -3.5, 0.25 } };
+		String[] exps = { "2 * x + y", "x^2 - y / 4", "-(x - 3) * cos(y)", "sqrt(y * y + 1)",
+				"x <= y & y >= 0", "x > 1 | y < 0", "exp(-x) + ln(y + 5)" };
+
+		for (String str : exps)
+		{
+			Expression e = FormulaParser.parseValue(str);
+			CompiledExpression ce = CompiledExpression.compile(e, vars);
+
+			for (double[] pt : points)
+			{
+				TreeMap<String, Expression> valMap = new TreeMap<String, Expression>();
+				valMap.put("x", new Constant(pt[0]));
+				valMap.put("y", new Constant(pt[1]));
+
+				Expression sub = new ValueSubstituter(valMap).substitute(e);
+				double expected = ((Constant) SimplifyExpressionsPass.simplifyExpression(sub))
+						.getVal();
+
+				Assert.assertEquals("compiled evaluation of '" + str + "' at "
+						+ Arrays.toString(pt) + " was wrong", expected, ce.evaluate(pt), 1e-12);
+			}
+		}
+
+		// a look up table, inside the table and extrapolated past the last breakpoint
+		Expression lut = FormulaParser.parseValue("lut([x], [1, 2, 1, 2], [0, 10, 30, 40])");
+		CompiledExpression ce = CompiledExpression.compile(lut, vars);
+
+		Assert.assertEquals(1.5, ce.evaluate(new double[] { 5, 0 }), 1e-12);
+		Assert.assertEquals(1.75, ce.evaluate(new double[] { 15, 0 }), 1e-12);
+		Assert.assertEquals(3.0, ce.evaluate(new double[] { 50, 0 }), 1e-12);
+
+		// a compiled reset, which uses the middle of a nondeterministic interval
+		LinkedHashMap<String, ExpressionInterval> reset = new LinkedHashMap<String, ExpressionInterval>();
+		reset.put("y",
+				new ExpressionInterval(FormulaParser.parseValue("2 * x"), new Interval(0, 1)));
+		CompiledExpression[] compiledReset = AutomatonUtil.compileReset(
+				new ArrayList<String>(vars), reset);
+
+		for (double x = 0; x < 3; ++x)
+		{
+			HyperPoint after = AutomatonUtil.processReset(new HyperPoint(x, 4), compiledReset);
+			Assert.assertEquals(x, after.dims[0], 1e-12);
+			Assert.assertEquals(2 * x + 0.5, after.dims[1], 1e-12);
+		}
+
+		// a table with a single breakpoint in a dimension has no cells to interpolate in
+		LutExpression single = (LutExpression) FormulaParser
+				.parseValue("lut([x], [1, 2], [0, 10])");
+		single.breakpoints[0] = new double[] { 5 };
+
+		try
+		{
+			CompiledExpression.compile(single, vars);
+			Assert.fail("compiling a table with a single breakpoint did not raise exception");
+		}
+		catch (AutomatonExportException e)
+		{
+			// expected
+		}
+
+		try
+		{
+			CompiledExpression.compile(FormulaParser.parseValue("x + z"), vars);
+			Assert.fail("compiling with an unknown variable did not raise exception");
+		}
+		catch (AutomatonExportException e)
+		{
+			// expected
+		}
+	}
+
+	/**
+	 * Tests that compiled interval evaluation contains the tree-walking interval evaluation, and
+	 * rounds outward
+	 */
+	@Test
+	public void testCompiledIntervalExpression()
+	{
+		List<String> vars = Arrays.asList("x", "y");
+		double[] lower = { -1, 0.5 };
+		double[] upper = { 2, 3 };
+		HashMap<String, Interval> ranges = new HashMap<String, Interval>();
+		ranges.put("x", new Interval(lower[0], upper[0]));
+		ranges.put("y", new Interval(lower[1], upper[1]));
+
+		String[] exps = { "2 * x + y", "x^2 - y / 4", "-(x - 3) * y", "sqrt(y * y + 1)",
+				"x * x * y", "ln(y) + x^3", "y^(1+1) - x" };
+		double[] result = new double[2];
+
+		for (String str : exps)
+		{
+			Expression e = FormulaParser.parseValue(str);
+			CompiledIntervalExpression cie = CompiledIntervalExpression.compile(e, vars);
+			cie.evaluate(lower, upper, result);
+
+			Interval expected = Interval.intervalEvaluate(e, ranges);
+			String msg = "compiled interval evaluation of '" + str + "' was " + result[0] + ", "
+					+ result[1] + ", expected " + expected;
+
+			Assert.assertTrue(msg, result[0] < expected.min && result[1] > expected.max);
+			Assert.assertEquals(msg, expected.min, result[0], 1e-12);
+			Assert.assertEquals(msg, expected.max, result[1], 1e-12);
+		}
+
+		// 0.1 + 0.2 is not exactly representable, so the result must be a (tiny) interval
+		CompiledIntervalExpression sum = CompiledIntervalExpression
+				.compile(FormulaParser.parseValue("x + y"), vars);
+		sum.evaluate(new double[] { 0.1, 0.2 }, new double[] { 0.1, 0.2 }, result);
+		Assert.assertTrue(result[0] < 0.1 + 0.2 && result[1] > 0.1 + 0.2);
+
+		// unlike Interval.intervalEvaluate, exp of a non-constant is supported
+		Interval exp = CompiledIntervalExpression.compile(FormulaParser.parseValue("exp(x)"), vars)
+				.evaluate(new HyperPoint(lower), new HyperPoint(upper));
+		Assert.assertEquals(Math.exp(-1), exp.min, 1e-12);
+		Assert.assertEquals(Math.exp(2), exp.max, 1e-12);
+
+		String[] errors = { "x / (y - 1)", "sin(x)", "y^x", "x + z" };
+
+		for (String str : errors)
+		{
+			try
+			{
+				CompiledIntervalExpression.compile(FormulaParser.parseValue(str), vars)
+						.evaluate(lower, upper, result);
+				Assert.fail("interval evaluation of '" + str + "' did not raise exception");
+			}
+			catch (AutomatonExportException e)
+			{
+				// expected
+			}
+		}
+	}
+
+	/**
+	 * Test ValueSubstituter, including subexpression sharing and very deep expressions
+	 */
+	@Test
+	public void testValueSubstituter()
+	{
+		TreeMap<String, Expression> valMap = new TreeMap<String, Expression>();
+		valMap.put("x", new Constant(5));
+		valMap.put("y", FormulaParser.parseValue("2 * t"));
+
+		Expression e = FormulaParser.parseValue("x * y + sin(z)");
+		String original = e.toDefaultString();
+
+		Expression copy = new ValueSubstituter(valMap).substitute(e);
+		Expression shared = new ValueSubstituter(valMap).substituteShared(e);
+
+		Assert.assertEquals("5.0 * 2.0 * t + sin(z)", copy.toDefaultString());
+		Assert.assertEquals(copy.toDefaultString(), shared.toDefaultString());
+		Assert.assertEquals("input was modified", original, e.toDefaultString());
+
+		Expression sinZ = e.asOperation().children.get(1);
+		Assert.assertNotSame(sinZ, copy.asOperation().children.get(1));
+		Assert.assertSame(sinZ, shared.asOperation().children.get(1));
+
+		Expression unchanged = FormulaParser.parseValue("z + 1");
+		Assert.assertSame(unchanged, new ValueSubstituter(valMap).substituteShared(unchanged));
+
+		// a left-deep sum ((x + 1) + 1) + ..., deeper than recursion would allow
+		Expression deep = new Variable("x");
+
+		for (int i = 0; i < 200000; ++i)
+			deep = new Operation(Operator.ADD, deep, new Constant(1));
+
+		Expression[] results = { new ValueSubstituter(valMap).substitute(deep),
+				new ValueSubstituter(valMap).substituteShared(deep) };
+
+		for (Expression result : results)
+		{
+			int depth = 0;
+
+			while (result instanceof Operation)
+			{
+				result = result.asOperation().children.get(0);
+				++depth;
+			}
+
+			Assert.assertEquals(200000, depth);
+			Assert.assertEquals(5, ((Constant) result).getVal(), 1e-12);
+		}
+	}
+
+	/**
+	 * Test that repeated parses are answered from the cache, and that each caller gets its own copy
+	 */
+	@Test
+	public void testParseCache()
+	{
+		FormulaParser.clearCache();
+
+		Expression first = FormulaParser.parseFlow("x' == 2 * x + y");
+		Expression second = FormulaParser.parseFlow("x' == 2 * x + y");
+
+		Assert.assertEquals(1, FormulaParser.getCacheMisses());
+		Assert.assertEquals(1, FormulaParser.getCacheHits());
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(first.toDefaultString(), second.toDefaultString());
+
+		// modifying a result doesn't affect later parses
+		first.asOperation().children.set(1, new Constant(0));
+		Assert.assertEquals(second.toDefaultString(),
+				FormulaParser.parseFlow("x' == 2 * x + y").toDefaultString());
+
+		// the same text as a different kind of expression is parsed separately
+		FormulaParser.parseInvariant("x <= 1");
+		FormulaParser.parseGuard("x <= 1");
+		Assert.assertEquals(3, FormulaParser.getCacheMisses());
+
+		// errors are not cached
+		for (int i = 0; i < 2; ++i)
+		{
+			try
+			{
+				FormulaParser.parseValue("x +");
+				Assert.fail("expected parse error");
+			}
+			catch (AutomatonExportException e)
+			{
+			}
+		}
+
+		Assert.assertEquals(5, FormulaParser.getCacheMisses());
+
+		// least recently used entries are evicted
+		FormulaParser.setCacheSize(2);
+		FormulaParser.parseValue("a");
+		FormulaParser.parseValue("b");
+		FormulaParser.parseValue("a");
+		FormulaParser.parseValue("c");
+		long misses = FormulaParser.getCacheMisses();
+		FormulaParser.parseValue("a");
+		Assert.assertEquals(misses, FormulaParser.getCacheMisses());
+		FormulaParser.parseValue("b");
+		Assert.assertEquals(misses + 1, FormulaParser.getCacheMisses());
+
+		FormulaParser.setCacheSize(FormulaParser.DEFAULT_CACHE_SIZE);
+		FormulaParser.clearCache();
+	}
+
+	/**
+	 * Test that the reused parser is reset properly between expressions, including after errors
+	 */
+	@Test
+	public void testParserReuse()
+	{
+		FormulaParser.setCacheSize(0);
+		FormulaParser.warmUp();
+
+		try
+		{
+			for (int i = 0; i < 3; ++i)
+			{
+				try
+				{
+					FormulaParser.parseGuard("x >= ");
+					Assert.fail("expected parse error");
+				}
+				catch (AutomatonExportException e)
+				{
+				}
+
+				Assert.assertEquals("x >= 1.0 & y <= 2.0",
+						FormulaParser.parseGuard("x >= 1 & y <= 2").toDefaultString());
+				Assert.assertEquals("2.0 * x - 5.0", FormulaParser.parseValue("2 * x - 5")
+						.toDefaultString());
+				Assert.assertEquals("x = x + 1.0", FormulaParser.parseFlow("x' == x + 1")
+						.toDefaultString());
+			}
+		}
+		finally
+		{
+			FormulaParser.setCacheSize(FormulaParser.DEFAULT_CACHE_SIZE);
+		}
+	}
+
+	/**
+	 * Test that expression printers set on one thread don't affect toString() on other threads
+	 */
+	@Test
+	public void testThreadPrinter() throws InterruptedException
+	{
+		final Expression e = FormulaParser.parseValue("2 * x + 1");
+		final String[] otherResult = new String[1];
+
+		Expression.setThreadPrinter(DefaultExpressionPrinter.instance);
+
+		try
+		{
+			Thread other = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					Expression.setThreadPrinter(new KodiakExpressionPrinter());
+					otherResult[0] = e.toString();
+				}
+			};
+
+			other.start();
+			other.join();
+
+			Assert.assertEquals("approx(2.0) * x + approx(1.0)", otherResult[0]);
+			Assert.assertEquals("2.0 * x + 1.0", e.toString());
+		}
+		finally
+		{
+			Expression.setThreadPrinter(null);
+		}
+	}
+
+	/**
+	 * Test that settings in a HystContext only apply to its own thread, and to tasks wrapped with it
+	 */
+	@Test
+	public void testHystContext() throws Exception
+	{
+		final HystContext context = new HystContext();
+		context.doValidation = false;
+		context.setDimensionNames(Arrays.asList("a", "b"));
+
+		Callable<String> task = new Callable<String>()
+		{
+			@Override
+			public String call()
+			{
+				Assert.assertFalse(HystContext.get().doValidation);
+
+				return new HyperRectangle(new Interval(0, 1), new Interval(2, 3)).toString();
+			}
+		};
+
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+
+		try
+		{
+			String rect = pool.submit(context.wrap(task)).get();
+			Assert.assertTrue(rect.contains("a = [0.0, 1.0]; b = [2.0, 3.0]"));
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+
+		Assert.assertTrue(HystContext.get().doValidation);
+		Assert.assertNotSame(context, HystContext.get());
+		Assert.assertTrue(new HyperRectangle(new Interval(0, 1)).toString().contains("X = "));
+	}
+
+	/**
+	 * Test that the Hyst server builds command-line arguments from jobs, and reports a result line
+	 * for each job on the stream
+	 */
+	@Test
+	public void testHystServer() throws Exception
+	{
+		Map<?, ?> job = (Map<?, ?>) JsonUtil.parse("{\"input\": [\"m.xml\", \"m.cfg\"], "
+				+ "\"passes\": [[\"simplify\", \"\"]], \"tool\": [\"flowstar\", \"\"], "
+				+ "\"output\": \"out.model\", \"verbose\": true}");
+
+		Assert.assertEquals(Arrays.asList("-verbose", "-input", "m.xml", "m.cfg", "-passes", "simplify",
+				"", "-output", "out.model", "-tool", "flowstar", ""),
+				Arrays.asList(HystServer.makeArguments(job)));
+
+		// nesting deep enough to overflow the stack of the json parser, which is an Error rather
+		// than an Exception; the job must still get a result
+		StringBuilder deep = new StringBuilder();
+
+		for (int i = 0; i < 1000000; ++i)
+			deep.append('[');
+
+		String jobs = "{\"id\": 1, \"args\": [\"-tool\", \"no_such_tool\", \"\"]}\n"
+				+ "not json\n" + deep + "\n{\"id\": \"last\", \"command\": \"shutdown\"}\n";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HystServer server = new HystServer(2);
+
+		try
+		{
+			server.serve(new ByteArrayInputStream(jobs.getBytes("UTF-8")), out);
+		}
+		finally
+		{
+			server.finish();
+		}
+
+		Map<Object, Long> codes = new HashMap<Object, Long>();
+		List<Long> noIdCodes = new ArrayList<Long>();
+
+		for (String line : out.toString("UTF-8").split("\n"))
+		{
+			Map<?, ?> result = (Map<?, ?>) JsonUtil.parse(line);
+
+			if (result.get("id") == null)
+				noIdCodes.add((Long) result.get("code"));
+			else
+				codes.put(result.get("id"), (Long) result.get("code"));
+		}
+
+		Assert.assertEquals(2, codes.size());
+		Assert.assertEquals((long) ExitCode.ARG_PARSE_ERROR.ordinal(), (long) codes.get(1L));
+		Assert.assertTrue(noIdCodes.contains((long) ExitCode.ARG_PARSE_ERROR.ordinal()));
+		Assert.assertTrue(noIdCodes.contains((long) ExitCode.EXPORT_EXCEPTION.ordinal()));
+		Assert.assertEquals(2, noIdCodes.size());
+		Assert.assertEquals((long) ExitCode.SUCCESS.ordinal(), (long) codes.get("last"));
+	}
+
+	/**
+	 * Test n-ary (flattened) associative operations: conversion to and from binary trees, printing,
+	 * simplification and evaluation, including expressions too deep for recursive traversals
+	 */
+	@Test
+	public void testNaryOperations()
+	{
+		Expression e = FormulaParser.parseValue("a + (b + c) * d * 2 + 3");
+		Operation flat = AutomatonUtil.flattenAssociative(e).asOperation();
+
+		Assert.assertEquals(Operator.ADD, flat.op);
+		Assert.assertEquals(3, flat.children.size());
+		Assert.assertEquals(3, flat.children.get(1).asOperation().children.size());
+		Assert.assertEquals("a + (b + c) * d * 2.0 + 3.0", flat.toDefaultString());
+		Assert.assertEquals("a + (b + c) * d * 2.0 + 3.0", e.toDefaultString());
+
+		Expression binary = AutomatonUtil.makeBinary(flat);
+		Assert.assertEquals(2, binary.asOperation().children.size());
+		Assert.assertEquals(flat.toDefaultString(), binary.toDefaultString());
+
+		Map<String, Interval> ranges = new HashMap<String, Interval>();
+		ranges.put("a", new Interval(1));
+		ranges.put("b", new Interval(2));
+		ranges.put("c", new Interval(3));
+		ranges.put("d", new Interval(0, 1));
+		Interval i = Interval.intervalEvaluate(flat, ranges);
+		Assert.assertEquals(4, i.min, 1e-9);
+		Assert.assertEquals(14, i.max, 1e-9);
+
+		// constants are folded in n-ary operations
+		Operation nary = new Operation(Operator.ADD, new Constant(1), new Variable("x"),
+				new Constant(2), new Variable("y"));
+		Assert.assertEquals("x + y + 3.0",
+				SimplifyExpressionsPass.simplifyExpression(nary).toDefaultString());
+
+		nary = new Operation(Operator.MULTIPLY, new Variable("x"), new Constant(0), new Variable(
+				"y"));
+		Assert.assertEquals("0.0", SimplifyExpressionsPass.simplifyExpression(nary)
+				.toDefaultString());
+
+		// a left-deep sum x + 1 + 1 + ..., deeper than recursion would allow
+		Expression deep = new Variable("x");
+		List<Expression> terms = new ArrayList<Expression>();
+		terms.add(deep);
+
+		for (int n = 0; n < 200000; ++n)
+		{
+			deep = new Operation(Operator.ADD, deep, new Constant(1));
+			terms.add(new Constant(1));
+		}
+
+		Assert.assertEquals(200001, AutomatonUtil.flattenAssociative(deep).asOperation().children
+				.size());
+		Assert.assertEquals(Arrays.asList("x"), new ArrayList<String>(
+				AutomatonUtil.getVariablesInExpression(deep)));
+
+		CompiledExpression ce = CompiledExpression.compile(deep, Arrays.asList("x"));
+		Assert.assertEquals(200005, ce.evaluate(new double[] { 5 }), 1e-6);
+
+		String str = deep.toDefaultString();
+		Assert.assertTrue(str.startsWith("x + 1.0 + 1.0"));
+		Assert.assertEquals(200001, str.split("\\+").length);
+
+		HashMap<String, Interval> xRange = new HashMap<String, Interval>();
+		xRange.put("x", new Interval(0, 1));
+		Interval range = Interval.intervalEvaluate(deep, xRange);
+		Assert.assertEquals(200000, range.min, 1e-6);
+		Assert.assertEquals(200001, range.max, 1e-6);
+
+		Expression balanced = AutomatonUtil.makeBalanced(Operator.ADD, terms);
+		int depth = 0;
+
+		for (Expression cur = balanced; cur instanceof Operation; cur = cur.asOperation().children
+				.get(0))
+			++depth;
+
+		Assert.assertTrue("balanced sum is too deep: " + depth, depth < 20);
+
+		Assert.assertNotNull(SimplifyExpressionsPass.simplifyExpression(deep));
+
+		Expression simple = SimplifyExpressionsPass.simplifyExpression(AutomatonUtil
+				.flattenAssociative(deep));
+		Assert.assertEquals("x + 200000.0", simple.toDefaultString());
+	}
+
+	/**
+	 * Test hash-consing with ImmutableExpression: identical subexpressions are the same instance,
+	 * and converting back gives an equal Expression
+	 */
+	@Test
+	public void testImmutableExpression()
+	{
+		ExpressionInterner interner = new ExpressionInterner();
+
+		String[] values = { "x + 2 * y", "-(x - 3) * y", "sin(t)^2" };
+		String[] invariants = { "x <= 5 & x + 2 * y >= 1", "x >= 0 | y < 2" };
+
+		for (String str : values)
+			checkInterned(interner, FormulaParser.parseValue(str), FormulaParser.parseValue(str));
+
+		for (String str : invariants)
+			checkInterned(interner, FormulaParser.parseInvariant(str),
+					FormulaParser.parseInvariant(str));
+
+		checkInterned(interner, FormulaParser.parseFlow("x' == 2 * x & y' == y"),
+				FormulaParser.parseFlow("x' == 2 * x & y' == y"));
+
+		// the shared subterm 'x + 2 * y' from the first two expressions
+		ImmutableExpression sum = interner.fromExpression(FormulaParser.parseValue("x + 2 * y"));
+		ImmutableExpression geq = interner
+				.fromExpression(FormulaParser.parseInvariant("x + 2 * y >= 1"));
+		Assert.assertSame(sum, geq.getChild(0));
+		Assert.assertEquals(Operator.GREATEREQUAL, geq.getOperator());
+
+		Assert.assertSame(interner.variable("x"), sum.getChild(0));
+		Assert.assertNotSame(interner.constant(1), interner.constant(2));
+		Assert.assertNotSame(interner.constant(1), interner.fromExpression(Constant.TRUE));
+		Assert.assertSame(Constant.TRUE, interner.fromExpression(Constant.TRUE).toExpression());
+
+		ImmutableExpression product = interner.operation(Operator.MULTIPLY, interner.constant(2),
+				interner.variable("y"));
+		Assert.assertSame(sum.getChild(1), product);
+
+		int size = interner.size();
+		interner.fromExpression(FormulaParser.parseInvariant(invariants[0]));
+		Assert.assertEquals("nothing new should be interned", size, interner.size());
+	}
+
+	private static void checkInterned(ExpressionInterner interner, Expression e, Expression same)
+	{
+		ImmutableExpression a = interner.fromExpression(e);
+		ImmutableExpression b = interner.fromExpression(same);
+
+		Assert.assertSame("same expression should be interned once: " + e.toDefaultString(), a, b);
+		Assert.assertEquals(e.toDefaultString(), a.toExpression().toDefaultString());
+	}
+
 	@Test
 	/**
 	 * Ensure a bind cannot have multiple parameters added with the same names (SpaceEx will not
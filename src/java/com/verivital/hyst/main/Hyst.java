@@ -9,6 +9,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
@@ -26,6 +28,7 @@ import com.verivital.hyst.generators.NamedNavigationGenerator;
 import com.verivital.hyst.generators.NavigationGenerator;
 import com.verivital.hyst.generators.SwitchedOscillatorGenerator;
 import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.importer.ConfigurationMaker;
 import com.verivital.hyst.importer.SpaceExImporter;
 import com.verivital.hyst.importer.TemplateImporter;
@@ -69,6 +72,7 @@ import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.StringOperations;
 import com.verivital.hyst.util.StringPairsWithSpacesArrayOptionHandler;
 import com.verivital.hyst.util.StringWithSpacesArrayOptionHandler;
+import com.verivital.hyst.util.TaskPool;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.SpaceExDocument;
 
@@ -101,19 +105,12 @@ public class Hyst
 
 	public static String TOOL_NAME = "Hyst v1.6";
 
-	// all program arguments as a single string
-	public static String programArguments;
-
 	// should usage printing be omitted (for unit testing)
 	public static boolean IS_UNIT_TEST = false;
 
 	// non-null if gui mode enabled, used for logging
 	private static HystFrame guiFrame = null;
 
-	// these should be statically accessible
-	public static boolean verboseMode = false;
-	public static boolean debugMode = false;
-
 	// localizable object for use in args error reporting
 	public static Localizable hystLocalizable = new Localizable()
 	{
@@ -164,24 +161,31 @@ public class Hyst
 
 	public static final String FLAG_OUTPUT = "-output";
 
-	@Option(name = FLAG_OUTPUT, aliases = { "-o" }, usage = "output filename", metaVar = "FILENAME")
-	String outputFilename = null;
+	@Option(name = FLAG_OUTPUT, aliases = {
+			"-o" }, usage = "output filename (give one for each -tool if there are several)", metaVar = "FILENAME")
+	public void setOutput(String filename)
+	{
+		outputFilenames.add(filename);
+	}
+
+	// output filenames, in the order given; they are matched with the tool printers in order
+	private ArrayList<String> outputFilenames = new ArrayList<String>();
 
-	// the chosen tool printer (dynamic parameter)
-	ToolPrinter toolPrinter = null;
-	String toolParamsString = null;
+	// the chosen tool printers (dynamic parameter), in the order given
+	private ArrayList<RequestedPrinter> requestedPrinters = new ArrayList<RequestedPrinter>();
 
 	public static final String FLAG_TOOL = "-tool";
 
 	@Option(name = FLAG_TOOL, aliases = {
-			"-t" }, usage = "target tool and tool params", metaVar = "TOOLNAME TOOLPARAMS", handler = PairStringOptionHandler.class)
+			"-t" }, usage = "target tool and tool params (can be repeated to print the model for "
+					+ "several tools, with one -output for each)", metaVar = "TOOLNAME TOOLPARAMS", handler = PairStringOptionHandler.class)
 	public void setTool(String[] params) throws CmdLineException
 	{
 		if (params.length != 2)
 			throw new CmdLineException(parser, hystLocalizable,
 					"-tool expected exactly two follow-on arguments: TOOL_NAME TOOL_PARAMS (params can be explicit empty string). See -help_printers.");
 
-		toolParamsString = params[1];
+		ToolPrinter toolPrinter = null;
 
 		// look through all the model generators for the right one
 		for (ToolPrinter tp : printers)
@@ -202,12 +206,26 @@ public class Hyst
 		if (toolPrinter == null)
 			throw new CmdLineException(parser, hystLocalizable,
 					"-tool parameter '" + params[0] + "' was invalid.");
+
+		// printers have state, so a tool given more than once gets a new instance each time
+		for (RequestedPrinter rp : requestedPrinters)
+		{
+			if (rp.printer == toolPrinter)
+			{
+				toolPrinter = newToolPrinterInstance(toolPrinter);
+				break;
+			}
+		}
+
+		requestedPrinters.add(new RequestedPrinter(toolPrinter, params[1]));
 	}
 
 	ModelGenerator modelGenerator = null;
 	String modelGenParam = null; // parameter for model generator
 
-	@Option(name = "-generate", aliases = {
+	public static final String FLAG_GENERATE = "-generate";
+
+	@Option(name = FLAG_GENERATE, aliases = {
 			"-gen" }, usage = "generate a model (rather than loading from a file)", metaVar = "GEN_NAME GEN_PARAMS", handler = PairStringOptionHandler.class)
 	public void setGenerate(String[] params) throws CmdLineException
 	{
@@ -248,6 +266,12 @@ public class Hyst
 			"-p" }, handler = StringPairsWithSpacesArrayOptionHandler.class, usage = "run a sequence of model transformation passes", metaVar = "PASS1 PARAMS1 PASS2 PARAMS2 ...")
 	List<String> passArgumentList = new ArrayList<String>();
 
+	public static final String FLAG_CACHE = "-cache";
+
+	@Option(name = FLAG_CACHE, usage = "save the model after import and after each pass as "
+			+ "snapshots in a directory, and start from the latest matching snapshot", metaVar = "DIR")
+	String cacheDir = null;
+
 	public static final String FLAG_VERBOSE = "-verbose";
 
 	@Option(name = FLAG_VERBOSE, aliases = { "-v" }, usage = "print verbose output")
@@ -266,6 +290,10 @@ public class Hyst
 	@Option(name = "-testpython", hidden = true, usage = "test if python exists on system")
 	boolean doTestPython = false;
 
+	@Option(name = "-python_framed", hidden = true, usage = "communicate with python using a framed "
+			+ "binary protocol rather than the interactive interpreter")
+	public boolean pythonFramedFlag = false;
+
 	/////////////////////////////////////////////////////
 
 	public enum ExitCode
@@ -283,7 +311,9 @@ public class Hyst
 	{
 		final String FLAG_GUI = "-gui";
 
-		if (args.length > 0 && !args[0].equals(FLAG_GUI))
+		if (args.length > 0 && args[0].equals(HystServer.FLAG_SERVER))
+			System.exit(HystServer.runWithArguments(args));
+		else if (args.length > 0 && !args[0].equals(FLAG_GUI))
 			System.exit(Hyst.runWithArguments(args));
 		else
 		{
@@ -312,11 +342,43 @@ public class Hyst
 		}
 	}
 
+	/**
+	 * Run a conversion in a new (default) context. Conversions on different threads are
+	 * independent.
+	 * 
+	 * @param args
+	 *            the command-line arguments
+	 * @return the exit code
+	 */
 	public static int runWithArguments(String[] args)
 	{
-		programArguments = makeSingleArgument(args);
+		return runWithArguments(new HystContext(), args);
+	}
+
+	/**
+	 * Run a conversion in the given context, which is the current thread's context until the
+	 * conversion finishes
+	 * 
+	 * @param context
+	 *            the context to use
+	 * @param args
+	 *            the command-line arguments
+	 * @return the exit code
+	 */
+	public static int runWithArguments(HystContext context, String[] args)
+	{
+		HystContext saved = HystContext.set(context);
+
+		try
+		{
+			context.programArguments = makeSingleArgument(args);
 
-		return new Hyst().run(args).ordinal();
+			return new Hyst().run(args).ordinal();
+		}
+		finally
+		{
+			HystContext.set(saved);
+		}
 	}
 
 	private void parseInput() throws CmdLineException
@@ -412,10 +474,23 @@ public class Hyst
 						"Cannot both use model generation and provide input cfg/xml files.");
 		}
 
-		if (toolPrinter == null)
+		if (requestedPrinters.isEmpty())
 			throw new CmdLineException(parser, hystLocalizable,
 					"Tool printer must be set using '" + FLAG_TOOL + "' flag.");
 
+		if (requestedPrinters.size() == 1 && outputFilenames.size() > 1)
+			throw new CmdLineException(parser, hystLocalizable,
+					"Only one output file can be given for a single tool printer.");
+
+		if (requestedPrinters.size() > 1 && outputFilenames.size() != requestedPrinters.size())
+			throw new CmdLineException(parser, hystLocalizable,
+					"When using several tool printers, one output file must be given for each ("
+							+ requestedPrinters.size() + " printers, " + outputFilenames.size()
+							+ " output files).");
+
+		for (int i = 0; i < outputFilenames.size(); ++i)
+			requestedPrinters.get(i).outputFilename = outputFilenames.get(i);
+
 		for (String xmlFilename : xmlFilenames)
 			if (xmlFilename != null && !new File(xmlFilename).exists())
 				throw new CmdLineException(parser, hystLocalizable,
@@ -478,27 +553,37 @@ public class Hyst
 
 	private void processOutputFlags()
 	{
+		HystContext context = HystContext.get();
+
 		if (debugFlag)
 		{
-			Hyst.debugMode = Hyst.verboseMode = true;
+			context.debugMode = context.verboseMode = true;
 			log("Debug mode (even more verbose) printing enabled.\n");
 		}
 		else if (verboseFlag)
 		{
-			Hyst.debugMode = false;
-			Hyst.verboseMode = true;
+			context.debugMode = false;
+			context.verboseMode = true;
 			log("Verbose mode printing enabled.\n");
 		}
 		else
-			Hyst.debugMode = Hyst.verboseMode = false;
+			context.debugMode = context.verboseMode = false;
 
 		if (noValidateFlag)
 		{
-			Configuration.DO_VALIDATION = false;
+			context.doValidation = false;
 			Hyst.log("Internal model validatation disabled.");
 		}
 		else
-			Configuration.DO_VALIDATION = true;
+			context.doValidation = true;
+
+		if (pythonFramedFlag)
+		{
+			context.pythonTransport = PythonBridge.Transport.FRAMED;
+			Hyst.log("Using framed python transport.");
+		}
+		else
+			context.pythonTransport = PythonBridge.Transport.INTERACTIVE;
 	}
 
 	private ExitCode doTestPython()
@@ -597,39 +682,46 @@ public class Hyst
 		{
 			long startMs = System.currentTimeMillis();
 			Configuration config = null;
+			SnapshotCache cache = null;
+			List<String> snapshotKeys = null;
+			int firstPass = 0;
 
-			if (modelGenerator != null)
-			{
-				Expression.expressionPrinter = null; // should be assigned in
-														// geneartor
-				config = modelGenerator.generate(modelGenParam);
-			}
-			else
+			if (cacheDir != null)
 			{
-				// 1. import the SpaceExDocument
-				SpaceExDocument spaceExDoc = SpaceExImporter.importModels(cfgFilename,
-						xmlFilenames.toArray(new String[xmlFilenames.size()]));
+				cache = new SnapshotCache(new File(cacheDir));
+				snapshotKeys = makeSnapshotKeys();
 
-				// 2. convert the SpaceEx data structures to template automata
-				Map<String, Component> componentTemplates = TemplateImporter
-						.createComponentTemplates(spaceExDoc);
+				// start from the snapshot with the most passes already run
+				for (int i = snapshotKeys.size() - 1; i >= 0 && config == null; --i)
+				{
+					config = cache.load(snapshotKeys.get(i));
+					firstPass = i;
+				}
+			}
 
-				// 3. run any component template passes here (future)
+			if (config == null)
+			{
+				config = importConfiguration();
 
-				// 4. instantiate the component templates into a networked
-				// configuration
-				config = ConfigurationMaker.fromSpaceEx(spaceExDoc, componentTemplates);
+				if (cache != null)
+					cache.save(snapshotKeys.get(0), config);
 			}
+			else if (firstPass > 0)
+				Hyst.log("Skipping import and the first " + firstPass + " passes.");
+			else
+				Hyst.log("Skipping import.");
 
 			// 5. run passes
-			runPasses(config);
+			runPasses(config, firstPass, cache, snapshotKeys);
 
-			// 6. run printer
-			runPrinter(toolPrinter, config);
+			// 6. run printers
+			if (requestedPrinters.size() == 1)
+				runPrinter(requestedPrinters.get(0), config);
+			else
+				runPrinters(config);
 
 			long difMs = System.currentTimeMillis() - startMs;
 
-			toolPrinter.flush();
 			Hyst.log("\nFinished converting in " + difMs + " ms");
 		}
 		catch (AutomatonExportException e)
@@ -659,7 +751,7 @@ public class Hyst
 
 		if (ex != null)
 		{
-			if (verboseMode)
+			if (HystContext.get().verboseMode)
 			{
 				String message = ex.getLocalizedMessage() != null ? ex.getLocalizedMessage()
 						: ex.toString();
@@ -679,31 +771,177 @@ public class Hyst
 		return rv;
 	}
 
-	private void runPrinter(ToolPrinter printer, Configuration config)
+	/**
+	 * Generate or import the model (steps 1-4 of the conversion)
+	 * 
+	 * @return the configuration
+	 */
+	private Configuration importConfiguration()
+	{
+		Configuration rv;
+
+		if (modelGenerator != null)
+		{
+			Expression.setThreadPrinter(null); // should be assigned in geneartor
+			rv = modelGenerator.generate(modelGenParam);
+		}
+		else
+		{
+			// fill the formula parser's prediction cache while the xml is being read
+			FormulaParser.warmUpInBackground();
+
+			// 1. import the SpaceExDocument
+			SpaceExDocument spaceExDoc = SpaceExImporter.importModels(cfgFilename,
+					xmlFilenames.toArray(new String[xmlFilenames.size()]));
+
+			// 2. convert the SpaceEx data structures to template automata
+			Map<String, Component> componentTemplates = TemplateImporter
+					.createComponentTemplates(spaceExDoc);
+
+			// 3. run any component template passes here (future)
+
+			// 4. instantiate the component templates into a networked
+			// configuration
+			rv = ConfigurationMaker.fromSpaceEx(spaceExDoc, componentTemplates);
+
+			Hyst.log("Formula parse cache: " + FormulaParser.getCacheHits() + " hits, "
+					+ FormulaParser.getCacheMisses() + " misses");
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the snapshot keys of the conversion: the key of the imported model, followed by the key
+	 * after each pass
+	 */
+	private List<String> makeSnapshotKeys()
 	{
-		Expression.expressionPrinter = null; // should be assigned in printer
+		List<String> rv = new ArrayList<String>();
+		String importSettings = SnapshotCache.getImportSettings();
+		String key;
+
+		if (modelGenerator != null)
+			key = SnapshotCache.generatorKey(modelGenerator.getCommandLineFlag(), modelGenParam,
+					importSettings);
+		else
+			key = SnapshotCache.importKey(cfgFilename, xmlFilenames, importSettings);
+
+		rv.add(key);
+		String settings = SnapshotCache.getPassSettings();
+
+		for (RequestedTransformationPass rp : requestedPasses)
+		{
+			key = SnapshotCache.passKey(key, rp.tp.getCommandLineFlag(), rp.params, settings);
+			rv.add(key);
+		}
+
+		return rv;
+	}
+
+	private void runPrinter(RequestedPrinter rp, Configuration config)
+	{
+		Expression.setThreadPrinter(null); // should be assigned in printer
 
 		String originalFilename = StringOperations.join(" ", xmlFilenames.toArray(new String[] {}));
+		ToolPrinter printer = rp.printer;
 
-		if (outputFilename != null)
-			printer.setOutputFile(outputFilename);
+		if (rp.outputFilename != null)
+			printer.setOutputFile(rp.outputFilename);
 		else if (guiFrame != null)
 			printer.setOutputGui(guiFrame);
 
-		printer.print(config, toolParamsString, originalFilename);
+		printer.print(config, rp.params, originalFilename);
+		printer.flush();
 	}
 
-	private void runPasses(Configuration config)
+	/**
+	 * Run several tool printers at once on the print pool. Printers modify the configuration when
+	 * they apply their preconditions, so each one gets its own copy. If any printer fails, the
+	 * others still finish, and the exception of the first failed printer (in command-line order) is
+	 * thrown.
+	 * 
+	 * @param config
+	 *            the configuration after the passes have run
+	 */
+	private void runPrinters(Configuration config)
 	{
-		for (RequestedTransformationPass rp : requestedPasses)
+		ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 0; i < requestedPrinters.size(); ++i)
 		{
+			final RequestedPrinter rp = requestedPrinters.get(i);
+			final Configuration c = (i == requestedPrinters.size() - 1) ? config : config.copy();
+
+			Callable<Void> print = new Callable<Void>()
+			{
+				@Override
+				public Void call()
+				{
+					long startMs = System.currentTimeMillis();
+					runPrinter(rp, c);
+
+					Hyst.log("Printed " + rp.printer.getToolName() + " model to "
+							+ rp.outputFilename + " in " + (System.currentTimeMillis() - startMs)
+							+ " ms");
+
+					return null;
+				}
+			};
+
+			results.add(TaskPool.submit(print));
+		}
+
+		RuntimeException firstError = null;
+
+		for (int i = 0; i < results.size(); ++i)
+		{
+			try
+			{
+				TaskPool.getResult(results.get(i));
+			}
+			catch (RuntimeException e)
+			{
+				logError("Printing to " + requestedPrinters.get(i).outputFilename + " failed: "
+						+ e);
+
+				if (firstError == null)
+					firstError = e;
+			}
+		}
+
+		if (firstError != null)
+			throw firstError;
+	}
+
+	/**
+	 * Run the requested passes, starting from the given one, and save a snapshot after each if
+	 * there is a cache
+	 * 
+	 * @param config
+	 *            the configuration to modify
+	 * @param firstPass
+	 *            the index of the first pass to run (the earlier ones are already done)
+	 * @param cache
+	 *            the snapshot cache, or null
+	 * @param snapshotKeys
+	 *            the keys from makeSnapshotKeys(), or null if cache is null
+	 */
+	private void runPasses(Configuration config, int firstPass, SnapshotCache cache,
+			List<String> snapshotKeys)
+	{
+		for (int i = firstPass; i < requestedPasses.size(); ++i)
+		{
+			RequestedTransformationPass rp = requestedPasses.get(i);
 			Hyst.log("Running pass " + rp.tp.getName() + " with params " + rp.params);
 
-			Expression.expressionPrinter = null; // should be assigned in pass
+			Expression.setThreadPrinter(null); // should be assigned in pass
 			rp.tp.runTransformationPass(config, rp.params);
 
 			Hyst.logDebug("\n----------After running pass " + rp.tp.getName()
 					+ ", configuration is:\n" + config);
+
+			if (cache != null)
+				cache.save(snapshotKeys.get(i + 1), config);
 		}
 	}
 
@@ -739,6 +977,22 @@ public class Hyst
 		return rv;
 	}
 
+	private static ToolPrinter newToolPrinterInstance(ToolPrinter tp)
+	{
+		ToolPrinter instance = null;
+
+		try
+		{
+			instance = tp.getClass().getConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e)
+		{
+			throw new AutomatonExportException("Error instantiating ToolPrinter", e);
+		}
+
+		return instance;
+	}
+
 	private static TransformationPass newTransformationPassInstance(TransformationPass tp)
 	{
 		// create a new instance of the transformation pass to give it fresh
@@ -784,12 +1038,14 @@ public class Hyst
 	 */
 	public static void log(String message)
 	{
-		if (verboseMode || debugMode)
+		HystContext context = HystContext.get();
+
+		if (context.verboseMode || context.debugMode)
 		{
 			if (guiFrame != null)
 				guiFrame.addOutput(message);
 
-			System.err.println(message);
+			context.getLogStream().println(message);
 		}
 	}
 
@@ -804,7 +1060,7 @@ public class Hyst
 		if (guiFrame != null)
 			guiFrame.addOutput(message);
 		else
-			System.err.println(message);
+			HystContext.get().getLogStream().println(message);
 	}
 
 	/**
@@ -816,12 +1072,14 @@ public class Hyst
 	 */
 	public static void logDebug(String message)
 	{
-		if (debugMode)
+		HystContext context = HystContext.get();
+
+		if (context.debugMode)
 		{
 			if (guiFrame != null)
 				guiFrame.addOutput(message);
 
-			System.err.println(message);
+			context.getLogStream().println(message);
 		}
 	}
 
@@ -836,6 +1094,6 @@ public class Hyst
 		if (guiFrame != null)
 			guiFrame.addOutput(message);
 
-		System.err.println(message);
+		HystContext.get().getLogStream().println(message);
 	}
 }
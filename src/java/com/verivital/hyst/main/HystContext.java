@@ -0,0 +1,153 @@
+package com.verivital.hyst.main;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.verivital.hyst.importer.SymbolicStateExpression;
+import com.verivital.hyst.passes.complex.ConvertLutFlowsPass;
+import com.verivital.hyst.python.PythonBridge;
+
+/**
+ * The settings and working state of a single conversion (import, passes and printing), which used
+ * to be kept in global static fields (Hyst.verboseMode, Configuration.DO_VALIDATION, and so on).
+ *
+ * Each thread has a current context, returned by get(). Threads start with their own default
+ * context, so independent conversions running on different threads (for example, several calls to
+ * Hyst.runWithArguments() on a thread pool) don't see each other's settings. Work that a conversion
+ * hands to other threads should be wrapped with wrap(), so that it runs in the same context; tasks
+ * on the shared TaskPool are wrapped this way.
+ *
+ * The fields should be set before the conversion starts; they aren't synchronized.
+ */
+public class HystContext
+{
+	private static final ThreadLocal<HystContext> current = new ThreadLocal<HystContext>()
+	{
+		@Override
+		protected HystContext initialValue()
+		{
+			return new HystContext();
+		}
+	};
+
+	// print messages passed to Hyst.log() / Hyst.logDebug()
+	public boolean verboseMode = false;
+	public boolean debugMode = false;
+
+	// where log messages are printed, null means System.err
+	public PrintStream logStream = null;
+
+	// check the automaton in validate() calls
+	public boolean doValidation = true;
+
+	// should constant names / values be checked in Component.validate(); this is turned off while
+	// the network is being instantiated
+	public boolean validateConsts = true;
+
+	// how ConvertLutFlowsPass simplifies interpolated expressions, one of the
+	// ConvertLutFlowsPass.SIMPLIFY_* values
+	public int lutSimplifyMode = ConvertLutFlowsPass.SIMPLIFY_AUTO;
+
+	// how python utility methods which support both transports exchange data with python
+	public PythonBridge.Transport pythonTransport = PythonBridge.Transport.INTERACTIVE;
+
+	// FormulaParser cache hits and misses of parses done in this context (by any thread)
+	public final AtomicLong parseCacheHits = new AtomicLong();
+	public final AtomicLong parseCacheMisses = new AtomicLong();
+
+	// the arguments of the conversion, printed in the header of the output
+	public String programArguments = null;
+
+	// the network layout used by SymbolicStateExpression while importing
+	public SymbolicStateExpression.Layout symbolicStateLayout = null;
+
+	// dimension names used by HyperRectangle.toString()
+	private List<String> dimensionNames = Collections
+			.unmodifiableList(Arrays.asList("X", "Y", "Z"));
+
+	/**
+	 * Get the context of the current thread
+	 *
+	 * @return the context, never null
+	 */
+	public static HystContext get()
+	{
+		return current.get();
+	}
+
+	/**
+	 * Set the context of the current thread. Callers should restore the returned context when they
+	 * are done.
+	 *
+	 * @param context
+	 *            the new context, or null to give the thread a new default context
+	 * @return the previous context of the current thread
+	 */
+	public static HystContext set(HystContext context)
+	{
+		HystContext rv = current.get();
+
+		if (context == null)
+			current.remove();
+		else
+			current.set(context);
+
+		return rv;
+	}
+
+	/**
+	 * Make a task which runs in this context, on whichever thread executes it. The executing
+	 * thread's previous context is restored when the task finishes.
+	 *
+	 * @param task
+	 *            the task to wrap
+	 * @return the wrapped task
+	 */
+	public <T> Callable<T> wrap(final Callable<T> task)
+	{
+		final HystContext context = this;
+
+		return new Callable<T>()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				HystContext saved = set(context);
+
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					set(saved);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get the stream log messages are printed to
+	 *
+	 * @return logStream, or System.err if it's null
+	 */
+	public PrintStream getLogStream()
+	{
+		return logStream != null ? logStream : System.err;
+	}
+
+	public List<String> getDimensionNames()
+	{
+		return dimensionNames;
+	}
+
+	public void setDimensionNames(List<String> names)
+	{
+		dimensionNames = Collections.unmodifiableList(new ArrayList<String>(names));
+	}
+}
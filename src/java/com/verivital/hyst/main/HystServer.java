@@ -0,0 +1,529 @@
+package com.verivital.hyst.main;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.verivital.hyst.grammar.formula.FormulaParser;
+import com.verivital.hyst.main.Hyst.ExitCode;
+import com.verivital.hyst.util.JsonUtil;
+
+/**
+ * A long-running Hyst process which runs conversion jobs, so that many conversions don't each pay
+ * for JVM startup, class loading and parser warm-up. Start it with:
+ *
+ * java -jar Hyst.jar -server [-port PORT] [-jobs MAX_CONCURRENT_JOBS]
+ *
+ * Without -port, jobs are read from stdin and results are written to stdout (anything else Hyst
+ * prints to stdout goes to stderr instead). With -port, the server listens on localhost (port 0
+ * picks a free port) and prints "Hyst server listening on port N" once it's ready; each
+ * connection can send any number of jobs.
+ *
+ * Each job is one line of JSON. Either give the Hyst command-line arguments directly:
+ *
+ * {"id": 1, "args": ["-i", "model.xml", "-o", "out.flowstar", "-tool", "flowstar", ""]}
+ *
+ * or the parts of the conversion (all but "tool" are optional, and "input" and "generator" can't
+ * both be given):
+ *
+ * {"id": 1, "input": ["model.xml", "model.cfg"], "generator": ["NAME", "PARAMS"], "passes":
+ * [["PASS", "PARAMS"], ...], "tool": ["TOOL", "PARAMS"], "output": "out.flowstar", "verbose": true,
+ * "debug": false, "args": [extra arguments]}
+ *
+ * Jobs run concurrently, each in its own HystContext. When a job finishes, one line of JSON is
+ * written back on the same stream: {"id": 1, "code": 0, "result": "SUCCESS", "millis": 123,
+ * "log": "..."}, where code is the exit code Hyst would have returned and log has the messages the
+ * job printed. Results are written in the order the jobs finish, so use the id to match them. The
+ * job {"command": "shutdown"} stops the server after the running jobs finish.
+ */
+public class HystServer
+{
+	public static final String FLAG_SERVER = "-server";
+
+	private final ExecutorService jobPool;
+	private volatile boolean shutdown = false;
+	private ServerSocket serverSocket = null;
+
+	public HystServer(int maxJobs)
+	{
+		jobPool = Executors.newFixedThreadPool(maxJobs);
+	}
+
+	/**
+	 * Run the server with the arguments from the command line (the first one is -server)
+	 *
+	 * @param args
+	 *            the arguments
+	 * @return the process exit code
+	 */
+	public static int runWithArguments(String[] args)
+	{
+		int port = -1;
+		int maxJobs = Runtime.getRuntime().availableProcessors();
+		int rv = ExitCode.SUCCESS.ordinal();
+
+		try
+		{
+			for (int i = 1; i < args.length; ++i)
+			{
+				if (args[i].equals("-port") && i + 1 < args.length)
+					port = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-jobs") && i + 1 < args.length)
+					maxJobs = Integer.parseInt(args[++i]);
+				else
+					throw new IllegalArgumentException("unknown server argument: " + args[i]);
+			}
+
+			if (maxJobs < 1)
+				throw new IllegalArgumentException("-jobs must be at least 1");
+		}
+		catch (IllegalArgumentException e)
+		{
+			Hyst.logError("Error in server arguments: " + e.getMessage()
+					+ "\nUsage: -server [-port PORT] [-jobs MAX_CONCURRENT_JOBS]");
+
+			return ExitCode.ARG_PARSE_ERROR.ordinal();
+		}
+
+		HystServer server = new HystServer(maxJobs);
+
+		try
+		{
+			if (port < 0)
+			{
+				// stdout is used for results, so other output goes to stderr
+				PrintStream results = new PrintStream(
+						new FileOutputStream(FileDescriptor.out), true, "UTF-8");
+				System.setOut(System.err);
+
+				server.warmUp();
+				server.serve(System.in, results);
+			}
+			else
+				server.listen(port);
+		}
+		catch (IOException e)
+		{
+			Hyst.logError("Hyst server error: " + e);
+			rv = ExitCode.EXPORT_EXCEPTION.ordinal();
+		}
+		finally
+		{
+			server.finish();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Listen on a localhost port, and serve each connection on its own thread until shutdown
+	 *
+	 * @param port
+	 *            the port, or 0 for any free port
+	 */
+	public void listen(int port) throws IOException
+	{
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		warmUp();
+
+		System.out.println("Hyst server listening on port " + serverSocket.getLocalPort());
+		System.out.flush();
+
+		try
+		{
+			while (!shutdown)
+			{
+				final Socket socket = serverSocket.accept();
+
+				Thread t = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							serve(socket.getInputStream(), socket.getOutputStream());
+						}
+						catch (IOException e)
+						{
+							Hyst.logError("Hyst server connection error: " + e);
+						}
+						finally
+						{
+							closeQuietly(socket);
+						}
+					}
+				}, "hyst server connection");
+
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+		catch (IOException e)
+		{
+			// accept() fails once the socket is closed by a shutdown command
+			if (!shutdown)
+				throw e;
+		}
+	}
+
+	/**
+	 * Read jobs from a stream until it ends (or the server is shut down), and write their results
+	 * to the output. This returns after all the jobs read from the stream have finished.
+	 *
+	 * @param in
+	 *            where to read jobs
+	 * @param out
+	 *            where to write results
+	 */
+	public void serve(InputStream in, OutputStream out) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		final Writer writer = new OutputStreamWriter(out, "UTF-8");
+		final int[] running = { 0 };
+		String shutdownResult = null;
+		String line;
+
+		while (!shutdown && (line = reader.readLine()) != null)
+		{
+			if (line.trim().length() == 0)
+				continue;
+
+			final String job = line;
+
+			if (isShutdownCommand(job))
+			{
+				// handled here rather than in the pool, so no more jobs are read from the stream
+				shutdownResult = runJob(job);
+				break;
+			}
+
+			synchronized (running)
+			{
+				++running[0];
+			}
+
+			jobPool.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						String result = runJob(job);
+
+						synchronized (writer)
+						{
+							writer.write(result + "\n");
+							writer.flush();
+						}
+					}
+					catch (IOException e)
+					{
+						Hyst.logError("Hyst server could not write result: " + e);
+					}
+					finally
+					{
+						synchronized (running)
+						{
+							--running[0];
+							running.notifyAll();
+						}
+					}
+				}
+			});
+		}
+
+		// wait for this stream's jobs before returning (the caller may close the stream)
+		boolean interrupted = false;
+
+		synchronized (running)
+		{
+			while (running[0] > 0 && !interrupted)
+			{
+				try
+				{
+					running.wait();
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		else if (shutdownResult != null)
+		{
+			synchronized (writer)
+			{
+				writer.write(shutdownResult + "\n");
+				writer.flush();
+			}
+
+			shutdown();
+		}
+	}
+
+	private static boolean isShutdownCommand(String job)
+	{
+		boolean rv = false;
+
+		try
+		{
+			Object parsed = JsonUtil.parse(job);
+
+			rv = parsed instanceof Map && "shutdown".equals(((Map<?, ?>) parsed).get("command"));
+		}
+		catch (Throwable e)
+		{
+			// reported when the job is run (this can also be an Error, like a StackOverflowError
+			// on deeply nested json)
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Run a single job (one line of JSON) and get its result (one line of JSON)
+	 *
+	 * @param job
+	 *            the job text
+	 * @return the result text
+	 */
+	public String runJob(String job)
+	{
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		long start = System.currentTimeMillis();
+		ExitCode code = ExitCode.ARG_PARSE_ERROR;
+		Object id = null;
+
+		try
+		{
+			PrintStream logStream = new PrintStream(log, true, "UTF-8");
+
+			try
+			{
+				Object parsed = JsonUtil.parse(job);
+
+				if (!(parsed instanceof Map))
+					throw new IllegalArgumentException("job must be a json object");
+
+				Map<?, ?> map = (Map<?, ?>) parsed;
+				id = map.get("id");
+
+				if ("shutdown".equals(map.get("command")))
+					code = ExitCode.SUCCESS; // serve() stops the server after replying
+				else if (map.get("command") != null)
+					throw new IllegalArgumentException("unknown command: " + map.get("command"));
+				else
+				{
+					HystContext context = new HystContext();
+					context.logStream = logStream;
+
+					code = ExitCode.values()[Hyst.runWithArguments(context, makeArguments(map))];
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				logStream.println("Error in server job: " + e.getMessage());
+			}
+			catch (Throwable e)
+			{
+				// also Errors (such as StackOverflowError on a deep model), so that the job always
+				// gets a result and a broken job doesn't stop the server
+				logStream.println("Exception in Hyst server job: " + e);
+				e.printStackTrace(logStream);
+				code = ExitCode.EXPORT_EXCEPTION;
+			}
+
+			logStream.flush();
+			result.put("id", id);
+			result.put("code", code.ordinal());
+			result.put("result", code.name());
+			result.put("millis", System.currentTimeMillis() - start);
+			result.put("log", log.toString("UTF-8"));
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new RuntimeException("UTF-8 is not supported", e);
+		}
+
+		return JsonUtil.toJson(result);
+	}
+
+	/**
+	 * Convert a job to Hyst command-line arguments
+	 *
+	 * @param job
+	 *            the parsed job
+	 * @return the arguments
+	 */
+	public static String[] makeArguments(Map<?, ?> job)
+	{
+		ArrayList<String> rv = new ArrayList<String>();
+
+		if (Boolean.TRUE.equals(job.get("debug")))
+			rv.add(Hyst.FLAG_DEBUG);
+
+		if (Boolean.TRUE.equals(job.get("verbose")))
+			rv.add(Hyst.FLAG_VERBOSE);
+
+		if (job.get("input") != null)
+		{
+			rv.add(Hyst.FLAG_INPUT);
+			rv.addAll(getStrings(job, "input", -1));
+		}
+
+		if (job.get("generator") != null)
+		{
+			rv.add(Hyst.FLAG_GENERATE);
+			rv.addAll(getStrings(job, "generator", 2));
+		}
+
+		if (job.get("passes") != null)
+		{
+			Object passes = job.get("passes");
+
+			if (!(passes instanceof List))
+				throw new IllegalArgumentException("passes must be a list of [name, params] pairs");
+
+			rv.add(Hyst.FLAG_PASSES);
+
+			for (Object pass : (List<?>) passes)
+			{
+				Map<String, Object> wrapper = new LinkedHashMap<String, Object>();
+				wrapper.put("pass", pass);
+				rv.addAll(getStrings(wrapper, "pass", 2));
+			}
+		}
+
+		if (job.get("output") != null)
+		{
+			rv.add(Hyst.FLAG_OUTPUT);
+			rv.add(getString(job, "output"));
+		}
+
+		if (job.get("tool") != null)
+		{
+			rv.add(Hyst.FLAG_TOOL);
+			rv.addAll(getStrings(job, "tool", 2));
+		}
+
+		if (job.get("args") != null)
+			rv.addAll(getStrings(job, "args", -1));
+
+		if (rv.isEmpty())
+			throw new IllegalArgumentException("job has no arguments");
+
+		return rv.toArray(new String[rv.size()]);
+	}
+
+	private static String getString(Map<?, ?> job, String key)
+	{
+		Object o = job.get(key);
+
+		if (!(o instanceof String))
+			throw new IllegalArgumentException(key + " must be a string");
+
+		return (String) o;
+	}
+
+	private static List<String> getStrings(Map<?, ?> job, String key, int size)
+	{
+		Object o = job.get(key);
+		List<String> rv = new ArrayList<String>();
+
+		if (!(o instanceof List))
+			throw new IllegalArgumentException(key + " must be a list of strings");
+
+		for (Object item : (List<?>) o)
+		{
+			if (!(item instanceof String))
+				throw new IllegalArgumentException(key + " must be a list of strings");
+
+			rv.add((String) item);
+		}
+
+		if (size != -1 && rv.size() != size)
+			throw new IllegalArgumentException(key + " must have " + size + " elements");
+
+		return rv;
+	}
+
+	/**
+	 * Stop accepting jobs. Jobs which are running will finish.
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+
+		if (serverSocket != null)
+		{
+			try
+			{
+				serverSocket.close();
+			}
+			catch (IOException e)
+			{
+				// already closed
+			}
+		}
+	}
+
+	/**
+	 * Wait for all the jobs to finish, and stop the job threads
+	 */
+	public void finish()
+	{
+		jobPool.shutdown();
+
+		try
+		{
+			jobPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void warmUp()
+	{
+		// load the parser and populate its prediction cache once, before the first job
+		FormulaParser.warmUp();
+	}
+
+	private static void closeQuietly(Socket s)
+	{
+		try
+		{
+			s.close();
+		}
+		catch (IOException e)
+		{
+			// nothing to do
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.verivital.hyst.main;
+
+import com.verivital.hyst.printers.ToolPrinter;
+
+/**
+ * Container class for a tool printer to run, along with the params and the output file to use (the
+ * output file is null if the printer should use stdout or the gui)
+ */
+public class RequestedPrinter
+{
+	public ToolPrinter printer;
+	public String params;
+	public String outputFilename = null;
+
+	public RequestedPrinter(ToolPrinter printer, String params)
+	{
+		this.printer = printer;
+		this.params = params;
+	}
+}
@@ -0,0 +1,473 @@
+package com.verivital.hyst.main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.ir.network.ComponentInstance;
+import com.verivital.hyst.ir.network.NetworkComponent;
+import com.verivital.hyst.python.PythonBridge;
+
+/**
+ * A directory of binary snapshots of Configurations, so that a conversion which only differs from
+ * an earlier one in its later passes or in its printers doesn't need to import the model and
+ * rerun the earlier passes.
+ *
+ * Each snapshot is stored under a key. The key of an imported model is a hash of the contents of
+ * its input files (or of the model generator and its parameters) and of the settings which change
+ * the import (see getImportSettings()); the key after a pass is a hash
+ * of the previous key, the pass, its parameters and the settings which change what passes produce
+ * (see getPassSettings()). So, the keys of a conversion form a chain, and
+ * the conversion can start from the longest prefix of the chain that has a snapshot.
+ *
+ * Snapshots are gzipped Java serialization of the Configuration. The keys also include the Hyst
+ * version and the modification time of the jar Hyst is loaded from, so snapshots made by a
+ * different Hyst.jar aren't used (when running from a class directory, clear the cache after
+ * changing passes). A snapshot that can't be read is ignored (and deleted), and the conversion
+ * recomputes it.
+ *
+ * Java serialization recurses once per level of an expression, so models with expressions deeper
+ * than MAX_SAVE_DEPTH aren't saved (they would overflow the stack when saving or loading).
+ */
+public class SnapshotCache
+{
+	private static final String SUFFIX = ".snapshot";
+	private static final int MAX_SAVE_DEPTH = 200;
+	private final File dir;
+
+	/**
+	 * Create a cache in the given directory, which is created if it doesn't exist
+	 *
+	 * @param dir
+	 *            the snapshot directory
+	 */
+	public SnapshotCache(File dir)
+	{
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new AutomatonExportException("Could not create snapshot directory: " + dir);
+
+		this.dir = dir;
+	}
+
+	/**
+	 * Get the key of a model imported from files
+	 *
+	 * @param cfgFilename
+	 *            the cfg file
+	 * @param xmlFilenames
+	 *            the xml files, in the order they are imported
+	 * @param settings
+	 *            the conversion's settings, from getImportSettings()
+	 * @return the key
+	 */
+	public static String importKey(String cfgFilename, List<String> xmlFilenames, String settings)
+	{
+		MessageDigest digest = newDigest();
+		update(digest, "import");
+		update(digest, settings);
+		updateFile(digest, cfgFilename);
+
+		for (String xml : xmlFilenames)
+			updateFile(digest, xml);
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Get the key of a model made by a model generator
+	 *
+	 * @param generator
+	 *            the generator's command-line flag
+	 * @param params
+	 *            the generator parameters
+	 * @param settings
+	 *            the conversion's settings, from getImportSettings()
+	 * @return the key
+	 */
+	public static String generatorKey(String generator, String params, String settings)
+	{
+		MessageDigest digest = newDigest();
+		update(digest, "generate");
+		update(digest, generator);
+		update(digest, params);
+		update(digest, settings);
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Get the key of a model after running a pass
+	 *
+	 * @param previousKey
+	 *            the key of the model the pass is run on
+	 * @param pass
+	 *            the pass's command-line flag
+	 * @param params
+	 *            the pass parameters
+	 * @param settings
+	 *            the conversion's settings, from getPassSettings()
+	 * @return the key
+	 */
+	public static String passKey(String previousKey, String pass, String params, String settings)
+	{
+		MessageDigest digest = newDigest();
+		update(digest, previousKey);
+		update(digest, pass);
+		update(digest, params);
+		update(digest, settings);
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Get the settings of the current conversion which change the imported (or generated) model:
+	 * whether it is validated
+	 *
+	 * @return the settings, for importKey() and generatorKey()
+	 */
+	public static String getImportSettings()
+	{
+		return "validate=" + HystContext.get().doValidation;
+	}
+
+	/**
+	 * Get the settings of the current conversion which change what passes produce, besides their
+	 * parameters: whether the model is validated, how interpolated expressions are simplified, and
+	 * which python (if any) the passes can use. This checks for python, if that wasn't done yet.
+	 *
+	 * @return the settings, for passKey()
+	 */
+	public static String getPassSettings()
+	{
+		HystContext context = HystContext.get();
+		String python = PythonBridge.hasPython() ? context.pythonTransport.toString() : "none";
+
+		return "validate=" + context.doValidation + " lut=" + context.lutSimplifyMode + " python="
+				+ python;
+	}
+
+	/**
+	 * Load a snapshot
+	 *
+	 * @param key
+	 *            the snapshot's key
+	 * @return the configuration, or null if there is no usable snapshot with this key
+	 */
+	public Configuration load(String key)
+	{
+		File f = getFile(key);
+		Configuration rv = null;
+
+		if (f.exists())
+		{
+			long startMs = System.currentTimeMillis();
+
+			try
+			{
+				ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(
+						new BufferedInputStream(new FileInputStream(f))));
+
+				try
+				{
+					rv = (Configuration) in.readObject();
+				}
+				finally
+				{
+					in.close();
+				}
+
+				Hyst.log("Loaded snapshot " + f + " in " + (System.currentTimeMillis() - startMs)
+						+ " ms");
+			}
+			catch (IOException | ClassNotFoundException | ClassCastException e)
+			{
+				Hyst.log("Ignoring unreadable snapshot " + f + ": " + e);
+				f.delete();
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Save a snapshot. Failures are logged, and otherwise ignored, since the conversion itself can
+	 * continue.
+	 *
+	 * @param key
+	 *            the snapshot's key
+	 * @param config
+	 *            the configuration to save
+	 */
+	public void save(String key, Configuration config)
+	{
+		File f = getFile(key);
+		File temp = null;
+		long startMs = System.currentTimeMillis();
+		int depth = getDepth(config);
+
+		if (depth > MAX_SAVE_DEPTH)
+		{
+			Hyst.log("Not saving snapshot " + f + ": the model has expressions " + depth
+					+ " levels deep (the limit is " + MAX_SAVE_DEPTH + ")");
+			return;
+		}
+
+		try
+		{
+			// write to a temporary file first, so that other runs never see a partial snapshot
+			temp = File.createTempFile(key, ".tmp", dir);
+			ObjectOutputStream out = new ObjectOutputStream(
+					new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp))));
+
+			try
+			{
+				out.writeObject(config);
+			}
+			finally
+			{
+				out.close();
+			}
+
+			if (!temp.renameTo(f))
+			{
+				f.delete();
+
+				if (!temp.renameTo(f))
+					throw new IOException("could not rename " + temp + " to " + f);
+			}
+
+			Hyst.log("Saved snapshot " + f + " in " + (System.currentTimeMillis() - startMs)
+					+ " ms");
+		}
+		catch (IOException e)
+		{
+			Hyst.log("Could not save snapshot " + f + ": " + e);
+
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	private File getFile(String key)
+	{
+		return new File(dir, key + SUFFIX);
+	}
+
+	/**
+	 * Get the depth of the deepest expression in a configuration
+	 */
+	private static int getDepth(Configuration config)
+	{
+		int rv = getDepth(config.root);
+
+		for (Expression e : config.init.values())
+			rv = Math.max(rv, getDepth(e));
+
+		for (Expression e : config.forbidden.values())
+			rv = Math.max(rv, getDepth(e));
+
+		return rv;
+	}
+
+	private static int getDepth(Component c)
+	{
+		int rv = 0;
+
+		if (c instanceof BaseComponent)
+		{
+			BaseComponent bc = (BaseComponent) c;
+
+			for (AutomatonMode am : bc.modes.values())
+			{
+				rv = Math.max(rv, getDepth(am.invariant));
+
+				if (am.flowDynamics != null)
+					rv = Math.max(rv, getDepth(am.flowDynamics));
+			}
+
+			for (AutomatonTransition at : bc.transitions)
+			{
+				rv = Math.max(rv, getDepth(at.guard));
+				rv = Math.max(rv, getDepth(at.reset));
+			}
+		}
+		else if (c instanceof NetworkComponent)
+		{
+			for (ComponentInstance ci : ((NetworkComponent) c).children.values())
+				rv = Math.max(rv, getDepth(ci.child));
+		}
+
+		return rv;
+	}
+
+	private static int getDepth(Map<String, ExpressionInterval> map)
+	{
+		int rv = 0;
+
+		for (ExpressionInterval ei : map.values())
+		{
+			if (ei != null)
+				rv = Math.max(rv, getDepth(ei.getExpression()));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the depth of an expression, without recursion (since the expression may be too deep for
+	 * it)
+	 */
+	private static int getDepth(Expression e)
+	{
+		int rv = 0;
+		ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
+		ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+
+		if (e != null)
+		{
+			stack.push(e);
+			depths.push(1);
+		}
+
+		while (!stack.isEmpty())
+		{
+			Expression cur = stack.pop();
+			int depth = depths.pop();
+			List<Expression> children = null;
+
+			rv = Math.max(rv, depth);
+
+			if (cur instanceof Operation)
+				children = ((Operation) cur).children;
+			else if (cur instanceof LutExpression)
+				children = Arrays.asList(((LutExpression) cur).inputs);
+
+			if (children != null)
+			{
+				for (Expression child : children)
+				{
+					stack.push(child);
+					depths.push(depth + 1);
+				}
+			}
+		}
+
+		return rv;
+	}
+
+	private static MessageDigest newDigest()
+	{
+		MessageDigest rv;
+
+		try
+		{
+			rv = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new AutomatonExportException("SHA-256 is not available", e);
+		}
+
+		update(rv, Hyst.TOOL_NAME);
+		update(rv, getBuildStamp());
+
+		return rv;
+	}
+
+	/**
+	 * Get a string which changes whenever Hyst.jar is rebuilt
+	 */
+	private static String getBuildStamp()
+	{
+		String rv = "";
+		CodeSource source = Hyst.class.getProtectionDomain().getCodeSource();
+
+		if (source != null && source.getLocation() != null)
+		{
+			File f = new File(source.getLocation().getPath());
+			rv = f.getPath() + " " + f.lastModified() + " " + f.length();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Add a string to the digest, with its length, so that different sequences of strings don't
+	 * produce the same input
+	 */
+	private static void update(MessageDigest digest, String s)
+	{
+		byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+
+		update(digest, bytes.length);
+		digest.update(bytes);
+	}
+
+	private static void update(MessageDigest digest, long value)
+	{
+		for (int i = 0; i < 8; ++i)
+			digest.update((byte) (value >>> (8 * i)));
+	}
+
+	private static void updateFile(MessageDigest digest, String filename)
+	{
+		File f = new File(filename);
+		update(digest, f.length());
+
+		try
+		{
+			InputStream in = new FileInputStream(f);
+			byte[] buf = new byte[1 << 16];
+
+			try
+			{
+				for (int len = in.read(buf); len != -1; len = in.read(buf))
+					digest.update(buf, 0, len);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Could not read input file: " + filename, e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		for (byte b : bytes)
+			rv.append(String.format("%02x", b));
+
+		return rv.toString();
+	}
+}
@@ -1,16 +1,18 @@
 package com.verivital.hyst.matlab;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
+import java.util.concurrent.TimeoutException;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.util.FileOperations;
+import com.verivital.hyst.util.ProcessOutputReader;
 
 import matlabcontrol.MatlabConnectionException;
 import matlabcontrol.MatlabInvocationException;
@@ -45,8 +47,8 @@ public class MatlabBridge
 														// start matlab up
 	private int timeoutMs;
 	// private Process process = null;
-	private BufferedReader stdout = null;
-	private BufferedReader stderr = null;
+	private static final String PROMPT = ">>> ";
+	private ProcessOutputReader output = null;
 	private Writer stdin = null;
 
 	public enum Status
@@ -288,9 +290,11 @@ public class MatlabBridge
 
 			factory = null;
 
-			stdout = null;
+			if (output != null)
+				output.stop();
+
+			output = null;
 			stdin = null;
-			stderr = null;
 		}
 	}
 
@@ -353,10 +357,7 @@ public class MatlabBridge
 
 		factory.getProxy().eval("cd " + getJarBaseDirectory());
 
-		// stdout = new BufferedReader(new
-		// InputStreamReader(process.getInputStream()));
-		// stderr = new BufferedReader(new
-		// InputStreamReader(process.getErrorStream()));
+		// output = new ProcessOutputReader(process, "matlab");
 		// stdin = new OutputStreamWriter(process.getOutputStream());
 	}
 
@@ -396,55 +397,16 @@ public class MatlabBridge
 	private String readPreamble(int timeoutMs)
 	{
 		String rv = null;
-		StringBuilder sb = new StringBuilder();
-		long timeout = System.currentTimeMillis() + timeoutMs;
 
 		try
 		{
-			char[] prompt = { '>', '>', '>', ' ' };
-			int index = 0;
-
-			while (true)
-			{
-				// sleep until there's input
-				while (!stderr.ready())
-				{
-					Thread.yield();
-
-					if (timeoutMs >= 0 && System.currentTimeMillis() >= timeout)
-						error("Timeout (" + timeoutMs
-								+ " ms) reached while reading python preamble.");
-				}
-
-				int readInt = stderr.read();
+			output.waitForSuffixes(null, PROMPT, timeoutMs);
 
-				if (readInt == -1) // end of stream
-					error("End of output stream was reached while looking for python prompt.");
-
-				char c = (char) readInt;
-
-				sb.append(c);
-
-				if (c == prompt[index])
-				{
-					++index;
-
-					if (index == prompt.length)
-					{
-						// exit only if there are no more bytes to be read
-						if (!stderr.ready())
-							break;
-						else
-							index = 0;
-					}
-				}
-				else
-					index = 0;
-			}
+			StringBuilder sb = new StringBuilder(output.takeOutput(ProcessOutputReader.STDERR));
 
 			// trim off the prompt
 			int len = sb.length();
-			sb.delete(len - prompt.length, len);
+			sb.delete(len - PROMPT.length(), len);
 
 			// remove \n and \r if they're at the end of the string
 			trimSuffix(sb, '\n');
@@ -452,9 +414,17 @@ public class MatlabBridge
 
 			rv = sb.toString();
 		}
-		catch (IOException e)
+		catch (TimeoutException e)
 		{
-			error("Error while reading python preamble.", e);
+			error("Timeout (" + timeoutMs + " ms) reached while reading python preamble.");
+		}
+		catch (EOFException e)
+		{
+			error("End of output stream was reached while looking for python prompt.");
+		}
+		catch (InterruptedException e)
+		{
+			error("Interrupted while reading python preamble.", e);
 		}
 
 		return rv;
@@ -463,94 +433,23 @@ public class MatlabBridge
 	/**
 	 * Read stdout until the prompt '>>> ' is given on stderr
 	 * 
-	 * @param quitOnStderr
-	 *            should we raise an exception if stderr output is detected other than the prompt?
-	 * @return output the received stdout / stderr strings
+	 * @return the received stdout string
 	 */
 	private String readUntilPrompt()
 	{
 		String rv = null;
-		StringBuilder sbStdout = new StringBuilder();
-		StringBuilder sbStderr = new StringBuilder();
-		long timeout = System.currentTimeMillis() + timeoutMs;
 
 		try
 		{
-			char[] prompt = { '>', '>', '>', ' ' };
-			int index = 0;
-			boolean done = false;
-
-			while (!done)
-			{
-				// sleep until there's input
-				while (!stdout.ready() && !stderr.ready())
-				{
-					Thread.yield();
-
-					if (timeoutMs >= 0 && System.currentTimeMillis() >= timeout)
-					{
-						String out = "";
-						String err = "";
-
-						if (sbStdout.length() > 0)
-							out = "\nStdout was: '" + sbStdout.toString() + "'";
-
-						if (sbStderr.length() > 0)
-							err = "\nStderr was: '" + sbStderr.toString() + "'";
-
-						error("Timeout (" + timeoutMs + " ms) reached during python interaction."
-								+ out + err);
-					}
-				}
-
-				// read stdout until blocked
-				while (stdout.ready())
-				{
-					int readInt = stdout.read();
+			output.waitForSuffixes(null, PROMPT, timeoutMs);
 
-					if (readInt == -1) // end of stream
-						error("End of output stream was reached while reading python response.");
-
-					sbStdout.append((char) readInt);
-				}
-
-				// read stderr until blocked
-				while (stderr.ready())
-				{
-					int readInt = stderr.read();
-
-					if (readInt == -1) // end of stream
-						error("End of output stream was reached while looking for python prompt.");
-
-					char c = (char) readInt;
-					sbStderr.append(c);
-
-					if (c == prompt[index])
-					{
-						++index;
-
-						if (index == prompt.length)
-						{
-							// exit only if there are no more bytes to be read
-							if (!stderr.ready())
-							{
-								done = true;
-								break;
-							}
-							else
-								index = 0;
-						}
-					}
-					else
-						index = 0;
-				}
-			}
-
-			// read any remaining stdout characters
-			sbStdout.append(readUntilBlocked(stdout));
+			StringBuilder sbStdout = new StringBuilder(
+					output.takeOutput(ProcessOutputReader.STDOUT));
+			StringBuilder sbStderr = new StringBuilder(
+					output.takeOutput(ProcessOutputReader.STDERR));
 
 			// trim off the prompt
-			sbStderr.delete(sbStderr.length() - prompt.length, sbStderr.length());
+			sbStderr.delete(sbStderr.length() - PROMPT.length(), sbStderr.length());
 
 			// trim off \n if it's at the end
 			trimSuffix(sbStdout, '\n');
@@ -563,9 +462,26 @@ public class MatlabBridge
 
 			rv = sbStdout.toString();
 		}
-		catch (IOException e)
+		catch (TimeoutException e)
+		{
+			String out = output.peekOutput(ProcessOutputReader.STDOUT);
+			String err = output.peekOutput(ProcessOutputReader.STDERR);
+
+			if (out.length() > 0)
+				out = "\nStdout was: '" + out + "'";
+
+			if (err.length() > 0)
+				err = "\nStderr was: '" + err + "'";
+
+			error("Timeout (" + timeoutMs + " ms) reached during python interaction." + out + err);
+		}
+		catch (EOFException e)
+		{
+			error("End of output stream was reached while reading python response.");
+		}
+		catch (InterruptedException e)
 		{
-			error("Error while reading python output", e);
+			error("Interrupted while reading python output", e);
 		}
 
 		return rv;
@@ -579,30 +495,6 @@ public class MatlabBridge
 			sb.delete(len - 1, len);
 	}
 
-	/**
-	 * Read a stream until it's blocked
-	 * 
-	 * @param stream
-	 * @return
-	 */
-	private String readUntilBlocked(BufferedReader stream) throws IOException
-	{
-		StringBuilder sb = new StringBuilder();
-
-		while (stream.ready())
-		{
-			int c = stream.read();
-
-			// end of stream
-			if (c == -1)
-				break;
-
-			sb.append((char) c);
-		}
-
-		return sb.toString();
-	}
-
 	/**
 	 * Send a string over stdin to the python interpreter and get the result printed from stdout
 	 * 
@@ -622,8 +514,9 @@ public class MatlabBridge
 
 		try
 		{
-			String stdOutBefore = readUntilBlocked(stdout);
-			String stdErrBefore = readUntilBlocked(stderr);
+			output.poll();
+			String stdOutBefore = output.takeOutput(ProcessOutputReader.STDOUT);
+			String stdErrBefore = output.takeOutput(ProcessOutputReader.STDERR);
 
 			if (stdOutBefore.length() != 0)
 				error("stdout contained stale text before the send command: '" + stdOutBefore
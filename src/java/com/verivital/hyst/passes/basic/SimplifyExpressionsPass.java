@@ -1,5 +1,9 @@
 package com.verivital.hyst.passes.basic;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kohsuke.args4j.Option;
 
 import com.verivital.hyst.grammar.formula.Constant;
@@ -8,6 +12,7 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Component;
+import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionModifier;
 import com.verivital.hyst.ir.network.ComponentInstance;
@@ -30,27 +35,32 @@ public class SimplifyExpressionsPass extends TransformationPass
 			"-p" }, usage = "simplify all expressions using python's sympy (slow for large models)")
 	public boolean pythonSimplify = false;
 
+	private static final double CHOP_TOL = 1e-9;
+
 	private ExpressionModifier em = new ExpressionModifier()
 	{
 		@Override
 		public Expression modifyExpression(Expression e)
 		{
-			Expression rv;
-
-			if (!pythonSimplify)
-				rv = simplifyExpression(e);
-			else
-			{
-				rv = PythonUtil.pythonSimplifyExpressionChop(e, 1e-9);
-
-				// System.out.println("simplified expression " + e.toDefaultString() + " to "
-				// + rv.toDefaultString());
-			}
-
-			return rv;
+			return simplifyExpression(e);
 		}
 	};
 
+	/**
+	 * A simplification of all the expressions of an automaton at once, see simplifyAll()
+	 */
+	public interface BatchSimplifier
+	{
+		/**
+		 * Simplify a list of expressions
+		 * 
+		 * @param exps
+		 *            the expressions
+		 * @return the simplified expressions, in the same order
+		 */
+		public List<Expression> simplify(List<Expression> exps);
+	}
+
 	public static String makeParam(boolean usePython)
 	{
 		String rv = "";
@@ -77,191 +87,345 @@ public class SimplifyExpressionsPass extends TransformationPass
 						"python-simplify flag was set, but python is not enabled within Hyst.");
 		}
 
-		runRec(config.root);
+		if (!pythonSimplify)
+			modifyAll(config, em);
+		else
+		{
+			simplifyAll(config, new BatchSimplifier()
+			{
+				@Override
+				public List<Expression> simplify(List<Expression> exps)
+				{
+					return PythonUtil.pythonSimplifyExpressionsChop(exps, CHOP_TOL);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Simplify all the expressions of a configuration at once (python simplification does this,
+	 * so that the expressions are simplified concurrently). This is done in two passes over the
+	 * automaton: first all the expressions are collected, then they're simplified, and then the
+	 * results are substituted. Both passes visit the expressions in the same order, so the results
+	 * are used by position (expression instances may be shared between several places in the
+	 * automaton).
+	 * 
+	 * @param config
+	 *            the configuration to modify
+	 * @param simplifier
+	 *            the simplification
+	 */
+	public static void simplifyAll(Configuration config, BatchSimplifier simplifier)
+	{
+		final List<Expression> exps = new ArrayList<Expression>();
 
-		ExpressionModifier.modifyInitForbidden(config, em);
+		modifyAll(config, new ExpressionModifier()
+		{
+			@Override
+			public Expression modifyExpression(Expression e)
+			{
+				exps.add(e);
+
+				return e;
+			}
+		});
+
+		final List<Expression> results = simplifier.simplify(exps);
+
+		if (results.size() != exps.size())
+			throw new AutomatonExportException("expected " + exps.size()
+					+ " simplified expressions, but got " + results.size());
+
+		modifyAll(config, new ExpressionModifier()
+		{
+			private int nextResult = 0;
+
+			@Override
+			public Expression modifyExpression(Expression e)
+			{
+				return results.get(nextResult++);
+			}
+		});
 	}
 
-	private void runRec(Component c)
+	private static void modifyAll(Configuration config, ExpressionModifier modifier)
+	{
+		runRec(config.root, modifier);
+
+		ExpressionModifier.modifyInitForbidden(config, modifier);
+	}
+
+	private static void runRec(Component c, ExpressionModifier modifier)
 	{
 		if (c instanceof BaseComponent)
 		{
-			ExpressionModifier.modifyBaseComponent((BaseComponent) c, em);
+			ExpressionModifier.modifyBaseComponent((BaseComponent) c, modifier);
 		}
 		else
 		{
 			NetworkComponent nc = (NetworkComponent) c;
 
 			for (ComponentInstance ci : nc.children.values())
-				runRec(ci.child);
+				runRec(ci.child, modifier);
 		}
 	}
 
 	/**
-	 * Simplify a single expression and return it Boolean expressions are simplified to
-	 * Constant.FALSE or Constant.TRUE
+	 * Simplify an expression. Operations are simplified bottom-up, in place. This is done with an
+	 * explicit stack rather than recursion, since sums of many terms can be very deep.
+	 * 
+	 * @param e
+	 *            the expression to simplify
+	 * @return the simplified expression
 	 */
 	public static Expression simplifyExpression(Expression e)
 	{
-		Expression rv = simplifyExpressionRec(e);
+		if (!(e instanceof Operation))
+			return e;
 
-		return rv;
-	}
+		// each entry is an operation, and the index of the next child to simplify
+		ArrayDeque<Operation> ops = new ArrayDeque<Operation>();
+		ArrayDeque<Integer> indices = new ArrayDeque<Integer>();
+		ops.push((Operation) e);
+		indices.push(0);
+		Expression rv = null;
 
-	private static Expression simplifyExpressionRec(Expression e)
-	{
-		Expression rv = e;
-
-		if (e instanceof Operation)
+		while (rv == null)
 		{
-			Operation o = (Operation) e;
-			Operator op = o.op;
+			Operation o = ops.peek();
+			int index = indices.peek();
 
-			for (int i = 0; i < o.children.size(); ++i)
+			if (index < o.children.size() && o.children.get(index) instanceof Operation)
 			{
-				Expression child = o.children.get(i);
-
-				o.children.set(i, simplifyExpressionRec(child));
+				ops.push((Operation) o.children.get(index));
+				indices.push(0);
 			}
-
-			if (op == Operator.AND && o.getLeft() instanceof Constant)
+			else if (index < o.children.size())
 			{
-				// short-circuit AND (left)
-				if (o.getLeft().equals(Constant.FALSE))
-					rv = Constant.FALSE;
-				else
-					rv = o.getRight();
+				indices.pop();
+				indices.push(index + 1);
 			}
-			else if (op == Operator.AND && o.getRight() instanceof Constant)
+			else
 			{
-				// short-circuit AND (right)
-				if (o.getRight().equals(Constant.FALSE))
-					rv = Constant.FALSE;
+				ops.pop();
+				indices.pop();
+				Expression simplified = simplifyOperation(o);
+
+				if (ops.isEmpty())
+					rv = simplified;
 				else
-					rv = o.getLeft();
+				{
+					int parentIndex = indices.pop();
+					ops.peek().children.set(parentIndex, simplified);
+					indices.push(parentIndex + 1);
+				}
 			}
-			else if (op == Operator.OR && o.getLeft() instanceof Constant)
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Simplify an operation whose children have already been simplified
+	 */
+	private static Expression simplifyOperation(Operation o)
+	{
+		Expression rv = o;
+		Operator op = o.op;
+
+		if (o.children.size() > 2 && Operator.isAssociative(op))
+			rv = simplifyNary(o);
+		else if (op == Operator.AND && o.getLeft() instanceof Constant)
+		{
+			// short-circuit AND (left)
+			if (o.getLeft().equals(Constant.FALSE))
+				rv = Constant.FALSE;
+			else
+				rv = o.getRight();
+		}
+		else if (op == Operator.AND && o.getRight() instanceof Constant)
+		{
+			// short-circuit AND (right)
+			if (o.getRight().equals(Constant.FALSE))
+				rv = Constant.FALSE;
+			else
+				rv = o.getLeft();
+		}
+		else if (op == Operator.OR && o.getLeft() instanceof Constant)
+		{
+			// short-circuit OR (left)
+			if (o.getLeft().equals(Constant.FALSE))
+				rv = o.getRight();
+			else
+				rv = Constant.TRUE;
+		}
+		else if (op == Operator.OR && o.getRight() instanceof Constant)
+		{
+			// short-circuit OR (right)
+			if (o.getRight().equals(Constant.FALSE))
+				rv = o.getLeft();
+			else
+				rv = Constant.TRUE;
+		}
+		else if (o.children.size() == 1 && o.children.get(0) instanceof Constant)
+		{
+			double val = ((Constant) o.children.get(0)).getVal();
+
+			switch (op)
 			{
-				// short-circuit OR (left)
-				if (o.getLeft().equals(Constant.FALSE))
-					rv = o.getRight();
-				else
-					rv = Constant.TRUE;
+			case SUBTRACT:
+				rv = new Constant(-val);
+				break;
+			case COS:
+				rv = new Constant(Math.cos(val));
+				break;
+			case EXP:
+				rv = new Constant(Math.exp(val));
+				break;
+			case SIN:
+				rv = new Constant(Math.sin(val));
+				break;
+			case SQRT:
+				rv = new Constant(Math.sqrt(val));
+				break;
+			case TAN:
+				rv = new Constant(Math.tan(val));
+				break;
+			case LN:
+				rv = new Constant(Math.log(val));
+				break;
+			case NEGATIVE:
+				rv = new Constant(-val);
+				break;
+			default:
+				// should never come up
+				throw new AutomatonExportException("Unsupported unary operation: " + op);
 			}
-			else if (op == Operator.OR && o.getRight() instanceof Constant)
+		}
+		else if (o.children.size() == 2 && o.getLeft() instanceof Constant
+				&& o.getRight() instanceof Constant)
+		{
+			// simplify constant comparisons / math
+
+			double left = ((Constant) o.getLeft()).getVal();
+			double right = ((Constant) o.getRight()).getVal();
+
+			switch (op)
 			{
-				// short-circuit OR (right)
-				if (o.getRight().equals(Constant.FALSE))
-					rv = o.getLeft();
-				else
-					rv = Constant.TRUE;
+			case MULTIPLY:
+				rv = new Constant(left * right);
+				break;
+			case DIVIDE:
+				rv = new Constant(left / right);
+				break;
+			case ADD:
+				rv = new Constant(left + right);
+				break;
+			case SUBTRACT:
+				rv = new Constant(left - right);
+				break;
+			case POW:
+				rv = new Constant(Math.pow(left, right));
+				break;
+			case EQUAL:
+				rv = left == right ? Constant.TRUE : Constant.FALSE;
+				break;
+			case LESS:
+				rv = left < right ? Constant.TRUE : Constant.FALSE;
+				break;
+			case GREATER:
+				rv = left > right ? Constant.TRUE : Constant.FALSE;
+				break;
+			case LESSEQUAL:
+				rv = left <= right ? Constant.TRUE : Constant.FALSE;
+				break;
+			case GREATEREQUAL:
+				rv = left >= right ? Constant.TRUE : Constant.FALSE;
+				break;
+			case NOTEQUAL:
+				rv = left != right ? Constant.TRUE : Constant.FALSE;
+				break;
+			default:
+				throw new AutomatonExportException("Unsupported binary operation: " + op);
 			}
-			else if (o.children.size() == 1 && o.children.get(0) instanceof Constant)
-			{
-				double val = ((Constant) o.children.get(0)).getVal();
+		}
+		// shortcut math operations
+		else if (op == Operator.ADD && o.getRight() instanceof Constant
+				&& ((Constant) o.getRight()).getVal() == 0)
+			rv = o.getLeft();
+		else if (op == Operator.ADD && o.getLeft() instanceof Constant
+				&& ((Constant) o.getLeft()).getVal() == 0)
+			rv = o.getRight();
+		else if (op == Operator.SUBTRACT && o.getRight() instanceof Constant
+				&& ((Constant) o.getRight()).getVal() == 0)
+			rv = o.getLeft();
+		else if (op == Operator.MULTIPLY && o.getRight() instanceof Constant
+				&& ((Constant) o.getRight()).getVal() == 0)
+			rv = new Constant(0);
+		else if (op == Operator.MULTIPLY && o.getLeft() instanceof Constant
+				&& ((Constant) o.getLeft()).getVal() == 0)
+			rv = new Constant(0);
+		else if (op == Operator.POW && o.getRight() instanceof Constant
+				&& ((Constant) o.getRight()).getVal() == 0)
+			rv = new Constant(1); // anything^0 = 1
+		else if (op == Operator.POW && o.getRight() instanceof Constant
+				&& ((Constant) o.getRight()).getVal() == 1)
+			rv = o.getLeft();
 
-				switch (op)
-				{
-				case SUBTRACT:
-					rv = new Constant(-val);
-					break;
-				case COS:
-					rv = new Constant(Math.cos(val));
-					break;
-				case EXP:
-					rv = new Constant(Math.exp(val));
-					break;
-				case SIN:
-					rv = new Constant(Math.sin(val));
-					break;
-				case SQRT:
-					rv = new Constant(Math.sqrt(val));
-					break;
-				case TAN:
-					rv = new Constant(Math.tan(val));
-					break;
-				case LN:
-					rv = new Constant(Math.log(val));
-					break;
-				case NEGATIVE:
-					rv = new Constant(-val);
-					break;
-				default:
-					// should never come up
-					throw new AutomatonExportException("Unsupported unary operation: " + op);
-				}
-			}
-			else if (o.children.size() == 2 && o.getLeft() instanceof Constant
-					&& o.getRight() instanceof Constant)
-			{
-				// simplify constant comparisons / math
+		return rv;
+	}
 
-				double left = ((Constant) o.getLeft()).getVal();
-				double right = ((Constant) o.getRight()).getVal();
+	/**
+	 * Simplify an n-ary associative operation (see AutomatonUtil.flattenAssociative()) by combining
+	 * its constant children, using the same rules as for binary operations
+	 */
+	private static Expression simplifyNary(Operation o)
+	{
+		Operator op = o.op;
+		ArrayList<Expression> terms = new ArrayList<Expression>(o.children.size());
+		double constant = (op == Operator.MULTIPLY || op == Operator.AND) ? 1 : 0;
+		boolean hasConstant = false;
 
-				switch (op)
-				{
-				case MULTIPLY:
-					rv = new Constant(left * right);
-					break;
-				case DIVIDE:
-					rv = new Constant(left / right);
-					break;
-				case ADD:
-					rv = new Constant(left + right);
-					break;
-				case SUBTRACT:
-					rv = new Constant(left - right);
-					break;
-				case POW:
-					rv = new Constant(Math.pow(left, right));
-					break;
-				case EQUAL:
-					rv = left == right ? Constant.TRUE : Constant.FALSE;
-					break;
-				case LESS:
-					rv = left < right ? Constant.TRUE : Constant.FALSE;
-					break;
-				case GREATER:
-					rv = left > right ? Constant.TRUE : Constant.FALSE;
-					break;
-				case LESSEQUAL:
-					rv = left <= right ? Constant.TRUE : Constant.FALSE;
-					break;
-				case GREATEREQUAL:
-					rv = left >= right ? Constant.TRUE : Constant.FALSE;
-					break;
-				case NOTEQUAL:
-					rv = left != right ? Constant.TRUE : Constant.FALSE;
-					break;
-				default:
-					throw new AutomatonExportException("Unsupported binary operation: " + op);
-				}
+		for (Expression child : o.children)
+		{
+			if (child instanceof Constant)
+			{
+				double val = ((Constant) child).getVal();
+				hasConstant = true;
+
+				if (op == Operator.ADD)
+					constant += val;
+				else if (op == Operator.MULTIPLY)
+					constant *= val;
+				else if (op == Operator.AND && val == 0)
+					return Constant.FALSE;
+				else if (op == Operator.OR && val != 0)
+					return Constant.TRUE;
 			}
-			// shortcut math operations
-			else if (op == Operator.ADD && o.getRight() instanceof Constant
-					&& ((Constant) o.getRight()).getVal() == 0)
-				rv = o.getLeft();
-			else if (op == Operator.ADD && o.getLeft() instanceof Constant
-					&& ((Constant) o.getLeft()).getVal() == 0)
-				rv = o.getRight();
-			else if (op == Operator.SUBTRACT && o.getRight() instanceof Constant
-					&& ((Constant) o.getRight()).getVal() == 0)
-				rv = o.getLeft();
-			else if (op == Operator.MULTIPLY && o.getRight() instanceof Constant
-					&& ((Constant) o.getRight()).getVal() == 0)
-				rv = new Constant(0);
-			else if (op == Operator.MULTIPLY && o.getLeft() instanceof Constant
-					&& ((Constant) o.getLeft()).getVal() == 0)
-				rv = new Constant(0);
-			else if (op == Operator.POW && o.getRight() instanceof Constant
-					&& ((Constant) o.getRight()).getVal() == 0)
-				rv = new Constant(1); // anything^0 = 1
-			else if (op == Operator.POW && o.getRight() instanceof Constant
-					&& ((Constant) o.getRight()).getVal() == 1)
-				rv = o.getLeft();
+			else
+				terms.add(child);
 		}
 
+		if (op == Operator.MULTIPLY && hasConstant && constant == 0)
+			return new Constant(0);
+
+		if (!hasConstant)
+			return o;
+
+		if (op == Operator.ADD && (constant != 0 || terms.isEmpty()))
+			terms.add(new Constant(constant));
+		else if (op == Operator.MULTIPLY && (constant != 1 || terms.isEmpty()))
+			terms.add(0, new Constant(constant));
+
+		Expression rv;
+
+		if (terms.isEmpty())
+			rv = op == Operator.AND ? Constant.TRUE : Constant.FALSE;
+		else if (terms.size() == 1)
+			rv = terms.get(0);
+		else
+			rv = new Operation(op, terms);
+
 		return rv;
 	}
 
@@ -37,7 +37,8 @@ public class SubstituteConstantsPass extends TransformationPass
 	@Override
 	protected void runPass()
 	{
-		final Map<String, Interval> rootMapping = getConstMapping(config.root);
+		final ValueSubstituter rootSubstituter = makeConstantSubstituter(
+				getConstMapping(config.root));
 		// modify init and forbidden
 
 		ExpressionModifier.modifyInitForbidden(config, new ExpressionModifier()
@@ -45,7 +46,7 @@ public class SubstituteConstantsPass extends TransformationPass
 			@Override
 			public Expression modifyExpression(Expression e)
 			{
-				return substituteConstantsIntoExpression(rootMapping, e);
+				return rootSubstituter.substitute(e);
 			}
 		});
 
@@ -72,14 +73,14 @@ public class SubstituteConstantsPass extends TransformationPass
 		if (c instanceof BaseComponent)
 		{
 			final BaseComponent ha = (BaseComponent) c;
-			final Map<String, Interval> mapping = getConstMapping(ha);
+			final ValueSubstituter substituter = makeConstantSubstituter(getConstMapping(ha));
 
 			ExpressionModifier.modifyBaseComponent(ha, new ExpressionModifier()
 			{
 				@Override
 				public Expression modifyExpression(Expression e)
 				{
-					return substituteConstantsIntoExpression(mapping, e);
+					return substituter.substitute(e);
 				}
 			});
 
@@ -127,6 +128,18 @@ public class SubstituteConstantsPass extends TransformationPass
 	 */
 	public static Expression substituteConstantsIntoExpression(Map<String, Interval> constants,
 			Expression exp)
+	{
+		return makeConstantSubstituter(constants).substitute(exp);
+	}
+
+	/**
+	 * Create a substituter for constants, which can be reused for every expression in a component
+	 * 
+	 * @param constants
+	 *            the constant values, each must be a single value (not a range)
+	 * @return the substituter
+	 */
+	public static ValueSubstituter makeConstantSubstituter(Map<String, Interval> constants)
 	{
 		HashMap<String, Expression> subMap = new HashMap<String, Expression>();
 
@@ -143,9 +156,7 @@ public class SubstituteConstantsPass extends TransformationPass
 			}
 		}
 
-		ValueSubstituter vs = new ValueSubstituter(subMap);
-
-		return vs.substitute(exp);
+		return new ValueSubstituter(subMap);
 	}
 
 	@Override
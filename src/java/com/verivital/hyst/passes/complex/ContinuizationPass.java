@@ -1,8 +1,10 @@
 package com.verivital.hyst.passes.complex;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import org.kohsuke.args4j.Option;
@@ -27,7 +29,9 @@ import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.python.FramedPythonBridge;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.DoubleArrayOptionHandler;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
@@ -631,7 +635,7 @@ public class ContinuizationPass extends TransformationPass
 			simTimes.add(new Interval(d.startTime, d.endTime));
 
 		SymbolicStatePoint start = new SymbolicStatePoint(initMode, initPt);
-		List<Interval> ranges = pythonSimulateDerivativeRange(config, varName, start, simTimes);
+		List<Interval> ranges = simulateDerivativeRange(config, varName, start, simTimes);
 
 		if (ranges.size() != domains.size())
 			throw new AutomatonExportException(
@@ -754,7 +758,27 @@ public class ContinuizationPass extends TransformationPass
 	}
 
 	/**
-	 * Simulate the automaton, getting the range of the derivative of a variable
+	 * Simulate the automaton using the native simulator, getting the range of the derivative of a
+	 * variable
+	 * 
+	 * @param automaton
+	 * @param derVarName
+	 *            the variable name whose derative we want the range of
+	 * @param start
+	 *            the start state
+	 * @param timeIntervals
+	 *            the times where to return the ranges
+	 * @return the range of the derivative of derVarName
+	 */
+	public static ArrayList<Interval> simulateDerivativeRange(Configuration automaton,
+			String derVarName, SymbolicStatePoint start, List<Interval> timeIntervals)
+	{
+		return new HybridSimulator(automaton).simulateDerivativeRange(derVarName, start,
+				timeIntervals);
+	}
+
+	/**
+	 * Simulate the automaton using pysim, getting the range of the derivative of a variable
 	 * 
 	 * @param automaton
 	 * @param derVarName
@@ -780,11 +804,14 @@ public class ContinuizationPass extends TransformationPass
 			throw new AutomatonExportException(
 					"Derivative variable '" + derVarName + "' not found in automaton.");
 
+		if (PythonBridge.getTransport() == PythonBridge.Transport.FRAMED)
+			return framedSimulateDerivativeRange(automaton, derVarIndex, start, timeIntervals);
+
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_der_range");
 
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(automaton));
 		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
 
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		ArrayList<String> intervalStrs = new ArrayList<String>();
@@ -795,7 +822,7 @@ public class ContinuizationPass extends TransformationPass
 		String timesStr = "[" + StringOperations.join(",", intervalStrs.toArray(new String[0]))
 				+ "]";
 
-		s.append("print simulate_der_range(define_ha(), " + derVarIndex + ", '" + start.modeName
+		s.append("print simulate_der_range(" + ha + ", " + derVarIndex + ", '" + start.modeName
 				+ "', " + point + ", " + timesStr + ")");
 
 		String result = pb.send(s.toString());
@@ -825,6 +852,36 @@ public class ContinuizationPass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * pythonSimulateDerivativeRange using the FramedPythonBridge, where the point, time intervals
+	 * and resultant ranges are sent as arrays of doubles rather than as text
+	 */
+	private static ArrayList<Interval> framedSimulateDerivativeRange(Configuration automaton,
+			int derVarIndex, SymbolicStatePoint start, List<Interval> timeIntervals)
+	{
+		double[] times = new double[2 * timeIntervals.size()];
+
+		for (int i = 0; i < timeIntervals.size(); ++i)
+		{
+			times[2 * i] = timeIntervals.get(i).min;
+			times[2 * i + 1] = timeIntervals.get(i).max;
+		}
+
+		Map<String, double[]> arrays = new HashMap<String, double[]>();
+		arrays.put("_point", start.hp.dims);
+		arrays.put("_times", times);
+
+		FramedPythonBridge fb = FramedPythonBridge.getInstance();
+		String ha = fb.defineAutomaton(PySimPrinter.automatonToString(automaton));
+
+		StringBuilder s = new StringBuilder();
+		s.append("from pythonbridge.pysim_utils import simulate_der_range_list\n");
+		s.append("result_doubles = _flatten_doubles(simulate_der_range_list(" + ha + ", "
+				+ derVarIndex + ", '" + start.modeName + "', _point, to_pairs(_times)))");
+
+		return fb.call(s.toString(), arrays).getIntervals();
+	}
+
 	/**
 	 * An interval as part of the expression. This can be temporarily part of an expression when,
 	 * for example, we substitute 'c' to 'c + [-1, 1]' in an expression. For example '5 * c + 2' ->
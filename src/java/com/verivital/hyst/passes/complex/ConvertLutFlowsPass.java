@@ -26,6 +26,7 @@ import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.ir.network.ComponentInstance;
 import com.verivital.hyst.ir.network.NetworkComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.python.PythonBridge;
@@ -71,7 +72,8 @@ public class ConvertLutFlowsPass extends TransformationPass
 	public static int SIMPLIFY_INTERNAL = 1;
 	public static int SIMPLIFY_NONE = 2;
 
-	public static int simplifyMode = SIMPLIFY_PYTHON;
+	// use python if it's available, otherwise the internal simplification
+	public static int SIMPLIFY_AUTO = 3;
 
 	public ConvertLutFlowsPass()
 	{
@@ -84,8 +86,6 @@ public class ConvertLutFlowsPass extends TransformationPass
 
 		// urgent modes are supported
 		preconditions.skip(PreconditionsFlag.NO_URGENT);
-
-		simplifyMode = PythonBridge.hasPython() ? SIMPLIFY_PYTHON : SIMPLIFY_INTERNAL;
 	}
 
 	private void convertLuts(Component c)
@@ -584,6 +584,11 @@ public class ConvertLutFlowsPass extends TransformationPass
 
 		double CHOP_TOL = 1e-8;
 
+		int simplifyMode = HystContext.get().lutSimplifyMode;
+
+		if (simplifyMode == SIMPLIFY_AUTO)
+			simplifyMode = PythonBridge.hasPython() ? SIMPLIFY_PYTHON : SIMPLIFY_INTERNAL;
+
 		if (simplifyMode == SIMPLIFY_PYTHON)
 			e = PythonUtil.pythonSimplifyExpressionChop(e, CHOP_TOL);
 		else if (simplifyMode == SIMPLIFY_INTERNAL)
@@ -1,10 +1,23 @@
 package com.verivital.hyst.passes.complex;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
+import org.kohsuke.args4j.Option;
+
 import com.verivital.hyst.geometry.Interval;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.ir.AutomatonExportException;
@@ -22,6 +35,7 @@ import com.verivital.hyst.passes.basic.RemoveDiscreteUnreachablePass;
 import com.verivital.hyst.passes.basic.RemoveSimpleUnsatInvariantsPass;
 import com.verivital.hyst.util.FlattenRenameUtils;
 import com.verivital.hyst.util.Preconditions;
+import com.verivital.hyst.util.TaskPool;
 
 /**
  * This transformation pass performs automaton flattening. Usually you want to call
@@ -32,11 +46,20 @@ import com.verivital.hyst.util.Preconditions;
  * Modes get renamed based on the modes in each base component, separated by SEPARATOR('_'). This
  * can lead to ambiguous names if modes already have underscores in them; this isn't handled
  * currently.
+ * 
+ * With the -reachable flag, rather than constructing the full cross product and removing
+ * unreachable modes afterwards, the product is explored from the initial modes. Only discretely
+ * reachable modes and transitions are created, and modes whose invariant is provably unsatisfiable
+ * (RemoveSimpleUnsatInvariantsPass.isUnsat()) are skipped when they are first encountered.
  */
 public class FlattenAutomatonPass extends TransformationPass
 {
 	public static final String SEPARATOR = "_";
 
+	@Option(name = "-reachable", usage = "only construct modes and transitions which are discretely "
+			+ "reachable from the initial modes, skipping modes with unsatisfiable invariants")
+	boolean reachableOnly = false;
+
 	public FlattenAutomatonPass()
 	{
 		preconditions = new Preconditions(true); // skip all checks
@@ -54,6 +77,19 @@ public class FlattenAutomatonPass extends TransformationPass
 	 */
 	public static void flattenAndOptimize(Configuration c)
 	{
+		if (c.root instanceof NetworkComponent)
+		{
+			// only the reachable, satisfiable part of the product is constructed (in the same
+			// order), so the remaining steps are unnecessary
+			new FlattenAutomatonPass().runVanillaPass(c, "-reachable");
+			BaseComponent ha = (BaseComponent) c.root;
+			Hyst.log("\nFlattened Automaton, Reachable Modes Only (" + ha.modes.size()
+					+ " locations and " + ha.transitions.size() + " transitions)");
+			Hyst.logDebug(c.toString());
+
+			return;
+		}
+
 		// 1. do flatteneing
 		new FlattenAutomatonPass().runVanillaPass(c, "");
 		BaseComponent ha = (BaseComponent) c.root;
@@ -101,7 +137,10 @@ public class FlattenAutomatonPass extends TransformationPass
 	{
 		FlattenRenameUtils.convertToFullyQualifiedParams(config.root);
 
-		config.root = flatten(config.root);
+		if (reachableOnly && config.root instanceof NetworkComponent)
+			config.root = flattenReachable((NetworkComponent) config.root);
+		else
+			config.root = flatten(config.root);
 
 		if (!(config.root instanceof BaseComponent))
 			throw new AutomatonExportException("Flatten failed (root is not BaseComponent)");
@@ -109,60 +148,93 @@ public class FlattenAutomatonPass extends TransformationPass
 		FlattenRenameUtils.convertSettingsSeparator(config);
 	}
 
-	private BaseComponent flatten(Component c)
+	/**
+	 * Flatten a component. The children of each network are flattened concurrently, and then merged
+	 * left to right. The result does not depend on the scheduling.
+	 * 
+	 * @param c
+	 *            the component to flatten
+	 * @return the flattened component
+	 */
+	private static BaseComponent flatten(Component c)
 	{
-		BaseComponent rv = null;
-
-		if (c instanceof BaseComponent)
-		{
-			String name = c.getFullyQualifiedInstanceName();
+		return TaskPool.get().invoke(new FlattenTask(c));
+	}
 
-			if (name.length() == 0)
-				name = "<root>";
+	/**
+	 * Flattens a single component. For networks, a task is forked for each child and the flattened
+	 * children are then merged in order.
+	 */
+	private static class FlattenTask extends TaskPool.ContextTask<BaseComponent>
+	{
+		private static final long serialVersionUID = 1L;
+		private final Component c;
 
-			Hyst.log("Flatten called on '" + name + "' which is already a BaseComponent");
-			rv = (BaseComponent) c.copy();
-		}
-		else
+		public FlattenTask(Component c)
 		{
-			NetworkComponent nc = (NetworkComponent) c;
+			this.c = c;
+		}
 
-			if (nc.children.size() == 0)
-				throw new AutomatonExportException(
-						"Network component with zero children are not allowed.");
+		@Override
+		protected BaseComponent computeInContext()
+		{
+			BaseComponent rv = null;
 
-			Hyst.log("Flatten called on NetworkComponent '" + c.getFullyQualifiedInstanceName()
-					+ "'");
+			if (c instanceof BaseComponent)
+			{
+				String name = c.getFullyQualifiedInstanceName();
 
-			Hyst.logDebug(nc.toString() + "\n-------------");
+				if (name.length() == 0)
+					name = "<root>";
 
-			for (Entry<String, ComponentInstance> e : nc.children.entrySet())
+				Hyst.log("Flatten called on '" + name + "' which is already a BaseComponent");
+				rv = (BaseComponent) c.copy();
+			}
+			else
 			{
-				ComponentInstance ci = e.getValue();
-				// instantiate merge each component into rv
+				NetworkComponent nc = (NetworkComponent) c;
 
-				BaseComponent bc = flatten(ci.child);
-				Hyst.logDebug("flattened child: " + bc.toString() + "\n-------------");
+				if (nc.children.size() == 0)
+					throw new AutomatonExportException(
+							"Network component with zero children are not allowed.");
 
-				if (rv == null)
-					rv = bc;
-				else
+				Hyst.log("Flatten called on NetworkComponent '" + c.getFullyQualifiedInstanceName()
+						+ "'");
+
+				Hyst.logDebug(nc.toString() + "\n-------------");
+
+				ArrayList<FlattenTask> tasks = new ArrayList<FlattenTask>(nc.children.size());
+
+				for (ComponentInstance ci : nc.children.values())
+					tasks.add(new FlattenTask(ci.child));
+
+				invokeAll(tasks);
+
+				for (FlattenTask t : tasks)
 				{
-					Hyst.log("Merging " + rv.instanceName + " and " + bc.instanceName);
-					rv = mergeComponents(rv, bc);
+					BaseComponent bc = t.join();
+					Hyst.logDebug("flattened child: " + bc.toString() + "\n-------------");
+
+					if (rv == null)
+						rv = bc;
+					else
+					{
+						Hyst.log("Merging " + rv.instanceName + " and " + bc.instanceName);
+						rv = mergeComponents(rv, bc);
 
-					Hyst.logDebug(rv.toString() + "\n-------------");
-					Hyst.logDebug("Merged");
+						Hyst.logDebug(rv.toString() + "\n-------------");
+						Hyst.logDebug("Merged");
+					}
 				}
+
+				// copy some parts from parent network component
+				rv.instanceName = c.instanceName;
+				mergeParams(rv, nc);
+				fixVariableOrder(rv, nc);
 			}
 
-			// copy some parts from parent network component
-			rv.instanceName = c.instanceName;
-			mergeParams(rv, nc);
-			fixVariableOrder(rv, nc);
+			return rv;
 		}
-
-		return rv;
 	}
 
 	/**
@@ -173,7 +245,7 @@ public class FlattenAutomatonPass extends TransformationPass
 	 * @param rv
 	 * @param nc
 	 */
-	private void fixVariableOrder(BaseComponent rv, NetworkComponent nc)
+	private static void fixVariableOrder(BaseComponent rv, NetworkComponent nc)
 	{
 		ArrayList<String> ordered = new ArrayList<String>();
 
@@ -199,15 +271,16 @@ public class FlattenAutomatonPass extends TransformationPass
 	 * 
 	 * @param left
 	 * @param right
-	 * @return
+	 * @return the shared labels, in the order of left's labels
 	 */
 	private static Collection<String> getSharedLabels(BaseComponent left, BaseComponent right)
 	{
-		ArrayList<String> rv = new ArrayList<String>();
+		LinkedHashSet<String> rv = new LinkedHashSet<String>();
+		HashSet<String> rightLabels = new HashSet<String>(right.labels);
 
 		for (String label : left.labels)
 		{
-			if (right.labels.contains(label))
+			if (rightLabels.contains(label))
 				rv.add(label);
 		}
 
@@ -343,70 +416,61 @@ public class FlattenAutomatonPass extends TransformationPass
 	}
 
 	/**
-	 * Add transitions from the left base component that don't have a shared label
+	 * Add transitions from one of the base components that don't have a shared label. The other
+	 * component stays in the same mode, so each transition is added once for each of the other
+	 * component's modes.
 	 * 
 	 * @param rv
 	 *            where the add transitions to
 	 * @param comp
 	 *            which component to add from
+	 * @param other
+	 *            the other component being merged
 	 * @param isLeft
-	 *            is this component left-composed in the location names?
+	 *            is comp left-composed in the location names?
 	 * @param sharedLabels
-	 *            the list of shared labels (transitions with these labels are skipped)
+	 *            the set of shared labels (transitions with these labels are skipped)
 	 */
 	private static void addNonSharedTransitions(BaseComponent rv, BaseComponent comp,
-			boolean isLeft, Collection<String> sharedLabels)
+			BaseComponent other, boolean isLeft, Collection<String> sharedLabels)
 	{
 		for (AutomatonTransition originalT : comp.transitions)
 		{
-			AutomatonMode fromLoc = originalT.from;
-			String fromName = fromLoc.name;
-			AutomatonMode toLoc = originalT.to;
-			String toName = toLoc.name;
+			String fromName = originalT.from.name;
+			String toName = originalT.to.name;
 
 			if (sharedLabels.contains(originalT.label))
 				continue;
 
-			for (AutomatonMode locRv : rv.modes.values())
+			for (String otherName : other.modes.keySet())
 			{
-				String locName = locRv.name;
-				boolean matchedSource = false;
+				String sourceName, targetName;
 
 				if (isLeft)
-					matchedSource = locName.startsWith(fromName + SEPARATOR);
+				{
+					sourceName = fromName + SEPARATOR + otherName;
+					targetName = toName + SEPARATOR + otherName;
+				}
 				else
-					matchedSource = locName.endsWith(SEPARATOR + fromName);
-
-				if (matchedSource)
 				{
-					String targetName = null;
+					sourceName = otherName + SEPARATOR + fromName;
+					targetName = otherName + SEPARATOR + toName;
+				}
 
-					if (isLeft)
-						targetName = toName + SEPARATOR + locName.substring(fromName.length() + 1);
-					else
-					{
-						int restStringLength = locName.length() - (fromName.length() + 1);
-						targetName = locName.substring(0, restStringLength) + SEPARATOR + toName;
-					}
+				AutomatonMode sourceMode = rv.modes.get(sourceName);
+				AutomatonMode targetMode = rv.modes.get(targetName);
 
-					for (AutomatonMode locRv2 : rv.modes.values())
-					{
-						String locName2 = locRv2.name;
+				if (sourceMode == null || targetMode == null)
+					throw new AutomatonExportException("merged mode not found: "
+							+ (sourceMode == null ? sourceName : targetName));
 
-						if (locName2.equals(targetName))
-						{
-							Hyst.logDebug(
-									"Adding transition '" + locName + "' -> '" + locName2 + "'");
+				Hyst.logDebug("Adding transition '" + sourceName + "' -> '" + targetName + "'");
 
-							// add transition between locRv and locRv2
-							AutomatonTransition at = rv.createTransition(locRv, locRv2);
+				AutomatonTransition at = rv.createTransition(sourceMode, targetMode);
 
-							at.guard = originalT.guard.copy();
-							at.reset = copyMap(originalT.reset);
-							at.label = originalT.label;
-						}
-					}
-				}
+				at.guard = originalT.guard.copy();
+				at.reset = copyMap(originalT.reset);
+				at.label = originalT.label;
 			}
 		}
 	}
@@ -437,11 +501,15 @@ public class FlattenAutomatonPass extends TransformationPass
 	private static void addSharedTransitions(BaseComponent rv, BaseComponent left,
 			BaseComponent right, Collection<String> sharedLabels)
 	{
+		Map<String, List<AutomatonTransition>> rightByLabel = getTransitionsByLabel(right,
+				sharedLabels);
+
 		for (AutomatonTransition leftT : left.transitions)
 		{
 			String label = leftT.label;
+			List<AutomatonTransition> matching = (label == null) ? null : rightByLabel.get(label);
 
-			if (label == null || !sharedLabels.contains(label))
+			if (matching == null)
 				continue;
 
 			AutomatonMode fromLeftLoc = leftT.from;
@@ -449,11 +517,9 @@ public class FlattenAutomatonPass extends TransformationPass
 			AutomatonMode toLeftLoc = leftT.to;
 			String toLeftName = toLeftLoc.name;
 
-			// find all matching right transitions
-			for (AutomatonTransition rightT : right.transitions)
+			// all matching right transitions
+			for (AutomatonTransition rightT : matching)
 			{
-				if (!label.equals(rightT.label))
-					continue;
 
 				// at this point labels match and we can determine the full
 				// source and target names
@@ -496,6 +562,39 @@ public class FlattenAutomatonPass extends TransformationPass
 		}
 	}
 
+	/**
+	 * Bucket a component's transitions by label
+	 * 
+	 * @param comp
+	 *            the component
+	 * @param labels
+	 *            the labels to include (transitions with other labels are skipped)
+	 * @return a map of label -> transitions with that label, in their original order
+	 */
+	private static Map<String, List<AutomatonTransition>> getTransitionsByLabel(
+			BaseComponent comp, Collection<String> labels)
+	{
+		HashMap<String, List<AutomatonTransition>> rv = new HashMap<String, List<AutomatonTransition>>();
+
+		for (AutomatonTransition t : comp.transitions)
+		{
+			if (t.label == null || !labels.contains(t.label))
+				continue;
+
+			List<AutomatonTransition> list = rv.get(t.label);
+
+			if (list == null)
+			{
+				list = new ArrayList<AutomatonTransition>();
+				rv.put(t.label, list);
+			}
+
+			list.add(t);
+		}
+
+		return rv;
+	}
+
 	/**
 	 * Merge the (instantiated) components into one
 	 * 
@@ -521,11 +620,11 @@ public class FlattenAutomatonPass extends TransformationPass
 
 		// add every transition in left base component without a label
 		Hyst.logDebug("Adding Non-shared Transitions Left");
-		addNonSharedTransitions(rv, left, true, sharedLabels);
+		addNonSharedTransitions(rv, left, right, true, sharedLabels);
 
 		// add every transition in right base component without a label
 		Hyst.logDebug("Adding Non-shared Transitions Right");
-		addNonSharedTransitions(rv, right, false, sharedLabels);
+		addNonSharedTransitions(rv, right, left, false, sharedLabels);
 
 		// add labeled transitions
 		Hyst.logDebug("Adding Labeled Transitions");
@@ -537,4 +636,710 @@ public class FlattenAutomatonPass extends TransformationPass
 
 		return rv;
 	}
+
+	/**
+	 * Flatten a network by exploring the product from the initial modes. The result is the same as
+	 * flatten() followed by removing unreachable modes and modes with unsatisfiable invariants
+	 * (including the order of the modes and transitions), without creating the modes which are
+	 * later removed. Initial and forbidden states in unconstructed modes are removed from the
+	 * configuration.
+	 * 
+	 * @param nc
+	 *            the network to flatten (config.root)
+	 * @return the flattened component
+	 */
+	private BaseComponent flattenReachable(NetworkComponent nc)
+	{
+		ArrayList<BaseComponent> leaves = new ArrayList<BaseComponent>();
+		ProductNode root = new ProductNode(nc, leaves);
+
+		Hyst.log("Reachable flatten called on NetworkComponent '"
+				+ nc.getFullyQualifiedInstanceName() + "' with " + leaves.size()
+				+ " base components");
+
+		BaseComponent rv = flattenParams(nc);
+		ProductExplorer explorer = new ProductExplorer(rv, root, leaves);
+
+		for (String initName : config.init.keySet())
+			explorer.addInitial(initName);
+
+		explorer.explore();
+		explorer.sortByProduct();
+
+		// remove initial and forbidden states in modes which weren't created
+		removeMissingModes(config.init, explorer);
+		removeMissingModes(config.forbidden, explorer);
+
+		return rv;
+	}
+
+	private static void removeMissingModes(LinkedHashMap<String, Expression> map,
+			ProductExplorer explorer)
+	{
+		for (Iterator<String> i = map.keySet().iterator(); i.hasNext();)
+		{
+			if (explorer.getMode(i.next()) == null)
+				i.remove();
+		}
+	}
+
+	/**
+	 * Get a component with the merged params (variables, constants, labels) and instance name of
+	 * a component, in the same order as flatten(), but without any modes.
+	 * 
+	 * @param c
+	 *            the component
+	 * @return a mode-less base component with the params
+	 */
+	private BaseComponent flattenParams(Component c)
+	{
+		BaseComponent rv = new BaseComponent();
+
+		if (c instanceof BaseComponent)
+		{
+			mergeParams(rv, c);
+			rv.instanceName = c.instanceName;
+			rv.template = c.template;
+		}
+		else
+		{
+			NetworkComponent nc = (NetworkComponent) c;
+
+			if (nc.children.size() == 0)
+				throw new AutomatonExportException(
+						"Network component with zero children are not allowed.");
+
+			for (ComponentInstance ci : nc.children.values())
+			{
+				BaseComponent child = flattenParams(ci.child);
+				mergeParams(rv, child);
+
+				// a single child isn't merged with anything, so flatten() keeps its template
+				if (nc.children.size() == 1)
+					rv.template = child.template;
+			}
+
+			rv.instanceName = c.instanceName;
+			mergeParams(rv, nc);
+			fixVariableOrder(rv, nc);
+		}
+
+		return rv;
+	}
+
+	/**
+	 * A component in the network tree, used to determine which base components synchronize on
+	 * each label. Following the pairwise merging done by flatten(), a labeled transition at a
+	 * network requires a simultaneous move of every child which has the label.
+	 */
+	private static class ProductNode
+	{
+		final int leafIndex; // for base components, or -1
+		final int firstLeaf; // the leaves in this subtree are [firstLeaf, endLeaf)
+		final int endLeaf;
+		final ArrayList<ProductNode> children = new ArrayList<ProductNode>();
+		final LinkedHashSet<String> labels = new LinkedHashSet<String>();
+
+		public ProductNode(Component c, ArrayList<BaseComponent> leaves)
+		{
+			firstLeaf = leaves.size();
+
+			if (c instanceof BaseComponent)
+			{
+				leafIndex = leaves.size();
+				leaves.add((BaseComponent) c);
+			}
+			else
+			{
+				leafIndex = -1;
+
+				for (ComponentInstance ci : ((NetworkComponent) c).children.values())
+				{
+					ProductNode child = new ProductNode(ci.child, leaves);
+					children.add(child);
+					labels.addAll(child.labels);
+				}
+			}
+
+			endLeaf = leaves.size();
+			labels.addAll(c.labels);
+		}
+	}
+
+	/**
+	 * A (partial) synchronized move of several base components
+	 */
+	private static class ProductMove
+	{
+		Expression guard;
+		LinkedHashMap<String, ExpressionInterval> reset;
+		ArrayList<Integer> leafIndices = new ArrayList<Integer>();
+		ArrayList<AutomatonTransition> parts = new ArrayList<AutomatonTransition>();
+	}
+
+	/**
+	 * A transition created in the product: the source state, and the index (in its base
+	 * component's transitions) of the transition taken by each base component, or -1
+	 */
+	private static class ProductStep
+	{
+		final int[] from;
+		final int[] moves;
+		final AutomatonTransition transition;
+
+		public ProductStep(int[] from, int[] moves, AutomatonTransition transition)
+		{
+			this.from = from;
+			this.moves = moves;
+			this.transition = transition;
+		}
+	}
+
+	/**
+	 * Breadth-first exploration of the product of the base components, creating modes and
+	 * transitions in the result component
+	 */
+	private static class ProductExplorer
+	{
+		// which side of a pairwise merge a transition moves, in the order mergeComponents() adds
+		// them
+		private static final int GROUP_LEFT = 0;
+		private static final int GROUP_RIGHT = 1;
+		private static final int GROUP_BOTH = 2;
+
+		private final BaseComponent rv;
+		private final ProductNode root;
+		private final ArrayList<BaseComponent> leaves;
+
+		// for each leaf: the mode index of each mode name, and the modes in order
+		private final ArrayList<Map<String, Integer>> modeIndices = new ArrayList<Map<String, Integer>>();
+		private final ArrayList<AutomatonMode[]> modes = new ArrayList<AutomatonMode[]>();
+
+		// for each leaf and mode index: the outgoing transitions, by label (null for transitions
+		// which don't synchronize)
+		private final ArrayList<ArrayList<Map<String, List<AutomatonTransition>>>> outgoing = new ArrayList<ArrayList<Map<String, List<AutomatonTransition>>>>();
+
+		// the product modes which were created, and the ones skipped because they're unsat
+		private final HashMap<String, AutomatonMode> created = new HashMap<String, AutomatonMode>();
+		private final HashSet<String> unsat = new HashSet<String>();
+		private final ArrayDeque<int[]> waiting = new ArrayDeque<int[]>();
+
+		// for sorting the result into the order of flatten(): the state of each created mode, each
+		// created transition, and the index of each base component transition
+		private final ArrayList<int[]> createdStates = new ArrayList<int[]>();
+		private final ArrayList<ProductStep> steps = new ArrayList<ProductStep>();
+		private final IdentityHashMap<AutomatonTransition, Integer> transitionIndices = new IdentityHashMap<AutomatonTransition, Integer>();
+
+		public ProductExplorer(BaseComponent rv, ProductNode root, ArrayList<BaseComponent> leaves)
+		{
+			this.rv = rv;
+			this.root = root;
+			this.leaves = leaves;
+
+			for (BaseComponent leaf : leaves)
+			{
+				HashMap<String, Integer> indices = new HashMap<String, Integer>();
+				AutomatonMode[] leafModes = leaf.modes.values()
+						.toArray(new AutomatonMode[leaf.modes.size()]);
+				ArrayList<Map<String, List<AutomatonTransition>>> leafOutgoing = new ArrayList<Map<String, List<AutomatonTransition>>>();
+
+				for (int m = 0; m < leafModes.length; ++m)
+				{
+					indices.put(leafModes[m].name, m);
+					leafOutgoing.add(new LinkedHashMap<String, List<AutomatonTransition>>());
+				}
+
+				for (AutomatonTransition t : leaf.transitions)
+				{
+					transitionIndices.put(t, transitionIndices.size());
+					String label = leaf.labels.contains(t.label) ? t.label : null;
+					Map<String, List<AutomatonTransition>> fromMap = leafOutgoing
+							.get(indices.get(t.from.name));
+					List<AutomatonTransition> list = fromMap.get(label);
+
+					if (list == null)
+					{
+						list = new ArrayList<AutomatonTransition>();
+						fromMap.put(label, list);
+					}
+
+					list.add(t);
+				}
+
+				modeIndices.add(indices);
+				modes.add(leafModes);
+				outgoing.add(leafOutgoing);
+			}
+		}
+
+		/**
+		 * Add an initial mode
+		 * 
+		 * @param dottedName
+		 *            the mode name from config.init, with a mode of each base component,
+		 *            separated by dots
+		 */
+		public void addInitial(String dottedName)
+		{
+			getOrCreate(parseState(dottedName));
+		}
+
+		/**
+		 * Get a product mode, if it was created
+		 * 
+		 * @param dottedName
+		 *            the mode name, with a mode of each base component, separated by dots
+		 * @return the mode, or null if it wasn't created
+		 */
+		public AutomatonMode getMode(String dottedName)
+		{
+			return created.get(makeName(parseState(dottedName)));
+		}
+
+		/**
+		 * Explore the product until all the reachable modes are created
+		 */
+		public void explore()
+		{
+			while (!waiting.isEmpty())
+			{
+				int[] state = waiting.poll();
+				AutomatonMode from = created.get(makeName(state));
+
+				// transitions which don't synchronize
+				for (int leaf = 0; leaf < state.length; ++leaf)
+				{
+					List<AutomatonTransition> local = outgoing.get(leaf).get(state[leaf])
+							.get(null);
+
+					if (local == null)
+						continue;
+
+					for (AutomatonTransition t : local)
+					{
+						int[] target = state.clone();
+						target[leaf] = modeIndices.get(leaf).get(t.to.name);
+
+						int[] moves = makeMoves(Collections.singletonList(leaf),
+								Collections.singletonList(t));
+						addTransition(state, moves, from, target, t.guard, t.reset, t.label);
+					}
+				}
+
+				// synchronized transitions
+				for (String label : root.labels)
+				{
+					for (ProductMove move : getMoves(root, label, state))
+					{
+						int[] target = state.clone();
+
+						for (int i = 0; i < move.parts.size(); ++i)
+						{
+							int leaf = move.leafIndices.get(i);
+							target[leaf] = modeIndices.get(leaf).get(move.parts.get(i).to.name);
+						}
+
+						int[] moves = makeMoves(move.leafIndices, move.parts);
+						addTransition(state, moves, from, target, move.guard, move.reset, label);
+					}
+				}
+			}
+		}
+
+		private int[] makeMoves(List<Integer> leafIndices, List<AutomatonTransition> parts)
+		{
+			int[] rv = new int[leaves.size()];
+			Arrays.fill(rv, -1);
+
+			for (int i = 0; i < parts.size(); ++i)
+				rv[leafIndices.get(i)] = transitionIndices.get(parts.get(i));
+
+			return rv;
+		}
+
+		private void addTransition(int[] state, int[] moves, AutomatonMode from, int[] target,
+				Expression guard, LinkedHashMap<String, ExpressionInterval> reset, String label)
+		{
+			AutomatonMode to = getOrCreate(target);
+
+			if (to == null)
+				return;
+
+			AutomatonTransition at = rv.createTransition(from, to);
+			at.guard = (guard == null) ? null : guard.copy();
+			at.reset = copyMap(reset);
+			at.label = label;
+
+			steps.add(new ProductStep(state, moves, at));
+		}
+
+		/**
+		 * Sort the created modes and transitions into the order flatten() creates them in. Modes
+		 * are in lexicographic order of the base component mode indices (see mergeLocations()).
+		 * Transitions follow the left-to-right merge at each network (see mergeComponents()):
+		 * first the moves of only the left part, then the moves of only the right part, then the
+		 * synchronized moves of both.
+		 */
+		public void sortByProduct()
+		{
+			Collections.sort(createdStates, new Comparator<int[]>()
+			{
+				@Override
+				public int compare(int[] a, int[] b)
+				{
+					return compareStates(a, b, 0, a.length);
+				}
+			});
+
+			LinkedHashMap<String, AutomatonMode> sortedModes = new LinkedHashMap<String, AutomatonMode>();
+
+			for (int[] state : createdStates)
+			{
+				String name = makeName(state);
+				sortedModes.put(name, rv.modes.get(name));
+			}
+
+			rv.modes = sortedModes;
+
+			Collections.sort(steps, new Comparator<ProductStep>()
+			{
+				@Override
+				public int compare(ProductStep a, ProductStep b)
+				{
+					return compareSteps(root, a, b);
+				}
+			});
+
+			rv.transitions.clear();
+
+			for (ProductStep step : steps)
+				rv.transitions.add(step.transition);
+		}
+
+		/**
+		 * Compare the states of the base components in [first, end) lexicographically
+		 */
+		private static int compareStates(int[] a, int[] b, int first, int end)
+		{
+			int rv = 0;
+
+			for (int leaf = first; leaf < end && rv == 0; ++leaf)
+				rv = Integer.compare(a[leaf], b[leaf]);
+
+			return rv;
+		}
+
+		/**
+		 * Compare two transitions which only move base components within a node of the network
+		 * tree, in the order of the node's flattened transitions
+		 */
+		private static int compareSteps(ProductNode node, ProductStep a, ProductStep b)
+		{
+			int rv;
+
+			if (node.leafIndex != -1)
+				rv = Integer.compare(a.moves[node.leafIndex], b.moves[node.leafIndex]);
+			else
+				rv = compareSteps(node, node.children.size() - 1, a, b);
+
+			return rv;
+		}
+
+		/**
+		 * Compare two transitions which only move base components within the children [0, last]
+		 * of a network, in the order of the product of those children
+		 */
+		private static int compareSteps(ProductNode node, int last, ProductStep a, ProductStep b)
+		{
+			if (last == 0)
+				return compareSteps(node.children.get(0), a, b);
+
+			ProductNode right = node.children.get(last);
+			int groupA = getGroup(node, right, a);
+			int rv = Integer.compare(groupA, getGroup(node, right, b));
+
+			if (rv == 0)
+			{
+				if (groupA == GROUP_LEFT)
+				{
+					rv = compareSteps(node, last - 1, a, b);
+
+					if (rv == 0)
+						rv = compareStates(a.from, b.from, right.firstLeaf, right.endLeaf);
+				}
+				else if (groupA == GROUP_RIGHT)
+				{
+					rv = compareSteps(right, a, b);
+
+					if (rv == 0)
+						rv = compareStates(a.from, b.from, node.firstLeaf, right.firstLeaf);
+				}
+				else
+				{
+					rv = compareSteps(node, last - 1, a, b);
+
+					if (rv == 0)
+						rv = compareSteps(right, a, b);
+				}
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Get which side of a merge a transition moves: the children of the node before right,
+		 * right, or both
+		 */
+		private static int getGroup(ProductNode node, ProductNode right, ProductStep step)
+		{
+			boolean left = moves(step, node.firstLeaf, right.firstLeaf);
+			boolean moveRight = moves(step, right.firstLeaf, right.endLeaf);
+
+			return left ? (moveRight ? GROUP_BOTH : GROUP_LEFT) : GROUP_RIGHT;
+		}
+
+		private static boolean moves(ProductStep step, int first, int end)
+		{
+			boolean rv = false;
+
+			for (int leaf = first; leaf < end && !rv; ++leaf)
+				rv = step.moves[leaf] != -1;
+
+			return rv;
+		}
+
+		/**
+		 * Get the synchronized moves of a node in the network tree on a label
+		 */
+		private List<ProductMove> getMoves(ProductNode node, String label, int[] state)
+		{
+			List<ProductMove> rv = new ArrayList<ProductMove>();
+
+			if (node.leafIndex != -1)
+			{
+				List<AutomatonTransition> list = outgoing.get(node.leafIndex)
+						.get(state[node.leafIndex]).get(label);
+
+				if (list != null)
+				{
+					for (AutomatonTransition t : list)
+					{
+						ProductMove m = new ProductMove();
+						m.guard = t.guard;
+						m.reset = t.reset;
+						m.leafIndices.add(node.leafIndex);
+						m.parts.add(t);
+						rv.add(m);
+					}
+				}
+			}
+			else
+			{
+				boolean first = true;
+
+				// every child with the label must move (cartesian product of their moves)
+				for (ProductNode child : node.children)
+				{
+					if (!child.labels.contains(label))
+						continue;
+
+					List<ProductMove> childMoves = getMoves(child, label, state);
+
+					if (first)
+						rv = childMoves;
+					else
+						rv = combineMoves(rv, childMoves);
+
+					first = false;
+
+					if (rv.isEmpty())
+						break;
+				}
+			}
+
+			return rv;
+		}
+
+		private static List<ProductMove> combineMoves(List<ProductMove> left,
+				List<ProductMove> right)
+		{
+			List<ProductMove> rv = new ArrayList<ProductMove>();
+
+			for (ProductMove l : left)
+			{
+				for (ProductMove r : right)
+				{
+					ProductMove m = new ProductMove();
+					m.guard = andExpressions(l.guard, r.guard);
+					m.leafIndices.addAll(l.leafIndices);
+					m.leafIndices.addAll(r.leafIndices);
+					m.parts.addAll(l.parts);
+					m.parts.addAll(r.parts);
+
+					try
+					{
+						m.reset = mergeExpressionMap(l.reset, r.reset);
+					}
+					catch (AutomatonExportException e)
+					{
+						throw new AutomatonExportException(
+								"Conflicting reset (multiple drivers) detected while "
+										+ "flattening automaton",
+								e);
+					}
+
+					rv.add(m);
+				}
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Get the product mode for a state, creating it if it's new
+		 * 
+		 * @param state
+		 *            the mode index of each base component
+		 * @return the product mode, or null if its invariant is unsatisfiable
+		 */
+		private AutomatonMode getOrCreate(int[] state)
+		{
+			String name = makeName(state);
+			AutomatonMode rv = created.get(name);
+
+			if (rv == null && !unsat.contains(name))
+			{
+				Expression invariant = makeInvariant(root, state);
+
+				if (invariant != null && RemoveSimpleUnsatInvariantsPass.isUnsat(invariant))
+					unsat.add(name);
+				else
+				{
+					rv = this.rv.createMode(name);
+					rv.invariant = invariant;
+
+					if (isUrgent(state))
+					{
+						rv.urgent = true;
+						rv.flowDynamics = null;
+					}
+					else
+					{
+						try
+						{
+							rv.flowDynamics = copyFlows(makeFlows(root, state));
+						}
+						catch (AutomatonExportException e)
+						{
+							throw new AutomatonExportException(
+									"Conflicting dynamics (multiple drivers) detected while "
+											+ "flattening automaton",
+									e);
+						}
+					}
+
+					created.put(name, rv);
+					createdStates.add(state);
+					waiting.add(state);
+				}
+			}
+
+			return rv;
+		}
+
+		private Expression makeInvariant(ProductNode node, int[] state)
+		{
+			Expression rv = null;
+
+			if (node.leafIndex != -1)
+			{
+				Expression inv = modes.get(node.leafIndex)[state[node.leafIndex]].invariant;
+				rv = (inv == null) ? null : inv.copy();
+			}
+			else
+			{
+				for (ProductNode child : node.children)
+					rv = andExpressions(rv, makeInvariant(child, state));
+			}
+
+			return rv;
+		}
+
+		private boolean isUrgent(int[] state)
+		{
+			boolean rv = false;
+
+			for (int leaf = 0; leaf < state.length && !rv; ++leaf)
+				rv = modes.get(leaf)[state[leaf]].urgent;
+
+			return rv;
+		}
+
+		private LinkedHashMap<String, ExpressionInterval> makeFlows(ProductNode node, int[] state)
+		{
+			LinkedHashMap<String, ExpressionInterval> rv;
+
+			if (node.leafIndex != -1)
+				rv = modes.get(node.leafIndex)[state[node.leafIndex]].flowDynamics;
+			else
+			{
+				rv = new LinkedHashMap<String, ExpressionInterval>();
+
+				for (ProductNode child : node.children)
+					rv = mergeExpressionMap(rv, makeFlows(child, state));
+			}
+
+			return rv;
+		}
+
+		private static LinkedHashMap<String, ExpressionInterval> copyFlows(
+				LinkedHashMap<String, ExpressionInterval> from)
+		{
+			LinkedHashMap<String, ExpressionInterval> rv = new LinkedHashMap<String, ExpressionInterval>();
+
+			for (Entry<String, ExpressionInterval> e : from.entrySet())
+				rv.put(e.getKey(), e.getValue() == null ? null : e.getValue().copy());
+
+			return rv;
+		}
+
+		private String makeName(int[] state)
+		{
+			StringBuilder rv = new StringBuilder();
+
+			for (int leaf = 0; leaf < state.length; ++leaf)
+			{
+				if (leaf > 0)
+					rv.append(SEPARATOR);
+
+				rv.append(modes.get(leaf)[state[leaf]].name);
+			}
+
+			return rv.toString();
+		}
+
+		private int[] parseState(String dottedName)
+		{
+			String[] parts = dottedName.split("\\.");
+
+			if (parts.length != leaves.size())
+				throw new AutomatonExportException("Mode name '" + dottedName + "' should have "
+						+ leaves.size() + " parts (one per base component)");
+
+			int[] rv = new int[parts.length];
+
+			for (int leaf = 0; leaf < parts.length; ++leaf)
+			{
+				Integer index = modeIndices.get(leaf).get(parts[leaf]);
+
+				if (index == null)
+					throw new AutomatonExportException("Mode '" + parts[leaf]
+							+ "' not found in component " + leaves.get(leaf).instanceName);
+
+				rv[leaf] = index;
+			}
+
+			return rv;
+		}
+	}
 }
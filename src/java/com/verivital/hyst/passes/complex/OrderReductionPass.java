@@ -9,6 +9,7 @@ import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.base.AutomatonMode;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.matlab.MatlabBridge;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.printers.SimulinkStateflowPrinter;
@@ -51,6 +52,7 @@ public class OrderReductionPass extends TransformationPass
 		cf.setVarID(ha);
 		SimulinkStateflowPrinter sp = new SimulinkStateflowPrinter();
 		sp.ha = ha;
+		sp.cls = cf;
 		sp.setConfig(config);
 		// sp.setVarID(ha);
 		MatlabProxy proxy;
@@ -163,7 +165,7 @@ public class OrderReductionPass extends TransformationPass
 				config.init.clear();
 				config.init.put(e.getKey(), FormulaParser.parseInitialForbidden(initialCondition));
 				config.settings.plotVariableNames = plotVars;
-				config.DO_VALIDATION = false;
+				HystContext.get().doValidation = false;
 			}
 		}
 		catch (Exception e)
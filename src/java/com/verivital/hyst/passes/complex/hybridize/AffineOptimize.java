@@ -19,6 +19,7 @@ import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.python.PythonBridge;
 import com.verivital.hyst.python.PythonUtil;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.IntervalOptimizer;
 import com.verivital.hyst.util.KodiakUtil;
 import com.verivital.hyst.util.StringOperations;
 
@@ -80,8 +81,6 @@ public class AffineOptimize
 			throw new AutomatonExportException(
 					"createAffineDynamics was called with params list of length 0");
 
-		PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
-
 		ArrayList<Expression> expList = new ArrayList<Expression>();
 		ArrayList<HashMap<String, Interval>> boundsList = new ArrayList<HashMap<String, Interval>>();
 
@@ -94,30 +93,43 @@ public class AffineOptimize
 		List<Interval> optimizationResult;
 
 		if (optimizationType.equals("basinhopping"))
+		{
+			PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
 			optimizationResult = PythonUtil.scipyOptimize(expList, boundsList);
+		}
 		else if (optimizationType.equals("kodiak"))
 			optimizationResult = KodiakUtil.kodiakOptimize(expList, boundsList);
 		else if (optimizationType.equals("interval"))
-			optimizationResult = PythonUtil.intervalOptimize(expList, boundsList);
+		{
+			// python simplifies the expressions first, which gives tighter results for a single
+			// interval evaluation, so only use the Java version if python isn't available
+			if (PythonBridge.hasPython())
+			{
+				PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
+				optimizationResult = PythonUtil.intervalOptimize(expList, boundsList);
+			}
+			else
+				optimizationResult = IntervalOptimizer.optimize(expList, boundsList, 0);
+		}
 		else if (optimizationType.startsWith("interval"))
 		{
 			String num = optimizationType.substring("interval".length());
+			double accuracy;
 
 			try
 			{
-				double accuracy = Double.parseDouble(num);
-
-				if (accuracy <= 0)
-					throw new AutomatonExportException(
-							"malformed interval optimization param: " + accuracy);
-
-				optimizationResult = PythonUtil.intervalOptimizeBounded(expList, boundsList,
-						accuracy);
+				accuracy = Double.parseDouble(num);
 			}
 			catch (NumberFormatException e)
 			{
 				throw new AutomatonExportException("invalid interval optimization param", e);
 			}
+
+			if (accuracy <= 0)
+				throw new AutomatonExportException(
+						"malformed interval optimization param: " + accuracy);
+
+			optimizationResult = intervalOptimizeBounded(expList, boundsList, accuracy);
 		}
 		else
 			throw new AutomatonExportException(
@@ -127,6 +139,41 @@ public class AffineOptimize
 		createOptimizationResult(params, optimizationResult);
 	}
 
+	/**
+	 * Interval optimization with a guaranteed error, using IntervalOptimizer. If an expression uses
+	 * operators which aren't supported by Java's interval arithmetic (like sin), python is used
+	 * instead, if available.
+	 * 
+	 * @param expList
+	 *            the expressions to optimize
+	 * @param boundsList
+	 *            the bounds where to optimize
+	 * @param accuracy
+	 *            the maximum overapproximation error
+	 * @return the optimization result intervals
+	 */
+	private static List<Interval> intervalOptimizeBounded(List<Expression> expList,
+			List<HashMap<String, Interval>> boundsList, double accuracy)
+	{
+		List<Interval> rv;
+
+		try
+		{
+			rv = IntervalOptimizer.optimize(expList, boundsList, accuracy);
+		}
+		catch (AutomatonExportException e)
+		{
+			if (!PythonBridge.hasPython())
+				throw e;
+
+			Hyst.log("Java interval optimization failed, using python instead: " + e.getMessage());
+			PythonBridge.getInstance(PythonBridge.NO_TIMEOUT); // turn off timeout
+			rv = PythonUtil.intervalOptimizeBounded(expList, boundsList, accuracy);
+		}
+
+		return rv;
+	}
+
 	/**
 	 * Populate the result data structures after the optimization was performed
 	 * 
@@ -282,26 +329,24 @@ public class AffineOptimize
 			// linear estimate is: JAC[derVar][0] * var0 + JAC[derVar][1] * var1
 			// + ...
 			Expression nonlinearE = nonlinear.get(var).asExpression();
-			Expression linearized = null;
+			ArrayList<Expression> terms = new ArrayList<Expression>();
 
 			for (int partialVar = 0; partialVar < numVars; ++partialVar)
 			{
 				if (jac[derVar][partialVar] == 0)
 					continue;
 
-				Operation term = new Operation(Operator.MULTIPLY,
-						new Constant(jac[derVar][partialVar]),
-						new Variable(orderedVariables.get(partialVar)));
-
-				if (linearized == null)
-					linearized = term;
-				else
-					linearized = new Operation(Operator.ADD, linearized, term);
+				terms.add(new Operation(Operator.MULTIPLY, new Constant(jac[derVar][partialVar]),
+						new Variable(orderedVariables.get(partialVar))));
 			}
 
+			Expression linearized;
+
 			// if jacobian was zero for all directions
-			if (linearized == null)
+			if (terms.isEmpty())
 				linearized = new Constant(0);
+			else
+				linearized = AutomatonUtil.makeBalanced(Operator.ADD, terms);
 
 			// the offset constant is computed by computing f_lin(center)
 			// and adding a constant to make it equal to f_nonlin(center)
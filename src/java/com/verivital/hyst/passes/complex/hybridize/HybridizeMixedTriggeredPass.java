@@ -2,7 +2,9 @@ package com.verivital.hyst.passes.complex.hybridize;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TreeMap;
@@ -25,8 +27,12 @@ import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SpaceSplit
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.SplittingElement;
 import com.verivital.hyst.passes.complex.hybridize.HybridizeMTRawPass.TimeSplittingElement;
 import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.python.FramedPythonBridge;
+import com.verivital.hyst.python.FramedPythonBridge.Response;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.ParallelSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.CompiledExpression;
 import com.verivital.hyst.util.Preconditions.PreconditionsFailedException;
 import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
@@ -145,9 +151,11 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	{
 		super.checkPreconditons(c, name);
 
-		if (!PythonBridge.hasPython())
+		// simulation and interval optimization are done in Java, but basinhopping needs python
+		if (opt.equals("basinhopping") && !PythonBridge.hasPython())
 			throw new PreconditionsFailedException(
-					"Python (and required libraries) needed to run Hybridize Mixed Triggered pass.");
+					"Python (and required libraries) needed to run Hybridize Mixed Triggered pass "
+							+ "with basinhopping optimization.");
 	}
 
 	public static String makeParamString(double T, String simType, double delta_tt, int n_pi,
@@ -370,8 +378,6 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 
 		Hyst.log("Initial simulation points (" + simPoints.size() + "): " + simPoints);
 
-		PythonBridge.getInstance().setTimeout(-1);
-
 		// run simulation with the given params
 		runSimulation(simPoints);
 	}
@@ -472,6 +478,9 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		// the first point of simPoints is the center point we should simulate
 		SymbolicStatePoint rv = null;
 
+		// the trajectory is usually in a few modes, so each mode's flow is compiled once
+		Map<String, CompiledExpression[]> modeFlows = new HashMap<String, CompiledExpression[]>();
+
 		// simulate up to piMaxTime, looking for a state where all the corners
 		// of startBox
 		// are on one side of p
@@ -479,11 +488,18 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		{
 			HyperPoint hp = p.hp;
 			AutomatonMode am = ha.modes.get(p.modeName);
+			CompiledExpression[] flows = modeFlows.get(am.name);
+
+			if (flows == null)
+			{
+				flows = compileFlows(am);
+				modeFlows.put(am.name, flows);
+			}
 
-			if (testHyperPlane(hp, startBox, am))
+			if (testHyperPlane(hp, startBox, am, flows))
 			{
 				Hyst.log("Found pi point: " + p + " with gradient "
-						+ Arrays.toString(gradient(hp, am)));
+						+ Arrays.toString(gradient(hp, flows)));
 				rv = p;
 				break;
 			}
@@ -706,14 +722,33 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 
 	private static double[] gradient(HyperPoint hp, AutomatonMode am)
 	{
-		double[] rv = new double[am.automaton.variables.size()];
+		return gradient(hp, compileFlows(am));
+	}
+
+	private static double[] gradient(HyperPoint hp, CompiledExpression[] flows)
+	{
+		double[] rv = new double[flows.length];
+
+		for (int vIndex = 0; vIndex < flows.length; ++vIndex)
+			rv[vIndex] = flows[vIndex].evaluate(hp.dims);
 
-		for (int vIndex = 0; vIndex < am.automaton.variables.size(); ++vIndex)
+		return rv;
+	}
+
+	/**
+	 * Compile the flow expression of each variable of a mode (without the flow intervals), for
+	 * gradient()
+	 */
+	private static CompiledExpression[] compileFlows(AutomatonMode am)
+	{
+		List<String> vars = am.automaton.variables;
+		CompiledExpression[] rv = new CompiledExpression[vars.size()];
+
+		for (int vIndex = 0; vIndex < vars.size(); ++vIndex)
 		{
-			String var = am.automaton.variables.get(vIndex);
-			Expression e = am.flowDynamics.get(var).getExpression();
+			Expression e = am.flowDynamics.get(vars.get(vIndex)).getExpression();
 
-			rv[vIndex] = AutomatonUtil.evaluateExpression(e, hp, am.automaton.variables);
+			rv[vIndex] = CompiledExpression.compile(e, vars);
 		}
 
 		return rv;
@@ -741,7 +776,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	}
 
 	/**
-	 * Do a simulation of the passed-in point list
+	 * Do a simulation of the passed-in point list using the native simulator. The points are
+	 * simulated in parallel, and the result is in the same order as simPoints.
 	 * 
 	 * @param c
 	 *            the configuration
@@ -753,6 +789,23 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 */
 	public static ArrayList<SymbolicStatePoint> simAllPoints(Configuration config,
 			ArrayList<SymbolicStatePoint> simPoints, double time)
+	{
+		return ParallelSimulator.simulateSetTime(config, simPoints, time);
+	}
+
+	/**
+	 * Do a simulation of the passed-in point list using pysim
+	 * 
+	 * @param c
+	 *            the configuration
+	 * @param simPoints
+	 *            the list of points
+	 * @param time
+	 *            the time to run the simulation
+	 * @return the resultant points
+	 */
+	public static ArrayList<SymbolicStatePoint> pythonSimAllPoints(Configuration config,
+			ArrayList<SymbolicStatePoint> simPoints, double time)
 	{
 		for (SymbolicStatePoint ssp : simPoints)
 		{
@@ -761,16 +814,27 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 						+ " dimensions; expected " + config.root.variables.size());
 		}
 
+		if (PythonBridge.getTransport() == PythonBridge.Transport.FRAMED)
+		{
+			ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+
+			for (ArrayList<SymbolicStatePoint> traj : framedSimMultiGetTrajectory(config,
+					simPoints, time))
+				rv.add(traj.get(traj.size() - 1));
+
+			return rv;
+		}
+
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_set_time");
 
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(config));
 		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
 
 		String points = makePointsString(simPoints);
 		String modes = makeModeString(simPoints);
 
-		s.append("print simulate_set_time(define_ha(), " + modes + ", " + points + ", " + time
+		s.append("print simulate_set_time(" + ha + ", " + modes + ", " + points + ", " + time
 				+ ")");
 
 		String result = pb.send(s.toString());
@@ -848,6 +912,12 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	 * @return true if the box point are all behind the hyperplane
 	 */
 	public static boolean testHyperPlane(HyperPoint simPoint, HyperRectangle box, AutomatonMode am)
+	{
+		return testHyperPlane(simPoint, box, am, compileFlows(am));
+	}
+
+	private static boolean testHyperPlane(HyperPoint simPoint, HyperRectangle box,
+			AutomatonMode am, CompiledExpression[] flows)
 	{
 		List<String> varNames = am.automaton.variables;
 
@@ -860,7 +930,7 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 		if (simPoint.dims.length != varNames.size())
 			throw new RuntimeException("simpoint numdims must be same varNames size");
 
-		double[] gradient = gradient(simPoint, am);
+		double[] gradient = gradient(simPoint, flows);
 		double val = dotProduct(gradient, simPoint);
 
 		double maxVal = 0;
@@ -900,7 +970,8 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	}
 
 	/**
-	 * Simulate from multiple points, returning the trajectories
+	 * Simulate from multiple points in parallel using the native simulator, returning the
+	 * trajectories (in the same order as startPoints)
 	 * 
 	 * @param config
 	 *            the automaton
@@ -913,16 +984,36 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 	public static ArrayList<ArrayList<SymbolicStatePoint>> simMultiGetTrajectory(
 			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
 	{
+		return ParallelSimulator.simulateMultiTrajectory(config, startPoints, time);
+	}
+
+	/**
+	 * Simulate from multiple points using pysim, returning the trajectories
+	 * 
+	 * @param config
+	 *            the automaton
+	 * @param startPoints
+	 *            the points where each simulation starts
+	 * @param time
+	 *            the desired simulation time
+	 * @return the resultant trajectories (each trajectory is a list of points)
+	 */
+	public static ArrayList<ArrayList<SymbolicStatePoint>> pythonSimMultiGetTrajectory(
+			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
+	{
+		if (PythonBridge.getTransport() == PythonBridge.Transport.FRAMED)
+			return framedSimMultiGetTrajectory(config, startPoints, time);
+
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_multi_trajectory_time");
 
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(config));
 		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(config));
 
 		String modes = makeModeString(startPoints);
 		String points = makePointsString(startPoints);
 
-		s.append("print simulate_multi_trajectory_time(define_ha(), " + modes + ", " + points + ", "
+		s.append("print simulate_multi_trajectory_time(" + ha + ", " + modes + ", " + points + ", "
 				+ time + ")");
 
 		String result = pb.send(s.toString());
@@ -954,4 +1045,34 @@ public class HybridizeMixedTriggeredPass extends TransformationPass
 
 		return rv;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * pythonSimMultiGetTrajectory using the FramedPythonBridge, where the points and the resultant
+	 * trajectories are sent as arrays of doubles rather than as text
+	 */
+	private static ArrayList<ArrayList<SymbolicStatePoint>> framedSimMultiGetTrajectory(
+			Configuration config, ArrayList<SymbolicStatePoint> startPoints, double time)
+	{
+		int numDims = config.root.variables.size();
+		double[] points = new double[numDims * startPoints.size()];
+
+		for (int i = 0; i < startPoints.size(); ++i)
+			System.arraycopy(startPoints.get(i).hp.dims, 0, points, i * numDims, numDims);
+
+		Map<String, double[]> arrays = new HashMap<String, double[]>();
+		arrays.put("_points", points);
+
+		FramedPythonBridge fb = FramedPythonBridge.getInstance();
+		String ha = fb.defineAutomaton(PySimPrinter.automatonToString(config));
+
+		StringBuilder s = new StringBuilder();
+		s.append("from pythonbridge.pysim_utils import simulate_multi_trajectory_states\n");
+		s.append("result_text, result_doubles = encode_trajectories("
+				+ "simulate_multi_trajectory_states(" + ha + ", " + makeModeString(startPoints)
+				+ ", to_points(_points, " + numDims + "), " + time + "))");
+
+		Response r = fb.call(s.toString(), arrays);
+
+		return r.getTrajectories(numDims);
+	}
+}
@@ -20,6 +20,7 @@ import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
+import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.HyperPointArrayOptionHandler;
 import com.verivital.hyst.util.StringOperations;
 
@@ -314,9 +315,7 @@ public class PseudoInvariantPass extends TransformationPass
 	public static Expression makeExpressionFromLinearInequality(List<String> vars, double[] coeff,
 			Operator op, double rhs)
 	{
-		Operation sum = null;
-
-		new Operation(new Constant(coeff[0]), Operator.MULTIPLY, new Variable(vars.get(0)));
+		ArrayList<Expression> terms = new ArrayList<Expression>();
 
 		for (int d = 0; d < coeff.length; ++d)
 		{
@@ -325,18 +324,16 @@ public class PseudoInvariantPass extends TransformationPass
 			if (c == 0)
 				continue;
 
-			Operation term = new Operation(c, Operator.MULTIPLY, vars.get(d));
-
-			if (sum == null)
-				sum = term;
-			else
-				sum = new Operation(sum, Operator.ADD, term);
+			terms.add(new Operation(c, Operator.MULTIPLY, vars.get(d)));
 		}
 
-		if (sum == null)
+		if (terms.isEmpty())
 			throw new AutomatonExportException(
 					"all coefficients were zero when constructing linear inequality");
 
+		// balanced, so that the depth is logarithmic in the number of variables
+		Expression sum = AutomatonUtil.makeBalanced(Operator.ADD, terms);
+
 		return new Operation(sum, op, new Constant(rhs));
 	}
 
@@ -2,7 +2,9 @@ package com.verivital.hyst.passes.complex.pi;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.kohsuke.args4j.Option;
 
@@ -15,8 +17,12 @@ import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.main.Hyst;
 import com.verivital.hyst.passes.TransformationPass;
 import com.verivital.hyst.printers.PySimPrinter;
+import com.verivital.hyst.python.FramedPythonBridge;
+import com.verivital.hyst.python.FramedPythonBridge.Response;
 import com.verivital.hyst.python.PythonBridge;
+import com.verivital.hyst.simulation.HybridSimulator;
 import com.verivital.hyst.util.AutomatonUtil;
+import com.verivital.hyst.util.CompiledExpression;
 import com.verivital.hyst.util.DoubleArrayOptionHandler;
 import com.verivital.hyst.util.StringOperations;
 
@@ -61,16 +67,26 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 		SymbolicStatePoint init = new SymbolicStatePoint();
 		init.modeName = config.init.entrySet().iterator().next().getKey();
 		init.hp = AutomatonUtil.getInitialPoint(ha, config);
-		List<SymbolicStatePoint> states = pythonSimulate(config, init, times);
+		List<SymbolicStatePoint> states = simulate(config, init, times);
 
 		List<String> modes = new ArrayList<String>(times.size());
 		List<HyperPoint> points = new ArrayList<HyperPoint>(times.size());
 		List<HyperPoint> dirs = new ArrayList<HyperPoint>(times.size());
+		Map<String, CompiledExpression[]> modeGradients =
+				new HashMap<String, CompiledExpression[]>();
 
 		for (SymbolicStatePoint ss : states)
 		{
 			AutomatonMode mode = ha.modes.get(ss.modeName);
-			double[] gradient = AutomatonUtil.getGradientAtPoint(mode, ss.hp);
+			CompiledExpression[] modeGradient = modeGradients.get(mode.name);
+
+			if (modeGradient == null)
+			{
+				modeGradient = AutomatonUtil.compileGradient(mode, ss.hp.dims.length);
+				modeGradients.put(mode.name, modeGradient);
+			}
+
+			double[] gradient = AutomatonUtil.getGradientAtPoint(modeGradient, ss.hp);
 
 			modes.add(mode.name);
 			points.add(new HyperPoint(ss.hp));
@@ -85,7 +101,23 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 	}
 
 	/**
-	 * Simulate the automaton, getting the state at a series of times
+	 * Simulate the automaton using the native simulator, getting the state at a series of times
+	 * 
+	 * @param automaton
+	 * @param start
+	 *            the start state
+	 * @param times
+	 *            the times where to return the state
+	 * @return the state at each of the times
+	 */
+	public static List<SymbolicStatePoint> simulate(Configuration automaton,
+			SymbolicStatePoint start, List<Double> times)
+	{
+		return new HybridSimulator(automaton).simulateTimes(start, times);
+	}
+
+	/**
+	 * Simulate the automaton using pysim, getting the state at a series of times
 	 * 
 	 * @param automaton
 	 * @param start
@@ -101,16 +133,19 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 			throw new AutomatonExportException("start point had " + start.hp.dims.length
 					+ " dimensions; expected " + automaton.root.variables.size());
 
+		if (PythonBridge.getTransport() == PythonBridge.Transport.FRAMED)
+			return framedPythonSimulate(automaton, start, times);
+
 		PythonBridge pb = PythonBridge.getInstance();
 		pb.send("from pythonbridge.pysim_utils import simulate_times");
 
+		String ha = pb.defineAutomaton(PySimPrinter.automatonToString(automaton));
 		StringBuilder s = new StringBuilder();
-		s.append(PySimPrinter.automatonToString(automaton));
 
 		String point = "[" + StringOperations.join(",", start.hp.dims) + "]";
 		String timesStr = "[" + StringOperations.join(",", times.toArray(new Double[0])) + "]";
 
-		s.append("print simulate_times(define_ha(), '" + start.modeName + "', " + point + ", "
+		s.append("print simulate_times(" + ha + ", '" + start.modeName + "', " + point + ", "
 				+ timesStr + ")");
 
 		String result = pb.send(s.toString());
@@ -136,6 +171,36 @@ public class PseudoInvariantSimulatePass extends TransformationPass
 		return rv;
 	}
 
+	/**
+	 * pythonSimulate using the FramedPythonBridge, where the point, times and result states are
+	 * sent as arrays of doubles rather than as text
+	 */
+	private static List<SymbolicStatePoint> framedPythonSimulate(Configuration automaton,
+			SymbolicStatePoint start, List<Double> times)
+	{
+		Map<String, double[]> arrays = new HashMap<String, double[]>();
+		arrays.put("_point", start.hp.dims);
+
+		double[] timesArray = new double[times.size()];
+
+		for (int i = 0; i < timesArray.length; ++i)
+			timesArray[i] = times.get(i);
+
+		arrays.put("_times", timesArray);
+
+		FramedPythonBridge fb = FramedPythonBridge.getInstance();
+		String ha = fb.defineAutomaton(PySimPrinter.automatonToString(automaton));
+
+		StringBuilder s = new StringBuilder();
+		s.append("from pythonbridge.pysim_utils import simulate_times_states\n");
+		s.append("result_text, result_doubles = encode_states(simulate_times_states(" + ha + ", '"
+				+ start.modeName + "', _point, _times))");
+
+		Response r = fb.call(s.toString(), arrays);
+
+		return r.getStates(start.hp.dims.length);
+	}
+
 	public static String makeParamString(double... times)
 	{
 		StringBuilder rv = new StringBuilder();
@@ -65,7 +65,7 @@ public class C2E2Printer extends ToolPrinter
 
 		this.printCommentHeader();
 
-		Expression.expressionPrinter = new HyCompExpressionPrinter(); // TODO:
+		setExpressionPrinter(new HyCompExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
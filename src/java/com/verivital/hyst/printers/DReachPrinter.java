@@ -400,7 +400,7 @@ public class DReachPrinter extends ToolPrinter
 	@Override
 	protected void printAutomaton()
 	{
-		Expression.expressionPrinter = new DReachExpressionPrinter(); // TODO:
+		setExpressionPrinter(new DReachExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
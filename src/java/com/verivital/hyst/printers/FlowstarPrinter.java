@@ -878,7 +878,7 @@ public class FlowstarPrinter extends ToolPrinter
 	{
 		this.ha = (BaseComponent) config.root;
 		flowstarExpressionPrinter = new FlowstarExpressionPrinter();
-		Expression.expressionPrinter = flowstarExpressionPrinter;
+		setExpressionPrinter(flowstarExpressionPrinter);
 
 		if (ha.modes.containsKey("init"))
 			throw new AutomatonExportException("mode named 'init' is not allowed in Flow* printer");
@@ -63,7 +63,7 @@ public class HyCompPrinter extends ToolPrinter
 
 		this.printCommentHeader();
 
-		Expression.expressionPrinter = new HyCompExpressionPrinter(); // TODO:
+		setExpressionPrinter(new HyCompExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
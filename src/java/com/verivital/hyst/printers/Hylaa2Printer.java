@@ -292,9 +292,9 @@ public class Hylaa2Printer extends ToolPrinter
 
 				for (ArrayList<Double> bounds : minkowskiBounds)
 				{
-					String max = Expression.expressionPrinter
+					String max = Expression.getExpressionPrinter()
 							.print(new Constant(bounds.get(1).doubleValue()));
-					String negMin = Expression.expressionPrinter
+					String negMin = Expression.getExpressionPrinter()
 							.print(new Constant(-1 * bounds.get(0).doubleValue()));
 
 					line.append(max + ", ");
@@ -401,7 +401,7 @@ public class PDHAPrinter extends ToolPrinter
 	@Override
 	protected void printAutomaton()
 	{
-		Expression.expressionPrinter = new PDHAExpressionPrinter(); // TODO:
+		setExpressionPrinter(new PDHAExpressionPrinter()); // TODO:
 																		// move
 																		// to
 																		// constructor?
@@ -69,7 +69,7 @@ public class PySimPrinter extends ToolPrinter
 	@Option(name = "-ydim", usage = "plot y dim", metaVar = "DIM_INDEX")
 	int plotYDim = -1;
 
-	private static PySimExpressionPrinter pySimExpressionPrinter = new PySimExpressionPrinter();
+	private PySimExpressionPrinter pySimExpressionPrinter = new PySimExpressionPrinter();
 
 	private static final String COMMENT_CHAR = "#";
 	public BaseComponent ha;
@@ -457,11 +457,6 @@ public class PySimPrinter extends ToolPrinter
 	 */
 	public static String automatonToString(Configuration config, PythonPrinterCustomization custom)
 	{
-		ExpressionPrinter savedPrinter = Expression.expressionPrinter;
-
-		Expression.expressionPrinter = pySimExpressionPrinter;
-		pySimExpressionPrinter.ha = (BaseComponent) config.root;
-
 		StringBuilder rv = new StringBuilder();
 
 		if (!(config.root instanceof BaseComponent))
@@ -470,36 +465,45 @@ public class PySimPrinter extends ToolPrinter
 
 		BaseComponent ha = (BaseComponent) config.root;
 
-		if (custom != null)
-			for (String line : custom.getImportLines(ha))
-				appendLine(rv, line);
+		// this is called from passes as well as printers, so only change the printer temporarily
+		PySimExpressionPrinter exprPrinter = new PySimExpressionPrinter();
+		exprPrinter.ha = ha;
+		ExpressionPrinter savedPrinter = Expression.setThreadPrinter(exprPrinter);
 
-		appendNewline(rv);
+		try
+		{
+			if (custom != null)
+				for (String line : custom.getImportLines(ha))
+					appendLine(rv, line);
 
-		appendLine(rv, "def define_ha():");
-		appendIndentedLine(rv, "'''make the hybrid automaton and return it'''");
-		appendNewline(rv);
-		appendIndentedLine(rv, "ha = " + custom.automatonObjectName + "()");
-		appendNewline(rv);
+			appendNewline(rv);
 
-		for (String line : custom.getExtraDeclarationPrintLines(ha))
-			appendIndentedLine(rv, line);
+			appendLine(rv, "def define_ha():");
+			appendIndentedLine(rv, "'''make the hybrid automaton and return it'''");
+			appendNewline(rv);
+			appendIndentedLine(rv, "ha = " + custom.automatonObjectName + "()");
+			appendNewline(rv);
 
-		appendModes(rv, ha, custom);
-		appendJumps(rv, ha, custom);
-		appendNewline(rv);
-		appendIndentedLine(rv, "return ha");
-		appendNewline(rv);
+			for (String line : custom.getExtraDeclarationPrintLines(ha))
+				appendIndentedLine(rv, line);
 
-		appendLine(rv, "def define_init_states(ha):");
+			appendModes(rv, ha, custom);
+			appendJumps(rv, ha, custom);
+			appendNewline(rv);
+			appendIndentedLine(rv, "return ha");
+			appendNewline(rv);
 
-		for (String line : custom.getInitLines(config))
-			appendIndentedLine(rv, line);
+			appendLine(rv, "def define_init_states(ha):");
 
-		appendNewline(rv);
+			for (String line : custom.getInitLines(config))
+				appendIndentedLine(rv, line);
 
-		// restore expressionPrinter
-		Expression.expressionPrinter = savedPrinter;
+			appendNewline(rv);
+		}
+		finally
+		{
+			Expression.setThreadPrinter(savedPrinter);
+		}
 
 		return rv.toString();
 	}
@@ -608,7 +612,7 @@ public class PySimPrinter extends ToolPrinter
 	protected void printAutomaton()
 	{
 		this.ha = (BaseComponent) config.root;
-		Expression.expressionPrinter = pySimExpressionPrinter;
+		setExpressionPrinter(pySimExpressionPrinter);
 		pySimExpressionPrinter.ha = ha;
 
 		printDocument(originalFilename);
@@ -277,7 +277,7 @@ public class PythonQBMCPrinter extends ToolPrinter
 			}
 			printLine("Implies(cur_mode == " + ModeNamesToIds.get(e.getKey()) + ",");
 			increaseIndentation();
-			Expression.expressionPrinter = InvariantExpressionPrinter;
+			setExpressionPrinter(InvariantExpressionPrinter);
 			printLine("And(next_mode == cur_mode,");
 			if (e.getValue().invariant.toString() != "true")
 			{
@@ -547,7 +547,7 @@ public class PythonQBMCPrinter extends ToolPrinter
 		printLine("Or(");
 
 		String text = "";
-		Expression.expressionPrinter = curExpressionPrinter;
+		setExpressionPrinter(curExpressionPrinter);
 		for (AutomatonTransition transition : ha.transitions)
 		{
 			if (!transition.from.name.equals(mode.name))
@@ -26,6 +26,7 @@ import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.matlab.MatlabBridge;
 import com.verivital.hyst.util.Classification;
 import com.verivital.hyst.util.RangeExtractor;
@@ -157,10 +158,10 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 
 		printCommentBlock(Hyst.TOOL_NAME + "\n" + "Hybrid Automaton in " + Hyst.TOOL_NAME + "\n"
 				+ "Converted from file: " + originalFilename + "\n" + "Command Line arguments: "
-				+ Hyst.programArguments);
+				+ HystContext.get().programArguments);
 
-		Expression.expressionPrinter = new SimulinkStateflowPrinter.SimulinkStateflowExpressionPrinter(
-				0); // TODO:
+		setExpressionPrinter(new SimulinkStateflowPrinter.SimulinkStateflowExpressionPrinter(
+				0)); // TODO:
 		// move
 		// to
 		// constructor?
@@ -383,7 +384,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		if (e instanceof Variable)
 		{
-			if (e.toString().equals(v))
+			if (((Variable) e).name.equals(v))
 			{
 				return e.getParent();
 			}
@@ -419,7 +420,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 		{
 			if (e instanceof Variable)
 			{
-				if (e.toString().equals(v))
+				if (((Variable) e).name.equals(v))
 				{
 					coeff = "1";
 				}
@@ -438,7 +439,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 					Expression r = o.getRight();
 					if (r instanceof Variable && l instanceof Constant)
 					{
-						if (r.toString().equals(v))
+						if (m_printer.print(r).equals(v))
 						{
 							coeff = Double.toString(((Constant) l).getVal());
 							if (o.getParent() != null)
@@ -452,7 +453,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 					}
 					else if (l instanceof Variable && r instanceof Constant)
 					{
-						if (l.toString().equals(v))
+						if (m_printer.print(l).equals(v))
 						{
 							coeff = Double.toString(((Constant) r).getVal());
 							found = true;
@@ -464,7 +465,8 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 
 					if (o.getRight() instanceof Variable || o.getLeft() instanceof Variable)
 					{
-						if (o.getRight().toString().equals(v) || o.getLeft().toString().equals(v))
+						if (m_printer.print(o.getRight()).equals(v)
+								|| m_printer.print(o.getLeft()).equals(v))
 						{
 							coeff = "1";
 							found = true;
@@ -1041,7 +1043,6 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		this.m_printer = new SimulinkStateflowExpressionPrinter(0);
 		this.m_randoms = 0;
-		Expression.expressionPrinter = m_printer;
 		this.IS_ADD_EPS = false;
 		STATE_IN_PART = null;
 		TRANS_DWELL2LEAVE_STRING = null;
@@ -1072,7 +1073,6 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	{
 		this.m_printer = new SimulinkStateflowExpressionPrinter(prettyPrintThreshold);
 		this.m_randoms = 0;
-		Expression.expressionPrinter = m_printer;
 		this.IS_ADD_EPS = isAddEpsilon;
 
 		StringBuilder builder;
@@ -1250,7 +1250,7 @@ public class SimulinkStateflowPrinter extends ToolPrinter
 	protected void printAutomaton()
 	{
 		this.ha = (BaseComponent) config.root;
-		Expression.expressionPrinter = new SimulinkStateflowExpressionPrinter(0);
+		setExpressionPrinter(new SimulinkStateflowExpressionPrinter(0));
 
 		// remove this after proper support for multiple initial modes is added
 		// if (ha.init.size() != 1)
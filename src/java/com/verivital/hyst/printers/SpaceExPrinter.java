@@ -154,7 +154,7 @@ public class SpaceExPrinter extends ToolPrinter
 
 		String note = this.getCommentHeader();
 
-		Expression.expressionPrinter = new SpaceExExpressionPrinter();
+		setExpressionPrinter(new SpaceExExpressionPrinter());
 
 		SpaceExDocument doc = null;
 
@@ -16,9 +16,12 @@ import java.util.Locale;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.ExpressionPrinter;
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.ir.Configuration;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.main.HystFrame;
 import com.verivital.hyst.util.AutomatonUtil;
 import com.verivital.hyst.util.CmdLineRuntimeException;
@@ -82,8 +85,15 @@ public abstract class ToolPrinter
 	private HystFrame outputFrame; // used if printType = GUI
 	public StringBuffer outputString; // used if printType = STRING
 
-	// static
-	private static DecimalFormat df;
+	// DecimalFormat isn't thread-safe, so each thread has its own
+	private static final ThreadLocal<DecimalFormat> df = new ThreadLocal<DecimalFormat>()
+	{
+		@Override
+		protected DecimalFormat initialValue()
+		{
+			return makeDecimalFormat();
+		}
+	};
 
 	public void setOutputFile(String filename)
 	{
@@ -137,6 +147,10 @@ public abstract class ToolPrinter
 			throw new CmdLineRuntimeException(message, e);
 		}
 
+		// expression printers set during printing only apply to this call
+		ExpressionPrinter savedPrinter = Expression
+				.setThreadPrinter(Expression.getExpressionPrinter());
+
 		try
 		{
 			outputString = null;
@@ -175,6 +189,8 @@ public abstract class ToolPrinter
 		}
 		finally
 		{
+			Expression.setThreadPrinter(savedPrinter);
+
 			if (shouldCloseStream && outputStream != null)
 				outputStream.close();
 		}
@@ -268,7 +284,7 @@ public abstract class ToolPrinter
 	{
 		return "Created by " + Hyst.TOOL_NAME + "\n" + "Hybrid Automaton in " + this.getToolName()
 				+ "\n" + "Converted from file: " + originalFilename + "\n"
-				+ "Command Line arguments: " + Hyst.programArguments;
+				+ "Command Line arguments: " + HystContext.get().programArguments;
 	}
 
 	/**
@@ -358,20 +374,39 @@ public abstract class ToolPrinter
 		return false;
 	}
 
+	/**
+	 * Reset the number format used by doubleToString() on the current thread
+	 */
 	public static void initDecimalPrinter()
 	{
-		df = new DecimalFormat("0.#", new DecimalFormatSymbols(Locale.ENGLISH));
-		df.setMaximumFractionDigits(50);
+		df.set(makeDecimalFormat());
 	}
 
-	static
+	private static DecimalFormat makeDecimalFormat()
 	{
-		initDecimalPrinter();
+		DecimalFormat rv = new DecimalFormat("0.#", new DecimalFormatSymbols(Locale.ENGLISH));
+		rv.setMaximumFractionDigits(50);
+
+		return rv;
 	}
 
 	public static String doubleToString(double n)
 	{
-		return df.format(n);
+		return df.get().format(n);
+	}
+
+	/**
+	 * Set the printer used when expressions are converted to strings (Expression.toString()) on
+	 * the current thread. This lasts until the end of the current print() call, so printers should
+	 * call this from printAutomaton() (or a method it calls), rather than assigning the global
+	 * Expression.expressionPrinter.
+	 * 
+	 * @param printer
+	 *            the printer to use
+	 */
+	protected void setExpressionPrinter(ExpressionPrinter printer)
+	{
+		Expression.setThreadPrinter(printer);
 	}
 
 	public void flush()
@@ -35,6 +35,7 @@ import com.verivital.hyst.ir.base.AutomatonTransition;
 import com.verivital.hyst.ir.base.BaseComponent;
 import com.verivital.hyst.ir.base.ExpressionInterval;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.passes.basic.SimplifyExpressionsPass;
 import com.verivital.hyst.passes.basic.SubstituteConstantsPass;
 import com.verivital.hyst.printers.ToolPrinter;
@@ -44,6 +45,7 @@ import com.verivital.hyst.util.RangeExtractor;
 import com.verivital.hyst.util.RangeExtractor.ConstantMismatchException;
 import com.verivital.hyst.util.RangeExtractor.EmptyRangeException;
 import com.verivital.hyst.util.RangeExtractor.UnsupportedConditionException;
+import com.verivital.hyst.util.ValueSubstituter;
 
 public class HyCreate2Printer extends ToolPrinter
 {
@@ -84,7 +86,7 @@ public class HyCreate2Printer extends ToolPrinter
 		// add comment to global section
 		data.setGlobalText(
 				"// Made using " + Hyst.TOOL_NAME + " from model file " + originalFilename + "\n"
-						+ "// Command line arguments were: " + Hyst.programArguments);
+						+ "// Command line arguments were: " + HystContext.get().programArguments);
 
 		String version = "File Version 3";
 
@@ -277,7 +279,7 @@ public class HyCreate2Printer extends ToolPrinter
 		// next iterate from 0 to maxIterator (try each bit-array combination)
 		for (int iterator = 0; iterator < maxIterator; ++iterator)
 		{
-			Expression iExpression = exp.copy();
+			TreeMap<String, Expression> subs = new TreeMap<String, Expression>();
 
 			// extract each dimension's boolean true/false values from iterator
 			int mask = 0x01;
@@ -290,10 +292,12 @@ public class HyCreate2Printer extends ToolPrinter
 				String var = vars.get(dimIndex);
 				String varSubbed = var + "." + (isMin ? "min" : "max");
 
-				iExpression = AutomatonUtil.substituteVariable(iExpression, var,
-						new Variable(varSubbed));
+				subs.put(var, new Variable(varSubbed));
 			}
 
+			// substitute every variable in one pass (the result is only printed)
+			Expression iExpression = new ValueSubstituter(subs).substituteShared(exp);
+
 			// e is the new expression
 			sb.append("sat = sat || (" + iExpression + ");\n");
 		}
@@ -510,7 +514,7 @@ public class HyCreate2Printer extends ToolPrinter
 				// combination)
 				for (int iterator = 0; iterator < maxIterator; ++iterator)
 				{
-					Expression iExpression = exp.copy();
+					TreeMap<String, Expression> subs = new TreeMap<String, Expression>();
 
 					// extract each dimension's boolean true/false values from
 					// iterator
@@ -524,10 +528,12 @@ public class HyCreate2Printer extends ToolPrinter
 						String var = vars.get(dimIndex);
 						String varSubbed = var + "." + (isMin ? "min" : "max");
 
-						iExpression = AutomatonUtil.substituteVariable(iExpression, var,
-								new Variable(varSubbed));
+						subs.put(var, new Variable(varSubbed));
 					}
 
+					// substitute every variable in one pass (the result is only printed)
+					Expression iExpression = new ValueSubstituter(subs).substituteShared(exp);
+
 					// e is the new expression
 					sb.append("$" + variableName + ".expand(" + iExpression + ");\n");
 
@@ -613,7 +619,7 @@ public class HyCreate2Printer extends ToolPrinter
 	{
 		this.ha = (BaseComponent) config.root;
 
-		Expression.expressionPrinter = new HyCreateExpressionPrinter();
+		setExpressionPrinter(new HyCreateExpressionPrinter());
 
 		// convert urgent transitions
 		AutomatonUtil.convertUrgentTransitions(ha, config);
@@ -0,0 +1,144 @@
+package com.verivital.hyst.python;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * Tracks which automata (python code defining define_ha(), see PySimPrinter.automatonToString) are
+ * defined in a python process. Each automaton is created once, by evaluating define_ha() into a
+ * python variable (the handle) whose name is derived from a hash of the code. Later calls with the
+ * same code refer to the handle rather than resending the code. If the configuration changes, the
+ * code and therefore the handle changes, so stale definitions are never used.
+ *
+ * The least-recently used handles are deleted from python when more than MAX_DEFINED automata are
+ * defined. Each bridge process has its own instance, since the handles are per-process.
+ */
+public class AutomatonDefinitions
+{
+	private static final int MAX_DEFINED = 8;
+	private static final String HANDLE_PREFIX = "_hyst_ha_";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// iteration order is least-recently used first
+	private final LinkedHashSet<String> handles = new LinkedHashSet<String>();
+
+	/**
+	 * Get the handle for the given automaton code
+	 *
+	 * @param automatonText
+	 *            python code which defines define_ha()
+	 * @return the python variable name where the automaton is stored
+	 */
+	public static String getHandle(String automatonText)
+	{
+		MessageDigest md;
+
+		try
+		{
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new AutomatonExportException("SHA-1 not supported", e);
+		}
+
+		byte[] digest = md.digest(automatonText.getBytes(UTF8));
+		StringBuilder rv = new StringBuilder(HANDLE_PREFIX);
+
+		for (byte b : digest)
+			rv.append(String.format("%02x", b & 0xff));
+
+		return rv.toString();
+	}
+
+	/**
+	 * Is the handle defined? This also marks it as recently used.
+	 *
+	 * @param handle
+	 *            the handle from getHandle()
+	 * @return true if the automaton is defined in python
+	 */
+	public boolean isDefined(String handle)
+	{
+		boolean rv = handles.remove(handle);
+
+		if (rv)
+			handles.add(handle);
+
+		return rv;
+	}
+
+	/**
+	 * Record that the handle was defined in python
+	 *
+	 * @param handle
+	 *            the handle from getHandle()
+	 * @return the handles which should now be deleted from python
+	 */
+	public List<String> add(String handle)
+	{
+		List<String> rv = new ArrayList<String>();
+		handles.add(handle);
+
+		Iterator<String> it = handles.iterator();
+
+		while (handles.size() - rv.size() > MAX_DEFINED)
+		{
+			rv.add(it.next());
+			it.remove();
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Forget all the handles, for example if the python process was closed
+	 */
+	public void clear()
+	{
+		handles.clear();
+	}
+
+	/**
+	 * Get the python code which defines the automaton and stores it in the handle
+	 *
+	 * @param automatonText
+	 *            python code which defines define_ha()
+	 * @param handle
+	 *            the handle from getHandle()
+	 * @return the code to execute
+	 */
+	public static String makeDefinitionCode(String automatonText, String handle)
+	{
+		return automatonText + "\n" + handle + " = define_ha()";
+	}
+
+	/**
+	 * Get the python code which deletes the automata stored in some handles
+	 *
+	 * @param evicted
+	 *            the handles to delete
+	 * @return the code to execute
+	 */
+	public static String makeDeleteCode(List<String> evicted)
+	{
+		StringBuilder rv = new StringBuilder("del ");
+
+		for (int i = 0; i < evicted.size(); ++i)
+		{
+			if (i > 0)
+				rv.append(", ");
+
+			rv.append(evicted.get(i));
+		}
+
+		return rv.toString();
+	}
+}
@@ -0,0 +1,544 @@
+package com.verivital.hyst.python;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * This class is a java <-> python interface which exchanges length-prefixed binary messages with a
+ * server loop (pythonbridge/framed_server.py, see there for the message format), rather than
+ * driving the interactive interpreter like PythonBridge.
+ *
+ * Each request is python code together with named arrays of doubles, and each response is a text
+ * part and an array of doubles. Numeric data (points, intervals, bounds) is therefore sent as
+ * packed little-endian doubles instead of decimal text, and no prompt detection or output parsing
+ * is needed.
+ *
+ * It is a singleton, use getInstance() to get an instance of the bridge. Which bridge is used by
+ * the python utility methods is selected with HystContext.pythonTransport (-python_framed).
+ */
+public class FramedPythonBridge
+{
+	private static FramedPythonBridge instance = null;
+	private static final int STARTUP_TIMEOUT = 10000; // 10 seconds
+	public static final int NO_TIMEOUT = -1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte STATUS_OK = 0;
+	private static final byte[] END_OF_STREAM = new byte[0];
+
+	private int timeoutMs = NO_TIMEOUT;
+	private Process process = null;
+	private OutputStream stdin = null;
+	private BlockingQueue<byte[]> responses = null;
+	private final StringBuffer stderrText = new StringBuffer();
+	private final AutomatonDefinitions automata = new AutomatonDefinitions();
+
+	public static synchronized FramedPythonBridge getInstance()
+	{
+		if (instance == null)
+			instance = new FramedPythonBridge();
+
+		return instance;
+	}
+
+	private FramedPythonBridge()
+	{
+		open();
+
+		final FramedPythonBridge bridge = this;
+
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			public void run()
+			{
+				bridge.close();
+			}
+		});
+	}
+
+	/**
+	 * Sets the timeout for each call in milliseconds, use NO_TIMEOUT for no timeout (the default)
+	 *
+	 * @param timeoutMs
+	 */
+	public void setTimeout(int timeoutMs)
+	{
+		this.timeoutMs = timeoutMs;
+	}
+
+	private void open()
+	{
+		String loc = PythonBridge.locatePython();
+
+		if (loc == null)
+			error("Error starting python process. Is 'python2.7' or 'python' on your PATH or "
+					+ PythonBridge.PYTHON_PATH_ENV_VAR + "?");
+
+		ProcessBuilder pb = new ProcessBuilder(loc, "-u", "-m", "pythonbridge.framed_server");
+		pb.directory(new File(PythonBridge.getJarBaseDirectory()));
+
+		Hyst.log("Opening framed python server process.");
+
+		try
+		{
+			process = pb.start();
+		}
+		catch (IOException e)
+		{
+			error("Exception while starting python process: " + e.toString());
+		}
+
+		stdin = process.getOutputStream();
+		responses = new ArrayBlockingQueue<byte[]>(1);
+		startResponseReader(process.getInputStream(), responses);
+		startStderrReader(process.getErrorStream());
+
+		int savedTimeout = timeoutMs;
+		timeoutMs = STARTUP_TIMEOUT;
+		StringBuilder s = new StringBuilder("import sys\n");
+
+		for (String pack : PythonBridge.REQUIRED_PACKAGES)
+			s.append("import " + pack + "\n");
+
+		s.append("result_text = sys.version");
+		Response r = null;
+
+		try
+		{
+			r = call(s.toString());
+		}
+		catch (AutomatonExportException e)
+		{
+			error("Error starting framed python server: " + e.getMessage());
+		}
+
+		timeoutMs = savedTimeout;
+
+		Hyst.log("Framed python server opened successfully. Version: " + r.text);
+	}
+
+	private static void startResponseReader(InputStream stream, final BlockingQueue<byte[]> queue)
+	{
+		final DataInputStream in = new DataInputStream(stream);
+
+		Thread t = new Thread("framed python response reader")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					try
+					{
+						byte[] header = new byte[4];
+
+						while (true)
+						{
+							in.readFully(header);
+							int len = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt();
+
+							byte[] payload = new byte[len];
+							in.readFully(payload);
+
+							queue.put(payload);
+						}
+					}
+					catch (IOException e)
+					{
+						// end of stream (or the stream was closed)
+					}
+
+					queue.put(END_OF_STREAM);
+				}
+				catch (InterruptedException e)
+				{
+					// reader was stopped
+				}
+			}
+		};
+
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void startStderrReader(InputStream stream)
+	{
+		final Reader r = new InputStreamReader(stream);
+
+		Thread t = new Thread("framed python stderr reader")
+		{
+			@Override
+			public void run()
+			{
+				char[] buf = new char[4096];
+				int len;
+
+				try
+				{
+					while ((len = r.read(buf)) != -1)
+					{
+						String s = new String(buf, 0, len);
+						Hyst.logDebug("Python stderr: " + s);
+						stderrText.append(s);
+					}
+				}
+				catch (IOException e)
+				{
+					// stream was closed
+				}
+			}
+		};
+
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Close the process (if needed), and raise an error
+	 *
+	 * @param description
+	 *            the error description
+	 */
+	private void error(String description)
+	{
+		Hyst.logDebug(description);
+		close();
+
+		throw new AutomatonExportException(description);
+	}
+
+	private synchronized void close()
+	{
+		if (process != null)
+		{
+			try
+			{
+				process.getInputStream().close();
+				process.getOutputStream().close();
+				process.getErrorStream().close();
+			}
+			catch (IOException e)
+			{
+			}
+
+			process.destroy();
+
+			try
+			{
+				process.waitFor();
+			}
+			catch (InterruptedException e)
+			{
+			}
+
+			process = null;
+			stdin = null;
+			responses = null;
+			automata.clear();
+
+			synchronized (FramedPythonBridge.class)
+			{
+				if (instance == this)
+					instance = null;
+			}
+		}
+	}
+
+	/**
+	 * Execute python code in the server
+	 *
+	 * @param code
+	 *            the code to execute, which may span multiple lines. To return data, assign
+	 *            'result_text' and/or 'result_doubles'.
+	 * @return the response
+	 */
+	public Response call(String code)
+	{
+		return call(code, Collections.<String, double[]> emptyMap());
+	}
+
+	/**
+	 * Execute python code in the server, binding some arrays of numbers first
+	 *
+	 * @param code
+	 *            the code to execute, which may span multiple lines. To return data, assign
+	 *            'result_text' and/or 'result_doubles'.
+	 * @param arrays
+	 *            arrays to bind (as lists of floats) in the python namespace before executing the
+	 *            code
+	 * @return the response
+	 */
+	public synchronized Response call(String code, Map<String, double[]> arrays)
+	{
+		if (process == null)
+			error("call() made but the framed python process is not running.");
+
+		Hyst.logDebug("Sending framed request to python: " + code);
+		byte[] payload = null;
+
+		try
+		{
+			stdin.write(encodeRequest(code, arrays));
+			stdin.flush();
+
+			if (timeoutMs < 0)
+				payload = responses.take();
+			else
+				payload = responses.poll(timeoutMs, TimeUnit.MILLISECONDS);
+		}
+		catch (IOException e)
+		{
+			error("Error while sending request to python: " + e + stderrSuffix());
+		}
+		catch (InterruptedException e)
+		{
+			error("Interrupted while waiting for python response.");
+		}
+
+		if (payload == null)
+			error("Timeout (" + timeoutMs + " ms) reached during python interaction."
+					+ stderrSuffix());
+		else if (payload == END_OF_STREAM)
+			error("End of output stream was reached while reading python response."
+					+ stderrSuffix());
+
+		Response rv = decodeResponse(payload);
+		stderrText.setLength(0);
+
+		return rv;
+	}
+
+	/**
+	 * Define a hybrid automaton in python, unless it was already defined. The automaton is stored
+	 * in a python variable (the returned handle), so repeated calls with the same automaton don't
+	 * need to resend its definition.
+	 *
+	 * @param automatonText
+	 *            the python code defining define_ha(), see PySimPrinter.automatonToString()
+	 * @return the name of the python variable containing the automaton object
+	 */
+	public synchronized String defineAutomaton(String automatonText)
+	{
+		String handle = AutomatonDefinitions.getHandle(automatonText);
+
+		if (!automata.isDefined(handle))
+		{
+			call(AutomatonDefinitions.makeDefinitionCode(automatonText, handle));
+
+			List<String> evicted = automata.add(handle);
+
+			if (evicted.size() > 0)
+				call(AutomatonDefinitions.makeDeleteCode(evicted));
+		}
+
+		return handle;
+	}
+
+	private String stderrSuffix()
+	{
+		return stderrText.length() == 0 ? "" : "\nStderr was: '" + stderrText + "'";
+	}
+
+	/**
+	 * Encode a request message (including its length prefix), see framed_server.py for the format
+	 *
+	 * @param code
+	 *            the python code to execute
+	 * @param arrays
+	 *            the arrays to bind before executing the code
+	 * @return the message bytes
+	 */
+	public static byte[] encodeRequest(String code, Map<String, double[]> arrays)
+	{
+		byte[] codeBytes = code.getBytes(UTF8);
+		List<byte[]> names = new ArrayList<byte[]>(arrays.size());
+		int size = 4 + codeBytes.length + 4;
+
+		for (Entry<String, double[]> e : arrays.entrySet())
+		{
+			byte[] name = e.getKey().getBytes(UTF8);
+			names.add(name);
+
+			size += 4 + name.length + 4 + 8 * e.getValue().length;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(4 + size).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(size);
+		buf.putInt(codeBytes.length);
+		buf.put(codeBytes);
+		buf.putInt(arrays.size());
+
+		int index = 0;
+
+		for (double[] values : arrays.values())
+		{
+			byte[] name = names.get(index++);
+
+			buf.putInt(name.length);
+			buf.put(name);
+			buf.putInt(values.length);
+
+			for (double d : values)
+				buf.putDouble(d);
+		}
+
+		return buf.array();
+	}
+
+	/**
+	 * Decode a response payload (without its length prefix), see framed_server.py for the format
+	 *
+	 * @param payload
+	 *            the payload bytes
+	 * @return the decoded response
+	 * @throws AutomatonExportException
+	 *             if the response is an error response, with the python traceback in the message
+	 */
+	public static Response decodeResponse(byte[] payload)
+	{
+		ByteBuffer buf = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+		byte status = buf.get();
+
+		byte[] textBytes = new byte[buf.getInt()];
+		buf.get(textBytes);
+		String text = new String(textBytes, UTF8);
+
+		double[] doubles = new double[buf.getInt()];
+
+		for (int i = 0; i < doubles.length; ++i)
+			doubles[i] = buf.getDouble();
+
+		if (status != STATUS_OK)
+			throw new AutomatonExportException("Python raised an exception:\n" + text);
+
+		return new Response(text, doubles);
+	}
+
+	/**
+	 * The result of a call: the assigned result_text and result_doubles
+	 */
+	public static class Response
+	{
+		public final String text;
+		public final double[] doubles;
+
+		public Response(String text, double[] doubles)
+		{
+			this.text = text;
+			this.doubles = doubles;
+		}
+
+		/**
+		 * Interpret the doubles as a list of intervals [min0, max0, min1, max1, ...]
+		 *
+		 * @return the list of intervals
+		 */
+		public ArrayList<Interval> getIntervals()
+		{
+			if (doubles.length % 2 != 0)
+				throw new AutomatonExportException(
+						"Expected an even number of values for interval list, got " + doubles.length);
+
+			ArrayList<Interval> rv = new ArrayList<Interval>(doubles.length / 2);
+
+			for (int i = 0; i < doubles.length; i += 2)
+			{
+				// set directly, since empty ranges are represented as [inf, -inf]
+				Interval interval = new Interval();
+				interval.min = doubles[i];
+				interval.max = doubles[i + 1];
+
+				rv.add(interval);
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Interpret the response as a list of states encoded with encode_states() in
+		 * framed_server.py
+		 *
+		 * @param numDims
+		 *            the number of dimensions of each point
+		 * @return the list of states
+		 */
+		public ArrayList<SymbolicStatePoint> getStates(int numDims)
+		{
+			int[] offset = { 0 };
+			ArrayList<SymbolicStatePoint> rv = decodeStates(text, numDims, offset);
+
+			if (offset[0] != doubles.length)
+				throw new AutomatonExportException("Number of values in response (" + doubles.length
+						+ ") didn't match the number of states.");
+
+			return rv;
+		}
+
+		/**
+		 * Interpret the response as a list of trajectories encoded with encode_trajectories() in
+		 * framed_server.py
+		 *
+		 * @param numDims
+		 *            the number of dimensions of each point
+		 * @return the list of trajectories
+		 */
+		public ArrayList<ArrayList<SymbolicStatePoint>> getTrajectories(int numDims)
+		{
+			ArrayList<ArrayList<SymbolicStatePoint>> rv = new ArrayList<ArrayList<SymbolicStatePoint>>();
+			int[] offset = { 0 };
+
+			for (String traj : text.split("\\|", -1))
+				rv.add(decodeStates(traj, numDims, offset));
+
+			if (offset[0] != doubles.length)
+				throw new AutomatonExportException("Number of values in response (" + doubles.length
+						+ ") didn't match the number of states.");
+
+			return rv;
+		}
+
+		private ArrayList<SymbolicStatePoint> decodeStates(String modes, int numDims, int[] offset)
+		{
+			ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>();
+
+			if (modes.length() == 0)
+				return rv;
+
+			for (String mode : modes.split(";"))
+			{
+				if (offset[0] + numDims > doubles.length)
+					throw new AutomatonExportException("Response had too few values for the states.");
+
+				HyperPoint pt = new HyperPoint(numDims);
+				System.arraycopy(doubles, offset[0], pt.dims, 0, numDims);
+				offset[0] += numDims;
+
+				rv.add(new SymbolicStatePoint(mode, pt));
+			}
+
+			return rv;
+		}
+	}
+}
@@ -1,18 +1,21 @@
 package com.verivital.hyst.python;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.URLDecoder;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 
 import com.verivital.hyst.ir.AutomatonExportException;
 import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
 import com.verivital.hyst.util.FileOperations;
+import com.verivital.hyst.util.ProcessOutputReader;
 
 /**
  * This class is java <-> python interface using stdin / stdout and python interactive mode
@@ -20,6 +23,11 @@ import com.verivital.hyst.util.FileOperations;
  * It is a singleton, use getInstance() to get an instance of the bridge. The bridge is reused for
  * any passes or printers which use it, so don't put it into an inconsistent state.
  * 
+ * Conversions on other threads (for example, in -server mode) share the bridge. Each command is
+ * sent atomically, but code which sends several commands that depend on each other (for example,
+ * defining functions and then calling them) should hold the bridge's lock, synchronized (pb), so
+ * that other threads' commands don't run in between.
+ * 
  * Overhead: In performance tests, I measured around 15000 function calls per second using this
  * bridge In native python, I measured 5.5 million function calls per second
  * 
@@ -27,30 +35,50 @@ import com.verivital.hyst.util.FileOperations;
  * possible), and then having python do an extended computation (even in parallel) and only then
  * printing back the result.
  * 
+ * Output is read by blocking reader threads (see ProcessOutputReader), so waiting for a long
+ * computation doesn't use any cpu. The interactive prompt (sys.ps1) is replaced by an object which
+ * prints PROMPT_SENTINEL to stdout before the '>>> ' prompt is printed to stderr, so the end of a
+ * command's stdout output can be detected reliably.
+ * 
  * @author Stanley Bak (May 2015)
  *
  */
 public class PythonBridge
 {
 	private static PythonBridge instance = null;
-	private static final String[] REQUIRED_PACKAGES = { "sympy", "scipy", "matplotlib", "math" };
+	static final String[] REQUIRED_PACKAGES = { "sympy", "scipy", "matplotlib", "math" };
 
 	// if hasPython() gives false, this gets set
 	public static String getInstanceErrorString = "No Error";
-	private static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
+	static final int DEFAULT_TIMEOUT = 10000; // 10 seconds
+	static final String PYTHON_PATH_ENV_VAR = "HYST_PYTHON_PATH";
 	public static final int NO_TIMEOUT = -1;
 
+	private static final String PROMPT = ">>> ";
+	private static final String PROMPT_SENTINEL = "\001HYST_PROMPT\001";
+	private static final String PROMPT_OBJECT = "_hyst_ps1";
+
 	private int timeoutMs;
 	private Process process = null;
-	private BufferedReader stdout = null;
-	private BufferedReader stderr = null;
+	private ProcessOutputReader output = null;
 	private Writer stdin = null;
+	private final AutomatonDefinitions automata = new AutomatonDefinitions();
 
 	private enum Status
 	{
 		FALSE, TRUE, UNKNOWN
 	}
 
+	/**
+	 * The ways to exchange data with python. INTERACTIVE drives the interpreter in interactive mode
+	 * using this class. FRAMED uses FramedPythonBridge, which exchanges length-prefixed binary
+	 * messages with a server loop (pythonbridge/framed_server.py).
+	 */
+	public enum Transport
+	{
+		INTERACTIVE, FRAMED
+	}
+
 	// these static flags
 	private static boolean blockPython = false;
 	private static Status pythonStatus = Status.UNKNOWN;
@@ -66,7 +94,23 @@ public class PythonBridge
 		blockPython = isBlocked;
 	}
 
-	public static boolean hasPython()
+	/**
+	 * Get the transport used by python utility methods which support both (for example,
+	 * PythonUtil.scipyOptimize) in the current conversion, see HystContext.pythonTransport
+	 * 
+	 * @return the transport to use
+	 */
+	public static Transport getTransport()
+	{
+		return HystContext.get().pythonTransport;
+	}
+
+	static boolean isBlocked()
+	{
+		return blockPython;
+	}
+
+	public static synchronized boolean hasPython()
 	{
 		boolean rv = false;
 
@@ -94,13 +138,13 @@ public class PythonBridge
 		return rv;
 	}
 
-	public static PythonBridge getInstance()
+	public static synchronized PythonBridge getInstance()
 	{
 		int timeout = instance == null ? DEFAULT_TIMEOUT : instance.timeoutMs;
 		return getInstance(timeout);
 	}
 
-	public static PythonBridge getInstance(int timeoutMs)
+	public static synchronized PythonBridge getInstance(int timeoutMs)
 	{
 		if (blockPython)
 		{
@@ -128,10 +172,23 @@ public class PythonBridge
 	 * @param timeoutMs
 	 */
 	public PythonBridge(int timeoutMs)
+	{
+		this(timeoutMs, true);
+	}
+
+	/**
+	 * Create a bridge. Non-singleton bridges are the workers of PythonBridgePool.
+	 * 
+	 * @param timeoutMs
+	 *            the timeout in milliseconds, or NO_TIMEOUT
+	 * @param singleton
+	 *            is this the instance returned by getInstance()
+	 */
+	PythonBridge(int timeoutMs, boolean singleton)
 	{
 		this.timeoutMs = timeoutMs;
 
-		if (instance != null)
+		if (singleton && instance != null)
 			throw new RuntimeException("Multiple instances of PythonBridge were created.");
 
 		open();
@@ -175,9 +232,10 @@ public class PythonBridge
 		log("Python process opened successfully. Preamble: \n" + preamble);
 
 		// remove the continuation prompt on multi-line commands in interactive
-		// mode "... "
-		send("import sys");
-		send("sys.ps2 = ''");
+		// mode "... ", and make the prompt also print the sentinel to stdout
+		sendAndWait("import sys; sys.ps2 = ''; " + PROMPT_OBJECT + " = type('HystPrompt', (object,), "
+				+ "{'__str__': lambda self: (sys.stdout.write('\\x01HYST_PROMPT\\x01'), "
+				+ "sys.stdout.flush(), '" + PROMPT + "')[2]})(); sys.ps1 = " + PROMPT_OBJECT);
 
 		for (String pack : REQUIRED_PACKAGES)
 		{
@@ -239,10 +297,22 @@ public class PythonBridge
 		System.err.println("Warning: " + description);
 	}
 
+	/**
+	 * Is the python process running? This is false after an error occurs.
+	 * 
+	 * @return true if the process is open
+	 */
+	boolean isOpen()
+	{
+		return process != null;
+	}
+
 	private void close()
 	{
 		if (process != null)
 		{
+			output.stop();
+
 			try
 			{
 				process.getInputStream().close();
@@ -263,9 +333,9 @@ public class PythonBridge
 			}
 
 			process = null;
-			stdout = null;
+			output = null;
 			stdin = null;
-			stderr = null;
+			automata.clear();
 		}
 	}
 
@@ -274,27 +344,11 @@ public class PythonBridge
 		if (process != null)
 			error("openProcess called but process is already open.");
 
-		String processNames[] = { "python2.7", "python", "python2.7.exe", "python.exe" };
-		final String ENV_VAR = "HYST_PYTHON_PATH";
-		String loc = null;
-
-		for (String processName : processNames)
-		{
-			try
-			{
-				loc = FileOperations.locate(processName, processName, ENV_VAR);
-				Hyst.log("Using python process at path: " + loc);
-				break;
-			}
-			catch (FileNotFoundException e)
-			{
-				Hyst.log(e.getMessage());
-			}
-		}
+		String loc = locatePython();
 
 		if (loc == null)
 			error("Error starting python process. Is 'python2.7' or 'python' on your PATH or "
-					+ ENV_VAR + "?");
+					+ PYTHON_PATH_ENV_VAR + "?");
 
 		ProcessBuilder pb = new ProcessBuilder(loc, "-i");
 		String workingDir = getJarBaseDirectory();
@@ -309,11 +363,38 @@ public class PythonBridge
 			error("Exception while starting python process: " + e.toString());
 		}
 
-		stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
-		stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+		output = new ProcessOutputReader(process, "python");
 		stdin = new OutputStreamWriter(process.getOutputStream());
 	}
 
+	/**
+	 * Find the python executable, looking first in the HYST_PYTHON_PATH environment variable and
+	 * then on PATH
+	 * 
+	 * @return the path to python, or null if it wasn't found
+	 */
+	static String locatePython()
+	{
+		String processNames[] = { "python2.7", "python", "python2.7.exe", "python.exe" };
+		String loc = null;
+
+		for (String processName : processNames)
+		{
+			try
+			{
+				loc = FileOperations.locate(processName, processName, PYTHON_PATH_ENV_VAR);
+				Hyst.log("Using python process at path: " + loc);
+				break;
+			}
+			catch (FileNotFoundException e)
+			{
+				Hyst.log(e.getMessage());
+			}
+		}
+
+		return loc;
+	}
+
 	public static String getJarBaseDirectory()
 	{
 		String path = PythonBridge.class.getProtectionDomain().getCodeSource().getLocation()
@@ -343,62 +424,23 @@ public class PythonBridge
 	}
 
 	/**
-	 * Read the python preamble off of stderr. It ends when the prompy '>>> ' is detected.
+	 * Read the python preamble off of stderr. It ends when the prompt '>>> ' is detected.
 	 * 
 	 * @return the preamble read from stderr
 	 */
 	private String readPreamble(int timeoutMs)
 	{
 		String rv = null;
-		StringBuilder sb = new StringBuilder();
-		long timeout = System.currentTimeMillis() + timeoutMs;
 
 		try
 		{
-			char[] prompt = { '>', '>', '>', ' ' };
-			int index = 0;
+			output.waitForSuffixes(null, PROMPT, timeoutMs);
 
-			while (true)
-			{
-				// sleep until there's input
-				while (!stderr.ready())
-				{
-					Thread.yield();
-
-					if (timeoutMs >= 0 && System.currentTimeMillis() >= timeout)
-						error("Timeout (" + timeoutMs
-								+ " ms) reached while reading python preamble.");
-				}
-
-				int readInt = stderr.read();
-
-				if (readInt == -1) // end of stream
-					error("End of output stream was reached while looking for python prompt.");
-
-				char c = (char) readInt;
-
-				sb.append(c);
-
-				if (c == prompt[index])
-				{
-					++index;
-
-					if (index == prompt.length)
-					{
-						// exit only if there are no more bytes to be read
-						if (!stderr.ready())
-							break;
-						else
-							index = 0;
-					}
-				}
-				else
-					index = 0;
-			}
+			StringBuilder sb = new StringBuilder(output.takeOutput(ProcessOutputReader.STDERR));
 
 			// trim off the prompt
 			int len = sb.length();
-			sb.delete(len - prompt.length, len);
+			sb.delete(len - PROMPT.length(), len);
 
 			// remove \n and \r if they're at the end of the string
 			trimSuffix(sb, '\n');
@@ -406,105 +448,44 @@ public class PythonBridge
 
 			rv = sb.toString();
 		}
-		catch (IOException e)
+		catch (TimeoutException e)
+		{
+			error("Timeout (" + timeoutMs + " ms) reached while reading python preamble.");
+		}
+		catch (EOFException e)
+		{
+			error("End of output stream was reached while looking for python prompt.");
+		}
+		catch (InterruptedException e)
 		{
-			error("Error while reading python preamble.", e);
+			error("Interrupted while reading python preamble.", e);
 		}
 
 		return rv;
 	}
 
 	/**
-	 * Read stdout until the prompt '>>> ' is given on stderr
+	 * Read stdout until the prompt sentinel is printed to stdout and the prompt '>>> ' is given on
+	 * stderr
 	 * 
-	 * @param quitOnStderr
-	 *            should we raise an exception if stderr output is detected other than the prompt?
-	 * @return output the received stdout / stderr strings
+	 * @return the received stdout string
 	 */
 	private String readUntilPrompt()
 	{
 		String rv = null;
-		StringBuilder sbStdout = new StringBuilder();
-		StringBuilder sbStderr = new StringBuilder();
-		long timeout = System.currentTimeMillis() + timeoutMs;
 
 		try
 		{
-			char[] prompt = { '>', '>', '>', ' ' };
-			int index = 0;
-			boolean done = false;
-
-			while (!done)
-			{
-				// sleep until there's input
-				while (!stdout.ready() && !stderr.ready())
-				{
-					Thread.yield();
-
-					if (timeoutMs >= 0 && System.currentTimeMillis() >= timeout)
-					{
-						String out = "";
-						String err = "";
-
-						if (sbStdout.length() > 0)
-							out = "\nStdout was: '" + sbStdout.toString() + "'";
-
-						if (sbStderr.length() > 0)
-							err = "\nStderr was: '" + sbStderr.toString() + "'";
-
-						error("Timeout (" + timeoutMs + " ms) reached during python interaction."
-								+ out + err);
-					}
-				}
-
-				// read stdout until blocked
-				while (stdout.ready())
-				{
-					int readInt = stdout.read();
+			output.waitForSuffixes(PROMPT_SENTINEL, PROMPT, timeoutMs);
 
-					if (readInt == -1) // end of stream
-						error("End of output stream was reached while reading python response.");
+			StringBuilder sbStdout = new StringBuilder(
+					output.takeOutput(ProcessOutputReader.STDOUT));
+			StringBuilder sbStderr = new StringBuilder(
+					output.takeOutput(ProcessOutputReader.STDERR));
 
-					sbStdout.append((char) readInt);
-				}
-
-				// read stderr until blocked
-				while (stderr.ready())
-				{
-					int readInt = stderr.read();
-
-					if (readInt == -1) // end of stream
-						error("End of output stream was reached while looking for python prompt.");
-
-					char c = (char) readInt;
-					sbStderr.append(c);
-
-					if (c == prompt[index])
-					{
-						++index;
-
-						if (index == prompt.length)
-						{
-							// exit only if there are no more bytes to be read
-							if (!stderr.ready())
-							{
-								done = true;
-								break;
-							}
-							else
-								index = 0;
-						}
-					}
-					else
-						index = 0;
-				}
-			}
-
-			// read any remaining stdout characters
-			sbStdout.append(readUntilBlocked(stdout));
-
-			// trim off the prompt
-			sbStderr.delete(sbStderr.length() - prompt.length, sbStderr.length());
+			// trim off the sentinel and the prompt
+			sbStdout.delete(sbStdout.length() - PROMPT_SENTINEL.length(), sbStdout.length());
+			sbStderr.delete(sbStderr.length() - PROMPT.length(), sbStderr.length());
 
 			// trim off \n if it's at the end
 			trimSuffix(sbStdout, '\n');
@@ -517,9 +498,26 @@ public class PythonBridge
 
 			rv = sbStdout.toString();
 		}
-		catch (IOException e)
+		catch (TimeoutException e)
 		{
-			error("Error while reading python output", e);
+			String out = output.peekOutput(ProcessOutputReader.STDOUT);
+			String err = output.peekOutput(ProcessOutputReader.STDERR);
+
+			if (out.length() > 0)
+				out = "\nStdout was: '" + out + "'";
+
+			if (err.length() > 0)
+				err = "\nStderr was: '" + err + "'";
+
+			error("Timeout (" + timeoutMs + " ms) reached during python interaction." + out + err);
+		}
+		catch (EOFException e)
+		{
+			error("End of output stream was reached while reading python response.");
+		}
+		catch (InterruptedException e)
+		{
+			error("Interrupted while reading python output", e);
 		}
 
 		return rv;
@@ -533,30 +531,6 @@ public class PythonBridge
 			sb.delete(len - 1, len);
 	}
 
-	/**
-	 * Read a stream until it's blocked
-	 * 
-	 * @param stream
-	 * @return
-	 */
-	private String readUntilBlocked(BufferedReader stream) throws IOException
-	{
-		StringBuilder sb = new StringBuilder();
-
-		while (stream.ready())
-		{
-			int c = stream.read();
-
-			// end of stream
-			if (c == -1)
-				break;
-
-			sb.append((char) c);
-		}
-
-		return sb.toString();
-	}
-
 	/**
 	 * Send a string over stdin to the python interpreter and get the result printed from stdout
 	 * 
@@ -574,8 +548,9 @@ public class PythonBridge
 
 		try
 		{
-			String stdOutBefore = readUntilBlocked(stdout);
-			String stdErrBefore = readUntilBlocked(stderr);
+			output.poll();
+			String stdOutBefore = output.takeOutput(ProcessOutputReader.STDOUT);
+			String stdErrBefore = output.takeOutput(ProcessOutputReader.STDERR);
 
 			if (stdOutBefore.length() != 0)
 				error("stdout contained stale text before the send command: '" + stdOutBefore
@@ -622,7 +597,7 @@ public class PythonBridge
 			s = s.replaceAll("\\n\\n+\\t", "\n\t");
 
 			// multiline command: hide prompt until the end
-			s = "sys.ps1 = ''\n" + s + "\nsys.ps1='>>> '";
+			s = "sys.ps1 = ''\n" + s + "\nsys.ps1 = " + PROMPT_OBJECT;
 		}
 
 		return send(s, false);
@@ -648,7 +623,36 @@ public class PythonBridge
 		return send(s, true);
 	}
 
-	private String send(String s, boolean allowNewlineEndings)
+	/**
+	 * Define a hybrid automaton in python, unless it was already defined. The automaton is stored
+	 * in a python variable (the returned handle), so repeated calls with the same automaton don't
+	 * need to resend its definition.
+	 * 
+	 * @param automatonText
+	 *            the python code defining define_ha(), see PySimPrinter.automatonToString()
+	 * @return the name of the python variable containing the automaton object
+	 */
+	public synchronized String defineAutomaton(String automatonText)
+	{
+		String handle = AutomatonDefinitions.getHandle(automatonText);
+
+		if (!automata.isDefined(handle))
+		{
+			String res = send(AutomatonDefinitions.makeDefinitionCode(automatonText, handle));
+
+			if (res.length() > 0)
+				error("Got result when defining automaton (didn't expect one): " + res);
+
+			List<String> evicted = automata.add(handle);
+
+			if (evicted.size() > 0)
+				send(AutomatonDefinitions.makeDeleteCode(evicted));
+		}
+
+		return handle;
+	}
+
+	private synchronized String send(String s, boolean allowNewlineEndings)
 	{
 		String result = null;
 
@@ -0,0 +1,266 @@
+package com.verivital.hyst.python;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.main.HystContext;
+
+/**
+ * A pool of python interpreter processes, so that independent python calls can run concurrently.
+ * PythonBridge.getInstance() is a single interpreter, so all commands sent to it are serialized.
+ *
+ * Each worker is a separate (non-singleton) PythonBridge with the required packages imported.
+ * Workers are started lazily, up to the pool size, and are reused between calls. If a call fails,
+ * its worker's process is closed (as with PythonBridge) and it's dropped from the pool, so a
+ * python error doesn't leave a worker in an inconsistent state.
+ *
+ * It is a singleton, use getInstance() to get the pool. Check PythonBridge.hasPython() before
+ * using it.
+ */
+public class PythonBridgePool
+{
+	private static PythonBridgePool instance = null;
+	private static int defaultSize = Runtime.getRuntime().availableProcessors();
+
+	private final int size;
+	private final Semaphore available;
+	private final ConcurrentLinkedQueue<PythonBridge> idle = new ConcurrentLinkedQueue<PythonBridge>();
+	private ExecutorService executor = null;
+	private volatile int timeoutMs = PythonBridge.DEFAULT_TIMEOUT;
+
+	/**
+	 * A unit of work run with a python worker
+	 */
+	public interface Task<T>
+	{
+		/**
+		 * Run the task
+		 *
+		 * @param pb
+		 *            the bridge to use. Only use it within this call.
+		 * @return the result
+		 */
+		public T run(PythonBridge pb);
+	}
+
+	public static synchronized PythonBridgePool getInstance()
+	{
+		if (instance == null)
+			instance = new PythonBridgePool(defaultSize);
+
+		return instance;
+	}
+
+	/**
+	 * Set the number of workers used by the pool. This must be called before the first call to
+	 * getInstance(). The default is the number of available processors.
+	 *
+	 * @param size
+	 *            the maximum number of python processes
+	 */
+	public static synchronized void setDefaultSize(int size)
+	{
+		if (instance != null)
+			throw new AutomatonExportException(
+					"PythonBridgePool.setDefaultSize() called after the pool was created.");
+
+		if (size < 1)
+			throw new AutomatonExportException("PythonBridgePool size must be positive: " + size);
+
+		defaultSize = size;
+	}
+
+	private PythonBridgePool(int size)
+	{
+		this.size = size;
+		this.available = new Semaphore(size, true);
+	}
+
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Sets the timeout in milliseconds for each call made by the workers, use
+	 * PythonBridge.NO_TIMEOUT for no timeout
+	 *
+	 * @param timeoutMs
+	 */
+	public void setTimeout(int timeoutMs)
+	{
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Get an idle worker, starting a new one if there are none and the pool isn't full. This
+	 * blocks if all the workers are busy. The worker must be returned with release().
+	 *
+	 * @return the worker
+	 */
+	public PythonBridge acquire()
+	{
+		if (PythonBridge.isBlocked())
+			throw new AutomatonExportException(
+					"PythonBridgePool.acquire() was called, but blockPython was set to true.");
+
+		try
+		{
+			available.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw new AutomatonExportException("Interrupted while waiting for python worker", e);
+		}
+
+		PythonBridge rv = idle.poll();
+
+		if (rv == null)
+		{
+			try
+			{
+				Hyst.logDebug("Starting python pool worker.");
+				rv = new PythonBridge(timeoutMs, false);
+			}
+			catch (RuntimeException e)
+			{
+				available.release();
+				throw e;
+			}
+		}
+		else
+			rv.setTimeout(timeoutMs);
+
+		return rv;
+	}
+
+	/**
+	 * Return a worker gotten with acquire() to the pool
+	 *
+	 * @param pb
+	 *            the worker
+	 */
+	public void release(PythonBridge pb)
+	{
+		// workers whose process was closed due to an error are dropped
+		if (pb.isOpen())
+			idle.add(pb);
+
+		available.release();
+	}
+
+	/**
+	 * Run a task with an idle worker in the calling thread
+	 *
+	 * @param task
+	 *            the task to run
+	 * @return the result of the task
+	 */
+	public <T> T run(Task<T> task)
+	{
+		PythonBridge pb = acquire();
+
+		try
+		{
+			return task.run(pb);
+		}
+		finally
+		{
+			release(pb);
+		}
+	}
+
+	/**
+	 * Run several independent tasks concurrently, each with its own worker. Tasks must not call
+	 * runAll() themselves.
+	 *
+	 * @param tasks
+	 *            the tasks to run
+	 * @return the results, in the order of tasks
+	 */
+	public <T> List<T> runAll(List<? extends Task<T>> tasks)
+	{
+		List<T> rv = new ArrayList<T>(tasks.size());
+
+		if (tasks.size() == 1)
+			rv.add(run(tasks.get(0)));
+		else if (tasks.size() > 1)
+		{
+			ExecutorService ex = getExecutor();
+			List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+			HystContext context = HystContext.get();
+
+			for (final Task<T> task : tasks)
+			{
+				futures.add(ex.submit(context.wrap(new Callable<T>()
+				{
+					@Override
+					public T call()
+					{
+						return run(task);
+					}
+				})));
+			}
+
+			try
+			{
+				for (Future<T> f : futures)
+					rv.add(f.get());
+			}
+			catch (InterruptedException e)
+			{
+				throw new AutomatonExportException("Interrupted while waiting for python tasks", e);
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				else if (cause instanceof Error)
+					throw (Error) cause;
+
+				throw new AutomatonExportException("Python task failed", (Exception) cause);
+			}
+			finally
+			{
+				for (Future<T> f : futures)
+					f.cancel(false);
+			}
+		}
+
+		return rv;
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newFixedThreadPool(size, new ThreadFactory()
+			{
+				private int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "python pool thread " + (++count));
+					t.setDaemon(true);
+
+					return t;
+				}
+			});
+		}
+
+		return executor;
+	}
+}
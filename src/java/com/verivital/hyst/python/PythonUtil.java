@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,6 +31,9 @@ public class PythonUtil
 	public static PythonEvaluatePrinter pyEvaluatePrinter = new PythonEvaluatePrinter();
 	public static PythonSympyPrinter pySympyPrinter = new PythonSympyPrinter();
 
+	// prefix of the function names defined for scipyOptimize
+	private static final String FUNC_PREFIX = "_func";
+
 	/**
 	 * Optimize a function in a hyper-rectangle using scipy.optimize.basinhopping
 	 *
@@ -45,54 +49,130 @@ public class PythonUtil
 	public static List<Interval> scipyOptimize(List<Expression> expList,
 			List<HashMap<String, Interval>> boundsList)
 	{
-		PythonBridge pb = PythonBridge.getInstance();
 		int size = expList.size();
 
 		if (size != boundsList.size())
 			throw new AutomatonExportException(
 					"expression list and bounds list should be same size");
 
-		// python needs explicit functions (not lambdas) for Pool.map
-		String FUNC_PREFIX = "_func";
-		String varList = makeVariableList(boundsList.get(0).keySet());
+		if (PythonBridge.getTransport() == PythonBridge.Transport.FRAMED)
+			return framedScipyOptimize(expList, boundsList);
 
-		for (int i = 0; i < size; ++i)
+		PythonBridge pb = PythonBridge.getInstance();
+		String result;
+
+		// the functions are defined with separate commands, so keep other threads' commands from
+		// running in between
+		synchronized (pb)
 		{
-			Expression e = expList.get(i);
+			for (int i = 0; i < size; ++i)
+			{
+				String res = pb
+						.sendWithTrailingNewline(makeOptimizeFunction(expList, boundsList, i));
 
-			// make sure bounds are provided for all the variables in the
-			// expression
-			checkAllVariablesHaveBounds(e, boundsList.get(i));
+				if (res.length() > 0)
+					throw new AutomatonExportException(
+							"Got result when defining function (didn't expect one): " + res);
+			}
 
 			StringBuilder s = new StringBuilder();
-			s.append("def " + FUNC_PREFIX + i + " ((" + varList + ")):\n");
-			s.append("    return " + pyEvaluatePrinter.print(e) + "\n");
+			s.append("print opt_multi([");
+
+			for (int i = 0; i < size; ++i)
+			{
+				s.append("(");
 
-			String res = pb.sendWithTrailingNewline(s.toString());
+				s.append(FUNC_PREFIX + i + ", ");
+				s.append(toPythonIntervalList(boundsList.get(i)));
+				s.append("),");
+			}
 
-			if (res.length() > 0)
-				throw new AutomatonExportException(
-						"Got result when defining function (didn't expect one): " + res);
+			s.append("])");
+
+			pb.send("from pythonbridge.scipy_optimize import *");
+			result = pb.send(s.toString());
 		}
 
+		return parseIntervalListResult(result);
+	}
+
+	/**
+	 * scipyOptimize using the FramedPythonBridge, where the bounds are sent as arrays of doubles
+	 * rather than as text
+	 */
+	private static List<Interval> framedScipyOptimize(List<Expression> expList,
+			List<HashMap<String, Interval>> boundsList)
+	{
+		int size = expList.size();
 		StringBuilder s = new StringBuilder();
-		s.append("print opt_multi([");
+		Map<String, double[]> arrays = new HashMap<String, double[]>();
+
+		s.append("from pythonbridge.scipy_optimize import *\n");
 
 		for (int i = 0; i < size; ++i)
 		{
-			s.append("(");
-
-			s.append(FUNC_PREFIX + i + ", ");
-			s.append(toPythonIntervalList(boundsList.get(i)));
-			s.append("),");
+			s.append(makeOptimizeFunction(expList, boundsList, i));
+			arrays.put("_bounds" + i, toBoundsArray(boundsList.get(i).values()));
 		}
 
-		s.append("])");
+		s.append("result_doubles = _flatten_doubles(opt_multi([");
 
-		pb.send("from pythonbridge.scipy_optimize import *");
-		String result = pb.send(s.toString());
+		for (int i = 0; i < size; ++i)
+			s.append("(" + FUNC_PREFIX + i + ", to_pairs(_bounds" + i + ")),");
 
-		return parseIntervalListResult(result);
+		s.append("]))");
+
+		return FramedPythonBridge.getInstance().call(s.toString(), arrays).getIntervals();
+	}
+
+	/**
+	 * Make the python definition of the function to optimize for scipyOptimize. Python needs
+	 * explicit functions (not lambdas) for Pool.map.
+	 * 
+	 * @param expList
+	 *            the list of expressions
+	 * @param boundsList
+	 *            the list of bounds
+	 * @param i
+	 *            the index of the expression to define
+	 * @return the function definition code, like "def _func0 ((x, y)):\n    return x + y\n"
+	 */
+	private static String makeOptimizeFunction(List<Expression> expList,
+			List<HashMap<String, Interval>> boundsList, int i)
+	{
+		Expression e = expList.get(i);
+		String varList = makeVariableList(boundsList.get(0).keySet());
+
+		// make sure bounds are provided for all the variables in the
+		// expression
+		checkAllVariablesHaveBounds(e, boundsList.get(i));
+
+		StringBuilder s = new StringBuilder();
+		s.append("def " + FUNC_PREFIX + i + " ((" + varList + ")):\n");
+		s.append("    return " + pyEvaluatePrinter.print(e) + "\n");
+
+		return s.toString();
+	}
+
+	/**
+	 * Converts a collection of intervals to a flat array [min0, max0, min1, max1, ...]
+	 * 
+	 * @param intervals
+	 *            the intervals
+	 * @return the constructed array
+	 */
+	private static double[] toBoundsArray(Collection<Interval> intervals)
+	{
+		double[] rv = new double[2 * intervals.size()];
+		int index = 0;
+
+		for (Interval i : intervals)
+		{
+			rv[index++] = i.min;
+			rv[index++] = i.max;
+		}
+
+		return rv;
 	}
 
 	private static void checkAllVariablesHaveBounds(Expression e, HashMap<String, Interval> bounds)
@@ -314,6 +394,46 @@ public class PythonUtil
 		return e;
 	}
 
+	/**
+	 * Simplify several independent expressions using python, chopping values to zero smaller than
+	 * some tolerance. The expressions are simplified concurrently using the PythonBridgePool.
+	 * 
+	 * @param exps
+	 *            the expressions to simplify
+	 * @param tol
+	 *            the tolerance for chopping, some small value like 1e-8
+	 * @return the simplified expressions, in the same order as exps
+	 */
+	public static List<Expression> pythonSimplifyExpressionsChop(List<Expression> exps,
+			final double tol)
+	{
+		// explicitly reject these, we don't want nondeterminism
+		if (!PythonBridge.hasPython())
+			throw new AutomatonExportException(
+					"pythonSimplifyExpressionsChop called, but python was not enabled");
+
+		List<PythonBridgePool.Task<Expression>> tasks = new ArrayList<PythonBridgePool.Task<Expression>>(
+				exps.size());
+
+		for (final Expression e : exps)
+		{
+			tasks.add(new PythonBridgePool.Task<Expression>()
+			{
+				@Override
+				public Expression run(PythonBridge pb)
+				{
+					Expression rv = simplifyExpression(pb, e);
+
+					rv = chop(rv, tol);
+
+					return simplifyExpression(pb, rv);
+				}
+			});
+		}
+
+		return PythonBridgePool.getInstance().runAll(tasks);
+	}
+
 	/**
 	 * Chop an expression (set values close to zero to zero)
 	 * 
@@ -350,7 +470,20 @@ public class PythonUtil
 
 	public static Expression pythonSimplifyNumber(Expression e)
 	{
-		PythonBridge pb = PythonBridge.getInstance();
+		return pythonSimplifyNumber(PythonBridge.getInstance(), e);
+	}
+
+	/**
+	 * Simplify a (non-boolean) expression using sympy
+	 * 
+	 * @param pb
+	 *            the PythonBridge interface to use
+	 * @param e
+	 *            the expression to simplify
+	 * @return the simplified expression
+	 */
+	public static Expression pythonSimplifyNumber(PythonBridge pb, Expression e)
+	{
 		StringBuilder s = new StringBuilder();
 
 		String symbols = makeExpressionVariableSymbols(e);
@@ -370,10 +503,63 @@ public class PythonUtil
 		return FormulaParser.parseValue(result);
 	}
 
+	/**
+	 * Simplify an expression using python, splitting it at boolean operators. The parts are
+	 * independent, so they're simplified concurrently using the PythonBridgePool.
+	 * 
+	 * @param e
+	 *            the input expression
+	 * @return the output expression
+	 */
 	public static Expression pythonSimplifyRecursively(Expression e)
 	{
-		Expression rv = e;
+		ArrayList<Expression> parts = new ArrayList<Expression>();
+		getSimplifyParts(e, parts);
+
+		List<Expression> simplified;
 
+		if (parts.size() <= 1)
+		{
+			// no concurrency possible, use the main bridge rather than starting workers
+			simplified = new ArrayList<Expression>(parts.size());
+
+			for (Expression part : parts)
+				simplified.add(pythonSimplifyNumber(part));
+		}
+		else
+		{
+			List<PythonBridgePool.Task<Expression>> tasks = new ArrayList<PythonBridgePool.Task<Expression>>(
+					parts.size());
+
+			for (final Expression part : parts)
+			{
+				tasks.add(new PythonBridgePool.Task<Expression>()
+				{
+					@Override
+					public Expression run(PythonBridge pb)
+					{
+						return pythonSimplifyNumber(pb, part);
+					}
+				});
+			}
+
+			simplified = PythonBridgePool.getInstance().runAll(tasks);
+		}
+
+		return replaceSimplifyParts(e, simplified.iterator());
+	}
+
+	/**
+	 * Get the parts of an expression which pythonSimplifyRecursively sends to python (the
+	 * operations which aren't boolean operators or locations)
+	 * 
+	 * @param e
+	 *            the expression
+	 * @param rv
+	 *            [out] where the parts are stored, in order
+	 */
+	private static void getSimplifyParts(Expression e, List<Expression> rv)
+	{
 		if (e instanceof Operation)
 		{
 			Operation o = e.asOperation();
@@ -381,19 +567,43 @@ public class PythonUtil
 			if (Operator.isBooleanOperator(o.op))
 			{
 				// split!
+				for (Expression child : o.children)
+					getSimplifyParts(child, rv);
+			}
+			else if (o.op != Operator.LOC)
+				rv.add(e);
+		}
+	}
+
+	/**
+	 * Rebuild an expression, replacing the parts found by getSimplifyParts
+	 * 
+	 * @param e
+	 *            the original expression
+	 * @param simplified
+	 *            the replacement parts, in the order of getSimplifyParts
+	 * @return the rebuilt expression
+	 */
+	private static Expression replaceSimplifyParts(Expression e, Iterator<Expression> simplified)
+	{
+		Expression rv = e;
+
+		if (e instanceof Operation)
+		{
+			Operation o = e.asOperation();
+
+			if (Operator.isBooleanOperator(o.op))
+			{
 				Operation rvOp = new Operation(o.op);
 				rv = rvOp;
 
 				for (Expression child : o.children)
-				{
-					Expression newE = pythonSimplifyRecursively(child);
-					rvOp.children.add(newE);
-				}
+					rvOp.children.add(replaceSimplifyParts(child, simplified));
 			}
 			else if (o.op == Operator.LOC)
 				; // skip
 			else
-				rv = pythonSimplifyNumber(e);
+				rv = simplified.next();
 		}
 
 		return rv;
@@ -415,10 +625,7 @@ public class PythonUtil
 			throw new AutomatonExportException(
 					"pythonSimplifyExpression called, but python was not enabled");
 
-		// optimization: only simplify if it's an operation
-		if (e instanceof Operation && AutomatonUtil.expressionContainsOnlyAllowedOps(e,
-				AutomatonUtil.OPS_LINEAR, AutomatonUtil.OPS_NONLINEAR, AutomatonUtil.OPS_BOOLEAN,
-				AutomatonUtil.OPS_LOC))
+		if (shouldSimplify(e))
 		{
 			// split conjunctions recursively
 			rv = pythonSimplifyRecursively(e);
@@ -427,6 +634,37 @@ public class PythonUtil
 		return rv;
 	}
 
+	/**
+	 * pythonSimplifyExpression using a specific bridge, without any concurrency
+	 */
+	private static Expression simplifyExpression(PythonBridge pb, Expression e)
+	{
+		Expression rv = e;
+
+		if (shouldSimplify(e))
+		{
+			ArrayList<Expression> parts = new ArrayList<Expression>();
+			getSimplifyParts(e, parts);
+
+			ArrayList<Expression> simplified = new ArrayList<Expression>(parts.size());
+
+			for (Expression part : parts)
+				simplified.add(pythonSimplifyNumber(pb, part));
+
+			rv = replaceSimplifyParts(e, simplified.iterator());
+		}
+
+		return rv;
+	}
+
+	private static boolean shouldSimplify(Expression e)
+	{
+		// optimization: only simplify if it's an operation
+		return e instanceof Operation && AutomatonUtil.expressionContainsOnlyAllowedOps(e,
+				AutomatonUtil.OPS_LINEAR, AutomatonUtil.OPS_NONLINEAR, AutomatonUtil.OPS_BOOLEAN,
+				AutomatonUtil.OPS_LOC);
+	}
+
 	/**
 	 * Optimize a function in a hyper-rectangle using interval arithmetic over possibly multiple
 	 * domains. This uses smaller domains to have a guaranteed overapproximation error.
@@ -448,6 +686,9 @@ public class PythonUtil
 			throw new AutomatonExportException("number of expression(" + expList.size()
 					+ ") and number of bounds (" + boundsList.size() + ") must match.");
 
+		if (PythonBridge.getTransport() == PythonBridge.Transport.FRAMED)
+			return framedIntervalOptimizeBounded(expList, boundsList, maxError);
+
 		PythonBridge pb = PythonBridge.getInstance();
 
 		StringBuilder s = new StringBuilder();
@@ -491,6 +732,54 @@ public class PythonUtil
 		return parseIntervalListResult(result);
 	}
 
+	/**
+	 * intervalOptimizeBounded using the FramedPythonBridge, where the bounds are sent as arrays of
+	 * doubles rather than as text
+	 */
+	private static List<Interval> framedIntervalOptimizeBounded(List<Expression> expList,
+			List<HashMap<String, Interval>> boundsList, double maxError)
+	{
+		StringBuilder s = new StringBuilder();
+		Map<String, double[]> arrays = new HashMap<String, double[]>();
+		HashSet<String> allVariables = new HashSet<String>();
+
+		for (Expression e : expList)
+			allVariables.addAll(AutomatonUtil.getVariablesInExpression(e));
+
+		s.append("from pythonbridge.interval_optimize import *\n");
+
+		// x,y = sympy.symbols('x y')
+		appendSymbolsDeclaration(s, allVariables);
+
+		s.append("\nresult_doubles = _flatten_doubles(eval_eqs_bounded([");
+
+		for (Expression e : expList)
+		{
+			s.append(pyEvaluatePrinter.print(e));
+			s.append(",");
+		}
+
+		s.append("],[");
+
+		for (int i = 0; i < boundsList.size(); ++i)
+		{
+			Map<String, Interval> bounds = boundsList.get(i);
+
+			s.append("to_interval_map([");
+
+			for (String var : bounds.keySet())
+				s.append("'" + var + "',");
+
+			s.append("], _bounds" + i + "),");
+			arrays.put("_bounds" + i, toBoundsArray(bounds.values()));
+		}
+
+		s.append("],");
+		s.append((maxError > 0 ? "" + maxError : "None") + "))");
+
+		return FramedPythonBridge.getInstance().call(s.toString(), arrays).getIntervals();
+	}
+
 	/**
 	 * Used for printing expressions that can be evaluated in Python (like math.sin(10))
 	 * 
@@ -0,0 +1,712 @@
+package com.verivital.hyst.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.AutomatonMode;
+import com.verivital.hyst.ir.base.AutomatonTransition;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.ir.base.ExpressionInterval;
+import com.verivital.hyst.main.Hyst;
+import com.verivital.hyst.util.CompiledExpression;
+
+/**
+ * A simulator for flat hybrid automata which runs inside the JVM. It follows the semantics of pysim
+ * (hybridpy/pysim/simulate.py) and the pythonbridge/pysim_utils.py functions, so the results match
+ * the python-based simulation:
+ *
+ * - if a transition's guard is true, the first such transition (in the order of
+ * BaseComponent.transitions) is taken immediately, and its reset is applied (unassigned variables
+ * keep their value). Urgent modes must therefore always have an enabled transition.
+ *
+ * - otherwise, the flow is integrated with an adaptive Dormand-Prince (RK45) method, using a maximum
+ * step size of 1/100 of the requested simulation time. If the invariant becomes false or a guard
+ * becomes true during a step, the time of the event is located by bisection.
+ *
+ * Only the expression part of flows and resets is used (interval parts of ExpressionIntervals are
+ * ignored, as in pysim).
+ *
+ * Compiled expressions are cached inside a simulator, so an instance should not be used by multiple
+ * threads at once.
+ */
+public class HybridSimulator
+{
+	public static final int DEFAULT_MAX_JUMPS = 500;
+	private static final double MAX_STATE_MAGNITUDE = 1e15;
+	private static final double MIN_STEPS = 100;
+
+	// Dormand-Prince coefficients
+	private static final double A21 = 1.0 / 5.0;
+	private static final double A31 = 3.0 / 40.0, A32 = 9.0 / 40.0;
+	private static final double A41 = 44.0 / 45.0, A42 = -56.0 / 15.0, A43 = 32.0 / 9.0;
+	private static final double A51 = 19372.0 / 6561.0, A52 = -25360.0 / 2187.0,
+			A53 = 64448.0 / 6561.0, A54 = -212.0 / 729.0;
+	private static final double A61 = 9017.0 / 3168.0, A62 = -355.0 / 33.0,
+			A63 = 46732.0 / 5247.0, A64 = 49.0 / 176.0, A65 = -5103.0 / 18656.0;
+	private static final double B3 = 500.0 / 1113.0, B4 = 125.0 / 192.0,
+			B5 = -2187.0 / 6784.0, B6 = 11.0 / 84.0;
+	private static final double E1 = 71.0 / 57600.0, E3 = -71.0 / 16695.0, E4 = 71.0 / 1920.0,
+			E5 = -17253.0 / 339200.0, E6 = 22.0 / 525.0, E7 = -1.0 / 40.0;
+
+	public int maxJumps = DEFAULT_MAX_JUMPS;
+	public double relativeTol = 1e-8;
+	public double absoluteTol = 1e-10;
+
+	private final BaseComponent ha;
+	private final int numVars;
+	private final Map<String, CompiledMode> compiledModes = new HashMap<String, CompiledMode>();
+
+	// scratch space for the integrator
+	private final double[] k1, k2, k3, k4, k5, k6, k7, temp, stepDelta, stepResult, stepError;
+
+	// compensation term for the summation of the state along a trajectory
+	private final double[] compensation;
+
+	public HybridSimulator(BaseComponent ha)
+	{
+		this.ha = ha;
+		this.numVars = ha.variables.size();
+
+		k1 = new double[numVars];
+		k2 = new double[numVars];
+		k3 = new double[numVars];
+		k4 = new double[numVars];
+		k5 = new double[numVars];
+		k6 = new double[numVars];
+		k7 = new double[numVars];
+		temp = new double[numVars];
+		stepDelta = new double[numVars];
+		stepResult = new double[numVars];
+		stepError = new double[numVars];
+		compensation = new double[numVars];
+	}
+
+	public HybridSimulator(Configuration config)
+	{
+		this(getFlatAutomaton(config));
+	}
+
+	static BaseComponent getFlatAutomaton(Configuration config)
+	{
+		if (!(config.root instanceof BaseComponent))
+			throw new AutomatonExportException("HybridSimulator expected a flat automaton");
+
+		return (BaseComponent) config.root;
+	}
+
+	/**
+	 * Simulate from a point, getting the state at each of the passed-in times (like pysim_utils'
+	 * simulate_times)
+	 *
+	 * @param start
+	 *            the start state
+	 * @param times
+	 *            the sorted list of times where the state is desired
+	 * @return the state at each of the times
+	 */
+	public List<SymbolicStatePoint> simulateTimes(SymbolicStatePoint start, List<Double> times)
+	{
+		List<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(times.size());
+		State cur = initialState(start);
+		double lastTime = 0;
+
+		for (double time : times)
+		{
+			double delta = time - lastTime;
+			lastTime = time;
+
+			ArrayList<State> trace = simulate(cur, delta, delta / MIN_STEPS, true);
+			cur = trace.get(trace.size() - 1);
+
+			rv.add(cur.toSymbolicStatePoint());
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from a list of points for a fixed time, getting the final state of each (like
+	 * pysim_utils' simulate_set_time)
+	 *
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the final state of each simulation
+	 */
+	public ArrayList<SymbolicStatePoint> simulateSetTime(List<SymbolicStatePoint> startPoints,
+			double time)
+	{
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(startPoints.size());
+
+		for (SymbolicStatePoint start : startPoints)
+			rv.add(simulateFinalState(start, time));
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from a point for a fixed time, getting the final state. If an error occurs (for
+	 * example, an invariant becomes false) the state where the error occurred is returned.
+	 *
+	 * @param start
+	 *            the start state
+	 * @param time
+	 *            the simulation time
+	 * @return the final state
+	 */
+	public SymbolicStatePoint simulateFinalState(SymbolicStatePoint start, double time)
+	{
+		ArrayList<State> trace = simulate(initialState(start), time, time / MIN_STEPS, false);
+
+		return trace.get(trace.size() - 1).toSymbolicStatePoint();
+	}
+
+	/**
+	 * Simulate from a list of points for a fixed time, getting the trajectory of each (like
+	 * pysim_utils' simulate_multi_trajectory_time). Simulations which hit an error (for example, an
+	 * invariant becomes false) are stopped at that point.
+	 *
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectory of each simulation
+	 */
+	public ArrayList<ArrayList<SymbolicStatePoint>> simulateMultiTrajectory(
+			List<SymbolicStatePoint> startPoints, double time)
+	{
+		ArrayList<ArrayList<SymbolicStatePoint>> rv = new ArrayList<ArrayList<SymbolicStatePoint>>(
+				startPoints.size());
+
+		for (SymbolicStatePoint start : startPoints)
+			rv.add(simulateTrajectory(start, time));
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from a point for a fixed time, getting the trajectory. If an error occurs (for
+	 * example, an invariant becomes false) the trajectory is stopped at that point.
+	 *
+	 * @param start
+	 *            the start state
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectory
+	 */
+	public ArrayList<SymbolicStatePoint> simulateTrajectory(SymbolicStatePoint start, double time)
+	{
+		ArrayList<State> trace = simulate(initialState(start), time, time / MIN_STEPS, false);
+		ArrayList<SymbolicStatePoint> rv = new ArrayList<SymbolicStatePoint>(trace.size());
+
+		for (State s : trace)
+			rv.add(s.toSymbolicStatePoint());
+
+		return rv;
+	}
+
+	/**
+	 * Simulate from a point, getting the range of the derivative of a variable within each of a
+	 * list of time intervals (like pysim_utils' simulate_der_range)
+	 *
+	 * @param derVarName
+	 *            the variable whose derivative range we want
+	 * @param start
+	 *            the start state
+	 * @param timeIntervals
+	 *            the time intervals
+	 * @return the range of the derivative in each time interval
+	 */
+	public ArrayList<Interval> simulateDerivativeRange(String derVarName, SymbolicStatePoint start,
+			List<Interval> timeIntervals)
+	{
+		int derVarIndex = ha.variables.indexOf(derVarName);
+
+		if (derVarIndex == -1)
+			throw new AutomatonExportException(
+					"Derivative variable '" + derVarName + "' not found in automaton.");
+
+		ArrayList<Double> allTimes = new ArrayList<Double>();
+
+		for (Interval i : timeIntervals)
+		{
+			allTimes.add(i.min);
+			allTimes.add(i.max);
+		}
+
+		Collections.sort(allTimes);
+
+		// simulate, with guaranteed states at each of the times
+		ArrayList<State> states = new ArrayList<State>();
+		State cur = initialState(start);
+		double lastTime = 0;
+
+		for (double time : allTimes)
+		{
+			if (time == lastTime)
+				continue;
+
+			double delta = time - lastTime;
+			ArrayList<State> trace = simulate(cur, delta, delta / MIN_STEPS, true);
+
+			for (State s : trace)
+				s.time += lastTime;
+
+			states.addAll(trace);
+			cur = trace.get(trace.size() - 1);
+			lastTime = time;
+		}
+
+		ArrayList<Interval> rv = new ArrayList<Interval>(timeIntervals.size());
+
+		for (int i = 0; i < timeIntervals.size(); ++i)
+		{
+			Interval range = new Interval();
+			range.min = Double.POSITIVE_INFINITY;
+			range.max = Double.NEGATIVE_INFINITY;
+
+			rv.add(range);
+		}
+
+		for (State s : states)
+		{
+			// skip urgent modes as derivatives are in transit
+			if (s.mode.urgent)
+				continue;
+
+			double derVal = s.mode.flow[derVarIndex].evaluate(s.point);
+
+			for (int i = 0; i < timeIntervals.size(); ++i)
+			{
+				Interval timeRange = timeIntervals.get(i);
+
+				if (s.time < timeRange.min || s.time > timeRange.max)
+					continue;
+
+				Interval range = rv.get(i);
+				range.min = Math.min(range.min, derVal);
+				range.max = Math.max(range.max, derVal);
+			}
+		}
+
+		return rv;
+	}
+
+	private State initialState(SymbolicStatePoint start)
+	{
+		if (start.hp.dims.length != numVars)
+			throw new AutomatonExportException("start point had " + start.hp.dims.length
+					+ " dimensions; expected " + numVars);
+
+		return new State(getMode(start.modeName), 0, start.hp.dims.clone());
+	}
+
+	/**
+	 * Simulate from a state for a given amount of time (like pysim's simulate_one). Times in the
+	 * returned trace are relative to the start state.
+	 *
+	 * @param start
+	 *            the start state
+	 * @param endTime
+	 *            the simulation time
+	 * @param maxStep
+	 *            the maximum integration step size
+	 * @param reraiseErrors
+	 *            if true, simulation errors raise an AutomatonExportException, otherwise the
+	 *            simulation is stopped and the trace until the error is returned
+	 * @return the states along the trajectory, including the initial and final states
+	 */
+	private ArrayList<State> simulate(State start, double endTime, double maxStep,
+			boolean reraiseErrors)
+	{
+		if (endTime < 0)
+			throw new AutomatonExportException("simulation time should be nonnegative: " + endTime);
+
+		ArrayList<State> rv = new ArrayList<State>();
+		CompiledMode mode = start.mode;
+		double[] y = start.point.clone();
+		double t = 0;
+		double timeCompensation = 0; // t is also accumulated using compensated summation
+		double jumpTol = Math.max(1e-10, endTime / 1e10);
+		double h = maxStep;
+		int jumpsLeft = maxJumps;
+
+		rv.add(new State(mode, t, y.clone()));
+		Arrays.fill(compensation, 0);
+
+		try
+		{
+			while (t < endTime)
+			{
+				CompiledTransition active = firstActiveTransition(mode, y);
+
+				if (active != null)
+				{
+					// discrete post
+					y = active.reset(y);
+					mode = getMode(active.toModeName);
+					Arrays.fill(compensation, 0);
+					rv.add(new State(mode, t, y.clone()));
+
+					if (--jumpsLeft < 0)
+						throw new AutomatonExportException(
+								"Max jumps (" + maxJumps + ") reached during simulation");
+				}
+				else if (mode.invariant.evaluate(y) == 0)
+					throw new AutomatonExportException("Invariant became false in mode "
+							+ mode.name + " at state " + new HyperPoint(y));
+				else if (mode.urgent)
+					throw new AutomatonExportException(
+							"Urgent mode " + mode.name + " had no enabled outgoing transitions");
+				else
+				{
+					// continuous post
+					derivative(mode, y, k1);
+					double remaining = (endTime - t) + timeCompensation;
+
+					if (remaining <= 0)
+						break;
+
+					h = Math.min(h, remaining);
+					h = adaptiveStep(mode, y, t, h, maxStep);
+
+					double stepTaken = lastStepSize;
+
+					if (isEvent(mode, stepResult))
+						stepTaken = findEvent(mode, y, stepTaken, jumpTol);
+
+					accumulate(y, stepDelta);
+
+					double correctedStep = stepTaken - timeCompensation;
+					double newTime = t + correctedStep;
+					timeCompensation = (newTime - t) - correctedStep;
+					t = newTime;
+
+					for (double val : y)
+					{
+						if (Math.abs(val) > MAX_STATE_MAGNITUDE || Double.isNaN(val))
+							throw new AutomatonExportException(
+									"Continuous post reached unreasonably large state; "
+											+ "may cause floating-point issues.");
+					}
+
+					rv.add(new State(mode, t, y.clone()));
+				}
+			}
+		}
+		catch (AutomatonExportException e)
+		{
+			if (reraiseErrors)
+				throw e;
+
+			Hyst.logDebug("Simulation stopped: " + e.getMessage());
+		}
+
+		return rv;
+	}
+
+	private double lastStepSize;
+
+	/**
+	 * Take one adaptive Dormand-Prince step from y. k1 must contain the derivative at y. The result
+	 * is stored in stepResult and its size in lastStepSize.
+	 *
+	 * @return the proposed size of the next step
+	 */
+	private double adaptiveStep(CompiledMode mode, double[] y, double t, double h, double maxStep)
+	{
+		double minStep = 1e-14 * Math.max(1, Math.abs(t));
+
+		while (true)
+		{
+			rkStep(mode, y, h);
+
+			double err = 0;
+
+			for (int d = 0; d < numVars; ++d)
+			{
+				double scale = absoluteTol
+						+ relativeTol * Math.max(Math.abs(y[d]), Math.abs(stepResult[d]));
+				double ratio = stepError[d] / scale;
+
+				err += ratio * ratio;
+			}
+
+			err = numVars == 0 ? 0 : Math.sqrt(err / numVars);
+
+			if (err <= 1)
+			{
+				lastStepSize = h;
+				double factor = err == 0 ? 5 : Math.min(5, 0.9 * Math.pow(err, -0.2));
+
+				return Math.min(maxStep, h * Math.max(1, factor));
+			}
+
+			h *= Math.max(0.2, 0.9 * Math.pow(err, -0.2));
+
+			if (h < minStep)
+				throw new AutomatonExportException("Step size became too small in mode "
+						+ mode.name + " at state " + new HyperPoint(y));
+		}
+	}
+
+	/**
+	 * Take a single Dormand-Prince step of size h from y (k1 must contain the derivative at y). The
+	 * fifth-order result is put in stepResult (with the increment in stepDelta), and the error
+	 * estimate in stepError.
+	 */
+	private void rkStep(CompiledMode mode, double[] y, double h)
+	{
+		for (int d = 0; d < numVars; ++d)
+			temp[d] = y[d] + h * A21 * k1[d];
+
+		derivative(mode, temp, k2);
+
+		for (int d = 0; d < numVars; ++d)
+			temp[d] = y[d] + h * (A31 * k1[d] + A32 * k2[d]);
+
+		derivative(mode, temp, k3);
+
+		for (int d = 0; d < numVars; ++d)
+			temp[d] = y[d] + h * (A41 * k1[d] + A42 * k2[d] + A43 * k3[d]);
+
+		derivative(mode, temp, k4);
+
+		for (int d = 0; d < numVars; ++d)
+			temp[d] = y[d] + h * (A51 * k1[d] + A52 * k2[d] + A53 * k3[d] + A54 * k4[d]);
+
+		derivative(mode, temp, k5);
+
+		for (int d = 0; d < numVars; ++d)
+			temp[d] = y[d]
+					+ h * (A61 * k1[d] + A62 * k2[d] + A63 * k3[d] + A64 * k4[d] + A65 * k5[d]);
+
+		derivative(mode, temp, k6);
+
+		// the weights sum to one, so write the increment relative to k1; this is exact for
+		// constant derivatives
+		for (int d = 0; d < numVars; ++d)
+		{
+			stepDelta[d] = h * (k1[d] + B3 * (k3[d] - k1[d]) + B4 * (k4[d] - k1[d])
+					+ B5 * (k5[d] - k1[d]) + B6 * (k6[d] - k1[d]));
+			stepResult[d] = y[d] + stepDelta[d];
+		}
+
+		derivative(mode, stepResult, k7);
+
+		for (int d = 0; d < numVars; ++d)
+			stepError[d] = h * (E1 * k1[d] + E3 * k3[d] + E4 * k4[d] + E5 * k5[d] + E6 * k6[d]
+					+ E7 * k7[d]);
+	}
+
+	/**
+	 * An event occurred during the last step (from y, of size h). Find the earliest time where it
+	 * occurs using bisection, and store the state in stepResult (and the increment in stepDelta).
+	 *
+	 * @return the step size to the event
+	 */
+	private double findEvent(CompiledMode mode, double[] y, double h, double tol)
+	{
+		double[] eventState = stepResult.clone();
+		double[] eventDelta = stepDelta.clone();
+		double lo = 0;
+		double hi = h;
+
+		while (hi - lo >= tol)
+		{
+			double mid = (lo + hi) / 2.0;
+			rkStep(mode, y, mid);
+
+			if (isEvent(mode, stepResult))
+			{
+				hi = mid;
+				System.arraycopy(stepResult, 0, eventState, 0, numVars);
+				System.arraycopy(stepDelta, 0, eventDelta, 0, numVars);
+			}
+			else
+				lo = mid;
+		}
+
+		System.arraycopy(eventState, 0, stepResult, 0, numVars);
+		System.arraycopy(eventDelta, 0, stepDelta, 0, numVars);
+
+		return hi;
+	}
+
+	/**
+	 * Add a step's increment to the state using compensated (Kahan) summation, which prevents
+	 * rounding errors from building up over many small steps
+	 */
+	private void accumulate(double[] y, double[] delta)
+	{
+		for (int d = 0; d < numVars; ++d)
+		{
+			double corrected = delta[d] - compensation[d];
+			double sum = y[d] + corrected;
+
+			compensation[d] = (sum - y[d]) - corrected;
+			y[d] = sum;
+		}
+	}
+
+	/**
+	 * Is the invariant false or is some outgoing transition enabled?
+	 */
+	private boolean isEvent(CompiledMode mode, double[] y)
+	{
+		return mode.invariant.evaluate(y) == 0 || firstActiveTransition(mode, y) != null;
+	}
+
+	private void derivative(CompiledMode mode, double[] y, double[] out)
+	{
+		for (int d = 0; d < numVars; ++d)
+			out[d] = mode.flow[d].evaluate(y);
+	}
+
+	private CompiledTransition firstActiveTransition(CompiledMode mode, double[] y)
+	{
+		CompiledTransition rv = null;
+
+		for (CompiledTransition ct : mode.outgoing)
+		{
+			if (ct.guard.evaluate(y) != 0)
+			{
+				rv = ct;
+				break;
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the compiled version of a mode, compiling it on first use
+	 *
+	 * @param name
+	 *            the mode name
+	 * @return the compiled mode
+	 */
+	private CompiledMode getMode(String name)
+	{
+		CompiledMode rv = compiledModes.get(name);
+
+		if (rv == null)
+		{
+			AutomatonMode am = ha.modes.get(name);
+
+			if (am == null)
+				throw new AutomatonExportException("Mode not found in automaton: " + name);
+
+			rv = new CompiledMode(am);
+			compiledModes.put(name, rv);
+		}
+
+		return rv;
+	}
+
+	private class CompiledMode
+	{
+		final String name;
+		final boolean urgent;
+		final CompiledExpression invariant;
+		final CompiledExpression[] flow; // null if urgent
+		final CompiledTransition[] outgoing;
+
+		public CompiledMode(AutomatonMode am)
+		{
+			name = am.name;
+			urgent = am.urgent;
+			invariant = CompiledExpression.compile(am.invariant, ha.variables);
+
+			if (urgent)
+				flow = null;
+			else
+			{
+				flow = new CompiledExpression[numVars];
+
+				for (int d = 0; d < numVars; ++d)
+				{
+					String var = ha.variables.get(d);
+					ExpressionInterval ei = am.flowDynamics.get(var);
+
+					if (ei == null)
+						throw new AutomatonExportException(
+								"Flow for variable " + var + " not defined in mode " + name);
+
+					flow[d] = CompiledExpression.compile(ei.getExpression(), ha.variables);
+				}
+			}
+
+			ArrayList<CompiledTransition> transitions = new ArrayList<CompiledTransition>();
+
+			for (AutomatonTransition at : ha.transitions)
+			{
+				if (at.from == am)
+					transitions.add(new CompiledTransition(at));
+			}
+
+			outgoing = transitions.toArray(new CompiledTransition[transitions.size()]);
+		}
+	}
+
+	private class CompiledTransition
+	{
+		final String toModeName;
+		final CompiledExpression guard;
+		final CompiledExpression[] reset; // null entries are identity resets
+
+		public CompiledTransition(AutomatonTransition at)
+		{
+			toModeName = at.to.name;
+			guard = CompiledExpression.compile(at.guard, ha.variables);
+			reset = new CompiledExpression[numVars];
+
+			for (int d = 0; d < numVars; ++d)
+			{
+				ExpressionInterval ei = at.reset.get(ha.variables.get(d));
+
+				if (ei != null)
+					reset[d] = CompiledExpression.compile(ei.getExpression(), ha.variables);
+			}
+		}
+
+		public double[] reset(double[] y)
+		{
+			double[] rv = new double[numVars];
+
+			for (int d = 0; d < numVars; ++d)
+				rv[d] = reset[d] == null ? y[d] : reset[d].evaluate(y);
+
+			return rv;
+		}
+	}
+
+	private static class State
+	{
+		final CompiledMode mode;
+		double time;
+		final double[] point;
+
+		public State(CompiledMode mode, double time, double[] point)
+		{
+			this.mode = mode;
+			this.time = time;
+			this.point = point;
+		}
+
+		public SymbolicStatePoint toSymbolicStatePoint()
+		{
+			return new SymbolicStatePoint(mode.name, new HyperPoint(point));
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package com.verivital.hyst.simulation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.verivital.hyst.geometry.SymbolicStatePoint;
+import com.verivital.hyst.ir.Configuration;
+import com.verivital.hyst.ir.base.BaseComponent;
+import com.verivital.hyst.util.TaskPool;
+
+/**
+ * Simulates a set of start points in parallel using a fork-join pool. The point list is split
+ * recursively, and each leaf task simulates its consecutive range of points with its own
+ * HybridSimulator. Results are stored by index, so the output order (and the output itself) is the
+ * same as when simulating serially, regardless of the number of threads.
+ */
+public class ParallelSimulator
+{
+	// number of leaf tasks per worker thread, for load balancing when simulations differ in cost
+	private static final int TASKS_PER_THREAD = 4;
+
+	/**
+	 * Simulate from each point for a fixed time, getting the final state of each (see
+	 * HybridSimulator.simulateSetTime)
+	 *
+	 * @param config
+	 *            the configuration, which must contain a flat automaton
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the final state of each simulation, in the order of startPoints
+	 */
+	public static ArrayList<SymbolicStatePoint> simulateSetTime(Configuration config,
+			List<SymbolicStatePoint> startPoints, double time)
+	{
+		BaseComponent ha = HybridSimulator.getFlatAutomaton(config);
+		SimulateTask task = new SimulateTask(ha, startPoints, time, false);
+		run(task);
+
+		return task.finalStates;
+	}
+
+	/**
+	 * Simulate from each point for a fixed time, getting the trajectories (see
+	 * HybridSimulator.simulateMultiTrajectory)
+	 *
+	 * @param config
+	 *            the configuration, which must contain a flat automaton
+	 * @param startPoints
+	 *            the start states
+	 * @param time
+	 *            the simulation time
+	 * @return the trajectory of each simulation, in the order of startPoints
+	 */
+	public static ArrayList<ArrayList<SymbolicStatePoint>> simulateMultiTrajectory(
+			Configuration config, List<SymbolicStatePoint> startPoints, double time)
+	{
+		BaseComponent ha = HybridSimulator.getFlatAutomaton(config);
+		SimulateTask task = new SimulateTask(ha, startPoints, time, true);
+		run(task);
+
+		return task.trajectories;
+	}
+
+	private static void run(SimulateTask task)
+	{
+		if (task.to - task.from <= 1)
+			task.simulateRange(); // don't bother with the pool for a single point
+		else
+			TaskPool.get().invoke(task);
+	}
+
+	private static class SimulateTask extends TaskPool.ContextAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		// shared among all subtasks; each subtask only writes its own indices
+		private final BaseComponent ha;
+		private final List<SymbolicStatePoint> startPoints;
+		private final double time;
+		private final boolean getTrajectories;
+		private final int leafSize;
+		private final ArrayList<SymbolicStatePoint> finalStates;
+		private final ArrayList<ArrayList<SymbolicStatePoint>> trajectories;
+
+		private final int from, to;
+
+		public SimulateTask(BaseComponent ha, List<SymbolicStatePoint> startPoints, double time,
+				boolean getTrajectories)
+		{
+			this.ha = ha;
+			this.startPoints = startPoints;
+			this.time = time;
+			this.getTrajectories = getTrajectories;
+			this.from = 0;
+			this.to = startPoints.size();
+
+			int numLeaves = TaskPool.get().getParallelism() * TASKS_PER_THREAD;
+			this.leafSize = Math.max(1, (startPoints.size() + numLeaves - 1) / numLeaves);
+
+			int size = startPoints.size();
+
+			if (getTrajectories)
+			{
+				finalStates = null;
+				trajectories = new ArrayList<ArrayList<SymbolicStatePoint>>(
+						Collections.<ArrayList<SymbolicStatePoint>> nCopies(size, null));
+			}
+			else
+			{
+				finalStates = new ArrayList<SymbolicStatePoint>(
+						Collections.<SymbolicStatePoint> nCopies(size, null));
+				trajectories = null;
+			}
+		}
+
+		private SimulateTask(SimulateTask parent, int from, int to)
+		{
+			this.ha = parent.ha;
+			this.startPoints = parent.startPoints;
+			this.time = parent.time;
+			this.getTrajectories = parent.getTrajectories;
+			this.leafSize = parent.leafSize;
+			this.finalStates = parent.finalStates;
+			this.trajectories = parent.trajectories;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void computeInContext()
+		{
+			if (to - from <= leafSize)
+				simulateRange();
+			else
+			{
+				int mid = (from + to) >>> 1;
+
+				invokeAll(new SimulateTask(this, from, mid), new SimulateTask(this, mid, to));
+			}
+		}
+
+		private void simulateRange()
+		{
+			HybridSimulator sim = new HybridSimulator(ha);
+
+			for (int i = from; i < to; ++i)
+			{
+				if (getTrajectories)
+					trajectories.set(i, sim.simulateTrajectory(startPoints.get(i), time));
+				else
+					finalStates.set(i, sim.simulateFinalState(startPoints.get(i), time));
+			}
+		}
+	}
+}
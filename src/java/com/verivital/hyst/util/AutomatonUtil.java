@@ -1,5 +1,6 @@
 package com.verivital.hyst.util;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -493,18 +494,208 @@ public abstract class AutomatonUtil
 	public static Set<String> getVariablesInExpression(Expression e)
 	{
 		HashSet<String> rv = new HashSet<String>();
+		ArrayDeque<Expression> stack = new ArrayDeque<Expression>();
 
-		if (e instanceof Variable)
-			rv.add(((Variable) e).name);
-		else if (e instanceof Operation)
+		if (e != null)
+			stack.push(e);
+
+		while (!stack.isEmpty())
+		{
+			Expression cur = stack.pop();
+
+			if (cur instanceof Variable)
+				rv.add(((Variable) cur).name);
+			else if (cur instanceof Operation)
+			{
+				for (Expression c : cur.asOperation().children)
+					stack.push(c);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Normalize chains of associative operations (ADD, MULTIPLY, AND, OR) into single n-ary
+	 * operations, so that (a + b) + (c + d) becomes one ADD with children a, b, c, d. The order of
+	 * the terms is kept. This is done iteratively, so it works on arbitrarily deep expressions, and
+	 * the result's depth no longer grows with the number of terms.
+	 * 
+	 * The passed-in expression is not modified. The operations are new, but non-operation
+	 * subexpressions are shared with e.
+	 * 
+	 * @param e
+	 *            the expression to normalize
+	 * @return the normalized expression
+	 */
+	public static Expression flattenAssociative(Expression e)
+	{
+		return new ExpressionRebuilder()
+		{
+			@Override
+			protected boolean splice(Operation parent, Operation child)
+			{
+				return child.op == parent.op && Operator.isAssociative(child.op)
+						&& child.children.size() > 1;
+			}
+		}.rebuild(e);
+	}
+
+	/**
+	 * Convert n-ary operations (see flattenAssociative()) back into binary operations, for code
+	 * which requires two children. Each n-ary operation becomes a balanced tree (see
+	 * makeBalanced()).
+	 * 
+	 * The passed-in expression is not modified. The operations are new, but non-operation
+	 * subexpressions are shared with e.
+	 * 
+	 * @param e
+	 *            the expression to convert
+	 * @return the converted expression
+	 */
+	public static Expression makeBinary(Expression e)
+	{
+		return new ExpressionRebuilder()
+		{
+			@Override
+			protected Expression finish(Operation original, List<Expression> children)
+			{
+				Expression rv;
+
+				if (children.size() > 2 && Operator.isAssociative(original.op))
+					rv = makeBalanced(original.op, children);
+				else
+					rv = new Operation(original.op, children);
+
+				return rv;
+			}
+		}.rebuild(e);
+	}
+
+	/**
+	 * Combine terms with an associative operator, like a sum of many terms, as a balanced tree of
+	 * binary operations. The depth is logarithmic in the number of terms (rather than linear for a
+	 * left-nested chain), and since the operators are associative and commutative, it prints the
+	 * same as a left-nested chain.
+	 * 
+	 * @param op
+	 *            the associative operator (ADD, MULTIPLY, AND, OR)
+	 * @param terms
+	 *            the terms, at least one
+	 * @return the combined expression (the single term, if there's only one)
+	 */
+	public static Expression makeBalanced(Operator op, List<Expression> terms)
+	{
+		if (!Operator.isAssociative(op))
+			throw new AutomatonExportException("makeBalanced() requires associative operator: "
+					+ op);
+
+		if (terms.isEmpty())
+			throw new AutomatonExportException("makeBalanced() requires at least one term");
+
+		return makeBalanced(op, terms, 0, terms.size());
+	}
+
+	private static Expression makeBalanced(Operator op, List<Expression> terms, int from, int to)
+	{
+		Expression rv;
+
+		if (to - from == 1)
+			rv = terms.get(from);
+		else
 		{
-			for (Expression c : e.asOperation().children)
-				rv.addAll(getVariablesInExpression(c));
+			int mid = (from + to + 1) / 2;
+
+			rv = new Operation(op, makeBalanced(op, terms, from, mid),
+					makeBalanced(op, terms, mid, to));
 		}
 
 		return rv;
 	}
 
+	/**
+	 * Iteratively rebuilds the operations of an expression bottom-up, using an explicit stack
+	 * rather than recursion. Override addChild() and finish() to change how operations are
+	 * rebuilt.
+	 */
+	private static class ExpressionRebuilder
+	{
+		private static class Frame
+		{
+			final Operation original;
+			final ArrayDeque<Expression> pending;
+			final List<Expression> children;
+
+			Frame(Operation original)
+			{
+				this.original = original;
+				pending = new ArrayDeque<Expression>(original.children);
+				children = new ArrayList<Expression>(original.children.size());
+			}
+		}
+
+		/**
+		 * Should the children of an operation be spliced into its parent, in its place?
+		 */
+		protected boolean splice(Operation parent, Operation child)
+		{
+			return false;
+		}
+
+		/**
+		 * Create the rebuilt operation, once all its children are rebuilt
+		 */
+		protected Expression finish(Operation original, List<Expression> children)
+		{
+			return new Operation(original.op, children);
+		}
+
+		public Expression rebuild(Expression e)
+		{
+			if (!(e instanceof Operation))
+				return e;
+
+			ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+			stack.push(new Frame((Operation) e));
+			Expression rv = null;
+
+			while (rv == null)
+			{
+				Frame f = stack.peek();
+
+				if (!f.pending.isEmpty())
+				{
+					Expression child = f.pending.pollFirst();
+					Operation o = child.asOperation();
+
+					if (o == null)
+						f.children.add(child);
+					else if (splice(f.original, o))
+					{
+						List<Expression> grandchildren = o.children;
+
+						for (int i = grandchildren.size() - 1; i >= 0; --i)
+							f.pending.addFirst(grandchildren.get(i));
+					}
+					else
+						stack.push(new Frame(o));
+				}
+				else
+				{
+					stack.pop();
+					Expression result = finish(f.original, f.children);
+
+					if (stack.isEmpty())
+						rv = result;
+					else
+						stack.peek().children.add(result);
+				}
+			}
+
+			return rv;
+		}
+	}
+
 	/**
 	 * Get the center point of the first initial mode
 	 * 
@@ -765,11 +956,13 @@ public abstract class AutomatonUtil
 		variables.addAll(dy.keySet());
 
 		HyperPoint center = boundsCenter(bounds, variables);
+		double[] sample = new double[NUM_VARS];
 
 		for (int y = 0; y < NUM_VARS; ++y)
 		{
 			String derVariable = variables.get(y);
-			Expression derFunc = dy.get(derVariable).getExpression();
+			CompiledExpression derFunc = CompiledExpression
+					.compile(dy.get(derVariable).getExpression(), variables);
 
 			for (int x = 0; x < NUM_VARS; ++x)
 			{
@@ -777,14 +970,13 @@ public abstract class AutomatonUtil
 															// derivative
 															// variable
 				double sampleOffset = bounds.get(partialDerVar).width() / 2;
-				HyperPoint left = new HyperPoint(center);
-				HyperPoint right = new HyperPoint(center);
+				System.arraycopy(center.dims, 0, sample, 0, NUM_VARS);
 
-				left.dims[x] -= sampleOffset;
-				right.dims[x] += sampleOffset;
+				sample[x] = center.dims[x] - sampleOffset;
+				double leftVal = derFunc.evaluate(sample);
 
-				double leftVal = AutomatonUtil.evaluateExpression(derFunc, left, variables);
-				double rightVal = AutomatonUtil.evaluateExpression(derFunc, right, variables);
+				sample[x] = center.dims[x] + sampleOffset;
+				double rightVal = derFunc.evaluate(sample);
 
 				rv[y][x] = (rightVal - leftVal) / (2 * sampleOffset);
 			}
@@ -1194,10 +1386,13 @@ public abstract class AutomatonUtil
 		}
 
 		// compare a and b at the constructed sample points
+		CompiledExpression compiledExpected = CompiledExpression.compile(expected, varList);
+		CompiledExpression compiledActual = CompiledExpression.compile(actual, varList);
+
 		for (HyperPoint hp : samples)
 		{
-			double expectedVal = AutomatonUtil.evaluateExpression(expected, hp, varList);
-			double actualVal = AutomatonUtil.evaluateExpression(actual, hp, varList);
+			double expectedVal = compiledExpected.evaluate(hp);
+			double actualVal = compiledActual.evaluate(hp);
 
 			if (Math.abs(expectedVal - actualVal) > tol)
 			{
@@ -1298,7 +1493,7 @@ public abstract class AutomatonUtil
 
 	/**
 	 * Get the gradient vector within a mode. This uses the 'average' dynamics if there's
-	 * nondeterminism.
+	 * nondeterminism. To get the gradient at many points, use compileGradient() once instead.
 	 * 
 	 * @param am
 	 *            the mode
@@ -1308,47 +1503,66 @@ public abstract class AutomatonUtil
 	 */
 	public static double[] getGradientAtPoint(AutomatonMode am, HyperPoint pt)
 	{
-		List<String> vars = am.automaton.variables;
+		return getGradientAtPoint(compileGradient(am, pt.dims.length), pt);
+	}
+
+	/**
+	 * Compile the 'average' dynamics of a mode, for getGradientAtPoint()
+	 * 
+	 * @param am
+	 *            the mode
+	 * @param numDims
+	 *            the number of dimensions of the points (the first variables of the automaton)
+	 * @return the compiled derivative of each dimension
+	 */
+	public static CompiledExpression[] compileGradient(AutomatonMode am, int numDims)
+	{
+		List<String> vars = am.automaton.variables.subList(0, numDims);
 		Map<String, Expression> flowDynamics = centerDynamics(am.flowDynamics);
+		CompiledExpression[] rv = new CompiledExpression[numDims];
 
-		double[] rv = new double[pt.dims.length];
+		for (int dim = 0; dim < numDims; ++dim)
+			rv[dim] = CompiledExpression.compile(flowDynamics.get(vars.get(dim)), vars);
 
-		for (int dim = 0; dim < pt.dims.length; ++dim)
-		{
-			String varName = vars.get(dim);
-			Expression e = flowDynamics.get(varName);
+		return rv;
+	}
 
-			double d = evaluateExpression(e, pt, vars);
+	/**
+	 * Get the gradient vector at a point, using dynamics from compileGradient()
+	 * 
+	 * @param gradient
+	 *            the compiled dynamics
+	 * @param pt
+	 *            the point
+	 * @return the gradient vector
+	 */
+	public static double[] getGradientAtPoint(CompiledExpression[] gradient, HyperPoint pt)
+	{
+		double[] rv = new double[gradient.length];
 
-			rv[dim] = d;
-		}
+		for (int dim = 0; dim < gradient.length; ++dim)
+			rv[dim] = gradient[dim].evaluate(pt.dims);
 
 		return rv;
 	}
 
+	/**
+	 * Evaluate an expression at a point. If the same expression is evaluated at many points, use
+	 * CompiledExpression directly, to avoid recompiling it each time.
+	 * 
+	 * @param e
+	 *            the expression to evaluate
+	 * @param pt
+	 *            the point
+	 * @param variableNames
+	 *            the names of the variables for each dimension of pt
+	 * @return the value of the expression at pt
+	 */
 	public static double evaluateExpression(Expression e, HyperPoint pt, List<String> variableNames)
 	{
-		// create value map
-		TreeMap<String, Expression> valMap = new TreeMap<String, Expression>();
-
-		for (int i = 0; i < pt.dims.length; ++i)
-			valMap.put(variableNames.get(i), new Constant(pt.dims[i]));
-
-		ValueSubstituter vs = new ValueSubstituter(valMap);
-
-		Expression substituted = vs.substitute(e);
+		List<String> vars = variableNames.subList(0, pt.dims.length);
 
-		Expression result = SimplifyExpressionsPass.simplifyExpression(substituted);
-
-		double rv = 0;
-
-		if (result instanceof Constant)
-			rv = ((Constant) result).getVal();
-		else
-			throw new AutomatonExportException(
-					"Could not simplify flow expression completely while simulating: " + e);
-
-		return rv;
+		return CompiledExpression.compile(e, vars).evaluate(pt.dims);
 	}
 
 	public static Map<String, Expression> centerDynamics(
@@ -1373,7 +1587,8 @@ public abstract class AutomatonUtil
 	}
 
 	/**
-	 * Process a reset on a point, and return the new point
+	 * Process a reset on a point, and return the new point. To reset many points, use
+	 * compileReset() once instead.
 	 * 
 	 * @param pt
 	 *            the incoming point
@@ -1386,36 +1601,63 @@ public abstract class AutomatonUtil
 	public static HyperPoint processReset(HyperPoint pt, ArrayList<String> variableNames,
 			LinkedHashMap<String, ExpressionInterval> reset)
 	{
-		HyperPoint rv = new HyperPoint(pt);
+		return processReset(pt, compileReset(variableNames, reset));
+	}
+
+	/**
+	 * Compile a reset, for processReset(). Nondeterministic resets use the middle of their
+	 * interval.
+	 * 
+	 * @param variableNames
+	 *            the list of variables, in order
+	 * @param reset
+	 *            the reset map
+	 * @return the compiled assignment of each variable, null for variables which aren't reset
+	 */
+	public static CompiledExpression[] compileReset(ArrayList<String> variableNames,
+			LinkedHashMap<String, ExpressionInterval> reset)
+	{
+		CompiledExpression[] rv = new CompiledExpression[variableNames.size()];
 
 		for (int i = 0; i < variableNames.size(); ++i)
 		{
-			String v = variableNames.get(i);
-			ExpressionInterval resetAssignment = reset.get(v);
+			ExpressionInterval ei = reset.get(variableNames.get(i));
 
-			if (resetAssignment == null)
-				rv.dims[i] = pt.dims[i];
-			else
-				rv.dims[i] = assignFromExpression(v, pt, variableNames, resetAssignment);
+			if (ei != null)
+			{
+				Expression e = ei.getExpression();
+				Interval interval = ei.getInterval();
+
+				if (interval != null)
+					e = new Operation(Operator.ADD, e, new Constant(interval.middle()));
+
+				rv[i] = CompiledExpression.compile(e, variableNames);
+			}
 		}
 
 		return rv;
 	}
 
-	private static double assignFromExpression(String v, HyperPoint p,
-			ArrayList<String> variableNames, ExpressionInterval resetAssignment)
+	/**
+	 * Process a reset from compileReset() on a point, and return the new point
+	 * 
+	 * @param pt
+	 *            the incoming point
+	 * @param reset
+	 *            the compiled reset
+	 * @return the outgoing point
+	 */
+	public static HyperPoint processReset(HyperPoint pt, CompiledExpression[] reset)
 	{
-		HyperPoint hp = new HyperPoint(p);
-
-		double d = AutomatonUtil.evaluateExpression(resetAssignment.getExpression(), hp,
-				variableNames);
-
-		Interval i = resetAssignment.getInterval();
+		HyperPoint rv = new HyperPoint(pt);
 
-		if (i != null)
-			d += i.middle();
+		for (int i = 0; i < reset.length; ++i)
+		{
+			if (reset[i] != null)
+				rv.dims[i] = reset[i].evaluate(pt.dims);
+		}
 
-		return d;
+		return rv;
 	}
 
 	public static String areExpressionIntervalsEqual(String desiredExpressionString,
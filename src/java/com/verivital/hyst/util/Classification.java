@@ -76,9 +76,10 @@ public class Classification
 		// TODO: stochastic ones, etc.
 	}
 
-	public static LinkedHashMap<String, Integer> varID;
-	public static double[][] linearMatrix;
-	public static BaseComponent ha;
+	// variable ids and linear dynamics matrix of a mode in ha, see setVarID() and setLinearMatrix()
+	public LinkedHashMap<String, Integer> varID;
+	public double[][] linearMatrix;
+	public BaseComponent ha;
 
 	/**
 	 * Classify whether an automaton is deterministic or not
@@ -0,0 +1,513 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.LutExpression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * An Expression compiled to a flat postfix program, for repeated numeric evaluation at many points.
+ * Variables are referenced by their index in the variable list given at compile time, so a point is
+ * just a double[] in that order.
+ *
+ * Evaluation does not allocate, and gives the same result as substituting the values and calling
+ * SimplifyExpressionsPass.simplifyExpression(). Boolean operators evaluate to 1 (true) or 0
+ * (false). Look up tables use n-linear interpolation, extrapolating with the outermost cells, like
+ * ConvertLutFlowsPass.
+ *
+ * Instances keep a scratch stack, so a single instance should not be evaluated from multiple
+ * threads at once. Use copy() to get an instance for another thread.
+ */
+public class CompiledExpression
+{
+	private static final byte PUSH_CONST = 0;
+	private static final byte PUSH_VAR = 1;
+	private static final byte APPLY_OP = 2;
+	private static final byte APPLY_LUT = 3;
+
+	// the program, one entry per instruction
+	private final byte[] kinds;
+	private final Operator[] ops; // for APPLY_OP
+	private final int[] args; // constant index, variable index, arity (APPLY_OP) or lut index
+	private final double[] constants;
+	private final CompiledLut[] luts;
+	private final List<String> variables;
+
+	private final double[] stack;
+
+	private CompiledExpression(Compiler c)
+	{
+		int len = c.kinds.size();
+		kinds = new byte[len];
+		ops = new Operator[len];
+		args = new int[len];
+
+		for (int i = 0; i < len; ++i)
+		{
+			kinds[i] = c.kinds.get(i);
+			ops[i] = c.ops.get(i);
+			args[i] = c.args.get(i);
+		}
+
+		constants = new double[c.constants.size()];
+
+		for (int i = 0; i < constants.length; ++i)
+			constants[i] = c.constants.get(i);
+
+		luts = c.luts.toArray(new CompiledLut[c.luts.size()]);
+		variables = c.variables;
+		stack = new double[Math.max(1, c.maxDepth)];
+	}
+
+	/**
+	 * Copy constructor. The (immutable) program is shared, the scratch space is not.
+	 */
+	private CompiledExpression(CompiledExpression other)
+	{
+		kinds = other.kinds;
+		ops = other.ops;
+		args = other.args;
+		constants = other.constants;
+		variables = other.variables;
+		stack = new double[other.stack.length];
+
+		luts = new CompiledLut[other.luts.length];
+
+		for (int i = 0; i < luts.length; ++i)
+			luts[i] = new CompiledLut(other.luts[i]);
+	}
+
+	/**
+	 * Compile an expression for numeric evaluation
+	 *
+	 * @param e
+	 *            the expression to compile (Operations, Variables, Constants and LutExpressions)
+	 * @param variableNames
+	 *            the variables, in the order they are given in the points passed to evaluate()
+	 * @return the compiled expression
+	 * @throws AutomatonExportException
+	 *             if the expression contains a variable not in variableNames or an unsupported
+	 *             operator or subexpression
+	 */
+	public static CompiledExpression compile(Expression e, List<String> variableNames)
+	{
+		Compiler c = new Compiler(variableNames);
+
+		try
+		{
+			// n-ary sums and products are compiled the same way, without deep recursion
+			c.compileRec(AutomatonUtil.flattenAssociative(e));
+		}
+		catch (AutomatonExportException ex)
+		{
+			throw new AutomatonExportException(
+					"Could not compile expression for evaluation: " + e.toDefaultString(), ex);
+		}
+
+		return new CompiledExpression(c);
+	}
+
+	/**
+	 * Get a copy of this compiled expression which can be used concurrently with this one
+	 *
+	 * @return the copy
+	 */
+	public CompiledExpression copy()
+	{
+		return new CompiledExpression(this);
+	}
+
+	/**
+	 * Get the variable ordering used by this compiled expression
+	 *
+	 * @return the (unmodifiable) list of variable names
+	 */
+	public List<String> getVariables()
+	{
+		return variables;
+	}
+
+	/**
+	 * Evaluate the expression at a point
+	 *
+	 * @param pt
+	 *            the point, in the variable order given at compile time
+	 * @return the value of the expression
+	 */
+	public double evaluate(HyperPoint pt)
+	{
+		return evaluate(pt.dims);
+	}
+
+	/**
+	 * Evaluate the expression at a point
+	 *
+	 * @param state
+	 *            the value of each variable, in the variable order given at compile time
+	 * @return the value of the expression
+	 */
+	public double evaluate(double[] state)
+	{
+		if (state.length < variables.size())
+			throw new AutomatonExportException("Expected a point with " + variables.size()
+					+ " dimensions, got " + state.length);
+
+		int sp = 0;
+
+		for (int pc = 0; pc < kinds.length; ++pc)
+		{
+			switch (kinds[pc])
+			{
+			case PUSH_CONST:
+				stack[sp++] = constants[args[pc]];
+				break;
+			case PUSH_VAR:
+				stack[sp++] = state[args[pc]];
+				break;
+			case APPLY_LUT:
+			{
+				CompiledLut lut = luts[args[pc]];
+				sp -= lut.numInputs;
+				stack[sp] = lut.evaluate(stack, sp);
+				++sp;
+				break;
+			}
+			default:
+			{
+				int arity = args[pc];
+				sp -= arity;
+				stack[sp] = applyOp(ops[pc], arity, sp);
+				++sp;
+				break;
+			}
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Apply an operator to the top values on the stack
+	 *
+	 * @param op
+	 *            the operator
+	 * @param arity
+	 *            the number of operands
+	 * @param base
+	 *            the stack index of the first operand
+	 * @return the result
+	 */
+	private double applyOp(Operator op, int arity, int base)
+	{
+		double rv;
+		double left = stack[base];
+
+		if (arity == 1)
+		{
+			switch (op)
+			{
+			case SUBTRACT:
+			case NEGATIVE:
+				rv = -left;
+				break;
+			case COS:
+				rv = Math.cos(left);
+				break;
+			case EXP:
+				rv = Math.exp(left);
+				break;
+			case SIN:
+				rv = Math.sin(left);
+				break;
+			case SQRT:
+				rv = Math.sqrt(left);
+				break;
+			case TAN:
+				rv = Math.tan(left);
+				break;
+			case LN:
+				rv = Math.log(left);
+				break;
+			case LOGICAL_NOT:
+				rv = left == 0 ? 1 : 0;
+				break;
+			default:
+				throw new AutomatonExportException("Unsupported unary operation: " + op);
+			}
+		}
+		else if (op == Operator.ADD || op == Operator.MULTIPLY || op == Operator.AND
+				|| op == Operator.OR)
+		{
+			// associative, may have more than two children
+			rv = left;
+
+			for (int i = 1; i < arity; ++i)
+			{
+				double right = stack[base + i];
+
+				if (op == Operator.ADD)
+					rv += right;
+				else if (op == Operator.MULTIPLY)
+					rv *= right;
+				else if (op == Operator.AND)
+					rv = rv == 0 ? 0 : right;
+				else
+					rv = rv == 0 ? right : 1;
+			}
+		}
+		else
+		{
+			double right = stack[base + 1];
+
+			switch (op)
+			{
+			case DIVIDE:
+				rv = left / right;
+				break;
+			case SUBTRACT:
+				rv = left - right;
+				break;
+			case POW:
+				rv = Math.pow(left, right);
+				break;
+			case EQUAL:
+				rv = left == right ? 1 : 0;
+				break;
+			case LESS:
+				rv = left < right ? 1 : 0;
+				break;
+			case GREATER:
+				rv = left > right ? 1 : 0;
+				break;
+			case LESSEQUAL:
+				rv = left <= right ? 1 : 0;
+				break;
+			case GREATEREQUAL:
+				rv = left >= right ? 1 : 0;
+				break;
+			case NOTEQUAL:
+				rv = left != right ? 1 : 0;
+				break;
+			default:
+				throw new AutomatonExportException("Unsupported binary operation: " + op);
+			}
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Accumulates the program while walking the expression tree
+	 */
+	private static class Compiler
+	{
+		ArrayList<Byte> kinds = new ArrayList<Byte>();
+		ArrayList<Operator> ops = new ArrayList<Operator>();
+		ArrayList<Integer> args = new ArrayList<Integer>();
+		ArrayList<Double> constants = new ArrayList<Double>();
+		ArrayList<CompiledLut> luts = new ArrayList<CompiledLut>();
+
+		List<String> variables;
+		Map<String, Integer> varIndex = new HashMap<String, Integer>();
+
+		int depth = 0;
+		int maxDepth = 0;
+
+		public Compiler(List<String> variableNames)
+		{
+			variables = Collections.unmodifiableList(new ArrayList<String>(variableNames));
+
+			for (int i = 0; i < variables.size(); ++i)
+				varIndex.put(variables.get(i), i);
+		}
+
+		private void emit(byte kind, Operator op, int arg, int pops)
+		{
+			kinds.add(kind);
+			ops.add(op);
+			args.add(arg);
+
+			depth += 1 - pops;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		public void compileRec(Expression e)
+		{
+			if (e instanceof Constant)
+			{
+				constants.add(((Constant) e).getVal());
+				emit(PUSH_CONST, null, constants.size() - 1, 0);
+			}
+			else if (e instanceof Variable)
+			{
+				String name = ((Variable) e).name;
+				Integer index = varIndex.get(name);
+
+				if (index == null)
+					throw new AutomatonExportException(
+							"Value of variable " + name + " is needed, but wasn't provided.");
+
+				emit(PUSH_VAR, null, index, 0);
+			}
+			else if (e instanceof Operation)
+			{
+				Operation o = (Operation) e;
+				int arity = o.children.size();
+
+				if (arity == 0 || o.op == Operator.LOC)
+					throw new AutomatonExportException("Operation cannot be evaluated: " + o.op);
+
+				if (arity > 2 && o.op != Operator.ADD && o.op != Operator.MULTIPLY
+						&& o.op != Operator.AND && o.op != Operator.OR)
+					throw new AutomatonExportException(
+							"Operator " + o.op + " cannot have " + arity + " children.");
+
+				for (Expression child : o.children)
+					compileRec(child);
+
+				emit(APPLY_OP, o.op, arity, arity);
+			}
+			else if (e instanceof LutExpression)
+			{
+				LutExpression lut = (LutExpression) e;
+
+				for (Expression input : lut.inputs)
+					compileRec(input);
+
+				luts.add(new CompiledLut(lut));
+				emit(APPLY_LUT, null, luts.size() - 1, lut.inputs.length);
+			}
+			else
+				throw new AutomatonExportException(
+						"Unsupported expression type for evaluation: " + e.getClass().getName());
+		}
+	}
+
+	/**
+	 * A look up table with numeric data, and scratch space for the interpolation
+	 */
+	private static class CompiledLut
+	{
+		final int numInputs;
+		final double[][] breakpoints;
+		final double[] table; // flattened in MatrixExpression order
+		final int[] strides;
+
+		// scratch
+		final int[] cell;
+		final double[] frac;
+
+		public CompiledLut(LutExpression lut)
+		{
+			numInputs = lut.inputs.length;
+			breakpoints = lut.breakpoints;
+			strides = new int[numInputs];
+
+			int size = 1;
+
+			for (int d = 0; d < numInputs; ++d)
+			{
+				// like the LutExpression constructor; interpolation needs a cell in each dimension
+				if (breakpoints[d].length < 2)
+					throw new AutomatonExportException(
+							"look up table breakpoints[" + d + "] must be at least of size 2");
+
+				strides[d] = size;
+				size *= lut.table.getDimWidth(d);
+			}
+
+			table = new double[size];
+
+			for (Entry<int[], Expression> entry : lut.table)
+			{
+				int index = 0;
+				int[] indices = entry.getKey();
+
+				for (int d = 0; d < numInputs; ++d)
+					index += indices[d] * strides[d];
+
+				table[index] = AutomatonUtil.evaluateConstant(entry.getValue().copy());
+			}
+
+			cell = new int[numInputs];
+			frac = new double[numInputs];
+		}
+
+		public CompiledLut(CompiledLut other)
+		{
+			numInputs = other.numInputs;
+			breakpoints = other.breakpoints;
+			table = other.table;
+			strides = other.strides;
+
+			cell = new int[numInputs];
+			frac = new double[numInputs];
+		}
+
+		/**
+		 * Interpolate in the table
+		 *
+		 * @param inputs
+		 *            array containing the input values
+		 * @param offset
+		 *            the index of the first input value
+		 * @return the interpolated value
+		 */
+		public double evaluate(double[] inputs, int offset)
+		{
+			for (int d = 0; d < numInputs; ++d)
+			{
+				double x = inputs[offset + d];
+				double[] bp = breakpoints[d];
+
+				// largest i in [0, len - 2] with bp[i] <= x (0 if x is left of all breakpoints)
+				int lo = 0;
+				int hi = bp.length - 2;
+
+				while (lo < hi)
+				{
+					int mid = (lo + hi + 1) >>> 1;
+
+					if (bp[mid] <= x)
+						lo = mid;
+					else
+						hi = mid - 1;
+				}
+
+				cell[d] = lo;
+				frac[d] = (x - bp[lo]) / (bp[lo + 1] - bp[lo]);
+			}
+
+			double rv = 0;
+
+			for (int corner = 0; corner < (1 << numInputs); ++corner)
+			{
+				double weight = 1;
+				int index = 0;
+
+				for (int d = 0; d < numInputs; ++d)
+				{
+					boolean isMax = (corner & (1 << d)) != 0;
+
+					weight *= isMax ? frac[d] : 1 - frac[d];
+					index += (isMax ? cell[d] + 1 : cell[d]) * strides[d];
+				}
+
+				rv += weight * table[index];
+			}
+
+			return rv;
+		}
+	}
+}
@@ -0,0 +1,492 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Constant;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.grammar.formula.Operation;
+import com.verivital.hyst.grammar.formula.Operator;
+import com.verivital.hyst.grammar.formula.Variable;
+import com.verivital.hyst.ir.AutomatonExportException;
+
+/**
+ * An Expression compiled for repeated interval evaluation over many boxes. This is the interval
+ * counterpart of CompiledExpression: variables are referenced by their index in the variable list
+ * given at compile time, and a box is given as two double[]'s (the lower and upper bounds) in that
+ * order.
+ *
+ * Evaluation does not allocate; the bounds of intermediate results are kept in a scratch stack.
+ * Every rounded operation is rounded outward by one ulp (Math.nextUp / Math.nextAfter), so unlike
+ * Interval.intervalEvaluate() the result is guaranteed to contain the range of the expression over
+ * the box. Constants are used as given.
+ *
+ * The supported operators are +, -, *, /, ^ (with a constant nonnegative integer exponent), sqrt,
+ * ln and exp. Parts of an interval outside the domain of sqrt or ln are ignored, since bounds
+ * which are exactly zero may become slightly negative due to rounding.
+ *
+ * Instances keep a scratch stack, so a single instance should not be evaluated from multiple
+ * threads at once. Use copy() to get an instance for another thread.
+ */
+public class CompiledIntervalExpression
+{
+	private static final byte PUSH_CONST = 0;
+	private static final byte PUSH_VAR = 1;
+	private static final byte ADD = 2;
+	private static final byte SUBTRACT = 3;
+	private static final byte MULTIPLY = 4;
+	private static final byte DIVIDE = 5;
+	private static final byte NEGATE = 6;
+	private static final byte POW = 7;
+	private static final byte SQRT = 8;
+	private static final byte LN = 9;
+	private static final byte EXP = 10;
+
+	// the program, one entry per instruction
+	private final byte[] kinds;
+	private final int[] args; // constant index, variable index, arity (ADD / MULTIPLY) or exponent
+	private final double[] constants;
+	private final List<String> variables;
+
+	// scratch
+	private final double[] lo;
+	private final double[] hi;
+
+	private CompiledIntervalExpression(Compiler c)
+	{
+		int len = c.kinds.size();
+		kinds = new byte[len];
+		args = new int[len];
+
+		for (int i = 0; i < len; ++i)
+		{
+			kinds[i] = c.kinds.get(i);
+			args[i] = c.args.get(i);
+		}
+
+		constants = new double[c.constants.size()];
+
+		for (int i = 0; i < constants.length; ++i)
+			constants[i] = c.constants.get(i);
+
+		variables = c.variables;
+		lo = new double[Math.max(1, c.maxDepth)];
+		hi = new double[lo.length];
+	}
+
+	/**
+	 * Copy constructor. The (immutable) program is shared, the scratch space is not.
+	 */
+	private CompiledIntervalExpression(CompiledIntervalExpression other)
+	{
+		kinds = other.kinds;
+		args = other.args;
+		constants = other.constants;
+		variables = other.variables;
+		lo = new double[other.lo.length];
+		hi = new double[other.hi.length];
+	}
+
+	/**
+	 * Compile an expression for interval evaluation
+	 *
+	 * @param e
+	 *            the expression to compile (Operations, Variables and Constants)
+	 * @param variableNames
+	 *            the variables, in the order their bounds are given to evaluate()
+	 * @return the compiled expression
+	 * @throws AutomatonExportException
+	 *             if the expression contains a variable not in variableNames or an unsupported
+	 *             operator or subexpression
+	 */
+	public static CompiledIntervalExpression compile(Expression e, List<String> variableNames)
+	{
+		Compiler c = new Compiler(variableNames);
+
+		try
+		{
+			// n-ary sums and products are compiled the same way, without deep recursion
+			c.compileRec(AutomatonUtil.flattenAssociative(e));
+		}
+		catch (AutomatonExportException ex)
+		{
+			throw new AutomatonExportException(
+					"Could not compile expression for interval evaluation: " + e.toDefaultString(),
+					ex);
+		}
+
+		return new CompiledIntervalExpression(c);
+	}
+
+	/**
+	 * Get a copy of this compiled expression which can be used concurrently with this one
+	 *
+	 * @return the copy
+	 */
+	public CompiledIntervalExpression copy()
+	{
+		return new CompiledIntervalExpression(this);
+	}
+
+	/**
+	 * Get the variable ordering used by this compiled expression
+	 *
+	 * @return the (unmodifiable) list of variable names
+	 */
+	public List<String> getVariables()
+	{
+		return variables;
+	}
+
+	/**
+	 * Evaluate the expression over a box
+	 *
+	 * @param lower
+	 *            the lower corner of the box, in the variable order given at compile time
+	 * @param upper
+	 *            the upper corner of the box
+	 * @return the range of the expression
+	 */
+	public Interval evaluate(HyperPoint lower, HyperPoint upper)
+	{
+		evaluateInPlace(lower.dims, upper.dims);
+
+		return new Interval(lo[0], hi[0]);
+	}
+
+	/**
+	 * Evaluate the expression over a box
+	 *
+	 * @param lower
+	 *            the lower bound of each variable, in the variable order given at compile time
+	 * @param upper
+	 *            the upper bound of each variable
+	 * @param result
+	 *            an array of length at least two, where the minimum and maximum of the result are
+	 *            stored
+	 */
+	public void evaluate(double[] lower, double[] upper, double[] result)
+	{
+		evaluateInPlace(lower, upper);
+
+		result[0] = lo[0];
+		result[1] = hi[0];
+	}
+
+	private void evaluateInPlace(double[] lower, double[] upper)
+	{
+		int numVars = variables.size();
+
+		if (lower.length < numVars || upper.length < numVars)
+			throw new AutomatonExportException("Expected a box with " + numVars
+					+ " dimensions, got " + lower.length + " and " + upper.length);
+
+		int sp = 0;
+
+		for (int pc = 0; pc < kinds.length; ++pc)
+		{
+			int arg = args[pc];
+
+			switch (kinds[pc])
+			{
+			case PUSH_CONST:
+				lo[sp] = hi[sp] = constants[arg];
+				++sp;
+				break;
+			case PUSH_VAR:
+				lo[sp] = lower[arg];
+				hi[sp] = upper[arg];
+
+				if (lo[sp] > hi[sp])
+					throw new AutomatonExportException("Lower bound of variable "
+							+ variables.get(arg) + " exceeds its upper bound: " + lo[sp] + " > "
+							+ hi[sp]);
+
+				++sp;
+				break;
+			case ADD:
+				sp -= arg;
+
+				for (int i = 1; i < arg; ++i)
+				{
+					lo[sp] = down(lo[sp] + lo[sp + i]);
+					hi[sp] = up(hi[sp] + hi[sp + i]);
+				}
+
+				++sp;
+				break;
+			case SUBTRACT:
+			{
+				--sp;
+				double l = down(lo[sp - 1] - hi[sp]);
+				hi[sp - 1] = up(hi[sp - 1] - lo[sp]);
+				lo[sp - 1] = l;
+				break;
+			}
+			case MULTIPLY:
+				sp -= arg;
+
+				for (int i = 1; i < arg; ++i)
+					multiply(sp, sp + i);
+
+				++sp;
+				break;
+			case DIVIDE:
+				--sp;
+				divide(sp - 1, sp);
+				break;
+			case NEGATE:
+			{
+				double l = -hi[sp - 1];
+				hi[sp - 1] = -lo[sp - 1];
+				lo[sp - 1] = l;
+				break;
+			}
+			case POW:
+				pow(sp - 1, arg);
+				break;
+			case SQRT:
+				if (hi[sp - 1] < 0)
+					throw new AutomatonExportException(
+							"Interval evaluate of sqrt with max < 0: " + hi[sp - 1]);
+
+				lo[sp - 1] = lo[sp - 1] <= 0 ? 0 : Math.max(0, down(Math.sqrt(lo[sp - 1])));
+				hi[sp - 1] = up(Math.sqrt(hi[sp - 1]));
+				break;
+			case LN:
+				if (hi[sp - 1] <= 0)
+					throw new AutomatonExportException(
+							"Interval evaluate of ln with max <= 0: " + hi[sp - 1]);
+
+				lo[sp - 1] = lo[sp - 1] <= 0 ? Double.NEGATIVE_INFINITY
+						: down(Math.log(lo[sp - 1]));
+				hi[sp - 1] = up(Math.log(hi[sp - 1]));
+				break;
+			case EXP:
+				lo[sp - 1] = Math.max(0, down(Math.exp(lo[sp - 1])));
+				hi[sp - 1] = up(Math.exp(hi[sp - 1]));
+				break;
+			default:
+				throw new AutomatonExportException("Unknown instruction: " + kinds[pc]);
+			}
+		}
+	}
+
+	/**
+	 * Multiply stack entry a by stack entry b, storing the result in a
+	 */
+	private void multiply(int a, int b)
+	{
+		double p1 = lo[a] * lo[b];
+		double p2 = lo[a] * hi[b];
+		double p3 = hi[a] * lo[b];
+		double p4 = hi[a] * hi[b];
+
+		lo[a] = down(Math.min(Math.min(p1, p2), Math.min(p3, p4)));
+		hi[a] = up(Math.max(Math.max(p1, p2), Math.max(p3, p4)));
+	}
+
+	/**
+	 * Divide stack entry a by stack entry b, storing the result in a
+	 */
+	private void divide(int a, int b)
+	{
+		if (lo[b] <= 0 && hi[b] >= 0)
+			throw new AutomatonExportException("Interval division contains zero in denominator.");
+
+		double q1 = lo[a] / lo[b];
+		double q2 = lo[a] / hi[b];
+		double q3 = hi[a] / lo[b];
+		double q4 = hi[a] / hi[b];
+
+		lo[a] = down(Math.min(Math.min(q1, q2), Math.min(q3, q4)));
+		hi[a] = up(Math.max(Math.max(q1, q2), Math.max(q3, q4)));
+	}
+
+	/**
+	 * Raise stack entry a to a nonnegative integer power, like Interval.intervalPow()
+	 */
+	private void pow(int a, int n)
+	{
+		double l = lo[a];
+		double h = hi[a];
+
+		if (n == 0)
+			lo[a] = hi[a] = 1;
+		else if (n == 1)
+		{
+			// unchanged
+		}
+		else if (n % 2 == 1)
+		{
+			lo[a] = down(Math.pow(l, n));
+			hi[a] = up(Math.pow(h, n));
+		}
+		else if (l >= 0)
+		{
+			lo[a] = Math.max(0, down(Math.pow(l, n)));
+			hi[a] = up(Math.pow(h, n));
+		}
+		else if (h < 0)
+		{
+			lo[a] = Math.max(0, down(Math.pow(h, n)));
+			hi[a] = up(Math.pow(l, n));
+		}
+		else
+		{
+			lo[a] = 0;
+			hi[a] = up(Math.max(Math.pow(l, n), Math.pow(h, n)));
+		}
+	}
+
+	private static double down(double d)
+	{
+		return Math.nextAfter(d, Double.NEGATIVE_INFINITY);
+	}
+
+	private static double up(double d)
+	{
+		return Math.nextUp(d);
+	}
+
+	/**
+	 * Accumulates the program while walking the expression tree
+	 */
+	private static class Compiler
+	{
+		ArrayList<Byte> kinds = new ArrayList<Byte>();
+		ArrayList<Integer> args = new ArrayList<Integer>();
+		ArrayList<Double> constants = new ArrayList<Double>();
+
+		List<String> variables;
+		Map<String, Integer> varIndex = new HashMap<String, Integer>();
+
+		int depth = 0;
+		int maxDepth = 0;
+
+		public Compiler(List<String> variableNames)
+		{
+			variables = Collections.unmodifiableList(new ArrayList<String>(variableNames));
+
+			for (int i = 0; i < variables.size(); ++i)
+				varIndex.put(variables.get(i), i);
+		}
+
+		private void emit(byte kind, int arg, int pops)
+		{
+			kinds.add(kind);
+			args.add(arg);
+
+			depth += 1 - pops;
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		public void compileRec(Expression e)
+		{
+			if (e instanceof Constant)
+			{
+				constants.add(((Constant) e).getVal());
+				emit(PUSH_CONST, constants.size() - 1, 0);
+			}
+			else if (e instanceof Variable)
+			{
+				String name = ((Variable) e).name;
+				Integer index = varIndex.get(name);
+
+				if (index == null)
+					throw new AutomatonExportException(
+							"Range of variable " + name + " is needed, but wasn't provided.");
+
+				emit(PUSH_VAR, index, 0);
+			}
+			else if (e instanceof Operation)
+				compileOperation((Operation) e);
+			else
+				throw new AutomatonExportException("Unsupported Expression Type: " + e);
+		}
+
+		private void compileOperation(Operation o)
+		{
+			int arity = o.children.size();
+
+			if (arity == 1)
+			{
+				byte kind;
+
+				switch (o.op)
+				{
+				case NEGATIVE:
+				case SUBTRACT:
+					kind = NEGATE;
+					break;
+				case SQRT:
+					kind = SQRT;
+					break;
+				case LN:
+					kind = LN;
+					break;
+				case EXP:
+					kind = EXP;
+					break;
+				default:
+					throw new AutomatonExportException(
+							"Operator is not supported: " + o.op.name());
+				}
+
+				compileRec(o.children.get(0));
+				emit(kind, 0, 1);
+			}
+			else if (arity >= 2 && (o.op == Operator.ADD || o.op == Operator.MULTIPLY))
+			{
+				for (Expression child : o.children)
+					compileRec(child);
+
+				emit(o.op == Operator.ADD ? ADD : MULTIPLY, arity, arity);
+			}
+			else if (arity == 2 && (o.op == Operator.SUBTRACT || o.op == Operator.DIVIDE))
+			{
+				compileRec(o.children.get(0));
+				compileRec(o.children.get(1));
+				emit(o.op == Operator.SUBTRACT ? SUBTRACT : DIVIDE, 0, 2);
+			}
+			else if (arity == 2 && o.op == Operator.POW)
+			{
+				compileRec(o.children.get(0));
+				emit(POW, getExponent(o.children.get(1)), 1);
+			}
+			else
+				throw new AutomatonExportException("Operator is not supported with " + arity
+						+ " children: " + o.op.name());
+		}
+
+		/**
+		 * Get the value of a constant exponent, which must be a nonnegative integer
+		 */
+		private static int getExponent(Expression e)
+		{
+			double val;
+
+			try
+			{
+				val = CompiledExpression.compile(e, Collections.<String> emptyList())
+						.evaluate(new double[0]);
+			}
+			catch (AutomatonExportException ex)
+			{
+				throw new AutomatonExportException("Interval value in exponent not supported.",
+						ex);
+			}
+
+			if (val != Math.floor(val) || val < 0 || val > Integer.MAX_VALUE)
+				throw new AutomatonExportException(
+						"Only nonnegative integer exponents are supported: " + val);
+
+			return (int) val;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.verivital.hyst.geometry.HyperPoint;
+import com.verivital.hyst.geometry.Interval;
+import com.verivital.hyst.grammar.formula.Expression;
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.Hyst;
+
+/**
+ * Bounds expressions over boxes using outward-rounded interval arithmetic
+ * (CompiledIntervalExpression), with an optional guaranteed error. This is the Java version of
+ * eval_eqs_bounded in pythonbridge/interval_optimize.py.
+ *
+ * With an error bound, an under-approximation of the range is computed by evaluating the
+ * expression at the corners of the box (or only the center, in high dimensions). The box is then
+ * bisected along its widest dimension until the interval evaluation of every sub-box is within the
+ * error bound of the under-approximation, which is refined with the center of each sub-box.
+ *
+ * Each expression is optimized sequentially, and the expressions are optimized in parallel using a
+ * fork-join pool.
+ */
+public class IntervalOptimizer
+{
+	// the maximum number of sub-boxes per expression, after which the error bound is given up
+	private static final int MAX_BOXES = 1000000;
+
+	// above this dimension, only the center is used for the initial under-approximation
+	private static final int MAX_CORNER_DIMS = 12;
+
+	/**
+	 * Bound several expressions, each over its own box, in parallel
+	 *
+	 * @param expList
+	 *            the expressions to minimize and maximize
+	 * @param boundsList
+	 *            the interval bounds for each variable, for each expression
+	 * @param maxError
+	 *            the maximum overapproximation error, use 0 or negative if you don't want an error
+	 *            bound (a single interval evaluation is done)
+	 * @return the resultant interval bounds, in the order of expList
+	 */
+	public static List<Interval> optimize(List<Expression> expList,
+			List<? extends Map<String, Interval>> boundsList, double maxError)
+	{
+		int size = expList.size();
+
+		if (size != boundsList.size())
+			throw new AutomatonExportException("number of expression(" + size
+					+ ") and number of bounds (" + boundsList.size() + ") must match.");
+
+		ArrayList<Interval> rv = new ArrayList<Interval>(size);
+		final ArrayList<OptimizeTask> tasks = new ArrayList<OptimizeTask>(size);
+
+		for (int i = 0; i < size; ++i)
+			tasks.add(new OptimizeTask(expList.get(i), boundsList.get(i), maxError));
+
+		if (size == 1)
+			tasks.get(0).invoke(); // don't bother with the pool for a single expression
+		else if (size > 1)
+		{
+			TaskPool.get().invoke(new TaskPool.ContextAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void computeInContext()
+				{
+					invokeAll(tasks);
+				}
+			});
+		}
+
+		for (OptimizeTask t : tasks)
+			rv.add(t.result);
+
+		return rv;
+	}
+
+	/**
+	 * Bound a single expression over a box
+	 *
+	 * @param e
+	 *            the expression to minimize and maximize
+	 * @param bounds
+	 *            the interval bounds for each variable in the expression
+	 * @param maxError
+	 *            the maximum overapproximation error, use 0 or negative if you don't want an error
+	 *            bound (a single interval evaluation is done)
+	 * @return the resultant interval bounds
+	 */
+	public static Interval optimize(Expression e, Map<String, Interval> bounds, double maxError)
+	{
+		ArrayList<String> vars = new ArrayList<String>(bounds.keySet());
+		int numVars = vars.size();
+		CompiledIntervalExpression cie = CompiledIntervalExpression.compile(e, vars);
+
+		HyperPoint lower = new HyperPoint(numVars);
+		HyperPoint upper = new HyperPoint(numVars);
+
+		for (int d = 0; d < numVars; ++d)
+		{
+			Interval i = bounds.get(vars.get(d));
+			lower.dims[d] = i.min;
+			upper.dims[d] = i.max;
+		}
+
+		if (maxError <= 0)
+			return cie.evaluate(lower, upper);
+
+		CompiledExpression ce = CompiledExpression.compile(e, vars);
+		Interval under = getUnderApproximation(ce, lower, upper);
+		Interval rv = null;
+		int numBoxes = 0;
+		double[] range = new double[2];
+
+		ArrayDeque<HyperPoint[]> stack = new ArrayDeque<HyperPoint[]>();
+		stack.push(new HyperPoint[] { lower, upper });
+
+		while (!stack.isEmpty())
+		{
+			HyperPoint[] box = stack.pop();
+			cie.evaluate(box[0].dims, box[1].dims, range);
+			++numBoxes;
+
+			// any point in the box is in the range
+			under.expand(ce.evaluate(center(box)));
+
+			// the range is an interval, so it contains every point between under and a sub-box
+			if (range[1] < under.min)
+				under.min = range[1];
+
+			if (range[0] > under.max)
+				under.max = range[0];
+
+			boolean withinError = range[0] >= under.min - maxError
+					&& range[1] <= under.max + maxError;
+
+			if (withinError || numBoxes >= MAX_BOXES)
+			{
+				if (rv == null)
+					rv = new Interval(range[0], range[1]);
+				else
+				{
+					rv.expand(range[0]);
+					rv.expand(range[1]);
+				}
+			}
+			else
+			{
+				int splitDim = widestDimension(box);
+				double mid = (box[0].dims[splitDim] + box[1].dims[splitDim]) / 2.0;
+
+				HyperPoint leftMax = new HyperPoint(box[1]);
+				leftMax.dims[splitDim] = mid;
+
+				HyperPoint rightMin = new HyperPoint(box[0]);
+				rightMin.dims[splitDim] = mid;
+
+				stack.push(new HyperPoint[] { rightMin, box[1] });
+				stack.push(new HyperPoint[] { box[0], leftMax });
+			}
+		}
+
+		if (numBoxes >= MAX_BOXES)
+			Hyst.log("Warning: interval optimization of " + e.toDefaultString() + " exceeded "
+					+ MAX_BOXES + " boxes; error bound " + maxError + " may not be met.");
+
+		return rv;
+	}
+
+	/**
+	 * Evaluate the expression at the corners of the box (or the center, in high dimensions)
+	 */
+	private static Interval getUnderApproximation(CompiledExpression ce, HyperPoint lower,
+			HyperPoint upper)
+	{
+		int numVars = lower.dims.length;
+		Interval rv = new Interval(ce.evaluate(center(new HyperPoint[] { lower, upper })));
+
+		if (numVars <= MAX_CORNER_DIMS)
+		{
+			double[] pt = new double[numVars];
+
+			for (int corner = 0; corner < (1 << numVars); ++corner)
+			{
+				for (int d = 0; d < numVars; ++d)
+					pt[d] = ((corner >> d) & 1) == 0 ? lower.dims[d] : upper.dims[d];
+
+				rv.expand(ce.evaluate(pt));
+			}
+		}
+
+		return rv;
+	}
+
+	private static HyperPoint center(HyperPoint[] box)
+	{
+		int numVars = box[0].dims.length;
+		HyperPoint rv = new HyperPoint(numVars);
+
+		for (int d = 0; d < numVars; ++d)
+			rv.dims[d] = (box[0].dims[d] + box[1].dims[d]) / 2.0;
+
+		return rv;
+	}
+
+	private static int widestDimension(HyperPoint[] box)
+	{
+		int rv = 0;
+		double widest = -1;
+
+		for (int d = 0; d < box[0].dims.length; ++d)
+		{
+			double width = box[1].dims[d] - box[0].dims[d];
+
+			if (width > widest)
+			{
+				widest = width;
+				rv = d;
+			}
+		}
+
+		return rv;
+	}
+
+	private static class OptimizeTask extends TaskPool.ContextAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final Expression e;
+		private final Map<String, Interval> bounds;
+		private final double maxError;
+		private Interval result = null;
+
+		public OptimizeTask(Expression e, Map<String, Interval> bounds, double maxError)
+		{
+			this.e = e;
+			this.bounds = bounds;
+			this.maxError = maxError;
+		}
+
+		@Override
+		protected void computeInContext()
+		{
+			result = optimize(e, bounds, maxError);
+		}
+	}
+}
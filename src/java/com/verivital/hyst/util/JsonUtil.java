@@ -0,0 +1,338 @@
+package com.verivital.hyst.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A small JSON reader and writer, used for the messages of the Hyst server (HystServer).
+ *
+ * Parsed objects are LinkedHashMap<String, Object>, arrays are ArrayList<Object>, numbers are Long
+ * (if they are integers) or Double, and true / false / null are Boolean.TRUE / Boolean.FALSE /
+ * null.
+ */
+public class JsonUtil
+{
+	/**
+	 * Parse a JSON value
+	 *
+	 * @param text
+	 *            the text to parse
+	 * @return the parsed value
+	 * @throws IllegalArgumentException
+	 *             if the text is not valid JSON
+	 */
+	public static Object parse(String text)
+	{
+		Parser p = new Parser(text);
+		Object rv = p.readValue();
+
+		p.skipWhitespace();
+
+		if (p.pos != text.length())
+			throw p.error("unexpected text after value");
+
+		return rv;
+	}
+
+	/**
+	 * Convert a value to JSON text. Supported values are Maps (with string keys), Lists, Strings,
+	 * Numbers, Booleans and null.
+	 *
+	 * @param value
+	 *            the value to convert
+	 * @return the JSON text, on a single line
+	 */
+	public static String toJson(Object value)
+	{
+		StringBuilder rv = new StringBuilder();
+
+		appendJson(rv, value);
+
+		return rv.toString();
+	}
+
+	private static void appendJson(StringBuilder rv, Object value)
+	{
+		if (value == null)
+			rv.append("null");
+		else if (value instanceof String)
+			appendString(rv, (String) value);
+		else if (value instanceof Number || value instanceof Boolean)
+			rv.append(value);
+		else if (value instanceof Map)
+		{
+			rv.append('{');
+			boolean first = true;
+
+			for (Entry<?, ?> e : ((Map<?, ?>) value).entrySet())
+			{
+				if (!first)
+					rv.append(", ");
+
+				first = false;
+				appendString(rv, String.valueOf(e.getKey()));
+				rv.append(": ");
+				appendJson(rv, e.getValue());
+			}
+
+			rv.append('}');
+		}
+		else if (value instanceof List)
+		{
+			rv.append('[');
+			boolean first = true;
+
+			for (Object o : (List<?>) value)
+			{
+				if (!first)
+					rv.append(", ");
+
+				first = false;
+				appendJson(rv, o);
+			}
+
+			rv.append(']');
+		}
+		else
+			throw new IllegalArgumentException(
+					"cannot convert to json: " + value.getClass().getName());
+	}
+
+	private static void appendString(StringBuilder rv, String s)
+	{
+		rv.append('"');
+
+		for (int i = 0; i < s.length(); ++i)
+		{
+			char c = s.charAt(i);
+
+			if (c == '"' || c == '\\')
+				rv.append('\\').append(c);
+			else if (c == '\n')
+				rv.append("\\n");
+			else if (c == '\r')
+				rv.append("\\r");
+			else if (c == '\t')
+				rv.append("\\t");
+			else if (c < 0x20)
+				rv.append(String.format("\\u%04x", (int) c));
+			else
+				rv.append(c);
+		}
+
+		rv.append('"');
+	}
+
+	private static class Parser
+	{
+		private final String text;
+		private int pos = 0;
+
+		Parser(String text)
+		{
+			this.text = text;
+		}
+
+		IllegalArgumentException error(String message)
+		{
+			return new IllegalArgumentException(
+					"invalid json (" + message + ") at character " + pos + ": " + text);
+		}
+
+		void skipWhitespace()
+		{
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+				++pos;
+		}
+
+		char peek()
+		{
+			skipWhitespace();
+
+			if (pos >= text.length())
+				throw error("unexpected end of text");
+
+			return text.charAt(pos);
+		}
+
+		void expect(char c)
+		{
+			if (peek() != c)
+				throw error("expected '" + c + "'");
+
+			++pos;
+		}
+
+		Object readValue()
+		{
+			Object rv;
+			char c = peek();
+
+			if (c == '{')
+				rv = readObject();
+			else if (c == '[')
+				rv = readArray();
+			else if (c == '"')
+				rv = readString();
+			else if (text.startsWith("true", pos))
+			{
+				pos += 4;
+				rv = Boolean.TRUE;
+			}
+			else if (text.startsWith("false", pos))
+			{
+				pos += 5;
+				rv = Boolean.FALSE;
+			}
+			else if (text.startsWith("null", pos))
+			{
+				pos += 4;
+				rv = null;
+			}
+			else
+				rv = readNumber();
+
+			return rv;
+		}
+
+		Map<String, Object> readObject()
+		{
+			Map<String, Object> rv = new LinkedHashMap<String, Object>();
+			expect('{');
+
+			if (peek() == '}')
+				++pos;
+			else
+			{
+				while (true)
+				{
+					if (peek() != '"')
+						throw error("expected string key");
+
+					String key = readString();
+					expect(':');
+					rv.put(key, readValue());
+
+					if (peek() == ',')
+						++pos;
+					else
+					{
+						expect('}');
+						break;
+					}
+				}
+			}
+
+			return rv;
+		}
+
+		List<Object> readArray()
+		{
+			List<Object> rv = new ArrayList<Object>();
+			expect('[');
+
+			if (peek() == ']')
+				++pos;
+			else
+			{
+				while (true)
+				{
+					rv.add(readValue());
+
+					if (peek() == ',')
+						++pos;
+					else
+					{
+						expect(']');
+						break;
+					}
+				}
+			}
+
+			return rv;
+		}
+
+		String readString()
+		{
+			StringBuilder rv = new StringBuilder();
+			expect('"');
+
+			while (true)
+			{
+				if (pos >= text.length())
+					throw error("unterminated string");
+
+				char c = text.charAt(pos++);
+
+				if (c == '"')
+					break;
+				else if (c != '\\')
+					rv.append(c);
+				else
+				{
+					if (pos >= text.length())
+						throw error("unterminated string");
+
+					char e = text.charAt(pos++);
+
+					if (e == 'n')
+						rv.append('\n');
+					else if (e == 't')
+						rv.append('\t');
+					else if (e == 'r')
+						rv.append('\r');
+					else if (e == 'b')
+						rv.append('\b');
+					else if (e == 'f')
+						rv.append('\f');
+					else if (e == 'u')
+					{
+						if (pos + 4 > text.length())
+							throw error("bad unicode escape");
+
+						try
+						{
+							rv.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+						}
+						catch (NumberFormatException ex)
+						{
+							throw error("bad unicode escape");
+						}
+
+						pos += 4;
+					}
+					else
+						rv.append(e); // '"', '\\' and '/'
+				}
+			}
+
+			return rv.toString();
+		}
+
+		Number readNumber()
+		{
+			int start = pos;
+
+			while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) != -1)
+				++pos;
+
+			String number = text.substring(start, pos);
+
+			try
+			{
+				if (number.matches("-?[0-9]{1,18}"))
+					return Long.valueOf(number);
+
+				return Double.valueOf(number);
+			}
+			catch (NumberFormatException e)
+			{
+				pos = start;
+				throw error("unexpected character");
+			}
+		}
+	}
+}
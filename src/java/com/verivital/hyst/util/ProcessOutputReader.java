@@ -0,0 +1,228 @@
+package com.verivital.hyst.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reads the stdout and stderr of an interactive process (like the python interpreter). Each stream
+ * has a dedicated thread which does blocking, bulk reads and puts the chunks it reads into a
+ * bounded queue. Consumers wait on the queue (with a timeout), rather than polling the streams, so
+ * no cpu is used while the process is computing.
+ *
+ * Text is accumulated in a buffer per stream until it's taken with takeOutput().
+ */
+public class ProcessOutputReader
+{
+	public static final int STDOUT = 0;
+	public static final int STDERR = 1;
+	public static final int NO_TIMEOUT = -1;
+
+	private static final int CHUNK_SIZE = 8192;
+	private static final int QUEUE_CAPACITY = 256;
+
+	private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>(QUEUE_CAPACITY);
+	private final StringBuilder[] buffers = { new StringBuilder(), new StringBuilder() };
+	private final boolean[] ended = { false, false };
+	private final Thread[] threads = new Thread[2];
+
+	public ProcessOutputReader(Process p, String name)
+	{
+		this(p.getInputStream(), p.getErrorStream(), name);
+	}
+
+	/**
+	 * Read a pair of streams which aren't necessarily from a process
+	 *
+	 * @param stdout
+	 *            the stream read as STDOUT
+	 * @param stderr
+	 *            the stream read as STDERR
+	 * @param name
+	 *            the name used for the reader threads
+	 */
+	public ProcessOutputReader(InputStream stdout, InputStream stderr, String name)
+	{
+		threads[STDOUT] = startReader(stdout, STDOUT, name + " stdout reader");
+		threads[STDERR] = startReader(stderr, STDERR, name + " stderr reader");
+	}
+
+	private Thread startReader(final InputStream stream, final int index, String threadName)
+	{
+		Thread t = new Thread(threadName)
+		{
+			@Override
+			public void run()
+			{
+				char[] buf = new char[CHUNK_SIZE];
+				Reader r = new InputStreamReader(stream);
+
+				try
+				{
+					try
+					{
+						int len;
+
+						while ((len = r.read(buf)) != -1)
+							queue.put(new Chunk(index, new String(buf, 0, len)));
+					}
+					catch (IOException e)
+					{
+						// stream was closed; treat as end of stream
+					}
+
+					queue.put(new Chunk(index, null));
+				}
+				catch (InterruptedException e)
+				{
+					// reader was stopped
+				}
+			}
+		};
+
+		t.setDaemon(true);
+		t.start();
+
+		return t;
+	}
+
+	/**
+	 * Stop the reader threads. The process's streams should be closed by the caller.
+	 */
+	public void stop()
+	{
+		for (Thread t : threads)
+			t.interrupt();
+	}
+
+	/**
+	 * Move all the chunks which are already in the queue to the buffers, without waiting
+	 */
+	public void poll()
+	{
+		Chunk c;
+
+		while ((c = queue.poll()) != null)
+			add(c);
+	}
+
+	/**
+	 * Wait until stdout and stderr end with the given suffixes. All output which arrives while
+	 * waiting is added to the buffers.
+	 *
+	 * @param stdoutSuffix
+	 *            the required suffix of stdout, or null if there's no requirement
+	 * @param stderrSuffix
+	 *            the required suffix of stderr, or null if there's no requirement
+	 * @param timeoutMs
+	 *            the timeout in milliseconds, or NO_TIMEOUT
+	 * @throws TimeoutException
+	 *             if the timeout was reached first
+	 * @throws EOFException
+	 *             if one of the required streams ended first
+	 * @throws InterruptedException
+	 *             if the waiting thread is interrupted
+	 */
+	public void waitForSuffixes(String stdoutSuffix, String stderrSuffix, long timeoutMs)
+			throws TimeoutException, EOFException, InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		String[] suffixes = { stdoutSuffix, stderrSuffix };
+
+		poll();
+
+		while (!endsWith(buffers[STDOUT], stdoutSuffix) || !endsWith(buffers[STDERR], stderrSuffix))
+		{
+			for (int i = 0; i < 2; ++i)
+			{
+				if (ended[i] && !endsWith(buffers[i], suffixes[i]))
+					throw new EOFException("End of " + (i == STDOUT ? "stdout" : "stderr")
+							+ " stream was reached.");
+			}
+
+			Chunk c;
+
+			if (timeoutMs < 0)
+				c = queue.take();
+			else
+			{
+				long remaining = deadline - System.currentTimeMillis();
+
+				c = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+
+				if (c == null)
+					throw new TimeoutException("Timeout (" + timeoutMs + " ms) reached.");
+			}
+
+			add(c);
+			poll();
+		}
+	}
+
+	private static boolean endsWith(StringBuilder sb, String suffix)
+	{
+		boolean rv = true;
+
+		if (suffix != null)
+		{
+			int start = sb.length() - suffix.length();
+
+			rv = start >= 0 && sb.indexOf(suffix, start) == start;
+		}
+
+		return rv;
+	}
+
+	private void add(Chunk c)
+	{
+		if (c.text == null)
+			ended[c.stream] = true;
+		else
+			buffers[c.stream].append(c.text);
+	}
+
+	/**
+	 * Get the text accumulated for a stream, without removing it
+	 *
+	 * @param stream
+	 *            STDOUT or STDERR
+	 * @return the accumulated text
+	 */
+	public String peekOutput(int stream)
+	{
+		return buffers[stream].toString();
+	}
+
+	/**
+	 * Get and remove the text accumulated for a stream
+	 *
+	 * @param stream
+	 *            STDOUT or STDERR
+	 * @return the accumulated text
+	 */
+	public String takeOutput(int stream)
+	{
+		String rv = buffers[stream].toString();
+		buffers[stream].setLength(0);
+
+		return rv;
+	}
+
+	private static class Chunk
+	{
+		final int stream;
+		final String text; // null means end of stream
+
+		public Chunk(int stream, String text)
+		{
+			this.stream = stream;
+			this.text = text;
+		}
+	}
+}
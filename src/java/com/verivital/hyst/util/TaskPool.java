@@ -0,0 +1,141 @@
+package com.verivital.hyst.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.main.HystContext;
+
+/**
+ * The fork-join pool shared by everything in Hyst which runs work on other threads (formula
+ * parsing, flattening, interval optimization, simulation, printing several tools at once), sized
+ * to the number of cores.
+ *
+ * Work on the pool runs in the HystContext of the thread which created it, so that log messages
+ * and settings of the conversion apply on the worker threads too. Use submit() for Callables (and
+ * getResult() to wait for them), and extend ContextTask / ContextAction (rather than RecursiveTask
+ * / RecursiveAction) for fork-join tasks; subtasks created inside a task's compute() get the same
+ * context.
+ */
+public class TaskPool
+{
+	private static ForkJoinPool pool = null;
+
+	/**
+	 * Get the shared pool
+	 *
+	 * @return the pool
+	 */
+	public static synchronized ForkJoinPool get()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+
+		return pool;
+	}
+
+	/**
+	 * Run a task on the shared pool, in the current thread's context
+	 *
+	 * @param task
+	 *            the task to run
+	 * @return the task's future
+	 */
+	public static <T> Future<T> submit(Callable<T> task)
+	{
+		return get().submit(HystContext.get().wrap(task));
+	}
+
+	/**
+	 * Wait for the result of a task, rethrowing any exception it threw
+	 *
+	 * @param result
+	 *            the task
+	 * @return the result
+	 */
+	public static <T> T getResult(Future<T> result)
+	{
+		try
+		{
+			return result.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new AutomatonExportException("interrupted while waiting for a task", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+
+			throw new AutomatonExportException("Error in task: " + cause, (Exception) cause);
+		}
+	}
+
+	/**
+	 * A RecursiveTask which computes in the context of the thread which created it
+	 */
+	public abstract static class ContextTask<T> extends RecursiveTask<T>
+	{
+		private static final long serialVersionUID = 1L;
+		private final transient HystContext context = HystContext.get();
+
+		@Override
+		protected final T compute()
+		{
+			HystContext saved = HystContext.set(context);
+
+			try
+			{
+				return computeInContext();
+			}
+			finally
+			{
+				HystContext.set(saved);
+			}
+		}
+
+		/**
+		 * The task's computation, see RecursiveTask.compute()
+		 */
+		protected abstract T computeInContext();
+	}
+
+	/**
+	 * A RecursiveAction which computes in the context of the thread which created it
+	 */
+	public abstract static class ContextAction extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		private final transient HystContext context = HystContext.get();
+
+		@Override
+		protected final void compute()
+		{
+			HystContext saved = HystContext.set(context);
+
+			try
+			{
+				computeInContext();
+			}
+			finally
+			{
+				HystContext.set(saved);
+			}
+		}
+
+		/**
+		 * The action's computation, see RecursiveAction.compute()
+		 */
+		protected abstract void computeInContext();
+	}
+}
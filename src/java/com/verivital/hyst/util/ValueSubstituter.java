@@ -1,5 +1,9 @@
 package com.verivital.hyst.util;
 
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -11,6 +15,13 @@ import com.verivital.hyst.grammar.formula.Operation;
 import com.verivital.hyst.grammar.formula.Operator;
 import com.verivital.hyst.grammar.formula.Variable;
 
+/**
+ * Substitutes expressions for variables, all variables in the map at once. The traversal is done
+ * in a single pass with an explicit stack (no recursion through Operations), so very deep
+ * expressions are fine, and the running time is linear in the size of the expression.
+ *
+ * A negation of a constant is folded into a single constant.
+ */
 public class ValueSubstituter
 {
 	private Map<String, Expression> valMap;
@@ -21,8 +32,9 @@ public class ValueSubstituter
 	}
 
 	/**
-	 * Do the Substitution return the new expression
-	 * 
+	 * Do the Substitution return the new expression. The result is a new expression which shares
+	 * nothing with the passed-in one.
+	 *
 	 * @param e
 	 *            the expression to substitute into
 	 * @return the modified expression
@@ -32,12 +44,109 @@ public class ValueSubstituter
 		Expression rv = null;
 
 		if (e != null)
-			rv = substituteCopy(e.copy());
+			rv = substitute(e, true);
 
 		return rv;
 	}
 
-	private Expression substituteCopy(Expression e)
+	/**
+	 * Do the substitution without copying the parts of the expression which don't change. Only the
+	 * operations above a substituted variable are rebuilt; other subexpressions are shared with the
+	 * passed-in expression, which is returned as-is if nothing was substituted. Don't modify the
+	 * result in place unless you also own the passed-in expression.
+	 *
+	 * @param e
+	 *            the expression to substitute into
+	 * @return the modified expression
+	 */
+	public Expression substituteShared(Expression e)
+	{
+		Expression rv = null;
+
+		if (e != null)
+			rv = substitute(e, false);
+
+		return rv;
+	}
+
+	/**
+	 * An operation being rebuilt, with the substituted children processed so far
+	 */
+	private static class Frame
+	{
+		final Operation op;
+		final List<Expression> newChildren;
+		boolean changed = false;
+
+		Frame(Operation op)
+		{
+			this.op = op;
+			newChildren = new ArrayList<Expression>(op.children.size());
+		}
+	}
+
+	private Expression substitute(Expression root, boolean copy)
+	{
+		if (!(root instanceof Operation))
+			return substituteLeaf(root, copy);
+
+		ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+		stack.push(new Frame((Operation) root));
+		Expression rv = null;
+
+		while (rv == null)
+		{
+			Frame f = stack.peek();
+			int index = f.newChildren.size();
+
+			if (index < f.op.children.size())
+			{
+				Expression child = f.op.children.get(index);
+
+				if (child instanceof Operation)
+					stack.push(new Frame((Operation) child));
+				else
+					addChild(f, child, substituteLeaf(child, copy));
+			}
+			else
+			{
+				stack.pop();
+				Expression result = finish(f, copy);
+
+				if (stack.isEmpty())
+					rv = result;
+				else
+					addChild(stack.peek(), f.op, result);
+			}
+		}
+
+		return rv;
+	}
+
+	private static void addChild(Frame f, Expression oldChild, Expression newChild)
+	{
+		f.newChildren.add(newChild);
+
+		if (newChild != oldChild)
+			f.changed = true;
+	}
+
+	private static Expression finish(Frame f, boolean copy)
+	{
+		Expression rv;
+
+		if (f.op.op == Operator.NEGATIVE && f.newChildren.size() == 1
+				&& f.newChildren.get(0) instanceof Constant)
+			rv = new Constant(-((Constant) f.newChildren.get(0)).getVal());
+		else if (copy || f.changed)
+			rv = new Operation(f.op.op, f.newChildren);
+		else
+			rv = f.op;
+
+		return rv;
+	}
+
+	private Expression substituteLeaf(Expression e, boolean copy)
 	{
 		Expression rv = e;
 
@@ -48,47 +157,56 @@ public class ValueSubstituter
 
 			if (subIn != null)
 				rv = subIn.copy();
+			else if (copy)
+				rv = e.copy();
 		}
-		else if (e instanceof Operation)
+		else if (e instanceof LutExpression)
 		{
-			Operation o = (Operation) e;
+			LutExpression lut = copy ? (LutExpression) e.copy() : (LutExpression) e;
+			Expression[] inputs = new Expression[lut.inputs.length];
+			boolean changed = false;
 
-			for (int i = 0; i < o.children.size(); ++i)
+			for (int i = 0; i < inputs.length; ++i)
 			{
-				Expression child = o.children.get(i);
-
-				Expression newChild = substitute(child);
+				inputs[i] = substitute(lut.inputs[i], copy);
+				changed = changed || inputs[i] != lut.inputs[i];
+			}
 
-				if (newChild instanceof Constant && o.op == Operator.NEGATIVE)
-				{
-					rv = new Constant(-((Constant) newChild).getVal());
-					break;
-				}
+			if (copy || changed)
+			{
+				if (!copy)
+					lut = (LutExpression) lut.copy();
 
-				o.children.set(i, newChild);
+				lut.inputs = inputs;
 			}
-		}
-		else if (e instanceof LutExpression)
-		{
-			LutExpression lut = (LutExpression) e;
-
-			for (int i = 0; i < lut.inputs.length; ++i)
-				lut.inputs[i] = substitute(lut.inputs[i]);
 
-			substitute(lut.table);
+			rv = lut;
 		}
 		else if (e instanceof MatrixExpression)
 		{
-			MatrixExpression m = (MatrixExpression) e;
+			MatrixExpression m = copy ? (MatrixExpression) e.copy() : (MatrixExpression) e;
+			ArrayList<Entry<int[], Expression>> changes = new ArrayList<Entry<int[], Expression>>();
 
 			for (Entry<int[], Expression> entry : m)
 			{
-				Expression simpler = substitute(entry.getValue());
+				Expression subbed = substitute(entry.getValue(), copy);
 
-				m.setExpressionAtIndex(entry.getKey(), simpler);
+				if (copy || subbed != entry.getValue())
+					changes.add(new SimpleEntry<int[], Expression>(
+							entry.getKey().clone(), subbed));
 			}
+
+			if (!changes.isEmpty() && !copy)
+				m = (MatrixExpression) m.copy();
+
+			for (Entry<int[], Expression> change : changes)
+				m.setExpressionAtIndex(change.getKey(), change.getValue());
+
+			rv = m;
 		}
+		else if (copy && e != null)
+			rv = e.copy();
 
 		return rv;
 	}
-};
+}
@@ -3,15 +3,25 @@
  */
 package de.uni_freiburg.informatik.swt.spaxeexxmlreader;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -21,6 +31,7 @@ import org.w3c.dom.NodeList;
 import com.verivital.hyst.grammar.formula.Expression;
 import com.verivital.hyst.grammar.formula.FormulaParser;
 import com.verivital.hyst.ir.AutomatonExportException;
+import com.verivital.hyst.util.TaskPool;
 
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.Bind;
 import de.uni_freiburg.informatik.swt.sxhybridautomaton.BindMap;
@@ -44,13 +55,19 @@ import de.uni_freiburg.informatik.swt.sxhybridautomaton.VariableParam;
 /**
  * Load a SpaceExDocument from an XML file.
  * 
+ * When reading from a file, the XML is streamed (StAX) rather than loaded into a DOM, so the memory
+ * needed is proportional to the resulting SpaceExDocument rather than to the file. Only one child
+ * element of a component (a param, location, transition or bind) is held as a small DOM fragment at
+ * a time, and is parsed by the same methods used for a complete DOM.
+ * 
  * @author Christopher Dillo (dilloc@informatik.uni-freiburg.de)
  *
  */
 public class SpaceExXMLReader
 {
-
 	private Document mXMLDocument;
+	private File mXMLFile;
+	private ArrayList<PendingFormula> mPendingFormulas = new ArrayList<PendingFormula>();
 	private FileReader mCFGFileReader;
 	private SpaceExDocument mTarget;
 
@@ -89,18 +106,7 @@ public class SpaceExXMLReader
 	{
 		File xmlFile = new File(xmlFileName);
 		if (xmlFile.isFile() && xmlFile.canRead())
-		{
-			try
-			{
-				DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-				DocumentBuilder builder = factory.newDocumentBuilder();
-				mXMLDocument = builder.parse(xmlFile);
-			}
-			catch (Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+			mXMLFile = xmlFile;
 		else
 			throw new RuntimeException("xml file doesn't exist or cannot be read: " + xmlFileName);
 
@@ -129,7 +135,11 @@ public class SpaceExXMLReader
 	public SpaceExDocument read()
 	{
 		mTarget = new SpaceExDocument();
-		if (mXMLDocument != null)
+		if (mXMLFile != null)
+		{
+			streamSSpaceEx(mXMLFile);
+		}
+		else if (mXMLDocument != null)
 		{
 			mXMLDocument.getDocumentElement().normalize();
 			parseSSpaceEx(mXMLDocument.getDocumentElement());
@@ -208,6 +218,250 @@ public class SpaceExXMLReader
 		}
 	}
 
+	/**
+	 * Stream the &lt;sspaceex&gt;-Element from a file. This does the same as parseSSpaceEx(), but
+	 * each component is read with streamComponent().
+	 * 
+	 * @param xmlFile
+	 */
+	private void streamSSpaceEx(File xmlFile)
+	{
+		InputStream in = null;
+
+		try
+		{
+			in = new BufferedInputStream(new FileInputStream(xmlFile));
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+			Document scratch = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.newDocument();
+
+			while (reader.next() != XMLStreamConstants.START_ELEMENT)
+			{
+				// skip the prolog
+			}
+
+			String tagName = getTagName(reader);
+
+			if (tagName.equalsIgnoreCase("sspaceex"))
+			{
+				String math = getAttribute(reader, "math");
+				mTarget.setMathFormat(math);
+
+				String version = getAttribute(reader, "version");
+				mTarget.setVersion(version);
+
+				if (!math.equalsIgnoreCase("SpaceEx"))
+				{
+					printWarning("Unexpected MathFormat: " + math);
+				}
+				if (!version.equalsIgnoreCase("0.2"))
+				{
+					printWarning("Unexpected Version: " + version);
+				}
+
+				for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader
+						.next())
+				{
+					if (event == XMLStreamConstants.START_ELEMENT)
+					{
+						streamComponent(reader, scratch);
+					}
+					else if (event == XMLStreamConstants.COMMENT)
+					{
+						printWarning("Unexpected node type of node #comment; " + reader.getText());
+					}
+					else if (event == XMLStreamConstants.CDATA)
+					{
+						printWarning("Unexpected node type of node #cdata-section; "
+								+ reader.getText());
+					}
+					else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION)
+					{
+						printWarning("Unexpected node type of node " + reader.getPITarget() + "; "
+								+ reader.getPIData());
+					}
+				}
+			}
+			else
+			{
+				printError("Invalid main element: " + tagName);
+			}
+
+			reader.close();
+		}
+		catch (XMLStreamException e)
+		{
+			throw new AutomatonExportException("Error while reading model: " + e.getMessage(), e);
+		}
+		catch (ParserConfigurationException e)
+		{
+			throw new AutomatonExportException("Error while reading model: " + e.getMessage(), e);
+		}
+		catch (IOException e)
+		{
+			throw new AutomatonExportException("Error while reading model: " + e.getMessage(), e);
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stream a &lt;component&gt;-Element. Each child element is read into a DOM fragment, parsed
+	 * like in parseComponent(), and discarded. Since it's not known whether this is a base or a
+	 * network component until a &lt;bind&gt; is found, the children are collected into one of
+	 * each, and the right one is added to the document at the end.
+	 * 
+	 * @param reader
+	 *            the reader, positioned at the start of the component
+	 * @param scratch
+	 *            the document used to create the DOM fragments
+	 */
+	private void streamComponent(XMLStreamReader reader, Document scratch)
+			throws XMLStreamException
+	{
+		String tagName = getTagName(reader);
+
+		if (!tagName.equalsIgnoreCase("component"))
+			printError("Invalid Component element: " + tagName);
+
+		String id = getAttribute(reader, "id");
+		String note = null;
+
+		SpaceExDocument pending = new SpaceExDocument();
+		SpaceExBaseComponent baseComponent = new SpaceExBaseComponent(pending);
+		SpaceExNetworkComponent netComponent = new SpaceExNetworkComponent(pending);
+		Element element = scratch.createElement(tagName);
+
+		for (int event = reader.next(); event != XMLStreamConstants.END_ELEMENT; event = reader
+				.next())
+		{
+			if (event == XMLStreamConstants.START_ELEMENT)
+			{
+				Node child = element.appendChild(readElement(reader, scratch));
+
+				parseBinds(element.getElementsByTagName("bind"), netComponent);
+				parseLocations(element.getElementsByTagName("location"), baseComponent);
+				parseTransitions(element.getElementsByTagName("transition"), baseComponent);
+				parseParams(element.getElementsByTagName("param"), baseComponent);
+
+				// the note of a component is the first one anywhere inside it, see parseNote()
+				if (note == null && element.getElementsByTagName("note").getLength() > 0)
+					note = parseNote(element);
+
+				element.removeChild(child);
+			}
+		}
+
+		SpaceExComponent component;
+		if (netComponent.getBindCount() > 0)
+		{
+			// Binds -> Network Component
+			component = netComponent;
+
+			for (Param param : baseComponent.getParams())
+				netComponent.addParam(param);
+		}
+		else
+		{
+			// No Binds -> Base Component with Locations & Transitions
+			component = baseComponent;
+		}
+
+		finishFormulas();
+
+		mTarget.addComponent(component);
+		component.setID(id);
+		component.setNote(note == null ? "" : note);
+	}
+
+	/**
+	 * Read an element and everything inside it into a DOM fragment
+	 * 
+	 * @param reader
+	 *            the reader, positioned at the start of the element. At the end, it is positioned
+	 *            at the end of the element.
+	 * @param scratch
+	 *            the document used to create the fragment
+	 * @return the element
+	 */
+	private Element readElement(XMLStreamReader reader, Document scratch)
+			throws XMLStreamException
+	{
+		Element rv = createElement(reader, scratch);
+		Node cur = rv;
+
+		while (cur != null)
+		{
+			int event = reader.next();
+
+			if (event == XMLStreamConstants.START_ELEMENT)
+				cur = cur.appendChild(createElement(reader, scratch));
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				cur = cur == rv ? null : cur.getParentNode();
+			else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.SPACE)
+				cur.appendChild(scratch.createTextNode(reader.getText()));
+			else if (event == XMLStreamConstants.CDATA)
+				cur.appendChild(scratch.createCDATASection(reader.getText()));
+			else if (event == XMLStreamConstants.COMMENT)
+				cur.appendChild(scratch.createComment(reader.getText()));
+		}
+
+		return rv;
+	}
+
+	private Element createElement(XMLStreamReader reader, Document scratch)
+	{
+		Element rv = scratch.createElement(getTagName(reader));
+
+		for (int i = 0; i < reader.getAttributeCount(); ++i)
+		{
+			String prefix = reader.getAttributePrefix(i);
+			String name = reader.getAttributeLocalName(i);
+
+			if (prefix != null && prefix.length() > 0)
+				name = prefix + ":" + name;
+
+			rv.setAttribute(name, reader.getAttributeValue(i));
+		}
+
+		return rv;
+	}
+
+	/**
+	 * Get the tag name of the current element, as it would be in the (non namespace-aware) DOM
+	 */
+	private String getTagName(XMLStreamReader reader)
+	{
+		String prefix = reader.getPrefix();
+		String rv = reader.getLocalName();
+
+		if (prefix != null && prefix.length() > 0)
+			rv = prefix + ":" + rv;
+
+		return rv;
+	}
+
+	/**
+	 * Get an attribute of the current element, or "" if it's not present (like the DOM)
+	 */
+	private String getAttribute(XMLStreamReader reader, String name)
+	{
+		String rv = reader.getAttributeValue(null, name);
+
+		return rv == null ? "" : rv;
+	}
+
 	/**
 	 * Parse a &lt;component&gt;-Element of the DOM
 	 * 
@@ -245,6 +499,8 @@ public class SpaceExXMLReader
 
 			component.setID(element.getAttribute("id"));
 			component.setNote(parseNote(element));
+
+			finishFormulas();
 		}
 		else
 		{
@@ -493,13 +749,8 @@ public class SpaceExXMLReader
 				location.setId(id);
 				location.setName(locationElement.getAttribute("name"));
 
-				Expression invariant = parseFormula(locationElement, "invariant");
-				if (invariant != null)
-					location.setInvariant(invariant);
-
-				Expression flow = parseFormula(locationElement, "flow");
-				if (flow != null)
-					location.setFlow(flow);
+				parseFormula(locationElement, "invariant", location);
+				parseFormula(locationElement, "flow", location);
 
 				location.setNote(parseNote(locationElement));
 
@@ -573,13 +824,8 @@ public class SpaceExXMLReader
 					transition.setPriority(priority);
 				}
 
-				Expression guard = parseFormula(transitionElement, "guard");
-				if (guard != null)
-					transition.setGuard(guard);
-
-				Expression assignment = parseFormula(transitionElement, "assignment");
-				if (assignment != null)
-					transition.setAssignment(assignment);
+				parseFormula(transitionElement, "guard", transition);
+				parseFormula(transitionElement, "assignment", transition);
 
 				transition.setNote(parseNote(transitionElement));
 
@@ -806,30 +1052,109 @@ public class SpaceExXMLReader
 		return result;
 	}
 
-	private Expression parseFormula(Element parentElement, String nodeName)
+	/**
+	 * Start parsing a formula (on the TaskPool), if the element has one. The result is assigned
+	 * to the owner (a Location or Transition) in finishFormulas().
+	 * 
+	 * @param parentElement
+	 *            the location or transition element
+	 * @param nodeName
+	 *            the formula type: invariant, flow, guard or assignment
+	 * @param owner
+	 *            the Location or Transition to assign the formula to
+	 */
+	private void parseFormula(Element parentElement, final String nodeName, Object owner)
 	{
-		Expression rv = null;
-
 		NodeList nodes = parentElement.getElementsByTagName(nodeName);
 		if ((nodes != null) && (nodes.getLength() > 0))
 		{
-			String text = nodes.item(0).getTextContent();
+			final String text = nodes.item(0).getTextContent();
 
-			if (nodeName.equals("invariant"))
-				rv = FormulaParser.parseInvariant(text);
-			else if (nodeName.equals("assignment"))
-				rv = FormulaParser.parseReset(text);
-			else if (nodeName.equals("guard"))
-				rv = FormulaParser.parseGuard(text);
-			else if (nodeName.equals("flow"))
-				rv = FormulaParser.parseFlow(text);
-			else
+			if (!nodeName.equals("invariant") && !nodeName.equals("assignment")
+					&& !nodeName.equals("guard") && !nodeName.equals("flow"))
 				throw new AutomatonExportException("unknown node type: " + nodeName);
+
+			Future<Expression> result = TaskPool.submit(new Callable<Expression>()
+			{
+				@Override
+				public Expression call()
+				{
+					return parseFormula(text, nodeName);
+				}
+			});
+
+			mPendingFormulas.add(new PendingFormula(owner, nodeName, result));
 		}
+	}
+
+	private static Expression parseFormula(String text, String nodeName)
+	{
+		Expression rv;
+
+		if (nodeName.equals("invariant"))
+			rv = FormulaParser.parseInvariant(text);
+		else if (nodeName.equals("assignment"))
+			rv = FormulaParser.parseReset(text);
+		else if (nodeName.equals("guard"))
+			rv = FormulaParser.parseGuard(text);
+		else
+			rv = FormulaParser.parseFlow(text);
 
 		return rv;
 	}
 
+	/**
+	 * Wait for the formulas started with parseFormula() and assign them, in document order. If
+	 * several formulas fail to parse, the error for the first one is thrown, same as if they were
+	 * parsed one at a time.
+	 */
+	private void finishFormulas()
+	{
+		try
+		{
+			for (PendingFormula pf : mPendingFormulas)
+			{
+				Expression e = TaskPool.getResult(pf.result);
+
+				if (e == null)
+					continue;
+
+				if (pf.nodeName.equals("invariant"))
+					((Location) pf.owner).setInvariant(e);
+				else if (pf.nodeName.equals("flow"))
+					((Location) pf.owner).setFlow(e);
+				else if (pf.nodeName.equals("guard"))
+					((Transition) pf.owner).setGuard(e);
+				else
+					((Transition) pf.owner).setAssignment(e);
+			}
+		}
+		finally
+		{
+			for (PendingFormula pf : mPendingFormulas)
+				pf.result.cancel(false);
+
+			mPendingFormulas.clear();
+		}
+	}
+
+	/**
+	 * A formula being parsed, and where to assign it
+	 */
+	private static class PendingFormula
+	{
+		final Object owner;
+		final String nodeName;
+		final Future<Expression> result;
+
+		PendingFormula(Object owner, String nodeName, Future<Expression> result)
+		{
+			this.owner = owner;
+			this.nodeName = nodeName;
+			this.result = result;
+		}
+	}
+
 	/**
 	 * Parse the config file and read all supported properties
 	 */
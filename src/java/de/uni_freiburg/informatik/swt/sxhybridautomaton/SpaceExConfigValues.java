@@ -1,8 +1,9 @@
 package de.uni_freiburg.informatik.swt.sxhybridautomaton;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 
-public class SpaceExConfigValues
+public class SpaceExConfigValues implements Serializable
 {
 	public ArrayList<String> outputVars = new ArrayList<String>();
 	public double timeHorizon = 10;
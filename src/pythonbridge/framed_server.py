@@ -0,0 +1,217 @@
+'''
+Framed request/response server for Hyst's FramedPythonBridge
+Run with: python -u -m pythonbridge.framed_server
+
+Rather than driving the interactive interpreter and parsing printed text, requests and responses
+are length-prefixed binary messages on stdin / stdout. All integers are little-endian uint32 and all
+numbers are little-endian doubles.
+
+Every message is: uint32 payload length, followed by the payload
+
+Request payload:
+    uint32 code length, utf-8 python code
+    uint32 number of arrays, then for each array:
+        uint32 name length, utf-8 name, uint32 count, count doubles
+
+Response payload:
+    uint8 status (0 = ok, 1 = error)
+    uint32 text length, utf-8 text (the traceback if there was an error)
+    uint32 count, count doubles
+
+The code is executed in the __main__ namespace, which persists between requests, with each request
+array bound to its name as a list of floats. To return data, the code assigns 'result_text' (a
+string) and / or 'result_doubles' (a flat sequence of numbers).
+
+Anything printed by the executed code goes to stderr, so that it can't corrupt the message stream.
+'''
+
+import os
+import struct
+import sys
+import traceback
+
+STATUS_OK = 0
+STATUS_ERROR = 1
+
+def to_pairs(flat):
+    '''convert a flat list [a0, b0, a1, b1, ...] to a list of tuples [(a0, b0), (a1, b1), ...]'''
+
+    return [(flat[i], flat[i + 1]) for i in range(0, len(flat), 2)]
+
+def to_interval_map(names, flat):
+    '''convert a list of variable names and a flat list of interval bounds to a map
+    like {'x':(a0, b0), 'y':(a1, b1)}'''
+
+    assert 2 * len(names) == len(flat)
+
+    return dict((names[i], (flat[2 * i], flat[2 * i + 1])) for i in range(len(names)))
+
+def to_points(flat, num_dims):
+    '''convert a flat list of numbers to a list of points, each with num_dims dimensions'''
+
+    assert len(flat) % num_dims == 0
+
+    return [flat[i:i + num_dims] for i in range(0, len(flat), num_dims)]
+
+def _flatten_doubles(lists):
+    '''flatten a list of lists of numbers to a list of floats
+
+    (underscored, so that modules loaded with 'from ... import *', such as sympy, can't replace it)'''
+
+    return [float(val) for l in lists for val in l]
+
+def encode_states(states):
+    '''encode a list of (mode_name, point) pairs as a (text, doubles) tuple, where text is the
+    semi-colon separated mode names and doubles are the concatenated points'''
+
+    text = ';'.join([mode_name for (mode_name, _) in states])
+    doubles = [float(d) for (_, point) in states for d in point]
+
+    return text, doubles
+
+def encode_trajectories(trajectories):
+    '''encode a list of trajectories (each a list of (mode_name, point) pairs) as a (text, doubles)
+    tuple, where the text of each trajectory is separated by a '|' '''
+
+    texts = []
+    doubles = []
+
+    for states in trajectories:
+        text, traj_doubles = encode_states(states)
+        texts.append(text)
+        doubles += traj_doubles
+
+    return '|'.join(texts), doubles
+
+def _read_exact(stream, size):
+    '''read exactly size bytes from the stream, or None if the stream ended'''
+
+    chunks = []
+    remaining = size
+
+    while remaining > 0:
+        data = stream.read(remaining)
+
+        if not data:
+            return None
+
+        chunks.append(data)
+        remaining -= len(data)
+
+    return b''.join(chunks)
+
+def _to_bytes(text):
+    '''convert a string (unicode or bytes) to utf-8 bytes'''
+
+    if not isinstance(text, bytes):
+        text = text.encode('utf-8')
+
+    return text
+
+class _RequestReader(object):
+    '''parses the fields of a request payload'''
+
+    def __init__(self, payload):
+        self.payload = payload
+        self.offset = 0
+
+    def uint32(self):
+        '''read a uint32'''
+        rv = struct.unpack_from('<I', self.payload, self.offset)[0]
+        self.offset += 4
+
+        return rv
+
+    def string(self):
+        '''read a length-prefixed utf-8 string'''
+        length = self.uint32()
+        rv = self.payload[self.offset:self.offset + length].decode('utf-8')
+        self.offset += length
+
+        return rv
+
+    def doubles(self):
+        '''read a length-prefixed list of doubles'''
+        count = self.uint32()
+        rv = list(struct.unpack_from('<%dd' % count, self.payload, self.offset))
+        self.offset += 8 * count
+
+        return rv
+
+def _make_response(status, text, doubles):
+    '''make a response message'''
+
+    text = _to_bytes(text)
+    doubles = [float(d) for d in doubles]
+
+    payload = b''.join([struct.pack('<B', status), struct.pack('<I', len(text)), text,
+                        struct.pack('<I', len(doubles)), struct.pack('<%dd' % len(doubles), *doubles)])
+
+    return struct.pack('<I', len(payload)) + payload
+
+def _handle(payload, namespace):
+    '''execute a single request, returning the response message'''
+
+    try:
+        reader = _RequestReader(payload)
+        code = reader.string()
+
+        for _ in range(reader.uint32()):
+            name = reader.string()
+            namespace[name] = reader.doubles()
+
+        exec(code, namespace)
+
+        text = namespace.pop('result_text', '')
+        doubles = namespace.pop('result_doubles', [])
+
+        if not isinstance(text, (bytes, type(u''))):
+            text = str(text)
+
+        rv = _make_response(STATUS_OK, text, doubles)
+    except Exception: # pylint: disable=broad-except
+        namespace.pop('result_text', None)
+        namespace.pop('result_doubles', None)
+
+        rv = _make_response(STATUS_ERROR, traceback.format_exc(), [])
+
+    return rv
+
+def serve(inp, out, namespace):
+    '''serve requests until the input stream is closed'''
+
+    while True:
+        header = _read_exact(inp, 4)
+
+        if header is None:
+            break
+
+        payload = _read_exact(inp, struct.unpack('<I', header)[0])
+
+        if payload is None:
+            break
+
+        out.write(_handle(payload, namespace))
+        out.flush()
+
+def main():
+    '''run the server on stdin / stdout'''
+
+    if sys.platform == 'win32':
+        import msvcrt
+        msvcrt.setmode(sys.stdin.fileno(), os.O_BINARY)
+        msvcrt.setmode(sys.stdout.fileno(), os.O_BINARY)
+
+    inp = getattr(sys.stdin, 'buffer', sys.stdin)
+    out = os.fdopen(os.dup(sys.stdout.fileno()), 'wb')
+
+    # stray prints from executed code (or child processes) must not end up in the message stream
+    os.dup2(sys.stderr.fileno(), sys.stdout.fileno())
+    sys.stdout = sys.stderr
+
+    # execute in the __main__ module's namespace (which has the helper functions above), so
+    # functions defined by requests can be pickled, for example by multiprocessing.Pool.map
+    serve(inp, out, sys.modules['__main__'].__dict__)
+
+if __name__ == '__main__':
+    main()
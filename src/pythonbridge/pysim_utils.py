@@ -53,6 +53,14 @@ def simulate_der_range(ha, der_var_index, mode_name, point, time_ranges, max_jum
     pair of numbers 'min,max'
     '''
 
+    return ranges_to_string(simulate_der_range_list(ha, der_var_index, mode_name, point, time_ranges, \
+                                                    max_jumps, solver))
+
+def simulate_der_range_list(ha, der_var_index, mode_name, point, time_ranges, max_jumps=500, solver='vode'):
+    '''
+    like simulate_der_range, but returns the list of [min, max] ranges rather than a string
+    '''
+
     q = (ha.modes[mode_name], point)
 
     all_times = []
@@ -90,7 +98,7 @@ def simulate_der_range(ha, der_var_index, mode_name, point, time_ranges, max_jum
                 r[0] = min(r[0], der_val)
                 r[1] = max(r[1], der_val)
 
-    return ranges_to_string(ranges)
+    return ranges
 
 def ranges_to_string(ranges):
     ''' converts a list of interval ranges to a semicolon-separated list of
@@ -109,7 +117,12 @@ def simulate_times(ha, mode_name, point, times, max_jumps=500, solver='vode'):
     '''simulates a hybrid automaton from a given mode/point, getting the state at a list of passed-in times
     returns a semi-colon separated string of mode_name, point_dim_0, point_dim_1, ... , point_dim_n
     '''
-    rv = ""
+
+    return states_to_string(simulate_times_states(ha, mode_name, point, times, max_jumps, solver))
+
+def simulate_times_states(ha, mode_name, point, times, max_jumps=500, solver='vode'):
+    '''like simulate_times, but returns a list of (mode_name, point) tuples rather than a string'''
+    rv = []
 
     q = (ha.modes[mode_name], point)
     last_time = 0
@@ -121,17 +134,21 @@ def simulate_times(ha, mode_name, point, times, max_jumps=500, solver='vode'):
         # simulate from q for delta time
         q = simulate_one_time(q, delta, max_jumps, solver)
 
-        entry = q[0].name
+        rv.append((q[0].name, q[1]))
 
-        for d in q[1]:
-            entry += "," + str(d)
+    return rv
 
-        if len(rv) > 0:
-            rv += ";"
+def states_to_string(states):
+    '''converts a list of (mode_name, point) tuples to a semi-colon separated list of
+    mode_name,point_dim_0,point_dim_1, ... ,point_dim_n
+    '''
 
-        rv += entry
+    entries = []
 
-    return rv
+    for mode_name, point in states:
+        entries.append(",".join([mode_name] + [str(d) for d in point]))
+
+    return ";".join(entries)
 
 def simulate_set_time(ha, mode_names, points, time, max_jumps=500, solver='vode'):
     '''simulates a hybrid automaton from a given set of modes/points, getting the state at a fixed final time
@@ -154,6 +171,15 @@ def simulate_multi_trajectory_time(ha, mode_names, points, time, min_steps=100,
     trajectory is a semi-colon separated list of mode_name,point_dim_0,point_dim_1, ... , point_dim_m
     '''
 
+    trajectories = simulate_multi_trajectory_states(ha, mode_names, points, time, min_steps, max_jumps, solver)
+
+    return '|'.join([states_to_string(traj) for traj in trajectories])
+
+def simulate_multi_trajectory_states(ha, mode_names, points, time, min_steps=100, max_jumps=500, solver='vode'):
+    '''like simulate_multi_trajectory_time, but returns a list of trajectories, where each trajectory is
+    a list of (mode_name, point) tuples
+    '''
+
     assert len(mode_names) == len(points)
 
     max_step = float(time) / float(min_steps)
@@ -168,21 +194,15 @@ def simulate_multi_trajectory_time(ha, mode_names, points, time, min_steps=100,
 
     res_list = simulate_multi(q_list, time, max_jumps=max_jumps, max_step=max_step, solver_name=solver)
 
-    rv_list = []
+    rv = []
 
     for res in res_list:
         traj = []
-        
+
         for mode_sim in res['traces']:
-            mode = mode_sim.mode_name
-            points = mode_sim.points
-        
-            for point in points:
-                point_dims = [str(d) for d in point]
-                point_str = ",".join(point_dims)
-                traj.append(mode + "," + point_str)
+            for point in mode_sim.points:
+                traj.append((mode_sim.mode_name, point))
 
-        
-        rv_list.append(';'.join(traj))
+        rv.append(traj)
 
-    return '|'.join(rv_list)
+    return rv
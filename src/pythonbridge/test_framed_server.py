@@ -0,0 +1,114 @@
+'''Unit tests for the framed server in pythonbridge'''
+
+import io
+import struct
+import unittest
+import framed_server as server
+
+def make_request(code, arrays=None):
+    '''make a request message, arrays is a list of (name, list of numbers) pairs'''
+
+    arrays = arrays or []
+    parts = [struct.pack('<I', len(code)), code.encode('utf-8'), struct.pack('<I', len(arrays))]
+
+    for name, values in arrays:
+        parts += [struct.pack('<I', len(name)), name.encode('utf-8'), struct.pack('<I', len(values)),
+                  struct.pack('<%dd' % len(values), *values)]
+
+    payload = b''.join(parts)
+
+    return struct.pack('<I', len(payload)) + payload
+
+def parse_response(message):
+    '''parse a response message into a (status, text, doubles) tuple, and the remaining bytes'''
+
+    length = struct.unpack_from('<I', message, 0)[0]
+    payload = message[4:4 + length]
+
+    status = struct.unpack_from('<B', payload, 0)[0]
+    text_len = struct.unpack_from('<I', payload, 1)[0]
+    text = payload[5:5 + text_len].decode('utf-8')
+    count = struct.unpack_from('<I', payload, 5 + text_len)[0]
+    doubles = list(struct.unpack_from('<%dd' % count, payload, 9 + text_len))
+
+    return (status, text, doubles), message[4 + length:]
+
+class TestFramedServer(unittest.TestCase):
+    'Unit tests for the framed server'
+
+    def handle(self, message, namespace):
+        'handle a single request message, returning the parsed response'
+
+        rv, rest = parse_response(server._handle(message[4:], namespace)) # pylint: disable=protected-access
+        self.assertEqual(rest, b'')
+
+        return rv
+
+    def test_result(self):
+        'test returning text and doubles, with the namespace persisting between requests'
+        namespace = {}
+
+        self.assertEqual(self.handle(make_request('a = 2'), namespace), (server.STATUS_OK, '', []))
+
+        req = make_request('result_text = "a=%d" % a\nresult_doubles = [a * v for v in xs]',
+                           [('xs', [0.5, -1.0])])
+        self.assertEqual(self.handle(req, namespace), (server.STATUS_OK, 'a=2', [1.0, -2.0]))
+
+        # results are not kept for the next request
+        self.assertEqual(self.handle(make_request('pass'), namespace), (server.STATUS_OK, '', []))
+
+    def test_error(self):
+        'test that an exception makes an error response with the traceback'
+        namespace = {}
+
+        req = make_request('result_text = "partial"\nraise ValueError("bad value")')
+        status, text, doubles = self.handle(req, namespace)
+
+        self.assertEqual(status, server.STATUS_ERROR)
+        self.assertTrue('Traceback' in text)
+        self.assertTrue('ValueError: bad value' in text)
+        self.assertEqual(doubles, [])
+
+        # the server keeps working after an error
+        req = make_request('result_text = "ok"')
+        self.assertEqual(self.handle(req, namespace), (server.STATUS_OK, 'ok', []))
+
+    def test_large_payload(self):
+        'test a round trip of a large array'
+        values = [i * 0.25 for i in range(500000)]
+
+        req = make_request('result_doubles = big', [('big', values)])
+        self.assertEqual(self.handle(req, {}), (server.STATUS_OK, '', values))
+
+    def test_serve(self):
+        'test serving several requests from a stream until it ends'
+        inp = io.BytesIO(make_request('x = 1') + make_request('result_text = str(x + 1)') +
+                         make_request('result_text = undefined_name'))
+        out = io.BytesIO()
+
+        server.serve(inp, out, {})
+        rest = out.getvalue()
+
+        first, rest = parse_response(rest)
+        self.assertEqual(first, (server.STATUS_OK, '', []))
+
+        second, rest = parse_response(rest)
+        self.assertEqual(second, (server.STATUS_OK, '2', []))
+
+        third, rest = parse_response(rest)
+        self.assertEqual(third[0], server.STATUS_ERROR)
+        self.assertTrue('NameError' in third[1])
+
+        self.assertEqual(rest, b'')
+
+    def test_truncated_request(self):
+        'test that a stream ending mid-message stops the server without a response'
+        message = make_request('result_text = "never"')
+        out = io.BytesIO()
+
+        server.serve(io.BytesIO(message[:-3]), out, {})
+
+        self.assertEqual(out.getvalue(), b'')
+
+if __name__ == '__main__':
+    unittest.main()